@@ -29,14 +29,10 @@ import org.thoughtcrime.securesms.dependencies.RedPhoneCommunicationModule;
 import org.thoughtcrime.securesms.dependencies.TextSecureCommunicationModule;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.GcmRefreshJob;
-import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
-import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
-import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirementProvider;
-import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
+import org.thoughtcrime.securesms.jobs.ResumeAttachmentDownloadsJob;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.dependencies.DependencyInjector;
-import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
 import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
 import org.whispersystems.libsignal.util.AndroidSignalProtocolLogger;
 
@@ -52,10 +48,8 @@ import dagger.ObjectGraph;
  */
 public class ApplicationContext extends Application implements DependencyInjector {
 
-  private JobManager  jobManager;
-  private ObjectGraph objectGraph;
-
-  private MediaNetworkRequirementProvider mediaNetworkRequirementProvider = new MediaNetworkRequirementProvider();
+  private LaneJobManager jobManager;
+  private ObjectGraph    objectGraph;
 
   public static ApplicationContext getInstance(Context context) {
     return (ApplicationContext)context.getApplicationContext();
@@ -71,6 +65,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     initializeJobManager();
     initializeGcmCheck();
     initializeSignedPreKeyCheck();
+    initializeAttachmentDownloads();
   }
 
   @Override
@@ -80,7 +75,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
-  public JobManager getJobManager() {
+  public LaneJobManager getJobManager() {
     return jobManager;
   }
 
@@ -103,20 +98,11 @@ public class ApplicationContext extends Application implements DependencyInjecto
   }
 
   private void initializeJobManager() {
-    this.jobManager = JobManager.newBuilder(this)
-                                .withName("TextSecureJobs")
-                                .withDependencyInjector(this)
-                                .withJobSerializer(new EncryptingJobSerializer())
-                                .withRequirementProviders(new MasterSecretRequirementProvider(this),
-                                                          new ServiceRequirementProvider(this),
-                                                          new NetworkRequirementProvider(this),
-                                                          mediaNetworkRequirementProvider)
-                                .withConsumerThreads(5)
-                                .build();
+    this.jobManager = new LaneJobManager(this, this);
   }
 
   public void notifyMediaControlEvent() {
-    mediaNetworkRequirementProvider.notifyMediaControlEvent();
+    jobManager.notifyMediaControlEvent();
   }
 
   private void initializeDependencyInjection() {
@@ -139,4 +125,8 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
+  private void initializeAttachmentDownloads() {
+    jobManager.add(new ResumeAttachmentDownloadsJob(this));
+  }
+
 }
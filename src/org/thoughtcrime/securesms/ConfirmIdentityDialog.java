@@ -168,7 +168,7 @@ public class ConfirmIdentityDialog extends AlertDialog {
                                                                        Base64.decode(messageRecord.getBody().getBody()),
                                                                        null);
 
-            long pushId = pushDatabase.insert(envelope);
+            long pushId = pushDatabase.insert(envelope, messageRecord.getId());
 
             ApplicationContext.getInstance(getContext())
                               .getJobManager()
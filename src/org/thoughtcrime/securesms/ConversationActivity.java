@@ -1238,7 +1238,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
         Context             context    = ConversationActivity.this;
         List<SyncMessageId> messageIds = DatabaseFactory.getThreadDatabase(context).setRead(params[0]);
 
-        MessageNotifier.updateNotification(context, masterSecret);
+        MessageNotifier.updateNotificationForRead(context, masterSecret, params[0]);
 
         if (!messageIds.isEmpty()) {
           ApplicationContext.getInstance(context).getJobManager().add(new MultiDeviceReadUpdateJob(context, messageIds));
@@ -64,7 +64,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     extends CursorRecyclerViewAdapter<ConversationAdapter.ViewHolder>
 {
 
-  private static final int MAX_CACHE_SIZE = 40;
+  private static final int MAX_CACHE_SIZE       = 40;
+  private static final int PAGE_PREFETCH_OFFSET = 20;
   private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
       Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
 
@@ -82,6 +83,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   private final @NonNull  LayoutInflater    inflater;
   private final @NonNull  MessageDigest     digest;
 
+  private @Nullable PagingListener pagingListener;
+
   protected static class ViewHolder extends RecyclerView.ViewHolder {
     public <V extends View & BindableConversationItem> ViewHolder(final @NonNull V itemView) {
       super(itemView);
@@ -98,6 +101,10 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     void onItemLongClick(ConversationItem item);
   }
 
+  public interface PagingListener {
+    void onRequestOlder();
+  }
+
   @SuppressWarnings("ConstantConditions")
   @VisibleForTesting
   ConversationAdapter(Context context, Cursor cursor) {
@@ -138,6 +145,10 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     }
   }
 
+  public void setPagingListener(@Nullable PagingListener pagingListener) {
+    this.pagingListener = pagingListener;
+  }
+
   @Override
   public void changeCursor(Cursor cursor) {
     messageRecordCache.clear();
@@ -151,6 +162,10 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     MessageRecord messageRecord = getMessageRecord(id, cursor, type);
 
     viewHolder.getView().bind(masterSecret, messageRecord, locale, batchSelected, recipients);
+
+    if (pagingListener != null && cursor.getPosition() >= cursor.getCount() - PAGE_PREFETCH_OFFSET) {
+      pagingListener.onRequestOlder();
+    }
   }
 
   @Override
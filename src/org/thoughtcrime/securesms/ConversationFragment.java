@@ -47,6 +47,7 @@ import android.view.Window;
 import android.widget.Toast;
 
 import org.thoughtcrime.securesms.ConversationAdapter.ItemClickListener;
+import org.thoughtcrime.securesms.ConversationAdapter.PagingListener;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
@@ -74,10 +75,11 @@ public class ConversationFragment extends Fragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
-  private static final long   PARTIAL_CONVERSATION_LIMIT = 500L;
+  private static final int    CONVERSATION_PAGE_SIZE = 200;
 
   private final ActionModeCallback actionModeCallback     = new ActionModeCallback();
   private final ItemClickListener  selectionClickListener = new ConversationFragmentItemClickListener();
+  private final PagingListener     pagingListener         = new ConversationFragmentPagingListener();
 
   private ConversationFragmentListener listener;
 
@@ -108,9 +110,7 @@ public class ConversationFragment extends Fragment
     loadMoreView.setOnClickListener(new OnClickListener() {
       @Override
       public void onClick(View v) {
-        Bundle args = new Bundle();
-        args.putLong("limit", 0);
-        getLoaderManager().restartLoader(0, args, ConversationFragment.this);
+        pagingListener.onRequestOlder();
       }
     });
     return view;
@@ -163,7 +163,9 @@ public class ConversationFragment extends Fragment
 
   private void initializeListAdapter() {
     if (this.recipients != null && this.threadId != -1) {
-      list.setAdapter(new ConversationAdapter(getActivity(), masterSecret, locale, selectionClickListener, null, this.recipients));
+      ConversationAdapter adapter = new ConversationAdapter(getActivity(), masterSecret, locale, selectionClickListener, null, this.recipients);
+      adapter.setPagingListener(pagingListener);
+      list.setAdapter(adapter);
       getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
       list.getItemAnimator().setSupportsChangeAnimations(false);
       list.getItemAnimator().setMoveDuration(120);
@@ -357,13 +359,13 @@ public class ConversationFragment extends Fragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new ConversationLoader(getActivity(), threadId, args.getLong("limit", PARTIAL_CONVERSATION_LIMIT));
+    return new ConversationLoader(getActivity(), masterSecret, threadId, CONVERSATION_PAGE_SIZE);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
     if (list.getAdapter() != null) {
-      if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && ((ConversationLoader)loader).hasLimit()) {
+      if (((ConversationLoader)loader).hasOlder()) {
         getListAdapter().setFooterView(loadMoreView);
       } else {
         getListAdapter().setFooterView(null);
@@ -379,6 +381,17 @@ public class ConversationFragment extends Fragment
     }
   }
 
+  private class ConversationFragmentPagingListener implements PagingListener {
+    @Override
+    public void onRequestOlder() {
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader instanceof ConversationLoader) {
+        ((ConversationLoader)loader).loadOlder();
+      }
+    }
+  }
+
   public interface ConversationFragmentListener {
     void setThreadId(long threadId);
   }
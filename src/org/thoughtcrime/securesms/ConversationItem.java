@@ -472,7 +472,13 @@ public class ConversationItem extends LinearLayout
       Log.w(TAG, "Clicked: " + slide.getUri() + " , " + slide.getContentType());
       Intent intent = new Intent(Intent.ACTION_VIEW);
       intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-      intent.setDataAndType(PartAuthority.getAttachmentPublicUri(slide.getUri()), slide.getContentType());
+
+      if (slide.hasImage() && !slide.hasVideo()) {
+        intent.setDataAndType(PartAuthority.getAttachmentPublicStreamingUri(slide.getUri()), slide.getContentType());
+      } else {
+        intent.setDataAndType(PartAuthority.getAttachmentPublicUri(slide.getUri()), slide.getContentType());
+      }
+
       try {
         context.startActivity(intent);
       } catch (ActivityNotFoundException anfe) {
@@ -221,7 +221,9 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
       public void onChange(boolean selfChange) {
         super.onChange(selfChange);
         Log.w(TAG, "Detected android contact data changed, refreshing cache");
-        RecipientFactory.clearCache();
+
+        if (RecipientFactory.refreshContacts(ConversationListActivity.this) == 0) return;
+
         ConversationListActivity.this.runOnUiThread(new Runnable() {
           @Override
           public void run() {
@@ -473,7 +473,7 @@ public class ConversationListFragment extends Fragment
 
             if (!read) {
               List<SyncMessageId> messageIds = DatabaseFactory.getThreadDatabase(getActivity()).setRead(threadId);
-              MessageNotifier.updateNotification(getActivity(), masterSecret);
+              MessageNotifier.updateNotificationForRead(getActivity(), masterSecret, threadId);
 
               if (!messageIds.isEmpty()) {
                 ApplicationContext.getInstance(getActivity())
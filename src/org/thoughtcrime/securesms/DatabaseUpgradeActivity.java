@@ -30,6 +30,7 @@ import android.widget.ProgressBar;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.crypto.storage.RoutingProtocolStorage;
 import org.thoughtcrime.securesms.crypto.storage.TextSecurePreKeyStore;
 import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
@@ -41,6 +42,7 @@ import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
+import org.thoughtcrime.securesms.jobs.PartFormatMigrationJob;
 import org.thoughtcrime.securesms.jobs.PushDecryptJob;
 import org.thoughtcrime.securesms.jobs.RefreshAttributesJob;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
@@ -68,6 +70,9 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int CONTACTS_ACCOUNT_VERSION             = 136;
   public static final int MEDIA_DOWNLOAD_CONTROLS_VERSION      = 151;
   public static final int REDPHONE_SUPPORT_VERSION             = 157;
+  public static final int MESSAGE_INDEX_VERSION                = 194;
+  public static final int PROTOCOL_STORE_VERSION               = 195;
+  public static final int SEEKABLE_PARTS_VERSION               = 196;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
     add(NO_MORE_KEY_EXCHANGE_PREFIX_VERSION);
@@ -81,6 +86,9 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(MIGRATE_SESSION_PLAINTEXT);
     add(MEDIA_DOWNLOAD_CONTROLS_VERSION);
     add(REDPHONE_SUPPORT_VERSION);
+    add(MESSAGE_INDEX_VERSION);
+    add(PROTOCOL_STORE_VERSION);
+    add(SEEKABLE_PARTS_VERSION);
   }};
 
   private MasterSecret masterSecret;
@@ -231,6 +239,20 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                           .add(new DirectoryRefreshJob(getApplicationContext()));
       }
 
+      if (params[0] < MESSAGE_INDEX_VERSION) {
+        DatabaseFactory.getMessageIndexDatabase(context).verifyAndRepair();
+      }
+
+      if (params[0] < PROTOCOL_STORE_VERSION) {
+        RoutingProtocolStorage.migrateToDatabase(context, masterSecret);
+      }
+
+      if (params[0] < SEEKABLE_PARTS_VERSION) {
+        ApplicationContext.getInstance(getApplicationContext())
+                          .getJobManager()
+                          .add(new PartFormatMigrationJob(getApplicationContext()));
+      }
+
       return null;
     }
 
@@ -269,6 +291,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                             .getJobManager()
                             .add(new PushDecryptJob(getApplicationContext(),
                                                     pushReader.getLong(pushReader.getColumnIndexOrThrow(PushDatabase.ID)),
+                                                    pushReader.getLong(pushReader.getColumnIndexOrThrow(PushDatabase.RETRY_MSG_ID)),
                                                     pushReader.getString(pushReader.getColumnIndexOrThrow(PushDatabase.SOURCE))));
         }
       } finally {
@@ -0,0 +1,232 @@
+package org.thoughtcrime.securesms.attachments;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Downloads an attachment's ciphertext into a partial file that is kept across failures.  When
+ * the file already holds part of the attachment, only the remaining bytes are requested with an
+ * HTTP range, falling back to a full download if the server doesn't honor it.
+ */
+class AttachmentDownloader {
+
+  private static final String TAG = AttachmentDownloader.class.getSimpleName();
+
+  private static final String  ATTACHMENT_PATH = "/v1/attachments/%s";
+  private static final Pattern CONTENT_RANGE   = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+  private final OkHttpClient serviceClient;
+  private final OkHttpClient storageClient;
+  private final String       baseUrl;
+  private final String       login;
+  private final String       password;
+
+  AttachmentDownloader(String baseUrl, TrustStore trustStore, String login, String password) {
+    this(baseUrl, login, password, createServiceClient(trustStore), createStorageClient());
+  }
+
+  @VisibleForTesting
+  AttachmentDownloader(String baseUrl, String login, String password,
+                       OkHttpClient serviceClient, OkHttpClient storageClient)
+  {
+    this.baseUrl       = baseUrl;
+    this.login         = login;
+    this.password      = password;
+    this.serviceClient = serviceClient;
+    this.storageClient = storageClient;
+  }
+
+  /**
+   * Asks the service where the attachment's ciphertext is stored.  The answer expires, so it's
+   * fetched again for every attempt.
+   */
+  @NonNull String getLocation(long attachmentId, @Nullable String relay) throws IOException {
+    String path = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
+
+    if (!TextUtils.isEmpty(relay)) {
+      path = path + "?relay=" + relay;
+    }
+
+    Request request = new Request.Builder()
+        .url(baseUrl + path)
+        .header("Authorization", "Basic " + Base64.encodeBytes((login + ":" + password).getBytes()))
+        .build();
+
+    Response response = serviceClient.newCall(request).execute();
+
+    try {
+      checkResponse(response);
+
+      AttachmentLocation location = JsonUtils.fromJson(response.body().string(), AttachmentLocation.class);
+
+      if (TextUtils.isEmpty(location.location)) {
+        throw new IOException("No location for attachment " + attachmentId);
+      }
+
+      return location.location;
+    } finally {
+      response.body().close();
+    }
+  }
+
+  /**
+   * Completes the partial file from <code>location</code>.
+   *
+   * @return the number of bytes that were already in the partial file and didn't have to be
+   *         downloaded again
+   */
+  long download(@NonNull String location, @NonNull File partialFile, @Nullable ProgressListener listener)
+      throws IOException
+  {
+    long            offset  = partialFile.length();
+    Request.Builder request = new Request.Builder().url(location);
+
+    if (offset > 0) {
+      request.header("Range", "bytes=" + offset + "-");
+    }
+
+    Response response = storageClient.newCall(request.build()).execute();
+
+    try {
+      if (response.code() == 416 && offset > 0) {
+        Log.w(TAG, "Nothing left to download past " + offset + " bytes");
+        return offset;
+      }
+
+      checkResponse(response);
+
+      if (offset > 0 && (response.code() != 206 || getRangeStart(response) != offset)) {
+        Log.w(TAG, "Range request not honored (" + response.code() + "), downloading in full");
+        offset = 0;
+      }
+
+      long         length = response.body().contentLength();
+      long         total  = length < 0 ? -1 : offset + length;
+      InputStream  in     = response.body().byteStream();
+      OutputStream out    = new FileOutputStream(partialFile, offset > 0);
+
+      try {
+        byte[] buffer   = new byte[32 * 1024];
+        long   progress = offset;
+        int    read;
+
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          progress += read;
+
+          if (listener != null) {
+            listener.onAttachmentProgress(total, progress);
+          }
+        }
+
+        if (total >= 0 && progress != total) {
+          throw new IOException("Download ended at " + progress + " of " + total + " bytes");
+        }
+      } finally {
+        out.close();
+      }
+
+      return offset;
+    } finally {
+      response.body().close();
+    }
+  }
+
+  private static long getRangeStart(Response response) {
+    String contentRange = response.header("Content-Range");
+
+    if (contentRange == null) return -1;
+
+    Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+    return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+  }
+
+  /**
+   * Server errors are worth retrying and surface as plain IOExceptions.  Anything else means the
+   * attachment can't be fetched.
+   */
+  private static void checkResponse(Response response) throws IOException {
+    if (response.isSuccessful()) return;
+
+    if (response.code() >= 500) {
+      throw new IOException("Server error: " + response.code());
+    }
+
+    throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+  }
+
+  private static OkHttpClient createServiceClient(TrustStore trustStore) {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, getTrustManagers(trustStore), null);
+
+      return new OkHttpClient().setSslSocketFactory(context.getSocketFactory());
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static OkHttpClient createStorageClient() {
+    OkHttpClient client = new OkHttpClient();
+
+    client.setConnectTimeout(30, TimeUnit.SECONDS);
+    client.setReadTimeout(30, TimeUnit.SECONDS);
+
+    return client;
+  }
+
+  private static TrustManager[] getTrustManagers(TrustStore trustStore) {
+    try {
+      InputStream keyStoreInputStream = trustStore.getKeyStoreInputStream();
+      KeyStore    keyStore            = KeyStore.getInstance("BKS");
+
+      keyStore.load(keyStoreInputStream, trustStore.getKeyStorePassword().toCharArray());
+
+      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
+      trustManagerFactory.init(keyStore);
+
+      return trustManagerFactory.getTrustManagers();
+    } catch (KeyStoreException | CertificateException | IOException | NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class AttachmentLocation {
+    @JsonProperty
+    private String location;
+
+    public AttachmentLocation() {}
+  }
+}
@@ -0,0 +1,401 @@
+package org.thoughtcrime.securesms.attachments;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.BuildConfig;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.events.PartProgressEvent;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
+import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirement;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
+import org.thoughtcrime.securesms.push.TextSecurePushTrustStore;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+import ws.com.google.android.mms.MmsException;
+
+/**
+ * Runs attachment downloads handed over by {@link AttachmentDownloadJob}.
+ *
+ * Transfers run concurrently, up to a limit that follows the active network: more on Wi-Fi,
+ * fewer on mobile data, and one at a time while roaming.  Whatever the user is currently looking
+ * at is started first.  Downloads go to a partial file that survives failures, so a retry, or the
+ * job that takes over once the in-process retries are spent, only fetches the missing bytes.  If
+ * a resumed download fails verification, the partial file is discarded and the download starts
+ * over once before the attachment is marked as failed.
+ *
+ * The job that hands a download over is finished as soon as it has, so while a download is
+ * queued or running here a marker file records it.  A marker that is still there on the next
+ * launch means the download was interrupted, and only those are requeued by
+ * {@link org.thoughtcrime.securesms.jobs.ResumeAttachmentDownloadsJob}.
+ */
+public class MediaTransferScheduler {
+
+  private static final String TAG = MediaTransferScheduler.class.getSimpleName();
+
+  private static final int  MAX_THREADS        = 4;
+  private static final int  MAX_ATTEMPTS       = 3;
+  private static final int  MAX_RESUMES        = 10;
+  private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  private static final long VISIBLE_MILLIS     = TimeUnit.SECONDS.toMillis(30);
+  private static final int  MAX_VISIBLE        = 50;
+
+  private static final String PARTIAL_DIRECTORY = "partial-attachments";
+
+  private static MediaTransferScheduler instance;
+
+  public static synchronized MediaTransferScheduler getInstance(Context context) {
+    if (instance == null) {
+      instance = new MediaTransferScheduler(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private final Context                     context;
+  private final ThreadPoolExecutor          executor;
+  private final List<Transfer>              pending   = new LinkedList<>();
+  private final Map<AttachmentId, Transfer> transfers = new HashMap<>();
+  private final Map<AttachmentId, Long>     visible   = new LinkedHashMap<AttachmentId, Long>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<AttachmentId, Long> eldest) {
+      return size() > MAX_VISIBLE;
+    }
+  };
+
+  private int  active;
+  private long completed;
+  private long failed;
+  private long resumed;
+  private long bytesDownloaded;
+  private long transferMillis;
+
+  private MediaTransferScheduler(Context context) {
+    this.context  = context;
+    this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues a download.  Does nothing if the attachment is already queued or transferring.
+   *
+   * @param resumeCount how many times this download has already been handed back to the job
+   *                    manager after running out of attempts here
+   */
+  public void enqueue(@NonNull MasterSecret masterSecret, long messageId,
+                      @NonNull DatabaseAttachment attachment,
+                      @NonNull SignalServiceAttachmentPointer pointer,
+                      int resumeCount)
+  {
+    synchronized (this) {
+      if (transfers.containsKey(attachment.getAttachmentId())) {
+        Log.w(TAG, "Already transferring " + attachment.getAttachmentId());
+        return;
+      }
+
+      Transfer transfer = new Transfer(masterSecret, messageId, attachment, pointer, resumeCount);
+
+      transfers.put(attachment.getAttachmentId(), transfer);
+      pending.add(transfer);
+    }
+
+    try {
+      //noinspection ResultOfMethodCallIgnored
+      getActiveMarker(attachment.getAttachmentId()).createNewFile();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    dispatch();
+  }
+
+  /**
+   * @return true if a download of this attachment was handed over in an earlier process and
+   *         never finished, failed, or went back to the job manager.
+   */
+  public synchronized boolean isInterrupted(@NonNull AttachmentId attachmentId) {
+    return !transfers.containsKey(attachmentId) && getActiveMarker(attachmentId).exists();
+  }
+
+  /**
+   * Forgets an interrupted download, once a job that will hand it over again has been added.
+   */
+  public void clearInterrupted(@NonNull AttachmentId attachmentId) {
+    //noinspection ResultOfMethodCallIgnored
+    getActiveMarker(attachmentId).delete();
+  }
+
+  /**
+   * Records that an attachment is on screen, so that its download, if queued, goes next.
+   */
+  public synchronized void markVisible(@NonNull AttachmentId attachmentId) {
+    visible.remove(attachmentId);
+    visible.put(attachmentId, System.currentTimeMillis());
+  }
+
+  public synchronized @NonNull TransferStats getStats() {
+    long bytesPerSecond = transferMillis > 0 ? bytesDownloaded * 1000 / transferMillis : 0;
+    return new TransferStats(pending.size(), active, completed, failed, resumed, bytesDownloaded, bytesPerSecond);
+  }
+
+  private void dispatch() {
+    synchronized (this) {
+      int limit = getConcurrencyLimit();
+
+      while (active < limit && !pending.isEmpty()) {
+        final Transfer transfer = takeNext();
+        active++;
+
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              transfer.run();
+            } finally {
+              synchronized (MediaTransferScheduler.this) {
+                active--;
+                transfers.remove(transfer.attachment.getAttachmentId());
+              }
+
+              clearInterrupted(transfer.attachment.getAttachmentId());
+
+              dispatch();
+            }
+          }
+        });
+      }
+    }
+  }
+
+  private int getConcurrencyLimit() {
+    if      (MediaNetworkRequirement.isConnectedWifi(context))    return MAX_THREADS;
+    else if (MediaNetworkRequirement.isConnectedRoaming(context)) return 1;
+    else if (MediaNetworkRequirement.isConnectedMobile(context))  return 2;
+    else                                                          return 1;
+  }
+
+  private Transfer takeNext() {
+    List<AttachmentId> attachmentIds = new ArrayList<>(pending.size());
+
+    for (Transfer transfer : pending) {
+      attachmentIds.add(transfer.attachment.getAttachmentId());
+    }
+
+    return pending.remove(indexOfNext(attachmentIds, visible, System.currentTimeMillis()));
+  }
+
+  /**
+   * @return the position of the pending attachment that was most recently on screen, if any was
+   *         in the last {@link #VISIBLE_MILLIS}, otherwise the first one queued
+   */
+  @VisibleForTesting
+  static int indexOfNext(@NonNull List<AttachmentId> pending, @NonNull Map<AttachmentId, Long> visible, long now) {
+    int  next     = 0;
+    long nextSeen = 0;
+
+    for (int i=0;i<pending.size();i++) {
+      Long seen = visible.get(pending.get(i));
+
+      if (seen != null && now - seen < VISIBLE_MILLIS && seen > nextSeen) {
+        next     = i;
+        nextSeen = seen;
+      }
+    }
+
+    return next;
+  }
+
+  private void onTransferFinished(boolean success, long bytes, long millis, long skipped) {
+    TransferStats stats;
+
+    synchronized (this) {
+      if (success) completed++;
+      else         failed++;
+
+      if (skipped > 0) resumed++;
+
+      bytesDownloaded += bytes;
+      transferMillis  += millis;
+
+      stats = getStats();
+    }
+
+    Log.w(TAG, "Transfer stats: " + stats);
+  }
+
+  private @NonNull File getPartialFile(@NonNull AttachmentId attachmentId) {
+    File directory = new File(context.getCacheDir(), PARTIAL_DIRECTORY);
+    directory.mkdirs();
+
+    return new File(directory, attachmentId.getRowId() + "-" + attachmentId.getUniqueId());
+  }
+
+  private @NonNull File getActiveMarker(@NonNull AttachmentId attachmentId) {
+    return new File(getPartialFile(attachmentId).getPath() + ".active");
+  }
+
+  private class Transfer {
+    private final MasterSecret                   masterSecret;
+    private final long                           messageId;
+    private final DatabaseAttachment             attachment;
+    private final SignalServiceAttachmentPointer pointer;
+    private final int                            resumeCount;
+
+    Transfer(MasterSecret masterSecret, long messageId, DatabaseAttachment attachment,
+             SignalServiceAttachmentPointer pointer, int resumeCount)
+    {
+      this.masterSecret = masterSecret;
+      this.messageId    = messageId;
+      this.attachment   = attachment;
+      this.pointer      = pointer;
+      this.resumeCount  = resumeCount;
+    }
+
+    void run() {
+      AttachmentId         attachmentId = attachment.getAttachmentId();
+      File                 partialFile  = getPartialFile(attachmentId);
+      AttachmentDownloader downloader   = createDownloader();
+      boolean              restarted    = false;
+
+      for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+        long startLength = partialFile.length();
+        long start       = System.currentTimeMillis();
+        long skipped     = 0;
+
+        try {
+          String location = downloader.getLocation(pointer.getId(), pointer.getRelay().orNull());
+          skipped = downloader.download(location, partialFile, new ProgressListener() {
+            @Override
+            public void onAttachmentProgress(long total, long progress) {
+              EventBus.getDefault().postSticky(new PartProgressEvent(attachment, total, progress));
+            }
+          });
+
+          long millis = System.currentTimeMillis() - start;
+          long bytes  = partialFile.length() - skipped;
+
+          InputStream stream = new AttachmentCipherInputStream(partialFile, pointer.getKey());
+          DatabaseFactory.getAttachmentDatabase(context)
+                         .insertAttachmentsForPlaceholder(masterSecret, messageId, attachmentId, stream);
+
+          partialFile.delete();
+
+          Log.w(TAG, "Downloaded " + attachmentId + ": " + bytes + " bytes in " + millis + "ms" +
+                     (skipped > 0 ? ", resumed at " + skipped : "") +
+                     " (" + (millis > 0 ? bytes * 1000 / millis : 0) + " bytes/s)");
+
+          onTransferFinished(true, bytes, millis, skipped);
+
+          MessageNotifier.updateNotification(context, masterSecret);
+          return;
+        } catch (InvalidMessageException e) {
+          if (skipped > 0 && !restarted) {
+            Log.w(TAG, "Resumed download of " + attachmentId + " failed verification, restarting from zero", e);
+            partialFile.delete();
+            restarted = true;
+            attempt--;
+            continue;
+          }
+
+          Log.w(TAG, e);
+          partialFile.delete();
+          markFailed(attachmentId);
+          onTransferFinished(false, 0, 0, 0);
+          return;
+        } catch (NonSuccessfulResponseCodeException | MmsException e) {
+          Log.w(TAG, e);
+          partialFile.delete();
+          markFailed(attachmentId);
+          onTransferFinished(false, 0, 0, 0);
+          return;
+        } catch (IOException e) {
+          Log.w(TAG, "Attempt " + attempt + " for " + attachmentId + " failed at " +
+                     partialFile.length() + " bytes (started at " + startLength + ")", e);
+          if (attempt < MAX_ATTEMPTS) Util.sleep(RETRY_DELAY_MILLIS * attempt);
+        }
+      }
+
+      if (resumeCount < MAX_RESUMES) {
+        Log.w(TAG, "Handing " + attachmentId + " back to the job manager, resume " + (resumeCount + 1));
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new AttachmentDownloadJob(context, messageId, attachmentId, resumeCount + 1));
+      } else {
+        partialFile.delete();
+        markFailed(attachmentId);
+        onTransferFinished(false, 0, 0, 0);
+      }
+    }
+
+    private AttachmentDownloader createDownloader() {
+      return new AttachmentDownloader(BuildConfig.TEXTSECURE_URL,
+                                      new TextSecurePushTrustStore(context),
+                                      TextSecurePreferences.getLocalNumber(context),
+                                      TextSecurePreferences.getPushServerPassword(context));
+    }
+
+    private void markFailed(AttachmentId attachmentId) {
+      try {
+        AttachmentDatabase database = DatabaseFactory.getAttachmentDatabase(context);
+        database.setTransferProgressFailed(attachmentId, messageId);
+      } catch (MmsException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  public static class TransferStats {
+    public final int  queued;
+    public final int  active;
+    public final long completed;
+    public final long failed;
+    public final long resumed;
+    public final long bytes;
+    public final long bytesPerSecond;
+
+    TransferStats(int queued, int active, long completed, long failed, long resumed,
+                  long bytes, long bytesPerSecond)
+    {
+      this.queued         = queued;
+      this.active         = active;
+      this.completed      = completed;
+      this.failed         = failed;
+      this.resumed        = resumed;
+      this.bytes          = bytes;
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+      return "queued: " + queued + ", active: " + active + ", completed: " + completed +
+             ", failed: " + failed + ", resumed: " + resumed + ", bytes: " + bytes +
+             ", bytes/s: " + bytesPerSecond;
+    }
+  }
+}
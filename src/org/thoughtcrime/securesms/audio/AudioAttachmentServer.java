@@ -4,373 +4,753 @@ package org.thoughtcrime.securesms.audio;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.spongycastle.util.encoders.Hex;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.crypto.SeekableDecryptingPartInputStream;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.Util;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
-import java.util.Map;
-import java.util.Properties;
-import java.util.StringTokenizer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
+ * A single localhost HTTP server that streams decrypted attachments to {@link android.media.MediaPlayer}.
+ *
+ * Each attachment is {@link #register(Context, MasterSecret, Attachment) registered} under its own
+ * random token, which is the only path the server will answer for it.  All connections are
+ * serviced by one selector thread, which runs only while something is registered.  The selector
+ * thread never touches an attachment stream: opening, seeking and decrypting are handed to a
+ * couple of worker threads, which pass each filled buffer back to the selector to be written.
+ * Range requests seek the decrypting stream rather than decrypting the skipped prefix, and
+ * response bodies go through a small, bounded pool of direct buffers.
+ *
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
  */
-public class AudioAttachmentServer implements Runnable {
+public class AudioAttachmentServer {
 
   private static final String TAG = AudioAttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final MasterSecret masterSecret;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_REQUEST_LENGTH = 8 * 1024;
+  private static final int BUFFER_SIZE        = 64 * 1024;
+  private static final int MAX_BUFFERS        = 4;
+  private static final int WORKER_THREADS     = 2;
 
-  private volatile boolean isRunning;
+  private static final AudioAttachmentServer instance = new AudioAttachmentServer();
 
-  public AudioAttachmentServer(Context context, MasterSecret masterSecret, Attachment attachment)
+  private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+  private @Nullable ServerLoop serverLoop;
+
+  public static AudioAttachmentServer getInstance() {
+    return instance;
+  }
+
+  private AudioAttachmentServer() {}
+
+  public synchronized @NonNull Uri register(@NonNull Context context,
+                                            @NonNull MasterSecret masterSecret,
+                                            @NonNull Attachment attachment)
       throws IOException
   {
+    if (serverLoop == null) {
+      serverLoop = new ServerLoop();
+      new Thread(serverLoop, TAG).start();
+    }
+
+    Registration registration = new Registration(context.getApplicationContext(), masterSecret, attachment,
+                                                 new String(Hex.encode(Util.getSecretBytes(16))));
+    registrations.add(registration);
+
+    return Uri.parse(String.format("http://127.0.0.1:%d/%s", serverLoop.getPort(), registration.token));
+  }
+
+  public synchronized void unregister(@NonNull Uri uri) {
+    Registration registration = getRegistration(uri.getPath());
+
+    if (registration != null) {
+      registration.active = false;
+      registrations.remove(registration);
+    }
+
+    if (serverLoop != null) {
+      if (registrations.isEmpty()) {
+        serverLoop.shutdown();
+        serverLoop = null;
+      } else {
+        serverLoop.wakeup();
+      }
+    }
+  }
+
+  private @Nullable Registration getRegistration(@Nullable String path) {
+    if (path == null || !path.startsWith("/")) return null;
+
+    byte[] token = path.substring(1).getBytes();
+
+    for (Registration registration : registrations) {
+      if (MessageDigest.isEqual(token, registration.token.getBytes())) {
+        return registration;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Parses a single "bytes=" range against an entity of the given length.
+   *
+   * @return null if the whole entity should be sent, either because there's no range or because
+   *         it isn't one we understand (which the spec says to ignore).
+   */
+  static @Nullable Range parseRange(@Nullable String header, long length) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') != -1) {
+      return null;
+    }
+
+    String spec      = header.substring("bytes=".length()).trim();
+    int    separator = spec.indexOf('-');
+
+    if (separator == -1) return null;
+
     try {
-      this.context      = context;
-      this.masterSecret = masterSecret;
-      this.attachment   = attachment;
-      this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-      this.port         = socket.getLocalPort();
-      this.auth         = new String(Hex.encode(Util.getSecretBytes(16)));
+      String first = spec.substring(0, separator).trim();
+      String last  = spec.substring(separator + 1).trim();
+
+      if (first.isEmpty()) {
+        long suffix = Long.parseLong(last);
 
-      this.socket.setSoTimeout(5000);
-    } catch (UnknownHostException e) {
-      throw new AssertionError(e);
+        if (suffix <= 0 || length == 0) return Range.UNSATISFIABLE;
+        else                            return new Range(Math.max(0, length - suffix), length - 1);
+      }
+
+      long start = Long.parseLong(first);
+      long end   = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+
+      if (start < 0 || end < start) return null;
+      if (start >= length)          return Range.UNSATISFIABLE;
+
+      return new Range(start, Math.min(end, length - 1));
+    } catch (NumberFormatException e) {
+      return null;
     }
   }
 
-  public Uri getUri() {
-    return Uri.parse(String.format("http://127.0.0.1:%d/%s", port, auth));
+  static class Range {
+    static final Range UNSATISFIABLE = new Range(-1, -1);
+
+    final long start;
+    final long end;
+
+    Range(long start, long end) {
+      this.start = start;
+      this.end   = end;
+    }
+
+    boolean isSatisfiable() {
+      return this != UNSATISFIABLE;
+    }
   }
 
-  public void start() {
-    isRunning = true;
-    new Thread(this).start();
+  private static class Registration {
+    private final Context      context;
+    private final MasterSecret masterSecret;
+    private final Attachment   attachment;
+    private final String       token;
+
+    private volatile boolean active = true;
+
+    private Registration(Context context, MasterSecret masterSecret, Attachment attachment, String token) {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+      this.attachment   = attachment;
+      this.token        = token;
+    }
   }
 
-  public void stop() {
-    isRunning = false;
+  private static class Connection {
+    private final SocketChannel channel;
+    private final ByteBuffer    request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+
+    private @Nullable Registration registration;
+    private @Nullable InputStream  stream;
+    private @Nullable ByteBuffer   header;
+    private @Nullable ByteBuffer   body;
+    private long                   remaining;
+
+    /**
+     * Set while a worker owns the stream and body buffer.  Nothing else touches them until the
+     * worker posts its result back to the selector thread.
+     */
+    private boolean pending;
+    private boolean closed;
+
+    private Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
   }
 
-  @Override
-  public void run() {
-    while (isRunning) {
-      Socket client = null;
+  private class ServerLoop implements Runnable {
+
+    private final Selector               selector;
+    private final ServerSocketChannel    serverChannel;
+    private final ExecutorService        workers     = Executors.newFixedThreadPool(WORKER_THREADS);
+    private final LinkedList<Runnable>   completions = new LinkedList<>();
+    private final LinkedList<ByteBuffer> freeBuffers = new LinkedList<>();
+    private final LinkedList<Connection> waiting     = new LinkedList<>();
+
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[BUFFER_SIZE];
+      }
+    };
+
+    private int              allocatedBuffers;
+    private boolean          finished;
+    private volatile boolean running = true;
+
+    private ServerLoop() throws IOException {
+      this.selector      = Selector.open();
+      this.serverChannel = ServerSocketChannel.open();
 
       try {
-        client = socket.accept();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      } catch (IOException e) {
+        serverChannel.close();
+        selector.close();
+        workers.shutdown();
+        throw e;
+      }
+    }
+
+    private int getPort() {
+      return serverChannel.socket().getLocalPort();
+    }
+
+    private void wakeup() {
+      selector.wakeup();
+    }
 
-        if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
+    private void shutdown() {
+      running = false;
+      selector.wakeup();
+    }
 
-          if (task.processRequest()) {
-            task.execute();
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select();
+          runCompletions();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid()) continue;
+
+            try {
+              if      (key.isAcceptable()) accept();
+              else if (key.isReadable())   read(key);
+              else if (key.isWritable())   write(key);
+            } catch (IOException | RuntimeException e) {
+              Log.w(TAG, e);
+              close(key);
+            }
           }
-        }
 
-      } catch (SocketTimeoutException e) {
+          closeUnregistered();
+        }
+      } catch (IOException | RuntimeException e) {
         Log.w(TAG, e);
-      } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
       } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+        synchronized (AudioAttachmentServer.this) {
+          if (serverLoop == this) serverLoop = null;
+        }
+
+        for (SelectionKey key : selector.keys()) {
+          close(key);
+        }
+
+        synchronized (completions) {
+          finished = true;
+          runCompletions();
+        }
+
+        workers.shutdown();
+
+        try {
+          serverChannel.close();
+          selector.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
       }
+
+      Log.w(TAG, "Server shut down.");
     }
 
-    Log.d(TAG, "Proxy interrupted. Shutting down.");
-  }
+    private void accept() throws IOException {
+      SocketChannel channel = serverChannel.accept();
 
+      if (channel != null) {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+      }
+    }
 
-  private class StreamToMediaPlayerTask {
+    private void read(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
 
-    private final @NonNull Socket client;
-    private final @NonNull String auth;
+      if (connection.channel.read(connection.request) == -1) {
+        close(key);
+        return;
+      }
 
-    private long       cbSkip;
-    private Properties parameters;
-    private Properties request;
-    private Properties requestHeaders;
-//    private String filePath;
+      int headerEnd = findHeaderEnd(connection.request.array(), connection.request.position());
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
-      this.client = client;
-      this.auth   = auth;
+      if (headerEnd != -1) {
+        handleRequest(key, connection, new String(connection.request.array(), 0, headerEnd, "ISO-8859-1"));
+      } else if (!connection.request.hasRemaining()) {
+        respond(key, connection, "431 Request Header Fields Too Large");
+      }
     }
 
-    public boolean processRequest() throws IOException {
-            InputStream is         = client.getInputStream();
-      final int         bufferSize = 8192;
-            byte[]      buffer     = new byte[bufferSize];
-            int         splitByte  = 0;
-            int         readLength = 0;
+    private void handleRequest(SelectionKey key, Connection connection, String request) throws IOException {
+      String[] lines       = request.split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+
+      if (requestLine.length < 2) {
+        respond(key, connection, "400 Bad Request");
+        return;
+      }
+
+      String method = requestLine[0];
+      String path   = requestLine[1];
+      String range  = null;
+
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        respond(key, connection, "405 Method Not Allowed");
+        return;
+      }
+
+      if (path.indexOf('?') != -1) {
+        path = path.substring(0, path.indexOf('?'));
+      }
+
+      for (int i=1;i<lines.length;i++) {
+        int separator = lines[i].indexOf(':');
 
-      {
-        int read = is.read(buffer, 0, bufferSize);
-        while (read > 0) {
-          readLength += read;
-          splitByte = findHeaderEnd(buffer, readLength);
-          if (splitByte > 0)
-            break;
-          read = is.read(buffer, readLength, bufferSize - readLength);
+        if (separator != -1 && "range".equalsIgnoreCase(lines[i].substring(0, separator).trim())) {
+          range = lines[i].substring(separator + 1).trim();
         }
       }
 
-      // Create a BufferedReader for parsing the header.
-      ByteArrayInputStream hbis = new ByteArrayInputStream(buffer, 0, readLength);
-      BufferedReader       hin  = new BufferedReader(new InputStreamReader(hbis));
+      Registration registration = getRegistration(path);
 
-      request        = new Properties();
-      parameters     = new Properties();
-      requestHeaders = new Properties();
+      if (registration == null || !registration.active) {
+        Log.w(TAG, "Bad auth token!");
+        respond(key, connection, "403 Forbidden");
+        return;
+      }
 
-      try {
-        decodeHeader(hin, request, parameters, requestHeaders);
-      } catch (InterruptedException e1) {
-        Log.e(TAG, "Exception: " + e1.getMessage());
-        e1.printStackTrace();
+      connection.registration = registration;
+      submit(key, connection, new OpenTask(key, connection, method, range));
+    }
+
+    private void respond(SelectionKey key, Connection connection, String status) throws IOException {
+      respond(key, connection, status, "");
+    }
+
+    private void respond(SelectionKey key, Connection connection, String status, String extraHeaders)
+        throws IOException
+    {
+      String response = "HTTP/1.1 " + status + "\r\n" +
+                        extraHeaders +
+                        "Content-Length: 0\r\n" +
+                        "Connection: close\r\n" +
+                        "\r\n";
+
+      connection.header    = ByteBuffer.wrap(response.getBytes("ISO-8859-1"));
+      connection.remaining = 0;
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+
+      if (connection.header != null && connection.header.hasRemaining()) {
+        connection.channel.write(connection.header);
+        if (connection.header.hasRemaining()) return;
       }
 
-      for (Map.Entry<Object, Object> e : requestHeaders.entrySet()) {
-        Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
+      if (connection.body != null && connection.body.hasRemaining()) {
+        connection.channel.write(connection.body);
+        return;
       }
 
-      String range = requestHeaders.getProperty("range");
+      if (connection.remaining <= 0 || connection.stream == null) {
+        close(key);
+        return;
+      }
+
+      if (connection.body == null) {
+        connection.body = acquireBuffer();
 
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
+        if (connection.body == null) {
+          waiting.add(connection);
+          key.interestOps(0);
+          return;
         }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
       }
 
-      if (!"GET".equals(request.get("method"))) {
-        Log.e(TAG, "Only GET is supported: " + request.get("method"));
-        return false;
-      }
+      submit(key, connection, new FillTask(key, connection));
+    }
 
-      String receivedAuth = request.getProperty("uri");
+    private void submit(SelectionKey key, Connection connection, Task task) {
+      connection.pending = true;
+      key.interestOps(0);
+      workers.execute(task);
+    }
 
-      if (receivedAuth == null || !MessageDigest.isEqual(receivedAuth.getBytes(), auth.getBytes())) {
-        Log.w(TAG, "Bad auth token!");
-        return false;
+    /**
+     * Hands a worker's result to the selector thread.  Once the loop has finished there's no
+     * selector thread left, so the result is applied here instead, which only releases what the
+     * worker held since every connection is closed by then.
+     */
+    private void post(Runnable completion) {
+      synchronized (completions) {
+        if (!finished) {
+          completions.add(completion);
+          selector.wakeup();
+          return;
+        }
+
+        completion.run();
       }
+    }
 
-//      filePath = request.getProperty("uri");
+    private void runCompletions() {
+      while (true) {
+        Runnable completion;
 
-      return true;
+        synchronized (completions) {
+          if (completions.isEmpty()) return;
+          completion = completions.removeFirst();
+        }
+
+        completion.run();
+      }
     }
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
+    private void seek(InputStream stream, long position) throws IOException {
+      if (stream instanceof SeekableDecryptingPartInputStream) {
+        ((SeekableDecryptingPartInputStream) stream).seek(position);
+        return;
+      }
 
-      String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
-        headers += "HTTP/1.1 206 Partial Content\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
-      } else {
-        headers += "HTTP/1.1 200 OK\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
+      while (position > 0) {
+        long skipped = stream.skip(position);
+
+        if (skipped <= 0) throw new IOException("Couldn't skip to range start");
+        position -= skipped;
+      }
+    }
+
+    private @Nullable ByteBuffer acquireBuffer() {
+      if (!freeBuffers.isEmpty()) {
+        return freeBuffers.removeFirst();
       }
 
-      Log.i(TAG, "headers: " + headers);
+      if (allocatedBuffers < MAX_BUFFERS) {
+        allocatedBuffers++;
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
+      return null;
+    }
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+    private void releaseBuffer(@NonNull ByteBuffer buffer) {
+      while (!waiting.isEmpty()) {
+        Connection   next    = waiting.removeFirst();
+        SelectionKey nextKey = next.channel.keyFor(selector);
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
-          output.write(buff, 0, cbRead);
+        if (nextKey != null && nextKey.isValid()) {
+          buffer.clear().limit(0);
+          next.body = buffer;
+          nextKey.interestOps(SelectionKey.OP_WRITE);
+          return;
         }
       }
-      catch (SocketException socketException) {
-        Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
-      }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
+
+      freeBuffers.add(buffer);
+    }
+
+    private void closeUnregistered() {
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+
+        if (connection != null && connection.registration != null && !connection.registration.active) {
+          close(key);
+        }
       }
+    }
+
+    private void close(SelectionKey key) {
+      Connection connection = (Connection) key.attachment();
+      key.cancel();
 
-      // Cleanup
       try {
-        if (output != null) {
-          output.close();
+        if (connection == null) {
+          key.channel().close();
+          return;
         }
-        client.close();
+
+        connection.closed = true;
+        waiting.remove(connection);
+        connection.channel.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
       }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
+
+      if (connection != null && !connection.pending) {
+        release(connection);
       }
     }
 
-    /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
-     **/
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 3 < rlen) {
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
-            && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-          return splitbyte + 4;
-        splitbyte++;
+    private void release(Connection connection) {
+      if (connection.body != null) {
+        releaseBuffer(connection.body);
+        connection.body = null;
+      }
+
+      if (connection.stream != null) {
+        try {
+          connection.stream.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+
+        connection.stream = null;
       }
-      return 0;
     }
 
+    private int findHeaderEnd(byte[] buffer, int length) {
+      for (int i=0;i+3<length;i++) {
+        if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+          return i + 4;
+        }
+      }
+
+      return -1;
+    }
 
     /**
-     * Decodes the sent headers and loads the data into java Properties' key -
-     * value pairs
-     **/
-    private void decodeHeader(BufferedReader in, Properties pre,
-                              Properties parms, Properties header) throws InterruptedException {
-      try {
-        // Read the request line
-        String inLine = in.readLine();
-        if (inLine == null)
-          return;
-        StringTokenizer st = new StringTokenizer(inLine);
-        if (!st.hasMoreTokens())
-          Log.e(TAG,
-                "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-
-        String method = st.nextToken();
-        pre.put("method", method);
-
-        if (!st.hasMoreTokens())
-          Log.e(TAG,
-                "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-
-        String uri = st.nextToken();
-
-        // Decode parameters from the URI
-        int qmi = uri.indexOf('?');
-        if (qmi >= 0) {
-          decodeParms(uri.substring(qmi + 1), parms);
-          uri = decodePercent(uri.substring(0, qmi));
-        } else
-          uri = decodePercent(uri);
-
-        // If there's another token, it's protocol version,
-        // followed by HTTP headers. Ignore version but parse headers.
-        // NOTE: this now forces header names lowercase since they are
-        // case insensitive and vary by client.
-        if (st.hasMoreTokens()) {
-          String line = in.readLine();
-          while (line != null && line.trim().length() > 0) {
-            int p = line.indexOf(':');
-            if (p >= 0)
-              header.put(line.substring(0, p).trim().toLowerCase(),
-                         line.substring(p + 1).trim());
-            line = in.readLine();
-          }
+     * Work on a connection's stream that runs on a worker, then finishes on the selector thread.
+     */
+    private abstract class Task implements Runnable {
+      protected final SelectionKey key;
+      protected final Connection   connection;
+
+      private @Nullable IOException error;
+
+      private Task(SelectionKey key, Connection connection) {
+        this.key        = key;
+        this.connection = connection;
+      }
+
+      @Override
+      public final void run() {
+        try {
+          work();
+        } catch (IOException e) {
+          error = e;
+        } catch (RuntimeException e) {
+          error = new IOException(e);
         }
 
-        pre.put("uri", uri);
-      } catch (IOException ioe) {
-        Log.e(TAG,
-              "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+        post(new Runnable() {
+          @Override
+          public void run() {
+            connection.pending = false;
+
+            if (connection.closed) {
+              abandon();
+              release(connection);
+            } else if (error != null) {
+              Log.w(TAG, error);
+              close(key);
+            } else {
+              try {
+                complete();
+              } catch (IOException | RuntimeException e) {
+                Log.w(TAG, e);
+                close(key);
+              }
+            }
+          }
+        });
       }
+
+      protected abstract void work() throws IOException;
+
+      protected abstract void complete() throws IOException;
+
+      /**
+       * Called instead of {@link #complete()} when the connection closed while the task ran.
+       */
+      protected void abandon() {}
     }
 
     /**
-     * Decodes parameters in percent-encoded URI-format ( e.g.
-     * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
-     * Properties. NOTE: this doesn't support multiple identical keys due to the
-     * simplicity of Properties -- if you need multiples, you might want to
-     * replace the Properties with a Hashtable of Vectors or such.
+     * Opens the attachment, seeks to the requested range and builds the response headers.
      */
-    private void decodeParms(String parms, Properties p)
-        throws InterruptedException {
-      if (parms == null)
-        return;
+    private class OpenTask extends Task {
+      private final String           method;
+      private final @Nullable String range;
+
+      private @Nullable InputStream stream;
+      private @Nullable String      status;
+      private @Nullable String      extraHeaders;
+      private @Nullable ByteBuffer  header;
+      private long                  remaining;
+
+      private OpenTask(SelectionKey key, Connection connection, String method, @Nullable String range) {
+        super(key, connection);
+        this.method = method;
+        this.range  = range;
+      }
+
+      @Override
+      protected void work() throws IOException {
+        Registration registration = connection.registration;
+
+        stream = PartAuthority.getAttachmentStream(registration.context, registration.masterSecret,
+                                                   registration.attachment.getDataUri());
+
+        if (stream == null) {
+          Log.w(TAG, "No data for attachment: " + registration.attachment.getDataUri());
+          status = "404 Not Found";
+          return;
+        }
+
+        long length;
+
+        if (stream instanceof SeekableDecryptingPartInputStream) {
+          length = ((SeekableDecryptingPartInputStream) stream).length();
+        } else {
+          length = registration.attachment.getSize();
+        }
+
+        Range         requested = parseRange(range, length);
+        StringBuilder headers   = new StringBuilder();
+
+        if (requested != null && !requested.isSatisfiable()) {
+          status       = "416 Range Not Satisfiable";
+          extraHeaders = "Content-Range: bytes */" + length + "\r\n";
+          return;
+        }
+
+        if (requested != null) {
+          headers.append("HTTP/1.1 206 Partial Content\r\n")
+                 .append("Content-Range: bytes ").append(requested.start).append('-').append(requested.end)
+                 .append('/').append(length).append("\r\n");
+          seek(stream, requested.start);
+          remaining = requested.end - requested.start + 1;
+        } else {
+          headers.append("HTTP/1.1 200 OK\r\n");
+          remaining = length;
+        }
+
+        headers.append("Content-Type: ").append(registration.attachment.getContentType()).append("\r\n")
+               .append("Accept-Ranges: bytes\r\n")
+               .append("Content-Length: ").append(remaining).append("\r\n")
+               .append("Connection: close\r\n")
+               .append("\r\n");
+
+        if ("HEAD".equals(method)) {
+          remaining = 0;
+        }
+
+        header = ByteBuffer.wrap(headers.toString().getBytes("ISO-8859-1"));
+      }
+
+      @Override
+      protected void complete() throws IOException {
+        connection.stream = stream;
+
+        if (status != null) {
+          respond(key, connection, status, extraHeaders != null ? extraHeaders : "");
+          return;
+        }
+
+        connection.header    = header;
+        connection.remaining = remaining;
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
 
-      StringTokenizer st = new StringTokenizer(parms, "&");
-      while (st.hasMoreTokens()) {
-        String e = st.nextToken();
-        int sep = e.indexOf('=');
-        if (sep >= 0)
-          p.put(decodePercent(e.substring(0, sep)).trim(),
-                decodePercent(e.substring(sep + 1)));
+      @Override
+      protected void abandon() {
+        connection.stream = stream;
       }
     }
 
     /**
-     * Decodes the percent encoding scheme. <br/>
-     * For example: "an+example%20string" -> "an example string"
+     * Decrypts the next chunk of the body into the connection's buffer.
      */
-    private String decodePercent(String str) throws InterruptedException {
-      try {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < str.length(); i++) {
-          char c = str.charAt(i);
-          switch (c) {
-            case '+':
-              sb.append(' ');
-              break;
-            case '%':
-              sb.append((char) Integer.parseInt(
-                  str.substring(i + 1, i + 3), 16));
-              i += 2;
-              break;
-            default:
-              sb.append(c);
-              break;
-          }
+    private class FillTask extends Task {
+      private final int length;
+
+      private int read;
+
+      private FillTask(SelectionKey key, Connection connection) {
+        super(key, connection);
+        this.length = (int) Math.min(BUFFER_SIZE, connection.remaining);
+      }
+
+      @Override
+      protected void work() throws IOException {
+        byte[] buffer = scratch.get();
+
+        read = connection.stream.read(buffer, 0, length);
+
+        connection.body.clear();
+        if (read > 0) connection.body.put(buffer, 0, read);
+        connection.body.flip();
+      }
+
+      @Override
+      protected void complete() throws IOException {
+        if (read == -1) {
+          close(key);
+          return;
         }
-        return sb.toString();
-      } catch (Exception e) {
-        Log.e(TAG, "BAD REQUEST: Bad percent-encoding.");
-        return null;
+
+        connection.remaining -= read;
+        key.interestOps(SelectionKey.OP_WRITE);
       }
     }
   }
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.audio;
 import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.NonNull;
@@ -33,7 +34,7 @@ public class AudioSlidePlayer {
 
   private @NonNull  WeakReference<Listener> listener;
   private @Nullable MediaPlayer             mediaPlayer;
-  private @Nullable AudioAttachmentServer   audioAttachmentServer;
+  private @Nullable Uri                     streamUri;
 
   public synchronized static AudioSlidePlayer createFor(@NonNull Context context,
                                                         @NonNull MasterSecret masterSecret,
@@ -63,12 +64,17 @@ public class AudioSlidePlayer {
   public void play(final double progress) throws IOException {
     if (this.mediaPlayer != null) return;
 
-    this.mediaPlayer           = new MediaPlayer();
-    this.audioAttachmentServer = new AudioAttachmentServer(context, masterSecret, slide.asAttachment());
+    this.mediaPlayer = new MediaPlayer();
+    this.streamUri   = AudioAttachmentServer.getInstance().register(context, masterSecret, slide.asAttachment());
 
-    audioAttachmentServer.start();
+    try {
+      mediaPlayer.setDataSource(context, streamUri);
+    } catch (IOException e) {
+      unregisterStream();
+      mediaPlayer = null;
+      throw e;
+    }
 
-    mediaPlayer.setDataSource(context, audioAttachmentServer.getUri());
     mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
     mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
       @Override
@@ -97,11 +103,7 @@ public class AudioSlidePlayer {
         Log.w(TAG, "onComplete");
         synchronized (AudioSlidePlayer.this) {
           mediaPlayer = null;
-
-          if (audioAttachmentServer != null) {
-            audioAttachmentServer.stop();
-            audioAttachmentServer = null;
-          }
+          unregisterStream();
         }
 
         notifyOnStop();
@@ -118,11 +120,7 @@ public class AudioSlidePlayer {
 
         synchronized (AudioSlidePlayer.this) {
           mediaPlayer = null;
-
-          if (audioAttachmentServer != null) {
-            audioAttachmentServer.stop();
-            audioAttachmentServer = null;
-          }
+          unregisterStream();
         }
 
         notifyOnStop();
@@ -143,12 +141,15 @@ public class AudioSlidePlayer {
       this.mediaPlayer.stop();
     }
 
-    if (this.audioAttachmentServer != null) {
-      this.audioAttachmentServer.stop();
-    }
+    unregisterStream();
+    this.mediaPlayer = null;
+  }
 
-    this.mediaPlayer           = null;
-    this.audioAttachmentServer = null;
+  private synchronized void unregisterStream() {
+    if (this.streamUri != null) {
+      AudioAttachmentServer.getInstance().unregister(this.streamUri);
+      this.streamUri = null;
+    }
   }
 
   public synchronized static void stopAll() {
@@ -18,6 +18,8 @@ import android.widget.TextView;
 import com.pnikosis.materialishprogress.ProgressWheel;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.MediaTransferScheduler;
 import org.thoughtcrime.securesms.audio.AudioSlidePlayer;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
@@ -104,6 +106,11 @@ public class AudioView extends FrameLayout implements AudioSlidePlayer.Listener
       controlToggle.displayQuick(downloadProgress);
       seekBar.setEnabled(false);
       downloadProgress.spin();
+
+      if (audio.asAttachment() instanceof DatabaseAttachment) {
+        MediaTransferScheduler.getInstance(getContext())
+                              .markVisible(((DatabaseAttachment)audio.asAttachment()).getAttachmentId());
+      }
     } else {
       controlToggle.displayQuick(playButton);
       seekBar.setEnabled(true);
@@ -21,6 +21,8 @@ import com.nineoldandroids.animation.ValueAnimator.AnimatorUpdateListener;
 import com.pnikosis.materialishprogress.ProgressWheel;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.MediaTransferScheduler;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
 import org.thoughtcrime.securesms.mms.Slide;
@@ -93,6 +95,10 @@ public class TransferControlView extends FrameLayout {
   public void setSlide(final @NonNull Slide slide) {
     this.slide = slide;
     if (slide.getTransferState() == AttachmentDatabase.TRANSFER_PROGRESS_STARTED) {
+      if (slide.asAttachment() instanceof DatabaseAttachment) {
+        MediaTransferScheduler.getInstance(getContext())
+                              .markVisible(((DatabaseAttachment)slide.asAttachment()).getAttachmentId());
+      }
       showProgressSpinner();
     } else if (slide.isPendingDownload()) {
       downloadDetails.setText(slide.getContentDescription());
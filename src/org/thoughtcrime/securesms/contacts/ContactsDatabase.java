@@ -35,10 +35,10 @@ import android.util.Log;
 import android.util.Pair;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.util.PhoneNumberCanonicalizer;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.push.ContactTokenDetails;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
-import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -327,7 +327,7 @@ public class ContactsDatabase {
         String currentNumber;
 
         try {
-          currentNumber = PhoneNumberFormatter.formatNumber(cursor.getString(1), localNumber);
+          currentNumber = PhoneNumberCanonicalizer.canonicalize(cursor.getString(1), localNumber);
         } catch (InvalidNumberException e) {
           Log.w(TAG, e);
           currentNumber = cursor.getString(1);
@@ -359,7 +359,7 @@ public class ContactsDatabase {
       while (numberCursor != null && numberCursor.moveToNext()) {
         try {
           String systemNumber              = numberCursor.getString(0);
-          String canonicalizedSystemNumber = PhoneNumberFormatter.formatNumber(systemNumber, localNumber);
+          String canonicalizedSystemNumber = PhoneNumberCanonicalizer.canonicalize(systemNumber, localNumber);
 
           if (canonicalizedSystemNumber.equals(e164number)) {
             idCursor = context.getContentResolver().query(RawContacts.CONTENT_URI,
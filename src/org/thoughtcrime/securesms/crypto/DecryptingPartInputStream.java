@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -38,7 +39,9 @@ import javax.crypto.spec.SecretKeySpec;
 import android.util.Log;
 
 /**
- * Class for streaming an encrypted MMS "part" off the disk.
+ * Class for streaming an encrypted MMS "part" off the disk, for parts written in the original
+ * single CBC stream format.  Parts written since are chunked and read through
+ * {@link SeekablePartFile}; {@link #createFor(File, MasterSecret)} picks the right reader.
  * 
  * @author Moxie Marlinspike
  */
@@ -57,6 +60,24 @@ public class DecryptingPartInputStream extends FileInputStream {
   private long totalDataSize;
   private long totalRead;
   private byte[] overflowBuffer;
+  private int overflowOffset;
+  private byte[] skipBuffer;
+
+  /**
+   * Opens a part written in either the seekable chunked format or the legacy format.
+   */
+  public static InputStream createFor(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    if (SeekablePartFile.isSeekable(file, masterSecret)) {
+      try {
+        return new SeekableDecryptingPartInputStream(new SeekablePartFile(file, masterSecret));
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        throw new FileNotFoundException("IOException while opening seekable part!");
+      }
+    }
+
+    return new DecryptingPartInputStream(file, masterSecret);
+  }
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
@@ -102,11 +123,13 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public long skip(long byteCount) throws IOException {
+    if (skipBuffer == null) skipBuffer = new byte[4096];
+
     long skipped = 0L;
     while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+      int read = read(skipBuffer, 0, (int)Math.min(skipBuffer.length, byteCount - skipped));
 
+      if (read == -1) break;
       skipped += read;
     }
 
@@ -142,17 +165,19 @@ public class DecryptingPartInputStream extends FileInputStream {
   private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
     int readLength = 0;
     if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
+      int overflowLength = overflowBuffer.length - overflowOffset;
+
+      if (overflowLength > length) {
+        System.arraycopy(overflowBuffer, overflowOffset, buffer, offset, length);
+        overflowOffset += length;
         return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
+      } else if (overflowLength == length) {
+        System.arraycopy(overflowBuffer, overflowOffset, buffer, offset, length);
         overflowBuffer = null;
         return length;
       } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
+        System.arraycopy(overflowBuffer, overflowOffset, buffer, offset, overflowLength);
+        readLength += overflowLength;
         offset += readLength;
         length -= readLength;
         overflowBuffer = null;
@@ -183,7 +208,8 @@ public class DecryptingPartInputStream extends FileInputStream {
         readLength += outputLen;
       } else {
         System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
+        overflowBuffer = outputLen == transientBuffer.length ? transientBuffer : Arrays.copyOf(transientBuffer, outputLen);
+        overflowOffset = length;
         readLength += length;
       }
       return readLength;
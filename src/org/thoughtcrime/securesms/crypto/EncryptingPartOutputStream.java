@@ -1,6 +1,6 @@
-/** 
+/**
  * Copyright (C) 2011 Whisper Systems
- * 
+ *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -10,7 +10,7 @@
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
@@ -22,38 +22,56 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
 
 /**
- * A class for streaming an encrypted MMS "part" to disk.
- * 
+ * A class for streaming an encrypted MMS "part" to disk, in the chunked format described by
+ * {@link SeekablePartFile}.  Each chunk is held back until either more data arrives or the
+ * stream is closed, so that the final chunk can always be marked as such.
+ *
  * @author Moxie Marlinspike
  */
 
 public class EncryptingPartOutputStream extends FileOutputStream {
 
-  private Cipher cipher;
-  private Mac mac;
+  private final SecretKeySpec encryptionKey;
+  private final byte[]        fileId    = new byte[SeekablePartFile.FILE_ID_LENGTH];
+  private final byte[]        buffer    = new byte[SeekablePartFile.CHUNK_SIZE];
+  private final byte[]        encrypted = new byte[SeekablePartFile.getEncryptedChunkLength(SeekablePartFile.CHUNK_SIZE)];
+  private final byte[]        single    = new byte[1];
+
+  private Cipher  cipher;
+  private Mac     mac;
+  private int     bufferLength;
+  private long    chunkIndex;
   private boolean closed;
 
   public EncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
 
     try {
-      mac    = initializeMac(masterSecret.getMacKey());
-      cipher = initializeCipher(mac, masterSecret.getEncryptionKey());
-      closed = false;
+      encryptionKey = masterSecret.getEncryptionKey();
+      mac           = SeekablePartFile.initializeMac(masterSecret.getMacKey());
+      cipher        = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      closed        = false;
+
+      new SecureRandom().nextBytes(fileId);
+
+      byte[] header = SeekablePartFile.createHeader(mac, SeekablePartFile.CHUNK_SIZE, fileId);
+      super.write(header, 0, header.length);
     } catch (IOException ioe) {
       Log.w("EncryptingPartOutputStream", ioe);
-      throw new FileNotFoundException("Couldn't write IV");
+      throw new FileNotFoundException("Couldn't write header");
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (NoSuchAlgorithmException e) {
@@ -63,6 +81,12 @@ public class EncryptingPartOutputStream extends FileOutputStream {
     }
   }
 
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte)b;
+    this.write(single, 0, 1);
+  }
+
   @Override
   public void write(byte[] buffer) throws IOException {
     this.write(buffer, 0, buffer.length);
@@ -70,53 +94,49 @@ public class EncryptingPartOutputStream extends FileOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] encryptedBuffer = cipher.update(buffer, offset, length);
+    while (length > 0) {
+      if (bufferLength == this.buffer.length) {
+        writeChunk(false);
+      }
+
+      int copied = Math.min(length, this.buffer.length - bufferLength);
+      System.arraycopy(buffer, offset, this.buffer, bufferLength, copied);
 
-    if (encryptedBuffer != null) {
-      mac.update(encryptedBuffer);
-      super.write(encryptedBuffer, 0, encryptedBuffer.length);
+      bufferLength += copied;
+      offset       += copied;
+      length       -= copied;
     }
   }
 
   @Override
   public void close() throws IOException {
-    try {
-      if (!closed) {
-        byte[] encryptedRemainder = cipher.doFinal();
-        mac.update(encryptedRemainder);
-
-        byte[] macBytes = mac.doFinal();
-
-        super.write(encryptedRemainder, 0, encryptedRemainder.length);
-        super.write(macBytes, 0, macBytes.length);
-
-        closed = true;
-      }
-
-      super.close();
-    } catch (BadPaddingException bpe) {
-      throw new AssertionError(bpe);
-    } catch (IllegalBlockSizeException e) {
-      throw new AssertionError(e);
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
     }
+
+    super.close();
   }
 
-  private Mac initializeMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
+  private void writeChunk(boolean last) throws IOException {
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
 
-    return hmac;
-  }
+      byte[] iv = cipher.getIV();
+      System.arraycopy(iv, 0, encrypted, 0, iv.length);
 
-  private Cipher initializeCipher(Mac mac, SecretKeySpec key) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    cipher.init(Cipher.ENCRYPT_MODE, key);
+      int    encryptedLength = iv.length + cipher.doFinal(buffer, 0, bufferLength, encrypted, iv.length);
+      byte[] chunkMac        = SeekablePartFile.calculateChunkMac(mac, fileId, chunkIndex, last,
+                                                                  encrypted, 0, encryptedLength);
 
-    byte[] ivBytes = cipher.getIV();
-    mac.update(ivBytes);
-    super.write(ivBytes, 0, ivBytes.length);
+      System.arraycopy(chunkMac, 0, encrypted, encryptedLength, chunkMac.length);
+      super.write(encrypted, 0, encryptedLength + chunkMac.length);
 
-    return cipher;
+      bufferLength = 0;
+      chunkIndex++;
+    } catch (InvalidKeyException | ShortBufferException | BadPaddingException | IllegalBlockSizeException e) {
+      throw new AssertionError(e);
+    }
   }
 
 }
@@ -21,23 +21,21 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.util.Base64;
-import org.thoughtcrime.securesms.util.Hex;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedList;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -49,25 +47,56 @@ import javax.crypto.spec.SecretKeySpec;
  * 1) 16 byte random IV.
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
+ *
+ * Constructing one is free: the underlying Cipher and Mac instances are pooled and reused
+ * across instances, and the Mac is only re-keyed when the master secret changes.  Since a
+ * pooled instance keeps the key it was last initialized with, the pool is emptied through
+ * {@link #clearCachedKeys()} when the master secret is forgotten.  The offset and ByteBuffer
+ * variants work on the caller's buffers without intermediate copies.
  * 
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
+  private static final String TAG        = MasterCipher.class.getSimpleName();
+  private static final int    BLOCK_SIZE = 16;
+  private static final int    MAC_LENGTH = 20;
+
+  private static final int MAX_POOLED_CONTEXTS = 4;
+
+  private static final LinkedList<CipherContext> POOL = new LinkedList<>();
+
+  private static int generation;
+
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
-	
+
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;		
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
+    this.masterSecret = masterSecret;
+  }
+
+  /**
+   * @return the exact size of the output of encrypting <code>plaintextLength</code> bytes.
+   */
+  public static int getEncryptedLength(int plaintextLength) {
+    return BLOCK_SIZE + (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  /**
+   * @return an upper bound on the size of the output of decrypting <code>encryptedLength</code> bytes.
+   */
+  public static int getMaxDecryptedLength(int encryptedLength) {
+    return Math.max(0, encryptedLength - BLOCK_SIZE - MAC_LENGTH);
+  }
+
+  /**
+   * Drops every pooled Cipher and Mac, along with the keys they hold.  Instances that are in use
+   * while this runs are discarded rather than returned to the pool.
+   */
+  public static void clearCachedKeys() {
+    synchronized (POOL) {
+      POOL.clear();
+      generation++;
     }
   }
 
@@ -94,49 +123,174 @@ public class MasterCipher {
   }
 	
   public byte[] decryptBytes(@NonNull byte[] decodedBody) throws InvalidMessageException {
+    return decryptBytes(decodedBody, 0, decodedBody.length);
+  }
+
+  public byte[] decryptBytes(@NonNull byte[] input, int offset, int length) throws InvalidMessageException {
+    if (length < BLOCK_SIZE + MAC_LENGTH) {
+      throw new InvalidMessageException("length(encrypted body + MAC) < length(IV + MAC)");
+    }
+
+    CipherContext context = acquireContext();
+
+    try {
+      int encryptedEnd = offset + length - MAC_LENGTH;
+      Mac mac          = context.getMac(masterSecret.getMacKey());
+
+      mac.update(input, offset, length - MAC_LENGTH);
+      mac.doFinal(context.macBuffer, 0);
+
+      if (!isEqual(context.macBuffer, input, encryptedEnd)) {
+        throw new InvalidMessageException("MAC doesen't match.");
+      }
+
+      Cipher cipher = context.decryptingCipher;
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(input, offset, BLOCK_SIZE));
+
+      return cipher.doFinal(input, offset + BLOCK_SIZE, length - BLOCK_SIZE - MAC_LENGTH);
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    } finally {
+      releaseContext(context);
+    }
+  }
+
+  /**
+   * Decrypts the remaining bytes of <code>input</code> into <code>output</code>, which needs at
+   * least {@link #getMaxDecryptedLength(int)} bytes remaining.
+   *
+   * @return the number of plaintext bytes written.
+   */
+  public int decrypt(@NonNull ByteBuffer input, @NonNull ByteBuffer output) throws InvalidMessageException {
+    int length = input.remaining();
+
+    if (length < BLOCK_SIZE + MAC_LENGTH) {
+      throw new InvalidMessageException("length(encrypted body + MAC) < length(IV + MAC)");
+    }
+
+    CipherContext context = acquireContext();
+
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-			
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
-			
-      return encrypted;
+      int        start    = input.position();
+      int        macStart = start + length - MAC_LENGTH;
+      ByteBuffer region   = input.duplicate();
+      Mac        mac      = context.getMac(masterSecret.getMacKey());
+
+      region.limit(macStart);
+      mac.update(region);
+      mac.doFinal(context.macBuffer, 0);
+
+      if (!isEqual(context.macBuffer, input, macStart)) {
+        throw new InvalidMessageException("MAC doesen't match.");
+      }
+
+      region.limit(start + BLOCK_SIZE).position(start);
+      region.get(context.ivBuffer);
+      region.limit(macStart);
+
+      Cipher cipher = context.decryptingCipher;
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(context.ivBuffer));
+
+      int written = cipher.doFinal(region, output);
+      input.position(start + length);
+
+      return written;
+    } catch (ShortBufferException e) {
+      throw new IllegalArgumentException(e);
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
+    } finally {
+      releaseContext(context);
     }
   }
 	
   public byte[] encryptBytes(byte[] body) {
+    return encryptBytes(body, 0, body.length);
+  }
+
+  public byte[] encryptBytes(@NonNull byte[] input, int offset, int length) {
+    CipherContext context = acquireContext();
+
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
-		
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
-		
-      return encryptedAndMacBody;
+      byte[] output = new byte[getEncryptedLength(length)];
+      Cipher cipher = context.encryptingCipher;
+
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+      System.arraycopy(cipher.getIV(), 0, output, 0, BLOCK_SIZE);
+
+      int encryptedEnd = BLOCK_SIZE + cipher.doFinal(input, offset, length, output, BLOCK_SIZE);
+      Mac mac          = context.getMac(masterSecret.getMacKey());
+
+      mac.update(output, 0, encryptedEnd);
+      mac.doFinal(output, encryptedEnd);
+
+      if (encryptedEnd + MAC_LENGTH != output.length) {
+        return Arrays.copyOf(output, encryptedEnd + MAC_LENGTH);
+      }
+
+      return output;
     } catch (GeneralSecurityException ge) {
-      Log.w("bodycipher", ge);
+      Log.w(TAG, ge);
       return null;
-    }	
-		
+    } finally {
+      releaseContext(context);
+    }
+  }
+
+  /**
+   * Encrypts the remaining bytes of <code>input</code> into <code>output</code>, which needs at
+   * least {@link #getEncryptedLength(int)} bytes remaining.
+   *
+   * @return the number of bytes written.
+   */
+  public int encrypt(@NonNull ByteBuffer input, @NonNull ByteBuffer output) {
+    CipherContext context = acquireContext();
+
+    try {
+      Cipher cipher = context.encryptingCipher;
+      int    start  = output.position();
+
+      if (output.remaining() < getEncryptedLength(input.remaining())) {
+        throw new IllegalArgumentException("Output buffer too small: " + output.remaining());
+      }
+
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+      output.put(cipher.getIV());
+      cipher.doFinal(input, output);
+
+      ByteBuffer region = output.duplicate();
+      Mac        mac    = context.getMac(masterSecret.getMacKey());
+
+      region.limit(output.position()).position(start);
+      mac.update(region);
+      mac.doFinal(context.macBuffer, 0);
+      output.put(context.macBuffer);
+
+      return output.position() - start;
+    } catch (ShortBufferException e) {
+      throw new IllegalArgumentException(e);
+    } catch (GeneralSecurityException ge) {
+      throw new AssertionError(ge);
+    } finally {
+      releaseContext(context);
+    }
   }
 	
   public boolean verifyMacFor(String content, byte[] theirMac) {
     byte[] ourMac = getMacFor(content);
-    Log.w("MasterCipher", "Our Mac: " + Hex.toString(ourMac));
-    Log.w("MasterCipher", "Thr Mac: " + Hex.toString(theirMac));
-    return Arrays.equals(ourMac, theirMac);
+    return ourMac.length == theirMac.length && isEqual(ourMac, theirMac, 0);
   }
 	
   public byte[] getMacFor(String content) {
-    Log.w("MasterCipher", "Macing: " + content);
+    CipherContext context = acquireContext();
+
     try {
-      Mac mac = getMac(masterSecret.getMacKey());
+      Mac mac = context.getMac(masterSecret.getMacKey());
       return mac.doFinal(content.getBytes());
     } catch (GeneralSecurityException ike) {
       throw new AssertionError(ike);
+    } finally {
+      releaseContext(context);
     }
   }
 
@@ -153,71 +307,78 @@ public class MasterCipher {
     byte[] encryptedAndMacBody = encryptBytes(bytes);
     return Base64.encodeBytes(encryptedAndMacBody);
   }
-	
-  private byte[] verifyMacBody(@NonNull Mac hmac, @NonNull byte[] encryptedAndMac) throws InvalidMessageException {
-    if (encryptedAndMac.length < hmac.getMacLength()) {
-      throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
-    }
-
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-		
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-		
-    byte[] localMac  = hmac.doFinal(encrypted);
-		
-    if (!Arrays.equals(remoteMac, localMac))
-      throw new InvalidMessageException("MAC doesen't match.");
-		
-    return encrypted;
-  }
-	
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
-  }
-	
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-		
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
-		
-    return ivAndBody;
+
+  private static CipherContext acquireContext() {
+    int contextGeneration;
+
+    synchronized (POOL) {
+      if (!POOL.isEmpty()) return POOL.removeFirst();
+      contextGeneration = generation;
+    }
+
+    return new CipherContext(contextGeneration);
   }
-	
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
 
-    return hmac;
+  private static void releaseContext(CipherContext context) {
+    synchronized (POOL) {
+      if (context.generation == generation && POOL.size() < MAX_POOLED_CONTEXTS) {
+        POOL.addFirst(context);
+      }
+    }
   }
-	
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
 
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
-		
-    return encryptedAndMac;
+  private static boolean isEqual(byte[] ours, byte[] theirs, int theirOffset) {
+    int result = 0;
+
+    for (int i = 0; i < ours.length; i++) {
+      result |= ours[i] ^ theirs[theirOffset + i];
+    }
+
+    return result == 0;
   }
-	
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
-		
-    return decryptingCipher;
+
+  private static boolean isEqual(byte[] ours, ByteBuffer theirs, int theirOffset) {
+    int result = 0;
+
+    for (int i = 0; i < ours.length; i++) {
+      result |= ours[i] ^ theirs.get(theirOffset + i);
+    }
+
+    return result == 0;
   }
-	
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
-		
-    return encryptingCipher;
+
+  private static class CipherContext {
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final Mac    mac;
+    private final byte[] macBuffer = new byte[MAC_LENGTH];
+    private final byte[] ivBuffer  = new byte[BLOCK_SIZE];
+    private final int    generation;
+
+    private SecretKeySpec macKey;
+
+    private CipherContext(int generation) {
+      this.generation = generation;
+
+      try {
+        this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.mac              = Mac.getInstance("HmacSHA1");
+      } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private Mac getMac(SecretKeySpec key) throws GeneralSecurityException {
+      if (key != macKey && !key.equals(macKey)) {
+        mac.init(key);
+        macKey = key;
+      } else {
+        mac.reset();
+      }
+
+      return mac;
+    }
   }
-	
+
 }
@@ -0,0 +1,86 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream over a {@link SeekablePartFile}.  Unlike the legacy {@link DecryptingPartInputStream},
+ * skipping and seeking don't decrypt anything: only chunks that are actually read are.
+ */
+public class SeekableDecryptingPartInputStream extends InputStream {
+
+  private final SeekablePartFile file;
+  private final byte[]           single = new byte[1];
+
+  private long position;
+  private long mark;
+
+  public SeekableDecryptingPartInputStream(@NonNull SeekablePartFile file) {
+    this.file = file;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(single, 0, 1);
+
+    if (read == -1) return -1;
+    else            return single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    int read = file.read(position, buffer, offset, length);
+
+    if (read > 0) position += read;
+    return read;
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long skipped = Math.min(byteCount, Math.max(0, file.length() - position));
+    position += skipped;
+
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int)Math.min(Integer.MAX_VALUE, Math.max(0, file.length() - position));
+  }
+
+  public void seek(long position) {
+    this.position = Math.max(0, position);
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  public long length() throws IOException {
+    return file.length();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    mark = position;
+  }
+
+  @Override
+  public synchronized void reset() {
+    position = mark;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
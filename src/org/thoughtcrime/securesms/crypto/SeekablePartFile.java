@@ -0,0 +1,303 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access to a part written by {@link EncryptingPartOutputStream}.
+ *
+ * The file is a header followed by independently authenticated chunks:
+ *
+ *   header: magic (8) | version (1) | chunk size (4) | file id (16) | HMAC of the above (20)
+ *   chunk:  iv (16) | AES/CBC/PKCS5 ciphertext of up to one chunk of plaintext | HMAC (20)
+ *
+ * A chunk's MAC covers the file id, the chunk index, whether it's the final chunk, the IV and
+ * the ciphertext, so chunks can't be reordered, spliced in from another part, or dropped off the
+ * end.  Reading at an offset only verifies and decrypts the chunk that holds it.
+ */
+public class SeekablePartFile implements Closeable {
+
+  private static final String TAG = SeekablePartFile.class.getSimpleName();
+
+  static final byte[] MAGIC          = {'T', 'S', 'C', 'H', 'U', 'N', 'K', 'S'};
+  static final int    VERSION        = 1;
+  static final int    CHUNK_SIZE     = 64 * 1024;
+  static final int    IV_LENGTH      = 16;
+  static final int    MAC_LENGTH     = 20;
+  static final int    FILE_ID_LENGTH = 16;
+  static final int    HEADER_LENGTH  = MAGIC.length + 1 + 4 + FILE_ID_LENGTH + MAC_LENGTH;
+
+  private static final int BLOCK_SIZE = 16;
+
+  private final RandomAccessFile file;
+  private final long             fileLength;
+  private final SecretKeySpec    encryptionKey;
+  private final Mac              mac;
+  private final Cipher           cipher;
+  private final byte[]           fileId;
+  private final int              chunkSize;
+  private final int              encryptedChunkLength;
+  private final long             chunkCount;
+  private final byte[]           encrypted;
+  private final byte[]           plaintext;
+
+  private long loadedChunk  = -1;
+  private int  loadedLength = 0;
+  private long length       = -1;
+
+  public SeekablePartFile(@NonNull File file, @NonNull MasterSecret masterSecret) throws IOException {
+    this.file          = new RandomAccessFile(file, "r");
+    this.encryptionKey = masterSecret.getEncryptionKey();
+
+    try {
+      this.mac    = initializeMac(masterSecret.getMacKey());
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+
+      byte[] header = new byte[HEADER_LENGTH];
+      this.file.readFully(header);
+
+      ByteBuffer headerBuffer = verifyHeader(mac, header);
+
+      if (headerBuffer == null) {
+        throw new IOException("Not a seekable part!");
+      }
+
+      this.chunkSize = headerBuffer.getInt();
+      this.fileId    = new byte[FILE_ID_LENGTH];
+      headerBuffer.get(fileId);
+
+      if (chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0) {
+        throw new IOException("Bad chunk size: " + chunkSize);
+      }
+
+      this.fileLength           = this.file.length();
+      this.encryptedChunkLength = getEncryptedChunkLength(chunkSize);
+      this.chunkCount           = (fileLength - HEADER_LENGTH + encryptedChunkLength - 1) / encryptedChunkLength;
+      this.encrypted            = new byte[encryptedChunkLength];
+      this.plaintext            = new byte[chunkSize + BLOCK_SIZE];
+
+      if (chunkCount <= 0) {
+        throw new IOException("Part has no chunks!");
+      }
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      this.file.close();
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      this.file.close();
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return true if the file starts with a seekable part header that authenticates under this
+   *         master secret, false for legacy parts (or anything else).
+   */
+  public static boolean isSeekable(@NonNull File file, @NonNull MasterSecret masterSecret) {
+    if (file.length() < HEADER_LENGTH) return false;
+
+    InputStream in = null;
+
+    try {
+      in = new FileInputStream(file);
+
+      byte[] header = new byte[HEADER_LENGTH];
+      int    offset = 0;
+      int    read;
+
+      while (offset < header.length && (read = in.read(header, offset, header.length - offset)) != -1) {
+        offset += read;
+      }
+
+      return offset == header.length && verifyHeader(initializeMac(masterSecret.getMacKey()), header) != null;
+    } catch (IOException | InvalidKeyException e) {
+      Log.w(TAG, e);
+      return false;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the plaintext length, which requires decrypting the final chunk the first time.
+   */
+  public synchronized long length() throws IOException {
+    if (length < 0) {
+      loadChunk(chunkCount - 1);
+      length = (chunkCount - 1) * chunkSize + loadedLength;
+    }
+
+    return length;
+  }
+
+  /**
+   * Reads plaintext starting at the given position.
+   *
+   * @return the number of bytes read, or -1 if the position is at or past the end.
+   */
+  public synchronized int read(long position, byte[] buffer, int offset, int count) throws IOException {
+    if (count == 0) return 0;
+
+    int total = 0;
+
+    while (count > 0) {
+      long index = position / chunkSize;
+
+      if (index >= chunkCount) break;
+      if (index != loadedChunk) loadChunk(index);
+
+      int chunkOffset = (int)(position - index * chunkSize);
+      int available   = loadedLength - chunkOffset;
+
+      if (available <= 0) break;
+
+      int copied = Math.min(count, available);
+      System.arraycopy(plaintext, chunkOffset, buffer, offset, copied);
+
+      total    += copied;
+      position += copied;
+      offset   += copied;
+      count    -= copied;
+    }
+
+    return total == 0 ? -1 : total;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+
+  private void loadChunk(long index) throws IOException {
+    long    chunkOffset = HEADER_LENGTH + index * encryptedChunkLength;
+    int     chunkLength = (int)Math.min(encryptedChunkLength, fileLength - chunkOffset);
+    boolean last        = index == chunkCount - 1;
+
+    if (chunkLength < IV_LENGTH + BLOCK_SIZE + MAC_LENGTH) {
+      throw new IOException("Truncated chunk: " + index);
+    }
+
+    file.seek(chunkOffset);
+    file.readFully(encrypted, 0, chunkLength);
+
+    int macOffset = chunkLength - MAC_LENGTH;
+
+    try {
+      byte[] ourMac = calculateChunkMac(mac, fileId, index, last, encrypted, 0, macOffset);
+
+      if (!isEqual(ourMac, encrypted, macOffset)) {
+        throw new IOException("Chunk MAC doesn't match! Potential tampering?");
+      }
+
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(encrypted, 0, IV_LENGTH));
+
+      loadedChunk  = -1;
+      loadedLength = cipher.doFinal(encrypted, IV_LENGTH, macOffset - IV_LENGTH, plaintext, 0);
+      loadedChunk  = index;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new IOException(e);
+    }
+
+    if (!last && loadedLength != chunkSize) {
+      throw new IOException("Short chunk before the end of the part: " + index);
+    }
+  }
+
+  static int getEncryptedChunkLength(int chunkSize) {
+    return IV_LENGTH + chunkSize + BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  static @NonNull byte[] createHeader(@NonNull Mac mac, int chunkSize, @NonNull byte[] fileId) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.put(MAGIC);
+    header.put((byte)VERSION);
+    header.putInt(chunkSize);
+    header.put(fileId);
+
+    mac.update(header.array(), 0, header.position());
+    header.put(mac.doFinal());
+
+    return header.array();
+  }
+
+  static @NonNull byte[] calculateChunkMac(@NonNull Mac mac, @NonNull byte[] fileId, long index, boolean last,
+                                           @NonNull byte[] data, int offset, int length)
+  {
+    mac.update(fileId);
+    mac.update(ByteBuffer.allocate(9).putLong(index).put((byte)(last ? 1 : 0)).array());
+    mac.update(data, offset, length);
+
+    return mac.doFinal();
+  }
+
+  static @NonNull Mac initializeMac(@NonNull SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac hmac = Mac.getInstance("HmacSHA1");
+    hmac.init(key);
+
+    return hmac;
+  }
+
+  /**
+   * @return the header positioned just past the version byte if it's intact, otherwise null.
+   */
+  private static ByteBuffer verifyHeader(@NonNull Mac mac, @NonNull byte[] header) {
+    for (int i=0;i<MAGIC.length;i++) {
+      if (header[i] != MAGIC[i]) return null;
+    }
+
+    int macOffset = HEADER_LENGTH - MAC_LENGTH;
+
+    mac.update(header, 0, macOffset);
+
+    if (!isEqual(mac.doFinal(), header, macOffset) || header[MAGIC.length] != VERSION) {
+      return null;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(header, 0, macOffset);
+    buffer.position(MAGIC.length + 1);
+
+    return buffer;
+  }
+
+  private static boolean isEqual(@NonNull byte[] ourMac, @NonNull byte[] buffer, int offset) {
+    int result = 0;
+
+    for (int i=0;i<ourMac.length;i++) {
+      result |= ourMac[i] ^ buffer[offset + i];
+    }
+
+    return result == 0;
+  }
+}
@@ -0,0 +1,101 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.PreKeyDatabase;
+import org.thoughtcrime.securesms.database.SessionDatabase;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.List;
+
+/**
+ * Keeps session and prekey records in the {@link SessionDatabase} and {@link PreKeyDatabase}
+ * tables, so a store is a single indexed row write rather than a file create, and listing a
+ * recipient's devices doesn't scan a directory.
+ */
+public class DatabaseProtocolStorage implements ProtocolStorage {
+
+  private final Context         context;
+  private final SessionDatabase sessionDatabase;
+  private final PreKeyDatabase  preKeyDatabase;
+
+  public DatabaseProtocolStorage(@NonNull Context context) {
+    this.context         = context.getApplicationContext();
+    this.sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+    this.preKeyDatabase  = DatabaseFactory.getPreKeyDatabase(context);
+  }
+
+  @Override
+  public @Nullable byte[] loadSession(@NonNull SignalProtocolAddress address) {
+    return sessionDatabase.load(getRecipientId(address.getName()), address.getDeviceId());
+  }
+
+  @Override
+  public void storeSession(@NonNull SignalProtocolAddress address, @NonNull byte[] record) {
+    sessionDatabase.store(getRecipientId(address.getName()), address.getDeviceId(), record);
+  }
+
+  @Override
+  public void deleteSession(@NonNull SignalProtocolAddress address) {
+    sessionDatabase.delete(getRecipientId(address.getName()), address.getDeviceId());
+  }
+
+  @Override
+  public @NonNull List<Integer> getSubDeviceSessions(@NonNull String name) {
+    return sessionDatabase.getSubDevices(getRecipientId(name));
+  }
+
+  @Override
+  public @Nullable byte[] loadPreKey(int preKeyId) {
+    return preKeyDatabase.load(preKeyId, false);
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, @NonNull byte[] record) {
+    preKeyDatabase.store(preKeyId, false, record);
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return preKeyDatabase.contains(preKeyId, false);
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    preKeyDatabase.delete(preKeyId, false);
+  }
+
+  @Override
+  public @Nullable byte[] loadSignedPreKey(int signedPreKeyId) {
+    return preKeyDatabase.load(signedPreKeyId, true);
+  }
+
+  @Override
+  public @NonNull List<byte[]> loadSignedPreKeys() {
+    return preKeyDatabase.loadAllSigned();
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, @NonNull byte[] record) {
+    preKeyDatabase.store(signedPreKeyId, true, record);
+  }
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    return preKeyDatabase.contains(signedPreKeyId, true);
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {
+    preKeyDatabase.delete(signedPreKeyId, true);
+  }
+
+  private long getRecipientId(String name) {
+    return RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+  }
+
+}
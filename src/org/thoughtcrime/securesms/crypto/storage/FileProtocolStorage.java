@@ -0,0 +1,406 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.PreKeyDatabase;
+import org.thoughtcrime.securesms.database.SessionDatabase;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.util.Conversions;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
+
+/**
+ * The original layout: one file per session under <code>sessions-v2</code>, named by recipient
+ * id and device, and one file per prekey under <code>prekeys</code> and
+ * <code>signed_prekeys</code>.  Records written by old versions may still be encrypted with
+ * the master secret.
+ */
+public class FileProtocolStorage implements ProtocolStorage {
+
+  private static final String TAG = FileProtocolStorage.class.getSimpleName();
+
+  private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
+
+  private static final int SINGLE_STATE_VERSION           = 1;
+  private static final int ARCHIVE_STATES_VERSION         = 2;
+  private static final int SESSION_PLAINTEXT_VERSION      = 3;
+  private static final int CURRENT_SESSION_VERSION        = 3;
+  private static final int PREKEY_PLAINTEXT_VERSION       = 2;
+  private static final int CURRENT_PREKEY_VERSION         = 2;
+
+  @NonNull  private final Context      context;
+  @Nullable private final MasterSecret masterSecret;
+
+  public FileProtocolStorage(@NonNull Context context, @Nullable MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  /**
+   * @return true if any session or prekey records are still stored in this layout.
+   */
+  public static boolean hasRecords(@NonNull Context context) {
+    return hasNumericChildren(new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2))                  ||
+           hasNumericChildren(new File(context.getFilesDir(), TextSecurePreKeyStore.PREKEY_DIRECTORY)) ||
+           hasNumericChildren(new File(context.getFilesDir(), TextSecurePreKeyStore.SIGNED_PREKEY_DIRECTORY));
+  }
+
+  @Override
+  public @Nullable byte[] loadSession(@NonNull SignalProtocolAddress address) {
+    try {
+      return readSessionFile(getSessionFile(address));
+    } catch (InvalidMessageException | IOException e) {
+      Log.w(TAG, "No existing session information found.");
+      return null;
+    }
+  }
+
+  @Override
+  public void storeSession(@NonNull SignalProtocolAddress address, @NonNull byte[] record) {
+    writeRecordFile(getSessionFile(address), CURRENT_SESSION_VERSION, record);
+  }
+
+  @Override
+  public void deleteSession(@NonNull SignalProtocolAddress address) {
+    getSessionFile(address).delete();
+  }
+
+  @Override
+  public @NonNull List<Integer> getSubDeviceSessions(@NonNull String name) {
+    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+    List<Integer> results     = new LinkedList<>();
+    String[]      children    = getSessionDirectory().list();
+
+    if (children == null) return results;
+
+    for (String child : children) {
+      try {
+        String[] parts              = child.split("[.]", 2);
+        long     sessionRecipientId = Long.parseLong(parts[0]);
+
+        if (sessionRecipientId == recipientId && parts.length > 1) {
+          results.add(Integer.parseInt(parts[1]));
+        }
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    return results;
+  }
+
+  @Override
+  public @Nullable byte[] loadPreKey(int preKeyId) {
+    return loadPreKeyFile(getPreKeyFile(preKeyId));
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, @NonNull byte[] record) {
+    writeRecordFile(getPreKeyFile(preKeyId), CURRENT_PREKEY_VERSION, record);
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return getPreKeyFile(preKeyId).exists();
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    getPreKeyFile(preKeyId).delete();
+  }
+
+  @Override
+  public @Nullable byte[] loadSignedPreKey(int signedPreKeyId) {
+    return loadPreKeyFile(getSignedPreKeyFile(signedPreKeyId));
+  }
+
+  @Override
+  public @NonNull List<byte[]> loadSignedPreKeys() {
+    List<byte[]> results = new LinkedList<>();
+
+    for (File signedPreKeyFile : listNumericChildren(getRecordsDirectory(TextSecurePreKeyStore.SIGNED_PREKEY_DIRECTORY))) {
+      byte[] record = loadPreKeyFile(signedPreKeyFile);
+      if (record != null) results.add(record);
+    }
+
+    return results;
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, @NonNull byte[] record) {
+    writeRecordFile(getSignedPreKeyFile(signedPreKeyId), CURRENT_PREKEY_VERSION, record);
+  }
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    return getSignedPreKeyFile(signedPreKeyId).exists();
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {
+    getSignedPreKeyFile(signedPreKeyId).delete();
+  }
+
+  /**
+   * Rewrites every session file in the current plaintext format.
+   */
+  public void migrateSessionsToPlaintext() {
+    for (File sessionFile : listNumericChildren(getSessionDirectory())) {
+      try {
+        writeRecordFile(sessionFile, CURRENT_SESSION_VERSION, readSessionFile(sessionFile));
+      } catch (InvalidMessageException | IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  /**
+   * Rewrites every prekey and signed prekey file in the current plaintext format.
+   */
+  public void migratePreKeysToPlaintext() {
+    migratePreKeysToPlaintext(getRecordsDirectory(TextSecurePreKeyStore.PREKEY_DIRECTORY));
+    migratePreKeysToPlaintext(getRecordsDirectory(TextSecurePreKeyStore.SIGNED_PREKEY_DIRECTORY));
+  }
+
+  /**
+   * Copies every record into the database in a single transaction, then removes the files.
+   * The prekey id index files are left where they are.
+   */
+  public void migrateTo(@NonNull SessionDatabase sessionDatabase, @NonNull PreKeyDatabase preKeyDatabase) {
+    List<File>     sessionFiles      = listNumericChildren(getSessionDirectory());
+    List<File>     preKeyFiles       = listNumericChildren(getRecordsDirectory(TextSecurePreKeyStore.PREKEY_DIRECTORY));
+    List<File>     signedPreKeyFiles = listNumericChildren(getRecordsDirectory(TextSecurePreKeyStore.SIGNED_PREKEY_DIRECTORY));
+    SQLiteDatabase transaction       = sessionDatabase.beginTransaction();
+
+    try {
+      for (File sessionFile : sessionFiles) {
+        try {
+          String[] parts       = sessionFile.getName().split("[.]", 2);
+          long     recipientId = Long.parseLong(parts[0]);
+          int      deviceId    = parts.length > 1 ? Integer.parseInt(parts[1]) : SignalServiceAddress.DEFAULT_DEVICE_ID;
+
+          sessionDatabase.store(recipientId, deviceId, readSessionFile(sessionFile));
+        } catch (InvalidMessageException | IOException | NumberFormatException e) {
+          Log.w(TAG, e);
+        }
+      }
+
+      for (File preKeyFile : preKeyFiles) {
+        byte[] record = loadPreKeyFile(preKeyFile);
+        if (record != null) preKeyDatabase.store(Integer.parseInt(preKeyFile.getName()), false, record);
+      }
+
+      for (File signedPreKeyFile : signedPreKeyFiles) {
+        byte[] record = loadPreKeyFile(signedPreKeyFile);
+        if (record != null) preKeyDatabase.store(Integer.parseInt(signedPreKeyFile.getName()), true, record);
+      }
+
+      transaction.setTransactionSuccessful();
+    } finally {
+      transaction.endTransaction();
+    }
+
+    deleteAll(sessionFiles);
+    deleteAll(preKeyFiles);
+    deleteAll(signedPreKeyFiles);
+
+    Log.w(TAG, "Migrated " + sessionFiles.size() + " sessions, " + preKeyFiles.size() + " prekeys and " +
+               signedPreKeyFiles.size() + " signed prekeys.");
+  }
+
+  private byte[] readSessionFile(File sessionFile) throws IOException, InvalidMessageException {
+    FileInputStream in            = new FileInputStream(sessionFile);
+    int             versionMarker = readInteger(in);
+
+    if (versionMarker > CURRENT_SESSION_VERSION) {
+      throw new AssertionError("Unknown version: " + versionMarker);
+    }
+
+    byte[] serialized = readBlob(in);
+    in.close();
+
+    if (versionMarker < SESSION_PLAINTEXT_VERSION && masterSecret != null) {
+      serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
+    } else if (versionMarker < SESSION_PLAINTEXT_VERSION) {
+      throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + sessionFile.getName() + ")");
+    }
+
+    if (versionMarker == SINGLE_STATE_VERSION) {
+      SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+      SessionState     sessionState     = new SessionState(sessionStructure);
+      return new SessionRecord(sessionState).serialize();
+    } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
+      return serialized;
+    } else {
+      throw new AssertionError("Unknown version: " + versionMarker);
+    }
+  }
+
+  private @Nullable byte[] loadPreKeyFile(File recordFile) {
+    try {
+      FileInputStream fin           = new FileInputStream(recordFile);
+      int             recordVersion = readInteger(fin);
+
+      if (recordVersion > CURRENT_PREKEY_VERSION) {
+        throw new AssertionError("Invalid version: " + recordVersion);
+      }
+
+      byte[] serializedRecord = readBlob(fin);
+
+      if (recordVersion < PREKEY_PLAINTEXT_VERSION && masterSecret != null) {
+        MasterCipher masterCipher = new MasterCipher(masterSecret);
+        serializedRecord = masterCipher.decryptBytes(serializedRecord);
+      } else if (recordVersion < PREKEY_PLAINTEXT_VERSION) {
+        throw new AssertionError("Migration didn't happen!");
+      }
+
+      fin.close();
+      return serializedRecord;
+    } catch (IOException | InvalidMessageException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private void migratePreKeysToPlaintext(File directory) {
+    for (File recordFile : listNumericChildren(directory)) {
+      byte[] record = loadPreKeyFile(recordFile);
+      if (record != null) writeRecordFile(recordFile, CURRENT_PREKEY_VERSION, record);
+    }
+  }
+
+  private void writeRecordFile(File file, int version, byte[] serialized) {
+    try {
+      RandomAccessFile recordFile = new RandomAccessFile(file, "rw");
+      FileChannel      out        = recordFile.getChannel();
+
+      out.position(0);
+      writeInteger(version, out);
+      writeBlob(serialized, out);
+      out.truncate(out.position());
+
+      recordFile.close();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private File getSessionFile(SignalProtocolAddress address) {
+    return new File(getSessionDirectory(), getSessionName(address));
+  }
+
+  private File getSessionDirectory() {
+    return getRecordsDirectory(SESSIONS_DIRECTORY_V2);
+  }
+
+  private String getSessionName(SignalProtocolAddress axolotlAddress) {
+    long recipientId = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
+                                       .getPrimaryRecipient()
+                                       .getRecipientId();
+    int  deviceId    = axolotlAddress.getDeviceId();
+
+    return recipientId + (deviceId == SignalServiceAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
+  }
+
+  private File getPreKeyFile(int preKeyId) {
+    return new File(getRecordsDirectory(TextSecurePreKeyStore.PREKEY_DIRECTORY), String.valueOf(preKeyId));
+  }
+
+  private File getSignedPreKeyFile(int signedPreKeyId) {
+    return new File(getRecordsDirectory(TextSecurePreKeyStore.SIGNED_PREKEY_DIRECTORY), String.valueOf(signedPreKeyId));
+  }
+
+  private File getRecordsDirectory(String directoryName) {
+    File directory = new File(context.getFilesDir(), directoryName);
+
+    if (!directory.exists()) {
+      if (!directory.mkdirs()) {
+        Log.w(TAG, "Directory creation failed: " + directoryName);
+      }
+    }
+
+    return directory;
+  }
+
+  private static boolean hasNumericChildren(File directory) {
+    String[] children = directory.list();
+
+    if (children == null) return false;
+
+    for (String child : children) {
+      if (isRecordName(child)) return true;
+    }
+
+    return false;
+  }
+
+  private static List<File> listNumericChildren(File directory) {
+    List<File> results  = new LinkedList<>();
+    File[]     children = directory.listFiles();
+
+    if (children == null) return results;
+
+    for (File child : children) {
+      if (child.isFile() && isRecordName(child.getName())) {
+        results.add(child);
+      }
+    }
+
+    return results;
+  }
+
+  private static boolean isRecordName(String name) {
+    return name.matches("[0-9]+([.][0-9]+)?");
+  }
+
+  private static void deleteAll(List<File> files) {
+    for (File file : files) {
+      if (!file.delete()) Log.w(TAG, "Failed to delete " + file.getName());
+    }
+  }
+
+  private byte[] readBlob(FileInputStream in) throws IOException {
+    int length       = readInteger(in);
+    byte[] blobBytes = new byte[length];
+
+    in.read(blobBytes, 0, blobBytes.length);
+    return blobBytes;
+  }
+
+  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
+    writeInteger(blobBytes.length, out);
+    out.write(ByteBuffer.wrap(blobBytes));
+  }
+
+  private int readInteger(FileInputStream in) throws IOException {
+    byte[] integer = new byte[4];
+    in.read(integer, 0, integer.length);
+    return Conversions.byteArrayToInt(integer);
+  }
+
+  private void writeInteger(int value, FileChannel out) throws IOException {
+    byte[] valueBytes = Conversions.intToByteArray(value);
+    out.write(ByteBuffer.wrap(valueBytes));
+  }
+
+}
@@ -0,0 +1,32 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.List;
+
+/**
+ * Where serialized session and prekey records live.  The protocol stores handle caching,
+ * locking and record parsing, and delegate the raw reads and writes to one of these.
+ */
+public interface ProtocolStorage {
+
+  @Nullable byte[] loadSession(@NonNull SignalProtocolAddress address);
+  void storeSession(@NonNull SignalProtocolAddress address, @NonNull byte[] record);
+  void deleteSession(@NonNull SignalProtocolAddress address);
+  @NonNull List<Integer> getSubDeviceSessions(@NonNull String name);
+
+  @Nullable byte[] loadPreKey(int preKeyId);
+  void storePreKey(int preKeyId, @NonNull byte[] record);
+  boolean containsPreKey(int preKeyId);
+  void removePreKey(int preKeyId);
+
+  @Nullable byte[] loadSignedPreKey(int signedPreKeyId);
+  @NonNull List<byte[]> loadSignedPreKeys();
+  void storeSignedPreKey(int signedPreKeyId, @NonNull byte[] record);
+  boolean containsSignedPreKey(int signedPreKeyId);
+  void removeSignedPreKey(int signedPreKeyId);
+
+}
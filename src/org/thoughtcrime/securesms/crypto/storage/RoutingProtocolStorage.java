@@ -0,0 +1,200 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sends each operation to the database backend, or to the legacy file backend while an install
+ * still has records on disk that haven't been migrated.  Fresh installs never touch the files.
+ *
+ * Operations hold a shared lock so that {@link #migrateToDatabase(Context, MasterSecret)} can
+ * switch backends without a store landing in the old one halfway through.
+ */
+public class RoutingProtocolStorage implements ProtocolStorage {
+
+  private static final String TAG = RoutingProtocolStorage.class.getSimpleName();
+
+  private static final ReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+  private static volatile Boolean legacy;
+
+  private final ProtocolStorage fileStorage;
+  private final ProtocolStorage databaseStorage;
+
+  public RoutingProtocolStorage(@NonNull Context context, @Nullable MasterSecret masterSecret) {
+    this.fileStorage     = new FileProtocolStorage(context, masterSecret);
+    this.databaseStorage = new DatabaseProtocolStorage(context);
+
+    if (legacy == null) {
+      synchronized (RoutingProtocolStorage.class) {
+        if (legacy == null) legacy = FileProtocolStorage.hasRecords(context);
+      }
+    }
+  }
+
+  /**
+   * Moves any records still stored as files into the database and routes every later
+   * operation there.
+   */
+  public static void migrateToDatabase(@NonNull Context context, @NonNull MasterSecret masterSecret) {
+    LOCK.writeLock().lock();
+
+    try {
+      if (FileProtocolStorage.hasRecords(context)) {
+        new FileProtocolStorage(context, masterSecret).migrateTo(DatabaseFactory.getSessionDatabase(context),
+                                                                 DatabaseFactory.getPreKeyDatabase(context));
+      }
+
+      legacy = false;
+    } finally {
+      LOCK.writeLock().unlock();
+    }
+
+    Log.w(TAG, "Protocol records now stored in the database.");
+  }
+
+  @Override
+  public @Nullable byte[] loadSession(@NonNull SignalProtocolAddress address) {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().loadSession(address);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void storeSession(@NonNull SignalProtocolAddress address, @NonNull byte[] record) {
+    LOCK.readLock().lock();
+    try {
+      getStorage().storeSession(address, record);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void deleteSession(@NonNull SignalProtocolAddress address) {
+    LOCK.readLock().lock();
+    try {
+      getStorage().deleteSession(address);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public @NonNull List<Integer> getSubDeviceSessions(@NonNull String name) {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().getSubDeviceSessions(name);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public @Nullable byte[] loadPreKey(int preKeyId) {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().loadPreKey(preKeyId);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, @NonNull byte[] record) {
+    LOCK.readLock().lock();
+    try {
+      getStorage().storePreKey(preKeyId, record);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().containsPreKey(preKeyId);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    LOCK.readLock().lock();
+    try {
+      getStorage().removePreKey(preKeyId);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public @Nullable byte[] loadSignedPreKey(int signedPreKeyId) {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().loadSignedPreKey(signedPreKeyId);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public @NonNull List<byte[]> loadSignedPreKeys() {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().loadSignedPreKeys();
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, @NonNull byte[] record) {
+    LOCK.readLock().lock();
+    try {
+      getStorage().storeSignedPreKey(signedPreKeyId, record);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    LOCK.readLock().lock();
+    try {
+      return getStorage().containsSignedPreKey(signedPreKeyId);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {
+    LOCK.readLock().lock();
+    try {
+      getStorage().removeSignedPreKey(signedPreKeyId);
+    } finally {
+      LOCK.readLock().unlock();
+    }
+  }
+
+  private ProtocolStorage getStorage() {
+    return legacy ? fileStorage : databaseStorage;
+  }
+
+}
@@ -5,42 +5,49 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.recipients.Recipient;
-import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.concurrent.StripedLock;
 import org.whispersystems.libsignal.SignalProtocolAddress;
-import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.state.SessionRecord;
-import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-
-import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
-
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores one session record per recipient device.  Serialized records are kept in a bounded,
+ * process-wide LRU cache so that a burst of messages from one contact doesn't re-read and
+ * re-resolve the same record for every message, and access is locked on a stripe of the address
+ * rather than globally.
+ *
+ * Stores are written through to {@link ProtocolStorage} unless the calling thread is inside a
+ * {@link #beginWriteBehind()} / {@link #endWriteBehind()} scope, in which case they only dirty
+ * the cache and are flushed together when the scope ends.  Dirty records are never evicted.
+ * Anything that may only happen once those sessions are durable, like removing the one-time
+ * prekey a session was built from, can be deferred to the same flush with
+ * {@link #runAfterWriteBehind(Runnable)}.
+ */
 public class TextSecureSessionStore implements SessionStore {
 
-  private static final String TAG                   = TextSecureSessionStore.class.getSimpleName();
-  private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
+  private static final String TAG            = TextSecureSessionStore.class.getSimpleName();
+  private static final Object MIGRATION_LOCK = new Object();
+  private static final int    CACHE_SIZE     = 256;
 
-  private static final int SINGLE_STATE_VERSION   = 1;
-  private static final int ARCHIVE_STATES_VERSION = 2;
-  private static final int PLAINTEXT_VERSION      = 3;
-  private static final int CURRENT_VERSION        = 3;
+  private static final Map<SignalProtocolAddress, CachedSession> CACHE        = new LinkedHashMap<>(16, 0.75f, true);
+  private static final StripedLock                               LOCKS        = new StripedLock(64);
+  private static final ThreadLocal<WriteBehind>                  WRITE_BEHIND = new ThreadLocal<>();
 
-  @NonNull  private final Context      context;
-  @Nullable private final MasterSecret masterSecret;
+  @NonNull  private final Context         context;
+  @Nullable private final MasterSecret    masterSecret;
+  @NonNull  private final ProtocolStorage storage;
 
   public TextSecureSessionStore(@NonNull Context context) {
     this(context, null);
@@ -49,38 +56,76 @@ public class TextSecureSessionStore implements SessionStore {
   public TextSecureSessionStore(@NonNull Context context, @Nullable MasterSecret masterSecret) {
     this.context      = context.getApplicationContext();
     this.masterSecret = masterSecret;
+    this.storage      = new RoutingProtocolStorage(context, masterSecret);
+  }
+
+  /**
+   * Defers session writes made on the calling thread until {@link #endWriteBehind()}.
+   */
+  public static void beginWriteBehind() {
+    WRITE_BEHIND.set(new WriteBehind());
+  }
+
+  /**
+   * Durably writes every session stored since {@link #beginWriteBehind()} on this thread, then
+   * runs anything deferred with {@link #runAfterWriteBehind(Runnable)}.
+   */
+  public static void endWriteBehind() {
+    WriteBehind writeBehind = WRITE_BEHIND.get();
+    WRITE_BEHIND.remove();
+
+    if (writeBehind == null) return;
+
+    for (SignalProtocolAddress address : writeBehind.dirty) {
+      synchronized (getLock(address)) {
+        CachedSession cached = getCached(address);
+
+        if (cached != null && cached.dirty) {
+          cached.storage.storeSession(address, cached.serialized);
+          cached.dirty = false;
+        }
+      }
+    }
+
+    trimCache();
+
+    for (Runnable runnable : writeBehind.afterFlush) {
+      runnable.run();
+    }
+  }
+
+  /**
+   * Runs the given task once the sessions of the calling thread's write-behind scope are
+   * durable, or immediately if there is no such scope.
+   */
+  public static void runAfterWriteBehind(@NonNull Runnable runnable) {
+    WriteBehind writeBehind = WRITE_BEHIND.get();
+
+    if (writeBehind != null) writeBehind.afterFlush.add(runnable);
+    else                     runnable.run();
   }
 
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    synchronized (getLock(address)) {
       try {
-        FileInputStream in            = new FileInputStream(getSessionFile(address));
-        int             versionMarker = readInteger(in);
+        CachedSession cached = getCached(address);
 
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
+        if (cached != null) {
+          return new SessionRecord(cached.serialized);
         }
 
-        byte[] serialized = readBlob(in);
-        in.close();
+        byte[] serialized = storage.loadSession(address);
 
-        if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
-          serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
-        } else if (versionMarker < PLAINTEXT_VERSION) {
-          throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
+        if (serialized == null) {
+          return new SessionRecord();
         }
 
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-      } catch (InvalidMessageException | IOException e) {
+        SessionRecord record = new SessionRecord(serialized);
+        putCached(address, new CachedSession(storage, serialized, false));
+
+        return record;
+      } catch (IOException e) {
         Log.w(TAG, "No existing session information found.");
         return new SessionRecord();
       }
@@ -89,32 +134,36 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
-
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(record.serialize(), out);
-        out.truncate(out.position());
-
-        sessionFile.close();
-      } catch (IOException e) {
-        throw new AssertionError(e);
+    synchronized (getLock(address)) {
+      byte[]      serialized  = record.serialize();
+      WriteBehind writeBehind = WRITE_BEHIND.get();
+
+      if (writeBehind != null) {
+        putCached(address, new CachedSession(storage, serialized, true));
+        writeBehind.dirty.add(address);
+      } else {
+        storage.storeSession(address, serialized);
+        putCached(address, new CachedSession(storage, serialized, false));
       }
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    return getSessionFile(address).exists() &&
-           loadSession(address).getSessionState().hasSenderChain();
+    synchronized (getLock(address)) {
+      return loadSession(address).getSessionState().hasSenderChain();
+    }
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    getSessionFile(address).delete();
+    synchronized (getLock(address)) {
+      synchronized (CACHE) {
+        CACHE.remove(address);
+      }
+
+      storage.deleteSession(address);
+    }
   }
 
   @Override
@@ -130,110 +179,76 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
-    List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
-
-    if (children == null) return results;
+    Set<Integer> results = new LinkedHashSet<>(storage.getSubDeviceSessions(name));
 
-    for (String child : children) {
-      try {
-        String[] parts              = child.split("[.]", 2);
-        long     sessionRecipientId = Long.parseLong(parts[0]);
+    synchronized (CACHE) {
+      for (Map.Entry<SignalProtocolAddress, CachedSession> entry : CACHE.entrySet()) {
+        SignalProtocolAddress address = entry.getKey();
 
-        if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
+        if (entry.getValue().dirty && address.getName().equals(name) &&
+            address.getDeviceId() != SignalServiceAddress.DEFAULT_DEVICE_ID)
+        {
+          results.add(address.getDeviceId());
         }
-      } catch (NumberFormatException e) {
-        Log.w(TAG, e);
       }
     }
 
-    return results;
+    return new LinkedList<>(results);
   }
 
   public void migrateSessions() {
-    synchronized (FILE_LOCK) {
-      File directory = getSessionDirectory();
-
-      for (File session : directory.listFiles()) {
-        if (session.isFile()) {
-          SignalProtocolAddress address = getAddressName(session);
-
-          if (address != null) {
-            SessionRecord sessionRecord = loadSession(address);
-            storeSession(address, sessionRecord);
-          }
-        }
+    synchronized (MIGRATION_LOCK) {
+      synchronized (CACHE) {
+        CACHE.clear();
       }
+
+      new FileProtocolStorage(context, masterSecret).migrateSessionsToPlaintext();
     }
   }
 
-  private File getSessionFile(SignalProtocolAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  private static Object getLock(SignalProtocolAddress address) {
+    return LOCKS.get(address);
   }
 
-  private File getSessionDirectory() {
-    File directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
-
-    if (!directory.exists()) {
-      if (!directory.mkdirs()) {
-        Log.w(TAG, "Session directory creation failed!");
-      }
+  private static @Nullable CachedSession getCached(SignalProtocolAddress address) {
+    synchronized (CACHE) {
+      return CACHE.get(address);
     }
-
-    return directory;
   }
 
-  private String getSessionName(SignalProtocolAddress axolotlAddress) {
-    Recipient recipient   = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
-                                          .getPrimaryRecipient();
-    long      recipientId = recipient.getRecipientId();
-    int       deviceId    = axolotlAddress.getDeviceId();
+  private static void putCached(SignalProtocolAddress address, CachedSession session) {
+    synchronized (CACHE) {
+      CACHE.put(address, session);
+    }
 
-    return recipientId + (deviceId == SignalServiceAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
+    trimCache();
   }
 
-  private @Nullable SignalProtocolAddress getAddressName(File sessionFile) {
-    try {
-      String[]  parts     = sessionFile.getName().split("[.]");
-      Recipient recipient = RecipientFactory.getRecipientForId(context, Integer.valueOf(parts[0]), true);
+  private static void trimCache() {
+    synchronized (CACHE) {
+      Iterator<CachedSession> iterator = CACHE.values().iterator();
 
-      int deviceId;
-
-      if (parts.length > 1) deviceId = Integer.parseInt(parts[1]);
-      else                  deviceId = SignalServiceAddress.DEFAULT_DEVICE_ID;
-
-      return new SignalProtocolAddress(recipient.getNumber(), deviceId);
-    } catch (NumberFormatException e) {
-      Log.w(TAG, e);
-      return null;
+      while (CACHE.size() > CACHE_SIZE && iterator.hasNext()) {
+        if (!iterator.next().dirty) iterator.remove();
+      }
     }
   }
 
-  private byte[] readBlob(FileInputStream in) throws IOException {
-    int length       = readInteger(in);
-    byte[] blobBytes = new byte[length];
-
-    in.read(blobBytes, 0, blobBytes.length);
-    return blobBytes;
+  private static class WriteBehind {
+    private final Set<SignalProtocolAddress> dirty      = new HashSet<>();
+    private final List<Runnable>             afterFlush = new LinkedList<>();
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
+  private static class CachedSession {
+    private final    ProtocolStorage storage;
+    private final    byte[]          serialized;
+    private volatile boolean         dirty;
 
-  private int readInteger(FileInputStream in) throws IOException {
-    byte[] integer = new byte[4];
-    in.read(integer, 0, integer.length);
-    return Conversions.byteArrayToInt(integer);
-  }
-
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
+    private CachedSession(ProtocolStorage storage, byte[] serialized, boolean dirty) {
+      this.storage    = storage;
+      this.serialized = serialized;
+      this.dirty      = dirty;
+    }
   }
 
 }
@@ -36,6 +36,7 @@ import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUnion;
+import org.thoughtcrime.securesms.crypto.SeekablePartFile;
 import org.thoughtcrime.securesms.mms.MediaStream;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.MediaUtil;
@@ -246,6 +247,77 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Rewrites every attachment and thumbnail still in the legacy part format into the seekable
+   * format.  Each file is re-encrypted next to the original and renamed over it, unless the
+   * original changed while it was being copied.
+   *
+   * @return the number of files that were migrated.
+   */
+  public int migrateToSeekableFormat(@NonNull MasterSecret masterSecret) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<File>     files    = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL},
+                              DATA + " IS NOT NULL OR " + THUMBNAIL + " IS NOT NULL",
+                              null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (!cursor.isNull(0)) files.add(new File(cursor.getString(0)));
+        if (!cursor.isNull(1)) files.add(new File(cursor.getString(1)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    int migrated = 0;
+
+    for (File file : files) {
+      if (migrateToSeekableFormat(masterSecret, file)) {
+        migrated++;
+      }
+    }
+
+    return migrated;
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private boolean migrateToSeekableFormat(@NonNull MasterSecret masterSecret, @NonNull File file) {
+    if (!file.exists() || SeekablePartFile.isSeekable(file, masterSecret)) {
+      return false;
+    }
+
+    long length       = file.length();
+    long lastModified = file.lastModified();
+    File migrated     = null;
+
+    try {
+      migrated = File.createTempFile("part", ".mms", file.getParentFile());
+      Util.copy(new DecryptingPartInputStream(file, masterSecret), new EncryptingPartOutputStream(migrated, masterSecret));
+
+      if (file.length() != length || file.lastModified() != lastModified) {
+        Log.w(TAG, "Part changed during migration, skipping: " + file);
+        migrated.delete();
+        return false;
+      }
+
+      if (!migrated.renameTo(file)) {
+        Log.w(TAG, "Couldn't replace part: " + file);
+        migrated.delete();
+        return false;
+      }
+
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      if (migrated != null) migrated.delete();
+      return false;
+    }
+  }
+
   public long insertAttachmentsForPlaceholder(@NonNull MasterSecret masterSecret, long mmsId,
                                               @NonNull AttachmentId attachmentId,
                                               @NonNull InputStream inputStream)
@@ -355,7 +427,7 @@ public class AttachmentDatabase extends Database {
     File dataFile = getAttachmentDataFile(attachmentId, dataType);
 
     try {
-      if (dataFile != null) return new DecryptingPartInputStream(dataFile, masterSecret);
+      if (dataFile != null) return DecryptingPartInputStream.createFor(dataFile, masterSecret);
       else                  return null;
     } catch (FileNotFoundException e) {
       Log.w(TAG, e);
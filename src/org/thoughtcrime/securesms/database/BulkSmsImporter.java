@@ -0,0 +1,166 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.recipients.Recipients;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inserts large numbers of SMS rows from outside sources, like a plaintext backup or the system
+ * SMS database.
+ *
+ * One insert statement is compiled once and rebound for every row, thread ids are resolved
+ * once per address, and rows are committed in fixed size transactions rather than one per row or
+ * one for the whole import.  Thread summaries aren't touched while rows go in; they're rebuilt
+ * for every affected thread at once when the import is closed.
+ */
+class BulkSmsImporter {
+
+  private static final String TAG = BulkSmsImporter.class.getSimpleName();
+
+  private static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final Context                    context;
+  private final SmsDatabase                smsDatabase;
+  private final ThreadDatabase             threadDatabase;
+  private final MasterCipher               masterCipher;
+  private final int                        batchSize;
+  private final @Nullable ProgressListener listener;
+
+  private final Map<String, Long> threadIds       = new HashMap<>();
+  private final Set<Long>         modifiedThreads = new HashSet<>();
+
+  private SQLiteDatabase  transaction;
+  private SQLiteStatement statement;
+  private int             uncommitted;
+  private int             inserted;
+  private long            startTime;
+
+  BulkSmsImporter(@NonNull Context context, @NonNull MasterSecret masterSecret,
+                  @Nullable ProgressListener listener)
+  {
+    this(context, masterSecret, DEFAULT_BATCH_SIZE, listener);
+  }
+
+  BulkSmsImporter(@NonNull Context context, @NonNull MasterSecret masterSecret, int batchSize,
+                  @Nullable ProgressListener listener)
+  {
+    this.context        = context;
+    this.smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    this.masterCipher   = new MasterCipher(masterSecret);
+    this.batchSize      = batchSize;
+    this.listener       = listener;
+  }
+
+  /**
+   * @param addresses a comma separated list of addresses, as stored in a backup
+   * @return the id of the thread for those addresses, created if necessary
+   */
+  long getThreadIdFor(@NonNull String addresses) {
+    Long threadId = threadIds.get(addresses);
+
+    if (threadId == null) {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, addresses, true);
+
+      threadId = threadDatabase.getThreadIdFor(recipients);
+      threadIds.put(addresses, threadId);
+    }
+
+    return threadId;
+  }
+
+  /**
+   * @return the shared insert statement, with its bindings cleared, for the caller to bind
+   *         columns 1 through 12 of {@link SmsDatabase#createInsertStatement(SQLiteDatabase)}.
+   */
+  @NonNull SQLiteStatement prepare() {
+    if (transaction == null) {
+      transaction = smsDatabase.beginTransaction();
+      startTime   = System.currentTimeMillis();
+    }
+
+    if (statement == null) {
+      statement = smsDatabase.createInsertStatement(transaction);
+    }
+
+    statement.clearBindings();
+    return statement;
+  }
+
+  /**
+   * Inserts the row bound by the caller since {@link #prepare()} into <code>threadId</code>,
+   * committing the current transaction once it holds a full batch.
+   */
+  void insert(long threadId) {
+    statement.bindLong(13, threadId);
+    statement.execute();
+
+    modifiedThreads.add(threadId);
+    inserted++;
+
+    if (++uncommitted >= batchSize) {
+      commit();
+    }
+  }
+
+  @Nullable String encryptBody(@Nullable String body) {
+    if (body == null) return null;
+    else              return masterCipher.encryptBody(body);
+  }
+
+  /**
+   * Commits whatever is left and rebuilds the summaries of every thread that received rows.
+   * Rows already committed are kept even if the import stopped early.
+   *
+   * @return the number of rows inserted
+   */
+  int close() {
+    commit();
+
+    if (statement != null) {
+      statement.close();
+      statement = null;
+    }
+
+    if (!modifiedThreads.isEmpty()) {
+      long start = System.currentTimeMillis();
+      threadDatabase.rebuildSummaries(modifiedThreads, true);
+      threadDatabase.notifyConversationListeners(modifiedThreads);
+
+      Log.w(TAG, "Rebuilt " + modifiedThreads.size() + " threads in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    return inserted;
+  }
+
+  private void commit() {
+    if (transaction == null) return;
+
+    smsDatabase.endTransaction(transaction);
+    transaction = null;
+
+    Log.w(TAG, "Committed " + uncommitted + " rows in " + (System.currentTimeMillis() - startTime) + "ms");
+    uncommitted = 0;
+
+    if (listener != null) {
+      listener.onProgress(inserted);
+    }
+  }
+
+  interface ProgressListener {
+    void onProgress(int inserted);
+  }
+}
@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
@@ -33,11 +34,11 @@ import com.google.i18n.phonenumbers.Phonenumber;
 import com.google.i18n.phonenumbers.ShortNumberInfo;
 
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.thoughtcrime.securesms.util.PhoneNumberCanonicalizer;
 import org.thoughtcrime.securesms.util.ShortCodeUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
-import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -48,15 +49,25 @@ public class CanonicalAddressDatabase {
 
   private static final String TAG = CanonicalAddressDatabase.class.getSimpleName();
 
-  private static final int    DATABASE_VERSION = 1;
-  private static final String DATABASE_NAME    = "canonical_address.db";
-  private static final String TABLE            = "canonical_addresses";
-  private static final String ID_COLUMN        = "_id";
-  private static final String ADDRESS_COLUMN   = "address";
+  private static final int INTRODUCED_DIGITS_SUFFIX_VERSION = 2;
 
-  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL);";
-  private static final String SELECTION_NUMBER = "PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
-  private static final String SELECTION_OTHER  = ADDRESS_COLUMN + " = ? COLLATE NOCASE";
+  private static final int    DATABASE_VERSION      = 2;
+  private static final String DATABASE_NAME         = "canonical_address.db";
+  private static final String TABLE                 = "canonical_addresses";
+  private static final String ID_COLUMN             = "_id";
+  private static final String ADDRESS_COLUMN        = "address";
+  private static final String DIGITS_SUFFIX_COLUMN  = "digits_suffix";
+
+  /**
+   * PHONE_NUMBERS_EQUAL needs at least this many trailing digits to match, so numbers it
+   * considers equal always share them.
+   */
+  private static final int DIGITS_SUFFIX_LENGTH = 7;
+
+  private static final String DATABASE_CREATE       = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL, " + DIGITS_SUFFIX_COLUMN + " TEXT);";
+  private static final String DIGITS_SUFFIX_INDEX   = "CREATE INDEX IF NOT EXISTS canonical_addresses_digits_suffix_index ON " + TABLE + " (" + DIGITS_SUFFIX_COLUMN + ");";
+  private static final String SELECTION_NUMBER      = DIGITS_SUFFIX_COLUMN + " = ? AND PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
+  private static final String SELECTION_OTHER       = ADDRESS_COLUMN + " = ? COLLATE NOCASE";
 
   private static CanonicalAddressDatabase instance;
   private        DatabaseHelper           databaseHelper;
@@ -153,7 +164,7 @@ public class CanonicalAddressDatabase {
         String localNumber = TextSecurePreferences.getLocalNumber(context);
 
         if (!ShortCodeUtil.isShortCode(localNumber, address)) {
-          address = PhoneNumberFormatter.formatNumber(address, localNumber);
+          address = PhoneNumberCanonicalizer.canonicalize(address, localNumber);
         }
       }
 
@@ -193,24 +204,29 @@ public class CanonicalAddressDatabase {
     Cursor cursor = null;
 
     try {
-      SQLiteDatabase db                 = databaseHelper.getWritableDatabase();
-      String[]       selectionArguments = new String[]{address};
-      boolean        isNumber           = isNumberAddress(address);
+      SQLiteDatabase db           = databaseHelper.getWritableDatabase();
+      boolean        isNumber     = isNumberAddress(address);
+      String         digitsSuffix = isNumber ? getDigitsSuffix(address) : null;
 
-      cursor = db.query(TABLE, null, isNumber ? SELECTION_NUMBER : SELECTION_OTHER,
-                        selectionArguments, null, null, null);
+      if (digitsSuffix != null) {
+        cursor = db.query(TABLE, null, SELECTION_NUMBER, new String[] {digitsSuffix, address}, null, null, null);
+      } else {
+        cursor = db.query(TABLE, null, SELECTION_OTHER, new String[] {address}, null, null, null);
+      }
 
       if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-        ContentValues contentValues = new ContentValues(1);
+        ContentValues contentValues = new ContentValues(2);
         contentValues.put(ADDRESS_COLUMN, address);
+        contentValues.put(DIGITS_SUFFIX_COLUMN, digitsSuffix);
         return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
       } else {
         long   canonicalId = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
         String oldAddress  = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
 
         if (!address.equals(oldAddress)) {
-          ContentValues contentValues = new ContentValues(1);
+          ContentValues contentValues = new ContentValues(2);
           contentValues.put(ADDRESS_COLUMN, address);
+          contentValues.put(DIGITS_SUFFIX_COLUMN, digitsSuffix);
           db.update(TABLE, contentValues, ID_COLUMN + " = ?", new String[]{canonicalId+""});
 
           addressCache.remove(oldAddress);
@@ -238,6 +254,28 @@ public class CanonicalAddressDatabase {
     return PhoneNumberUtils.isWellFormedSmsAddress(number);
   }
 
+  /**
+   * @return the last {@link #DIGITS_SUFFIX_LENGTH} digits of the number's network portion, which
+   *         is indexed so that number lookups only run PHONE_NUMBERS_EQUAL on a few candidates
+   *         instead of on every row.
+   */
+  @VisibleForTesting
+  static @Nullable String getDigitsSuffix(@NonNull String number) {
+    String        networkNumber = PhoneNumberUtils.extractNetworkPortion(number);
+    StringBuilder digits        = new StringBuilder();
+
+    if (networkNumber == null) return null;
+
+    for (int i = 0; i < networkNumber.length(); i++) {
+      char c = networkNumber.charAt(i);
+      if (c >= '0' && c <= '9') digits.append(c);
+    }
+
+    if (digits.length() == 0) return null;
+
+    return digits.substring(Math.max(0, digits.length() - DIGITS_SUFFIX_LENGTH));
+  }
+
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
@@ -247,10 +285,34 @@ public class CanonicalAddressDatabase {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(DATABASE_CREATE);
+      db.execSQL(DIGITS_SUFFIX_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      if (oldVersion < INTRODUCED_DIGITS_SUFFIX_VERSION) {
+        db.execSQL("ALTER TABLE canonical_addresses ADD COLUMN digits_suffix TEXT;");
+
+        Cursor cursor = null;
+
+        try {
+          cursor = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN}, null, null, null, null, null);
+
+          while (cursor != null && cursor.moveToNext()) {
+            String address = cursor.getString(1);
+
+            if (address != null && isNumberAddress(address)) {
+              ContentValues values = new ContentValues(1);
+              values.put(DIGITS_SUFFIX_COLUMN, getDigitsSuffix(address));
+              db.update(TABLE, values, ID_COLUMN + " = ?", new String[] {String.valueOf(cursor.getLong(0))});
+            }
+          }
+        } finally {
+          if (cursor != null) cursor.close();
+        }
+
+        db.execSQL(DIGITS_SUFFIX_INDEX);
+      }
     }
 
   }
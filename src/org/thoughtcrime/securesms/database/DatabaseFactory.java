@@ -72,7 +72,11 @@ public class DatabaseFactory {
   private static final int INTRODUCED_CONVERSATION_LIST_STATUS_VERSION     = 25;
   private static final int MIGRATED_CONVERSATION_LIST_STATUS_VERSION       = 26;
   private static final int INTRODUCED_SUBSCRIPTION_ID_VERSION              = 27;
-  private static final int DATABASE_VERSION                                = 27;
+  private static final int INTRODUCED_MESSAGE_INDEX_VERSION                = 28;
+  private static final int INTRODUCED_PUSH_RETRY_VERSION                   = 29;
+  private static final int INTRODUCED_PROTOCOL_STORE_VERSION               = 30;
+  private static final int INTRODUCED_THREAD_RECIPIENTS_VERSION            = 31;
+  private static final int DATABASE_VERSION                                = 31;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -96,6 +100,9 @@ public class DatabaseFactory {
   private final GroupDatabase groupDatabase;
   private final RecipientPreferenceDatabase recipientPreferenceDatabase;
   private final ContactsDatabase contactsDatabase;
+  private final MessageIndexDatabase messageIndexDatabase;
+  private final SessionDatabase sessionDatabase;
+  private final PreKeyDatabase preKeyDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -166,6 +173,18 @@ public class DatabaseFactory {
     return getInstance(context).contactsDatabase;
   }
 
+  public static MessageIndexDatabase getMessageIndexDatabase(Context context) {
+    return getInstance(context).messageIndexDatabase;
+  }
+
+  public static SessionDatabase getSessionDatabase(Context context) {
+    return getInstance(context).sessionDatabase;
+  }
+
+  public static PreKeyDatabase getPreKeyDatabase(Context context) {
+    return getInstance(context).preKeyDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper              = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms                         = new SmsDatabase(context, databaseHelper);
@@ -183,6 +202,9 @@ public class DatabaseFactory {
     this.groupDatabase               = new GroupDatabase(context, databaseHelper);
     this.recipientPreferenceDatabase = new RecipientPreferenceDatabase(context, databaseHelper);
     this.contactsDatabase            = new ContactsDatabase(context);
+    this.messageIndexDatabase        = new MessageIndexDatabase(context, databaseHelper);
+    this.sessionDatabase             = new SessionDatabase(context, databaseHelper);
+    this.preKeyDatabase              = new PreKeyDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -201,6 +223,9 @@ public class DatabaseFactory {
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
     this.recipientPreferenceDatabase.reset(databaseHelper);
+    this.messageIndexDatabase.reset(databaseHelper);
+    this.sessionDatabase.reset(databaseHelper);
+    this.preKeyDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -384,7 +409,7 @@ public class DatabaseFactory {
 
               InputStream is;
 
-              if (encrypted) is = new DecryptingPartInputStream(dataFile, masterSecret);
+              if (encrypted) is = DecryptingPartInputStream.createFor(dataFile, masterSecret);
               else           is = new FileInputStream(dataFile);
 
               body = (body == null) ? Util.readFullyAsString(is) : body + " " + Util.readFullyAsString(is);
@@ -512,6 +537,10 @@ public class DatabaseFactory {
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
       db.execSQL(RecipientPreferenceDatabase.CREATE_TABLE);
+      db.execSQL(MessageIndexDatabase.CREATE_TABLE);
+      db.execSQL(SessionDatabase.CREATE_TABLE);
+      db.execSQL(PreKeyDatabase.CREATE_TABLE);
+      db.execSQL(ThreadDatabase.CREATE_RECIPIENTS_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -520,6 +549,9 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, MessageIndexDatabase.CREATE_INDEXS);
+      executeStatements(db, MessageIndexDatabase.CREATE_TRIGGERS);
+      executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -820,6 +852,40 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE mms ADD COLUMN subscription_id INTEGER DEFAULT -1");
       }
 
+      if (oldVersion < INTRODUCED_MESSAGE_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE message_index (_id INTEGER PRIMARY KEY, thread_id INTEGER, date_received INTEGER, " +
+                   "transport TEXT, msg_id INTEGER, read INTEGER DEFAULT 0, type INTEGER, " +
+                   "UNIQUE(transport, msg_id) ON CONFLICT REPLACE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON message_index (thread_id, date_received);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_read_date_index ON message_index (read, date_received);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_thread_read_index ON message_index (thread_id, read);");
+
+        // Filled in batches by the MESSAGE_INDEX_VERSION step of DatabaseUpgradeActivity,
+        // outside of this transaction.
+        executeStatements(db, MessageIndexDatabase.CREATE_TRIGGERS);
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_RETRY_VERSION) {
+        db.execSQL("ALTER TABLE push ADD COLUMN retry_message_id INTEGER DEFAULT -1");
+      }
+
+      if (oldVersion < INTRODUCED_PROTOCOL_STORE_VERSION) {
+        db.execSQL("CREATE TABLE sessions (_id INTEGER PRIMARY KEY, recipient_id INTEGER NOT NULL, device INTEGER NOT NULL, " +
+                   "record BLOB NOT NULL, UNIQUE(recipient_id, device) ON CONFLICT REPLACE);");
+        db.execSQL("CREATE TABLE prekeys (_id INTEGER PRIMARY KEY, key_id INTEGER NOT NULL, signed INTEGER NOT NULL, " +
+                   "record BLOB NOT NULL, UNIQUE(signed, key_id) ON CONFLICT REPLACE);");
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_RECIPIENTS_VERSION) {
+        db.execSQL("CREATE TABLE thread_recipients (thread_id INTEGER NOT NULL, recipient_id INTEGER NOT NULL, " +
+                   "PRIMARY KEY (thread_id, recipient_id) ON CONFLICT IGNORE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_recipients_recipient_index ON thread_recipients (recipient_id);");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_recipients_delete AFTER DELETE ON thread BEGIN " +
+                   "DELETE FROM thread_recipients WHERE thread_id = old._id; END;");
+
+        ThreadDatabase.backfillRecipients(db);
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -25,17 +25,42 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class EncryptedBackupExporter {
 
+  private static final String TAG = EncryptedBackupExporter.class.getSimpleName();
+
+  private static final Set<String> EXCLUDED_DIRECTORIES = new HashSet<>(Arrays.asList("lib", "cache", "code_cache"));
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
-    exportDirectory(context, "");
+
+    IncrementalBackup.SnapshotStats stats = getIncrementalBackup(context).snapshot();
+    Log.w(TAG, "Snapshot complete: " + stats);
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    IncrementalBackup backup = getIncrementalBackup(context);
+
+    if (backup.hasSnapshot()) {
+      backup.restore(getDataDirectory(context));
+    } else {
+      Log.w(TAG, "No snapshot manifest, importing a whole-directory export");
+      importDirectory(context, "");
+    }
+  }
+
+  private static IncrementalBackup getIncrementalBackup(Context context) {
+    return new IncrementalBackup(getDataDirectory(context), new File(getExportDirectoryPath()), EXCLUDED_DIRECTORIES);
+  }
+
+  private static File getDataDirectory(Context context) {
+    return context.getFilesDir().getParentFile();
   }
 
   private static String getExportDirectoryPath() {
@@ -75,30 +100,6 @@ public class EncryptedBackupExporter {
     }
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-    File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
-
-    if (directory.exists()) {
-      exportDirectory.mkdirs();
-
-      File[] contents = directory.listFiles();
-
-      for (int i=0;i<contents.length;i++) {
-        File localFile = contents[i];
-
-        if (localFile.isFile()) {
-          File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-          migrateFile(localFile, exportedFile);
-        } else {
-          exportDirectory(context, directoryName + File.separator + localFile.getName());
-        }
-      }
-    } else {
-      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
-    }
-  }
-
   private static void importDirectory(Context context, String directoryName) throws IOException {
     File directory       = new File(getExportDirectoryPath() + File.separator + directoryName);
     File importDirectory = new File(context.getFilesDir().getParent() + File.separator + directoryName);
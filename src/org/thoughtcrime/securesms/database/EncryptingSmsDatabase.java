@@ -33,16 +33,11 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libsignal.InvalidMessageException;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.Map;
-
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -137,11 +132,6 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     updateMessageBodyAndType(messageId, body, Types.ENCRYPTION_MASK, type);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
-    return new DecryptingReader(masterSecret, cursor);
-  }
-
   public Reader getOutgoingMessages(MasterSecret masterSecret) {
     Cursor cursor = super.getOutgoingMessages();
     return new DecryptingReader(masterSecret, cursor);
@@ -205,28 +195,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
@@ -147,7 +147,7 @@ public class GroupDatabase extends Database {
                                                 GROUP_ID + " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    RecipientFactory.clearCache(context, groupId);
     notifyDatabaseListeners();
   }
 
@@ -157,7 +157,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    RecipientFactory.clearCache(context, groupId);
     notifyDatabaseListeners();
   }
 
@@ -172,7 +172,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    RecipientFactory.clearCache(context, groupId);
     notifyDatabaseListeners();
   }
 
@@ -0,0 +1,652 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.thoughtcrime.securesms.util.Hex;
+import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps an incremental snapshot of a directory tree.
+ *
+ * A manifest records the size, modification time and SHA-256 hash of every file.  A snapshot
+ * only stats files whose size and modification time match the manifest, so when nothing has
+ * changed it reads no file contents and writes nothing.  Changed files larger than
+ * {@link #SMALL_FILE_LIMIT} are stored once per distinct content under their hash.  Smaller
+ * files, like sessions and prekeys, are packed together into one segment per snapshot.  The
+ * manifest is replaced atomically, and only after everything it references is on disk, so an
+ * interrupted snapshot leaves the previous one intact.
+ *
+ * A restore extracts and verifies everything into a staging directory before it touches the
+ * live tree.  It then swaps the restored top-level directories into place, and can roll back a
+ * swap that was interrupted.
+ */
+class IncrementalBackup {
+
+  private static final String TAG = IncrementalBackup.class.getSimpleName();
+
+  static final int SMALL_FILE_LIMIT = 64 * 1024;
+
+  private static final String MANIFEST         = "manifest.json";
+  private static final String MANIFEST_TEMP    = "manifest.json.tmp";
+  private static final String OBJECTS          = "objects";
+  private static final String SEGMENTS         = "segments";
+  private static final String SEGMENT_SUFFIX   = ".pack";
+  private static final String STAGING          = ".restore-staging";
+  private static final String RETIRED          = ".restore-retired";
+  private static final String COMMITTED        = ".committed";
+  private static final String ABSENT_SUFFIX    = ".absent";
+  private static final long   MTIME_GUARD      = 2000;
+  private static final int    MANIFEST_VERSION = 1;
+
+  private final File        sourceRoot;
+  private final File        backupRoot;
+  private final Set<String> excluded;
+
+  /**
+   * @param excluded names of top-level entries under <code>sourceRoot</code> to leave out
+   */
+  IncrementalBackup(@NonNull File sourceRoot, @NonNull File backupRoot, @NonNull Set<String> excluded) {
+    this.sourceRoot = sourceRoot;
+    this.backupRoot = backupRoot;
+    this.excluded   = new HashSet<>(excluded);
+
+    this.excluded.add(STAGING);
+    this.excluded.add(RETIRED);
+  }
+
+  boolean hasSnapshot() {
+    return new File(backupRoot, MANIFEST).exists();
+  }
+
+  @NonNull SnapshotStats snapshot() throws IOException {
+    long                   start    = System.currentTimeMillis();
+    Manifest               previous = readManifest();
+    Map<String, Entry>     known    = previous != null ? previous.byPath() : new HashMap<String, Entry>();
+    Map<String, File>      files    = new TreeMap<>();
+    List<Entry>            entries  = new LinkedList<>();
+    SnapshotStats          stats    = new SnapshotStats();
+    SegmentWriter          segment  = new SegmentWriter();
+    boolean                dirty    = previous == null || previous.version != MANIFEST_VERSION;
+
+    collect(sourceRoot, "", files);
+
+    try {
+      for (Map.Entry<String, File> file : files.entrySet()) {
+        String path     = file.getKey();
+        long   size     = file.getValue().length();
+        long   modified = file.getValue().lastModified();
+        Entry  old      = known.remove(path);
+
+        stats.files++;
+
+        if (old != null && old.size == size && old.modified == modified) {
+          entries.add(old);
+          stats.unchanged++;
+          continue;
+        }
+
+        dirty = true;
+
+        if (size < SMALL_FILE_LIMIT) {
+          byte[] data = readFully(file.getValue());
+          String hash = hash(data);
+
+          if (old != null && old.hash.equals(hash)) {
+            entries.add(old.touch(guard(modified, start)));
+            stats.unchanged++;
+          } else {
+            entries.add(segment.append(new Entry(path, data.length, guard(modified, start), hash), data));
+            stats.copied++;
+            stats.bytesCopied += data.length;
+          }
+        } else {
+          if (old != null && old.size == size && old.hash.equals(hash(file.getValue()))) {
+            entries.add(old.touch(guard(modified, start)));
+            stats.unchanged++;
+          } else {
+            Entry entry = storeObject(path, file.getValue(), guard(modified, start), stats);
+            entries.add(entry);
+          }
+        }
+      }
+
+      if (!known.isEmpty()) {
+        dirty = true;
+      }
+
+      if (!dirty) {
+        stats.millis = System.currentTimeMillis() - start;
+        return stats;
+      }
+
+      if (segment.isOpen()) {
+        repackSparseSegments(entries, segment);
+        segment.finish();
+      }
+    } finally {
+      segment.abandon();
+    }
+
+    writeManifest(new Manifest(entries));
+    collectGarbage(entries);
+
+    stats.millis = System.currentTimeMillis() - start;
+    return stats;
+  }
+
+  /**
+   * Replaces the snapshotted top-level entries under <code>targetRoot</code> with the contents
+   * of the snapshot.  Entries under <code>targetRoot</code> that the snapshot doesn't contain are
+   * left alone.
+   */
+  void restore(@NonNull File targetRoot) throws IOException {
+    Manifest manifest = readManifest();
+
+    if (manifest == null) {
+      throw new IOException("No snapshot in " + backupRoot);
+    }
+
+    File staging = new File(targetRoot, STAGING);
+    File retired = new File(targetRoot, RETIRED);
+
+    recover(targetRoot);
+    delete(staging);
+
+    Set<String> topLevel = new HashSet<>();
+
+    try {
+      for (Entry entry : manifest.entries) {
+        File destination = new File(staging, entry.path);
+        destination.getParentFile().mkdirs();
+
+        extract(entry, destination);
+        topLevel.add(entry.path.split("/", 2)[0]);
+      }
+    } catch (IOException e) {
+      delete(staging);
+      throw e;
+    }
+
+    if (!retired.mkdirs()) {
+      throw new IOException("Couldn't create " + retired);
+    }
+
+    try {
+      for (String name : topLevel) {
+        File live = new File(targetRoot, name);
+
+        if (!live.exists()) {
+          new File(retired, name + ABSENT_SUFFIX).createNewFile();
+        } else if (!live.renameTo(new File(retired, name))) {
+          throw new IOException("Couldn't retire " + live);
+        }
+
+        if (!new File(staging, name).renameTo(live)) {
+          throw new IOException("Couldn't move restored " + name + " into place");
+        }
+      }
+
+      if (!new File(retired, COMMITTED).createNewFile()) {
+        throw new IOException("Couldn't commit restore");
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Rolling back restore", e);
+      recover(targetRoot);
+      throw e;
+    } finally {
+      delete(staging);
+    }
+
+    delete(retired);
+    Log.w(TAG, "Restored " + manifest.entries.size() + " files into " + topLevel);
+  }
+
+  /**
+   * Finishes a restore that was interrupted while it swapped directories: a committed one has
+   * its retired directories deleted, anything else is rolled back to the pre-restore state.
+   */
+  private void recover(File targetRoot) throws IOException {
+    File retired = new File(targetRoot, RETIRED);
+
+    if (!retired.exists()) return;
+
+    if (!new File(retired, COMMITTED).exists()) {
+      File[] contents = retired.listFiles();
+
+      if (contents != null) {
+        for (File old : contents) {
+          if (old.getName().endsWith(ABSENT_SUFFIX)) {
+            delete(new File(targetRoot, old.getName().substring(0, old.getName().length() - ABSENT_SUFFIX.length())));
+            continue;
+          }
+
+          File live = new File(targetRoot, old.getName());
+
+          delete(live);
+
+          if (!old.renameTo(live)) {
+            throw new IOException("Couldn't roll back " + live);
+          }
+        }
+      }
+    }
+
+    delete(retired);
+  }
+
+  private void collect(File directory, String path, Map<String, File> files) {
+    File[] contents = directory.listFiles();
+
+    if (contents == null) return;
+
+    for (File file : contents) {
+      if (path.isEmpty() && excluded.contains(file.getName())) continue;
+
+      String filePath = path.isEmpty() ? file.getName() : path + "/" + file.getName();
+
+      if      (file.isDirectory()) collect(file, filePath, files);
+      else if (file.isFile())      files.put(filePath, file);
+    }
+  }
+
+  private Entry storeObject(String path, File file, long modified, SnapshotStats stats) throws IOException {
+    File objects = new File(backupRoot, OBJECTS);
+    objects.mkdirs();
+
+    File          temp   = File.createTempFile("object", ".tmp", objects);
+    MessageDigest digest = newDigest();
+    long          size;
+
+    try {
+      InputStream      in  = new DigestInputStream(new FileInputStream(file), digest);
+      FileOutputStream out = new FileOutputStream(temp);
+
+      try {
+        size = copy(in, out);
+        out.getFD().sync();
+      } finally {
+        in.close();
+        out.close();
+      }
+
+      String hash   = Hex.toStringCondensed(digest.digest());
+      File   object = new File(objects, hash);
+
+      if (object.exists()) {
+        stats.deduplicated++;
+      } else if (temp.renameTo(object)) {
+        stats.copied++;
+        stats.bytesCopied += size;
+      } else {
+        throw new IOException("Couldn't store " + path);
+      }
+
+      return new Entry(path, size, modified, hash);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Small files that are superseded leave dead bytes behind in their segment.  Once less than
+   * half of a segment is still referenced, its live entries are copied into the segment being
+   * written, so that the old one can be deleted.
+   */
+  private void repackSparseSegments(List<Entry> entries, SegmentWriter writer) throws IOException {
+    Map<String, Long> live = new HashMap<>();
+
+    for (Entry entry : entries) {
+      if (entry.segment == null) continue;
+
+      Long bytes = live.get(entry.segment);
+      live.put(entry.segment, (bytes == null ? 0 : bytes) + entry.size);
+    }
+
+    for (Map.Entry<String, Long> segment : live.entrySet()) {
+      File file = new File(new File(backupRoot, SEGMENTS), segment.getKey());
+
+      if (segment.getValue() * 2 >= file.length()) continue;
+
+      Log.w(TAG, "Repacking " + segment.getKey() + ": " + segment.getValue() + " of " + file.length() + " bytes live");
+
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+
+        if (segment.getKey().equals(entry.segment)) {
+          entries.set(i, writer.append(new Entry(entry.path, entry.size, entry.modified, entry.hash),
+                                       readSegment(entry)));
+        }
+      }
+    }
+  }
+
+  private void collectGarbage(List<Entry> entries) {
+    Set<String> objects  = new HashSet<>();
+    Set<String> segments = new HashSet<>();
+
+    for (Entry entry : entries) {
+      if (entry.segment == null) objects.add(entry.hash);
+      else                       segments.add(entry.segment);
+    }
+
+    deleteUnreferenced(new File(backupRoot, OBJECTS), objects);
+    deleteUnreferenced(new File(backupRoot, SEGMENTS), segments);
+  }
+
+  private void deleteUnreferenced(File directory, Set<String> referenced) {
+    File[] contents = directory.listFiles();
+
+    if (contents == null) return;
+
+    for (File file : contents) {
+      if (!referenced.contains(file.getName()) && !file.delete()) {
+        Log.w(TAG, "Couldn't delete " + file);
+      }
+    }
+  }
+
+  private void extract(Entry entry, File destination) throws IOException {
+    MessageDigest digest = newDigest();
+    OutputStream  out    = new FileOutputStream(destination);
+
+    try {
+      if (entry.segment != null) {
+        byte[] data = readSegment(entry);
+        digest.update(data);
+        out.write(data);
+      } else {
+        InputStream in = new DigestInputStream(new FileInputStream(new File(new File(backupRoot, OBJECTS), entry.hash)), digest);
+
+        try {
+          copy(in, out);
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!entry.hash.equals(Hex.toStringCondensed(digest.digest()))) {
+      throw new IOException("Snapshot copy of " + entry.path + " is corrupt");
+    }
+
+    if (entry.modified > 0) {
+      destination.setLastModified(entry.modified);
+    }
+  }
+
+  private byte[] readSegment(Entry entry) throws IOException {
+    RandomAccessFile segment = new RandomAccessFile(new File(new File(backupRoot, SEGMENTS), entry.segment), "r");
+
+    try {
+      byte[] data = new byte[(int)entry.size];
+      segment.seek(entry.offset);
+      segment.readFully(data);
+      return data;
+    } finally {
+      segment.close();
+    }
+  }
+
+  private @Nullable Manifest readManifest() throws IOException {
+    File manifest = new File(backupRoot, MANIFEST);
+
+    if (!manifest.exists()) return null;
+
+    return JsonUtils.fromJson(readFully(manifest), Manifest.class);
+  }
+
+  private void writeManifest(Manifest manifest) throws IOException {
+    backupRoot.mkdirs();
+
+    File             temp = new File(backupRoot, MANIFEST_TEMP);
+    FileOutputStream out  = new FileOutputStream(temp);
+
+    try {
+      out.write(JsonUtils.toJson(manifest).getBytes());
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(new File(backupRoot, MANIFEST))) {
+      throw new IOException("Couldn't replace manifest");
+    }
+  }
+
+  /**
+   * A file modified right before the snapshot could be modified again within the same timestamp
+   * granule without its size changing, so its modification time isn't trusted next time.
+   */
+  private static long guard(long modified, long snapshotStart) {
+    return snapshotStart - modified < MTIME_GUARD ? -1 : modified;
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+
+    try {
+      return Util.readFully(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    long   total  = 0;
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+      total += read;
+    }
+
+    return total;
+  }
+
+  private static String hash(byte[] data) {
+    return Hex.toStringCondensed(newDigest().digest(data));
+  }
+
+  private static String hash(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream   in     = new DigestInputStream(new FileInputStream(file), digest);
+
+    try {
+      byte[] buffer = new byte[8192];
+      int    read;
+
+      do {
+        read = in.read(buffer);
+      } while (read != -1);
+    } finally {
+      in.close();
+    }
+
+    return Hex.toStringCondensed(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] contents = file.isDirectory() ? file.listFiles() : null;
+
+    if (contents != null) {
+      for (File child : contents) {
+        delete(child);
+      }
+    }
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Couldn't delete " + file);
+    }
+  }
+
+  /**
+   * Appends small files to a new segment, which is named after its own hash once finished.
+   */
+  private class SegmentWriter {
+    private final List<Entry> pending = new LinkedList<>();
+
+    private File             temp;
+    private FileOutputStream out;
+    private MessageDigest    digest;
+    private long             offset;
+
+    boolean isOpen() {
+      return out != null;
+    }
+
+    Entry append(Entry entry, byte[] data) throws IOException {
+      if (out == null) {
+        File segments = new File(backupRoot, SEGMENTS);
+        segments.mkdirs();
+
+        temp   = File.createTempFile("segment", ".tmp", segments);
+        out    = new FileOutputStream(temp);
+        digest = newDigest();
+      }
+
+      out.write(data);
+      digest.update(data);
+
+      entry.offset = offset;
+      offset      += data.length;
+
+      pending.add(entry);
+      return entry;
+    }
+
+    void finish() throws IOException {
+      out.getFD().sync();
+      out.close();
+      out = null;
+
+      String name = Hex.toStringCondensed(digest.digest()) + SEGMENT_SUFFIX;
+
+      if (!temp.renameTo(new File(temp.getParentFile(), name))) {
+        throw new IOException("Couldn't store segment " + name);
+      }
+
+      for (Entry entry : pending) {
+        entry.segment = name;
+      }
+
+      temp = null;
+    }
+
+    void abandon() throws IOException {
+      if (out  != null) out.close();
+      if (temp != null) temp.delete();
+    }
+  }
+
+  static class SnapshotStats {
+    int  files;
+    int  unchanged;
+    int  copied;
+    int  deduplicated;
+    long bytesCopied;
+    long millis;
+
+    @Override
+    public String toString() {
+      return "files: " + files + ", unchanged: " + unchanged + ", copied: " + copied +
+             ", deduplicated: " + deduplicated + ", bytes copied: " + bytesCopied +
+             ", " + millis + "ms";
+    }
+  }
+
+  static class Manifest {
+    @JsonProperty
+    private int version;
+
+    @JsonProperty
+    private List<Entry> entries;
+
+    public Manifest() {}
+
+    Manifest(List<Entry> entries) {
+      this.version = MANIFEST_VERSION;
+      this.entries = entries;
+    }
+
+    Map<String, Entry> byPath() {
+      Map<String, Entry> byPath = new HashMap<>();
+
+      for (Entry entry : entries == null ? Collections.<Entry>emptyList() : entries) {
+        byPath.put(entry.path, entry);
+      }
+
+      return byPath;
+    }
+  }
+
+  static class Entry {
+    @JsonProperty
+    private String path;
+
+    @JsonProperty
+    private long size;
+
+    @JsonProperty
+    private long modified;
+
+    @JsonProperty
+    private String hash;
+
+    @JsonProperty
+    private String segment;
+
+    @JsonProperty
+    private long offset;
+
+    public Entry() {}
+
+    Entry(String path, long size, long modified, String hash) {
+      this.path     = path;
+      this.size     = size;
+      this.modified = modified;
+      this.hash     = hash;
+    }
+
+    Entry touch(long modified) {
+      Entry touched = new Entry(path, size, modified, hash);
+      touched.segment = segment;
+      touched.offset  = offset;
+      return touched;
+    }
+  }
+}
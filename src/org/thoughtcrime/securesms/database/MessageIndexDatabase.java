@@ -0,0 +1,251 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * A narrow, unified timeline of every sms and mms row, so that cross-transport queries
+ * (unread counts, snippets, unread lists) can be answered from a single indexed table
+ * instead of a DISTINCT union of both message tables.
+ *
+ * The index is maintained by triggers on the sms and mms tables, which keeps it current
+ * for every write path (inserts, read marks, type changes, thread moves and deletes)
+ * without each of them having to remember to update it.
+ */
+public class MessageIndexDatabase extends Database {
+
+  private static final String TAG = MessageIndexDatabase.class.getSimpleName();
+
+  public  static final String TABLE_NAME    = "message_index";
+  public  static final String ID            = "_id";
+  public  static final String THREAD_ID     = "thread_id";
+  public  static final String DATE_RECEIVED = "date_received";
+  public  static final String TRANSPORT     = "transport";
+  public  static final String MESSAGE_ID    = "msg_id";
+  public  static final String READ          = "read";
+  public  static final String TYPE          = "type";
+
+  /**
+   * Newest message first, with messages received in the same millisecond ordered by when they
+   * were indexed, so that every query agrees on which message is a thread's newest.
+   */
+  public static final String NEWEST_FIRST_ORDER = DATE_RECEIVED + " DESC, " + ID + " DESC";
+
+  private static final int BACKFILL_BATCH_SIZE = 1000;
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      THREAD_ID + " INTEGER, " + DATE_RECEIVED + " INTEGER, " + TRANSPORT + " TEXT, " + MESSAGE_ID + " INTEGER, " +
+      READ + " INTEGER DEFAULT 0, " + TYPE + " INTEGER, UNIQUE(" + TRANSPORT + ", " + MESSAGE_ID + ") ON CONFLICT REPLACE);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS message_index_read_date_index ON " + TABLE_NAME + " (" + READ + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS message_index_thread_read_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + READ + ");",
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    createInsertTrigger(SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, SmsDatabase.TYPE),
+    createUpdateTrigger(SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, SmsDatabase.TYPE),
+    createDeleteTrigger(SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT),
+    createInsertTrigger(MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, MmsDatabase.MESSAGE_BOX),
+    createUpdateTrigger(MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, MmsDatabase.MESSAGE_BOX),
+    createDeleteTrigger(MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT)
+  };
+
+  public MessageIndexDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public int getUnreadCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    return (int)DatabaseUtils.queryNumEntries(db, TABLE_NAME, THREAD_ID + " = ? AND " + READ + " = 0",
+                                              new String[] {String.valueOf(threadId)});
+  }
+
+  public int getMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    return (int)DatabaseUtils.queryNumEntries(db, TABLE_NAME, THREAD_ID + " = ?",
+                                              new String[] {String.valueOf(threadId)});
+  }
+
+  public boolean isNewestInThread(long threadId, @NonNull String transport, long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {TRANSPORT, MESSAGE_ID}, THREAD_ID + " = ?",
+                        new String[] {String.valueOf(threadId)}, null, null, NEWEST_FIRST_ORDER, "1");
+
+      return cursor != null && cursor.moveToFirst() &&
+             transport.equals(cursor.getString(0))  &&
+             cursor.getLong(1) == messageId;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * Builds a selection for one side of the sms/mms union which matches only the message ids
+   * the index selects for <code>transport</code>.  The index query runs first, so ordering and
+   * limits are applied across both transports before either message table is touched.
+   */
+  static String getMessageIdSelection(@NonNull String table, @NonNull String transport,
+                                      @NonNull String where, @Nullable String order, @Nullable String limit)
+  {
+    String indexQuery = "SELECT " + TRANSPORT + ", " + MESSAGE_ID + " FROM " + TABLE_NAME + " WHERE " + where +
+                        (order != null ? " ORDER BY " + order : "") +
+                        (limit != null ? " LIMIT " + limit : "");
+
+    return table + "." + ID + " IN (SELECT " + MESSAGE_ID + " FROM (" + indexQuery + ") WHERE " +
+           TRANSPORT + " = '" + transport + "')";
+  }
+
+  /**
+   * @return the number of messages whose index entry is missing, stale, or orphaned.
+   */
+  public int getInconsistencyCount() {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    return countInconsistent(db, SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, SmsDatabase.TYPE) +
+           countInconsistent(db, MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, MmsDatabase.MESSAGE_BOX) +
+           countOrphaned(db, SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT) +
+           countOrphaned(db, MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT);
+  }
+
+  public void verifyAndRepair() {
+    int inconsistent = getInconsistencyCount();
+
+    if (inconsistent > 0) {
+      Log.w(TAG, "Message index has " + inconsistent + " inconsistent entries, rebuilding...");
+      rebuild();
+    }
+  }
+
+  /**
+   * Rewrites the entry of every message and drops entries whose message is gone.  Each batch
+   * commits on its own, so that filling the index for a large database after an upgrade doesn't
+   * hold one long write transaction, and the triggers keep messages written in between current.
+   */
+  public void rebuild() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    int sms = backfill(db, SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, SmsDatabase.TYPE);
+    int mms = backfill(db, MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, MmsDatabase.MESSAGE_BOX);
+
+    int orphaned = deleteOrphaned(db, SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT) +
+                   deleteOrphaned(db, MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT);
+
+    Log.w(TAG, "Backfilled message index with " + sms + " sms and " + mms + " mms entries, " +
+               "removed " + orphaned + " orphaned entries");
+  }
+
+  private static int backfill(SQLiteDatabase db, String table, String transport, String dateColumn, String typeColumn) {
+    long lastId = -1;
+    int  total  = 0;
+
+    while (true) {
+      db.beginTransaction();
+
+      try {
+        long batchEnd = getBatchEnd(db, table, lastId);
+        if (batchEnd == -1) break;
+
+        db.execSQL("INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " +
+                   MESSAGE_ID + ", " + READ + ", " + TYPE + ") " +
+                   "SELECT " + MmsSmsColumns.THREAD_ID + ", " + dateColumn + ", '" + transport + "', " +
+                   MmsSmsColumns.ID + ", " + MmsSmsColumns.READ + ", " + typeColumn + " FROM " + table +
+                   " WHERE " + MmsSmsColumns.ID + " > ? AND " + MmsSmsColumns.ID + " <= ?",
+                   new Object[] {lastId, batchEnd});
+
+        total  += DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+        lastId  = batchEnd;
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+
+    return total;
+  }
+
+  private static long getBatchEnd(SQLiteDatabase db, String table, long afterId) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT MAX(" + MmsSmsColumns.ID + ") FROM (SELECT " + MmsSmsColumns.ID + " FROM " + table +
+                           " WHERE " + MmsSmsColumns.ID + " > ? ORDER BY " + MmsSmsColumns.ID +
+                           " LIMIT " + BACKFILL_BATCH_SIZE + ")",
+                           new String[] {String.valueOf(afterId)});
+
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        return cursor.getLong(0);
+      }
+
+      return -1;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  private static int countInconsistent(SQLiteDatabase db, String table, String transport, String dateColumn, String typeColumn) {
+    String query = "SELECT COUNT(*) FROM " + table + " LEFT OUTER JOIN " + TABLE_NAME + " ON " +
+                   TABLE_NAME + "." + TRANSPORT + " = '" + transport + "' AND " +
+                   TABLE_NAME + "." + MESSAGE_ID + " = " + table + "." + MmsSmsColumns.ID +
+                   " WHERE " + TABLE_NAME + "." + ID + " IS NULL" +
+                   " OR " + TABLE_NAME + "." + THREAD_ID + " IS NOT " + table + "." + MmsSmsColumns.THREAD_ID +
+                   " OR " + TABLE_NAME + "." + DATE_RECEIVED + " IS NOT " + table + "." + dateColumn +
+                   " OR " + TABLE_NAME + "." + READ + " IS NOT " + table + "." + MmsSmsColumns.READ +
+                   " OR " + TABLE_NAME + "." + TYPE + " IS NOT " + table + "." + typeColumn;
+
+    return (int)DatabaseUtils.longForQuery(db, query, null);
+  }
+
+  private static int deleteOrphaned(SQLiteDatabase db, String table, String transport) {
+    return db.delete(TABLE_NAME, TRANSPORT + " = '" + transport + "'" +
+                     " AND NOT EXISTS (SELECT 1 FROM " + table + " WHERE " + table + "." + MmsSmsColumns.ID +
+                     " = " + TABLE_NAME + "." + MESSAGE_ID + ")", null);
+  }
+
+  private static int countOrphaned(SQLiteDatabase db, String table, String transport) {
+    String query = "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + TRANSPORT + " = '" + transport + "'" +
+                   " AND NOT EXISTS (SELECT 1 FROM " + table + " WHERE " + table + "." + MmsSmsColumns.ID +
+                   " = " + TABLE_NAME + "." + MESSAGE_ID + ")";
+
+    return (int)DatabaseUtils.longForQuery(db, query, null);
+  }
+
+  private static String createInsertTrigger(String table, String transport, String dateColumn, String typeColumn) {
+    return "CREATE TRIGGER IF NOT EXISTS " + table + "_message_index_insert AFTER INSERT ON " + table + " BEGIN " +
+           "INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " +
+           MESSAGE_ID + ", " + READ + ", " + TYPE + ") VALUES (new." + MmsSmsColumns.THREAD_ID + ", new." + dateColumn +
+           ", '" + transport + "', new." + MmsSmsColumns.ID + ", new." + MmsSmsColumns.READ + ", new." + typeColumn + "); " +
+           "END;";
+  }
+
+  private static String createUpdateTrigger(String table, String transport, String dateColumn, String typeColumn) {
+    return "CREATE TRIGGER IF NOT EXISTS " + table + "_message_index_update AFTER UPDATE OF " +
+           MmsSmsColumns.THREAD_ID + ", " + dateColumn + ", " + MmsSmsColumns.READ + ", " + typeColumn +
+           " ON " + table + " BEGIN " +
+           "UPDATE " + TABLE_NAME + " SET " + THREAD_ID + " = new." + MmsSmsColumns.THREAD_ID + ", " +
+           DATE_RECEIVED + " = new." + dateColumn + ", " + READ + " = new." + MmsSmsColumns.READ + ", " +
+           TYPE + " = new." + typeColumn +
+           " WHERE " + TRANSPORT + " = '" + transport + "' AND " + MESSAGE_ID + " = old." + MmsSmsColumns.ID + "; " +
+           "END;";
+  }
+
+  private static String createDeleteTrigger(String table, String transport) {
+    return "CREATE TRIGGER IF NOT EXISTS " + table + "_message_index_delete AFTER DELETE ON " + table + " BEGIN " +
+           "DELETE FROM " + TABLE_NAME + " WHERE " + TRANSPORT + " = '" + transport + "' AND " +
+           MESSAGE_ID + " = old." + MmsSmsColumns.ID + "; " +
+           "END;";
+  }
+}
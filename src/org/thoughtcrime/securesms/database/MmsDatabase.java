@@ -46,6 +46,7 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingGroupMediaMessage;
@@ -61,7 +62,6 @@ import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.ServiceUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
@@ -145,7 +145,7 @@ public class MmsDatabase extends MessagingDatabase {
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
   private final EarlyReceiptCache earlyReceiptCache = new EarlyReceiptCache();
-  private final JobManager jobManager;
+  private final LaneJobManager jobManager;
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -218,7 +218,7 @@ public class MmsDatabase extends MessagingDatabase {
                                  RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
                                  new String[] {String.valueOf(id)});
 
-                DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+                DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId, MmsSmsDatabase.MMS_TRANSPORT, id, false);
                 notifyConversationListeners(threadId);
               }
             } catch (InvalidNumberException e) {
@@ -352,7 +352,7 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId.get(), MmsSmsDatabase.MMS_TRANSPORT, id, false);
     }
   }
 
@@ -531,7 +531,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -564,6 +564,62 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
+  /**
+   * @return (message id, thread id) pairs for notifications on the given subscription that are
+   *         still waiting for their first download attempt, oldest first.
+   */
+  public List<Pair<Long, Long>> getPendingNotifications(int subscriptionId, int limit) {
+    SQLiteDatabase         db      = databaseHelper.getReadableDatabase();
+    List<Pair<Long, Long>> results = new LinkedList<>();
+    Cursor                 cursor  = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ID, THREAD_ID},
+                        MESSAGE_TYPE + " = ? AND " + STATUS + " = ? AND " + SUBSCRIPTION_ID + " = ?",
+                        new String[] {String.valueOf(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND),
+                                      String.valueOf(Status.DOWNLOAD_INITIALIZED),
+                                      String.valueOf(subscriptionId)},
+                        null, null, ID + " ASC", String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(new Pair<>(cursor.getLong(0), cursor.getLong(1)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  public int getMediaMessageCount() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, MESSAGE_TYPE + " != ?",
+                        new String[] {String.valueOf(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND)},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Pages through retrieved and sent messages by primary key, without joining their parts.
+   */
+  Cursor getMediaMessagesAfter(long messageId, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, new String[] {ID, DATE_SENT, DATE_RECEIVED, MESSAGE_BOX, READ, BODY, ADDRESS},
+                    ID + " > ? AND " + MESSAGE_TYPE + " != ?",
+                    new String[] {String.valueOf(messageId), String.valueOf(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND)},
+                    null, null, ID, String.valueOf(limit));
+  }
+
   public OutgoingMediaMessage getOutgoingMessage(MasterSecret masterSecret, long messageId)
       throws MmsException, NoSuchMessageException
   {
@@ -689,7 +745,6 @@ public class MmsDatabase extends MessagingDatabase {
                                         contentValues);
 
     DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -772,6 +827,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = db.insert(TABLE_NAME, null, contentValues);
     addressDatabase.insertAddressesForId(messageId, MmsAddresses.forFrom(Util.toIsoString(notification.getFrom().getTextString())));
+    DatabaseFactory.getThreadDatabase(context).onMessageInsertedSilently(threadId);
 
     return new Pair<>(messageId, threadId);
   }
@@ -892,21 +948,24 @@ public class MmsDatabase extends MessagingDatabase {
 
     contentValues.put(PART_COUNT, attachments.size());
 
+    long messageId;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       addressDatabase.insertAddressesForId(messageId, addresses);
       partsDatabase.insertAttachmentsForMessage(masterSecret, messageId, attachments);
 
       db.setTransactionSuccessful();
-      return messageId;
     } finally {
       db.endTransaction();
 
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
+
+    DatabaseFactory.getThreadDatabase(context).onMessageInserted(contentValues.getAsLong(THREAD_ID), true);
+    return messageId;
   }
 
   public boolean delete(long messageId) {
@@ -916,9 +975,11 @@ public class MmsDatabase extends MessagingDatabase {
     attachmentDatabase.deleteAttachmentsForMessage(messageId);
     addrDatabase.deleteAddressesForId(messageId);
 
+    boolean snippet = DatabaseFactory.getMessageIndexDatabase(context).isNewestInThread(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
+
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).onMessageDeleted(threadId, snippet);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -1174,7 +1235,15 @@ public class MmsDatabase extends MessagingDatabase {
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
         if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          PlaintextCache plaintextCache = PlaintextCache.getInstance();
+          String         plaintext      = plaintextCache.get(body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            plaintextCache.put(body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else if (!TextUtils.isEmpty(body) && Types.isAsymmetricEncryption(box)) {
@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -31,6 +32,8 @@ import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import ws.com.google.android.mms.pdu.PduHeaders;
@@ -43,6 +46,8 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final String KEYSET_ORDER_DESC = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -86,6 +91,42 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0);
   }
 
+  /**
+   * Seeks a page of at most <code>limit</code> messages strictly older than <code>anchor</code>,
+   * newest first.  A null anchor returns the newest page of the thread.  Each side of the union
+   * is bounded by the limit before the merge, so the cost is proportional to the page rather
+   * than the size of the thread.
+   */
+  public Cursor getConversationBefore(long threadId, @Nullable Anchor anchor, int limit) {
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    if (anchor != null) {
+      smsSelection += " AND " + anchor.getSmsSelection("<");
+      mmsSelection += " AND " + anchor.getMmsSelection("<");
+    }
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, KEYSET_ORDER_DESC, String.valueOf(limit), true);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns every message from <code>oldest</code> (inclusive) up to the newest message in the
+   * thread.  Used to refresh an already loaded window, which is an index range scan over
+   * (thread_id, date_received) instead of a sort of the whole thread.
+   */
+  public Cursor getConversationWindow(long threadId, @NonNull Anchor oldest) {
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + oldest.getSmsSelection(">=");
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + oldest.getMmsSelection(">=");
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, KEYSET_ORDER_DESC, null, false);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
@@ -97,35 +138,33 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String order      = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String indexWhere = MessageIndexDatabase.THREAD_ID + " = " + threadId;
+    String indexOrder = MessageIndexDatabase.NEWEST_FIRST_ORDER;
 
-    return  queryTables(PROJECTION, selection, order, "1");
+    return queryIndexedTables(PROJECTION, indexWhere, indexOrder, "1", order, "1");
   }
 
   public Cursor getUnread() {
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
+    String order      = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String indexWhere = MessageIndexDatabase.READ + " = 0";
 
-    return queryTables(PROJECTION, selection, order, null);
+    return queryIndexedTables(PROJECTION, indexWhere, null, null, order, null);
   }
 
-  public int getUnreadCount(long threadId) {
-    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
-    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
+  public Cursor getUnread(long threadId) {
+    String order      = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String indexWhere = MessageIndexDatabase.THREAD_ID + " = " + threadId + " AND " + MessageIndexDatabase.READ + " = 0";
 
-    try {
-      return cursor != null ? cursor.getCount() : 0;
-    } finally {
-      if (cursor != null) cursor.close();;
-    }
+    return queryIndexedTables(PROJECTION, indexWhere, null, null, order, null);
   }
 
-  public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
+  public int getUnreadCount(long threadId) {
+    return DatabaseFactory.getMessageIndexDatabase(context).getUnreadCount(threadId);
+  }
 
-    return count;
+  public int getConversationCount(long threadId) {
+    return DatabaseFactory.getMessageIndexDatabase(context).getMessageCount(threadId);
   }
 
   public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId) {
@@ -134,6 +173,23 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, limit, false);
+  }
+
+  private Cursor queryIndexedTables(String[] projection, String indexWhere, @Nullable String indexOrder,
+                                    @Nullable String indexLimit, String order, String limit)
+  {
+    String smsSelection = MessageIndexDatabase.getMessageIdSelection(SmsDatabase.TABLE_NAME, SMS_TRANSPORT,
+                                                                     indexWhere, indexOrder, indexLimit);
+    String mmsSelection = MessageIndexDatabase.getMessageIdSelection(MmsDatabase.TABLE_NAME, MMS_TRANSPORT,
+                                                                     indexWhere, indexOrder, indexLimit);
+
+    return queryTables(projection, smsSelection, mmsSelection, order, limit, false);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection,
+                             String order, String limit, boolean limitSubQueries)
+  {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
@@ -247,9 +303,14 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.STATUS);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, null, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
+
+    if (limitSubQueries && limit != null) {
+      mmsSubQuery = "SELECT * FROM (" + mmsSubQuery + " ORDER BY " + order + " LIMIT " + limit + ")";
+      smsSubQuery = "SELECT * FROM (" + smsSubQuery + " ORDER BY " + order + " LIMIT " + limit + ")";
+    }
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -265,6 +326,94 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  /**
+   * A position in a conversation, keyed on (date_received, transport, _id) so that messages
+   * sharing a timestamp still have a total order.  Its selections are written against each
+   * message table's own columns, rather than the union's aliases, so that both sides of the
+   * union can seek on their (thread_id, date_received) index.
+   */
+  public static class Anchor {
+
+    private final long   dateReceived;
+    private final String transport;
+    private final long   id;
+
+    public Anchor(long dateReceived, @NonNull String transport, long id) {
+      this.dateReceived = dateReceived;
+      this.transport    = transport;
+      this.id           = id;
+    }
+
+    public static @Nullable Anchor fromCursor(@NonNull Cursor cursor) {
+      if (cursor.isBeforeFirst() || cursor.isAfterLast()) return null;
+
+      return new Anchor(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                        cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT)),
+                        cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+    }
+
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    private String getSmsSelection(String comparison) {
+      return getSelection(SMS_TRANSPORT, SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED,
+                          SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID, comparison);
+    }
+
+    private String getMmsSelection(String comparison) {
+      return getSelection(MMS_TRANSPORT, MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED,
+                          MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, comparison);
+    }
+
+    /**
+     * @param comparison "<" for the rows ordered before this anchor, or ">=" for this anchor and
+     *                   the rows after it, in ascending key order.
+     */
+    private String getSelection(String tableTransport, String dateColumn, String idColumn, String comparison) {
+      String strict = comparison.substring(0, 1);
+      int    order  = tableTransport.compareTo(transport);
+
+      if (order == 0) {
+        return "(" + dateColumn + " " + strict + "= " + dateReceived + " AND (" +
+               dateColumn + " " + strict + " " + dateReceived + " OR " + idColumn + " " + comparison + " " + id + "))";
+      } else if ((order < 0) == strict.equals("<")) {
+        // Every row of this table at the anchor's timestamp is on the requested side.
+        return dateColumn + " " + strict + "= " + dateReceived;
+      } else {
+        return dateColumn + " " + strict + " " + dateReceived;
+      }
+    }
+  }
+
+  /**
+   * Queues every symmetrically encrypted body in <code>cursor</code> for background decryption
+   * into the {@link PlaintextCache}.  Leaves the cursor before its first row.
+   */
+  public void prefetchBodies(@NonNull MasterSecret masterSecret, @NonNull Cursor cursor) {
+    List<String> ciphertexts = new LinkedList<>();
+
+    cursor.moveToPosition(-1);
+
+    while (cursor.moveToNext()) {
+      String transport = cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT));
+      String body      = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
+      long   type      = SMS_TRANSPORT.equals(transport)
+                         ? cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE))
+                         : cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+
+      if (body != null && body.length() > 0 && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+        ciphertexts.add(body);
+      }
+    }
+
+    cursor.moveToPosition(-1);
+
+    if (!ciphertexts.isEmpty()) {
+      PlaintextCache.getInstance().prefetch(masterSecret, ciphertexts);
+    }
+  }
+
   public Reader readerFor(@NonNull Cursor cursor, @Nullable MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
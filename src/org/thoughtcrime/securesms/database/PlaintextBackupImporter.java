@@ -1,21 +1,15 @@
 package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.Recipients;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
 
 
 public class PlaintextBackupImporter {
@@ -47,27 +41,27 @@ public class PlaintextBackupImporter {
       throws IOException
   {
     Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    BulkSmsImporter importer = new BulkSmsImporter(context, masterSecret, new BulkSmsImporter.ProgressListener() {
+      @Override
+      public void onProgress(int inserted) {
+        Log.w("PlaintextBackupImporter", "Imported " + inserted + " messages");
+      }
+    });
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportFile().getAbsolutePath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
+      XmlBackup backup = new XmlBackup(getPlaintextExportFile().getAbsolutePath());
       XmlBackup.XmlBackupItem item;
 
       while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
-
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
 
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
+        long            threadId  = importer.getThreadIdFor(item.getAddress());
+        SQLiteStatement statement = importer.prepare();
+
         addStringToStatement(statement, 1, item.getAddress());
         addNullToStatement(statement, 2);
         addLongToStatement(statement, 3, item.getDate());
@@ -78,15 +72,9 @@ public class PlaintextBackupImporter {
         addTranslatedTypeToStatement(statement, 8, item.getType());
         addNullToStatement(statement, 9);
         addStringToStatement(statement, 10, item.getSubject());
-        addEncryptedStingToStatement(masterCipher, statement, 11, item.getBody());
+        addEncryptedStingToStatement(importer, statement, 11, item.getBody());
         addStringToStatement(statement, 12, item.getServiceCenter());
-        addLongToStatement(statement, 13, threadId);
-        modifiedThreads.add(threadId);
-        statement.execute();
-      }
-
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId, true);
+        importer.insert(threadId);
       }
 
       Log.w("PlaintextBackupImporter", "Exited loop");
@@ -94,15 +82,15 @@ public class PlaintextBackupImporter {
       Log.w("PlaintextBackupImporter", e);
       throw new IOException("XML Parsing error!");
     } finally {
-      db.endTransaction(transaction);
+      importer.close();
     }
   }
 
-  private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
+  private static void addEncryptedStingToStatement(BulkSmsImporter importer, SQLiteStatement statement, int index, String value) {
     if (value == null || value.equals("null")) {
       statement.bindNull(index);
     } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
+      statement.bindString(index, importer.encryptBody(value));
     }
   }
 
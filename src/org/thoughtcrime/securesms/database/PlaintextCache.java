@@ -0,0 +1,168 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.LinkedBlockingLifoQueue;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decrypted message bodies keyed by their ciphertext.  Entries are strongly referenced and the
+ * cache is bounded by the memory the strings occupy rather than by entry count, evicting least
+ * recently used bodies first.  It is cleared when the master secret is forgotten.
+ *
+ * {@link #prefetch(MasterSecret, List)} decrypts bodies ahead of time on a small worker pool, so
+ * that binding a row only has to look its body up.  The most recently requested window is
+ * decrypted first.
+ */
+public class PlaintextCache {
+
+  private static final String TAG = PlaintextCache.class.getSimpleName();
+
+  private static final long MAX_BYTES          = 2 * 1024 * 1024;
+  private static final long MAX_PREFETCH_BYTES = MAX_BYTES / 2;
+  private static final int  ENTRY_OVERHEAD     = 96;
+  private static final int  PREFETCH_THREADS   = 2;
+  private static final int  PREFETCH_CHUNK     = 25;
+
+  private static final PlaintextCache instance = new PlaintextCache();
+
+  private final Map<String, String> cache    = new LinkedHashMap<>(16, 0.75f, true);
+  private final Set<String>         inFlight = new HashSet<>();
+  private final ExecutorService     executor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                                                                      0L, TimeUnit.MILLISECONDS,
+                                                                      new LinkedBlockingLifoQueue<Runnable>());
+
+  private long size;
+  private int  generation;
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  private PlaintextCache() {}
+
+  public synchronized @Nullable String get(@NonNull String ciphertext) {
+    return cache.get(ciphertext);
+  }
+
+  public synchronized void put(@NonNull String ciphertext, @NonNull String plaintext) {
+    String previous = cache.put(ciphertext, plaintext);
+
+    if (previous != null) size -= getSize(ciphertext, previous);
+    size += getSize(ciphertext, plaintext);
+
+    trim();
+  }
+
+  public synchronized void evict(@NonNull String ciphertext) {
+    String previous = cache.remove(ciphertext);
+    if (previous != null) size -= getSize(ciphertext, previous);
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+    size = 0;
+    generation++;
+  }
+
+  /**
+   * Decrypts <code>ciphertexts</code> in the background, skipping bodies that are already cached
+   * or being decrypted.  Stops queueing once the window would take up more than half the cache.
+   */
+  public void prefetch(@NonNull MasterSecret masterSecret, @NonNull List<String> ciphertexts) {
+    List<String> pending = new LinkedList<>();
+    long         bytes   = 0;
+    int          generation;
+
+    synchronized (this) {
+      generation = this.generation;
+
+      for (String ciphertext : ciphertexts) {
+        if (bytes >= MAX_PREFETCH_BYTES) break;
+
+        bytes += getSize(ciphertext, ciphertext);
+
+        if (!cache.containsKey(ciphertext) && inFlight.add(ciphertext)) {
+          pending.add(ciphertext);
+        }
+      }
+    }
+
+    List<String> chunk = new LinkedList<>();
+
+    for (String ciphertext : pending) {
+      chunk.add(ciphertext);
+
+      if (chunk.size() >= PREFETCH_CHUNK) {
+        executor.execute(new PrefetchTask(masterSecret, generation, chunk));
+        chunk = new LinkedList<>();
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      executor.execute(new PrefetchTask(masterSecret, generation, chunk));
+    }
+  }
+
+  private synchronized void putIfCurrent(int generation, String ciphertext, String plaintext) {
+    if (generation == this.generation) put(ciphertext, plaintext);
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, String>> iterator = cache.entrySet().iterator();
+
+    while (size > MAX_BYTES && iterator.hasNext()) {
+      Map.Entry<String, String> entry = iterator.next();
+      size -= getSize(entry.getKey(), entry.getValue());
+      iterator.remove();
+    }
+  }
+
+  private static long getSize(String ciphertext, String plaintext) {
+    return 2L * (ciphertext.length() + plaintext.length()) + ENTRY_OVERHEAD;
+  }
+
+  private class PrefetchTask implements Runnable {
+    private final MasterSecret masterSecret;
+    private final int          generation;
+    private final List<String> ciphertexts;
+
+    private PrefetchTask(MasterSecret masterSecret, int generation, List<String> ciphertexts) {
+      this.masterSecret = masterSecret;
+      this.generation   = generation;
+      this.ciphertexts  = ciphertexts;
+    }
+
+    @Override
+    public void run() {
+      MasterCipher masterCipher = new MasterCipher(masterSecret);
+
+      for (String ciphertext : ciphertexts) {
+        try {
+          putIfCurrent(generation, ciphertext, masterCipher.decryptBody(ciphertext));
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+        } finally {
+          synchronized (PlaintextCache.this) {
+            inFlight.remove(ciphertext);
+          }
+        }
+      }
+    }
+  }
+}
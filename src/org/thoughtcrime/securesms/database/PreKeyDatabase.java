@@ -0,0 +1,102 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Serialized one-time and signed prekey records, keyed by (signed, key id).
+ */
+public class PreKeyDatabase extends Database {
+
+  private static final String TABLE_NAME = "prekeys";
+  private static final String ID         = "_id";
+  private static final String KEY_ID     = "key_id";
+  private static final String SIGNED     = "signed";
+  private static final String RECORD     = "record";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      KEY_ID + " INTEGER NOT NULL, " + SIGNED + " INTEGER NOT NULL, " + RECORD + " BLOB NOT NULL, " +
+      "UNIQUE(" + SIGNED + ", " + KEY_ID + ") ON CONFLICT REPLACE);";
+
+  private static final String KEY_WHERE = SIGNED + " = ? AND " + KEY_ID + " = ?";
+
+  public PreKeyDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public @Nullable byte[] load(int keyId, boolean signed) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, KEY_WHERE, getKeyArgs(keyId, signed),
+                              null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getBlob(0);
+      }
+
+      return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public @NonNull List<byte[]> loadAllSigned() {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<byte[]>   results  = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, SIGNED + " = 1", null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getBlob(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public boolean contains(int keyId, boolean signed) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID}, KEY_WHERE, getKeyArgs(keyId, signed),
+                              null, null, null);
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public void store(int keyId, boolean signed, @NonNull byte[] record) {
+    ContentValues values = new ContentValues(3);
+    values.put(KEY_ID, keyId);
+    values.put(SIGNED, signed ? 1 : 0);
+    values.put(RECORD, record);
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  public void delete(int keyId, boolean signed) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, KEY_WHERE, getKeyArgs(keyId, signed));
+  }
+
+  private String[] getKeyArgs(int keyId, boolean signed) {
+    return new String[] {signed ? "1" : "0", String.valueOf(keyId)};
+  }
+
+}
@@ -27,15 +27,27 @@ public class PushDatabase extends Database {
   public  static final String LEGACY_MSG   = "body";
   public  static final String CONTENT      = "content";
   public  static final String TIMESTAMP    = "timestamp";
+  public  static final String RETRY_MSG_ID = "retry_message_id";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER, " +
+      RETRY_MSG_ID + " INTEGER DEFAULT -1);";
 
   public PushDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public long insert(@NonNull SignalServiceEnvelope envelope) {
+    return insert(envelope, -1);
+  }
+
+  /**
+   * @param retryMessageId the SMS row this envelope is being re-processed for, or -1 for a
+   *                       freshly received envelope.  Retries are never claimed by
+   *                       {@link #getPendingBatch(long, int)}, since they have to be handled
+   *                       against their original message.
+   */
+  public long insert(@NonNull SignalServiceEnvelope envelope, long retryMessageId) {
     Optional<Long> messageId = find(envelope);
 
     if (messageId.isPresent()) {
@@ -48,6 +60,7 @@ public class PushDatabase extends Database {
       values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "");
       values.put(CONTENT, envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "");
       values.put(TIMESTAMP, envelope.getTimestamp());
+      values.put(RETRY_MSG_ID, retryMessageId);
 
       return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
     }
@@ -62,16 +75,7 @@ public class PushDatabase extends Database {
                                                           null, null, null);
 
       if (cursor != null && cursor.moveToNext()) {
-        String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
-
-        return new SignalServiceEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
-                                         cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
-                                         cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
-                                         "",
-                                         cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
-                                         Util.isEmpty(legacyMessage) ? null : Base64.decode(legacyMessage),
-                                         Util.isEmpty(content) ? null : Base64.decode(content));
+        return getEnvelope(cursor);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -88,6 +92,24 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  /**
+   * Claims the oldest freshly received envelopes, starting at <code>fromId</code>, in the order
+   * they arrived.  Rows are handed out by ascending id so that messages from any one sender
+   * are always processed in the order the server delivered them.
+   */
+  public Cursor getPendingBatch(long fromId, int limit) {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null,
+                                                      ID + " >= ? AND " + RETRY_MSG_ID + " = -1",
+                                                      new String[] {String.valueOf(fromId)},
+                                                      null, null, ID + " ASC", String.valueOf(limit));
+  }
+
+  public SQLiteDatabase beginTransaction() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database;
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
@@ -122,6 +144,19 @@ public class PushDatabase extends Database {
     }
   }
 
+  private static SignalServiceEnvelope getEnvelope(Cursor cursor) throws IOException {
+    String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
+    String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
+
+    return new SignalServiceEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
+                                     cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
+                                     cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
+                                     "",
+                                     cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
+                                     Util.isEmpty(legacyMessage) ? null : Base64.decode(legacyMessage),
+                                     Util.isEmpty(content) ? null : Base64.decode(content));
+  }
+
   public static class Reader {
     private final Cursor cursor;
 
@@ -134,21 +169,16 @@ public class PushDatabase extends Database {
         if (cursor == null || !cursor.moveToNext())
           return null;
 
-        int    type          = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
-        String source        = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
-        int    deviceId      = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
-        String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
-        long   timestamp     = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
-
-        return new SignalServiceEnvelope(type, source, deviceId, "", timestamp,
-                                         legacyMessage != null ? Base64.decode(legacyMessage) : null,
-                                         content != null ? Base64.decode(content) : null);
+        return getEnvelope(cursor);
       } catch (IOException e) {
         throw new AssertionError(e);
       }
     }
 
+    public long getCurrentId() {
+      return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+    }
+
     public void close() {
       this.cursor.close();
     }
@@ -0,0 +1,98 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Serialized session records, one row per recipient device.  The unique constraint doubles as
+ * the (recipient, device) index every lookup goes through.
+ */
+public class SessionDatabase extends Database {
+
+  private static final String TABLE_NAME   = "sessions";
+  private static final String ID           = "_id";
+  private static final String RECIPIENT_ID = "recipient_id";
+  private static final String DEVICE       = "device";
+  private static final String RECORD       = "record";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      RECIPIENT_ID + " INTEGER NOT NULL, " + DEVICE + " INTEGER NOT NULL, " + RECORD + " BLOB NOT NULL, " +
+      "UNIQUE(" + RECIPIENT_ID + ", " + DEVICE + ") ON CONFLICT REPLACE);";
+
+  private static final String ADDRESS_WHERE = RECIPIENT_ID + " = ? AND " + DEVICE + " = ?";
+
+  public SessionDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public @Nullable byte[] load(long recipientId, int deviceId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, ADDRESS_WHERE,
+                              new String[] {String.valueOf(recipientId), String.valueOf(deviceId)},
+                              null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getBlob(0);
+      }
+
+      return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public void store(long recipientId, int deviceId, @NonNull byte[] record) {
+    ContentValues values = new ContentValues(3);
+    values.put(RECIPIENT_ID, recipientId);
+    values.put(DEVICE, deviceId);
+    values.put(RECORD, record);
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  public void delete(long recipientId, int deviceId) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, ADDRESS_WHERE,
+                                                new String[] {String.valueOf(recipientId), String.valueOf(deviceId)});
+  }
+
+  public @NonNull List<Integer> getSubDevices(long recipientId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<Integer>  results  = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DEVICE},
+                              RECIPIENT_ID + " = ? AND " + DEVICE + " != ?",
+                              new String[] {String.valueOf(recipientId), String.valueOf(SignalServiceAddress.DEFAULT_DEVICE_ID)},
+                              null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getInt(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  public SQLiteDatabase beginTransaction() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database;
+  }
+
+}
@@ -18,34 +18,30 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
-import org.thoughtcrime.securesms.recipients.Recipients;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 public class SmsMigrator {
 
   private static final String TAG = SmsMigrator.class.getSimpleName();
 
-  private static void addEncryptedStringToStatement(Context context, SQLiteStatement statement,
-                                                    Cursor cursor, MasterSecret masterSecret,
-                                                    int index, String key)
+  private static void addEncryptedStringToStatement(BulkSmsImporter importer, SQLiteStatement statement,
+                                                    Cursor cursor, int index, String key)
   {
     int columnIndex = cursor.getColumnIndexOrThrow(key);
 
     if (cursor.isNull(columnIndex)) {
       statement.bindNull(index);
     } else {
-      statement.bindString(index, encrypt(masterSecret, cursor.getString(columnIndex)));
+      statement.bindString(index, importer.encryptBody(cursor.getString(columnIndex)));
     }
   }
 
@@ -95,8 +91,7 @@ public class SmsMigrator {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
-  private static void getContentValuesForRow(Context context, MasterSecret masterSecret,
-                                             Cursor cursor, long threadId,
+  private static void getContentValuesForRow(BulkSmsImporter importer, Cursor cursor,
                                              SQLiteStatement statement)
   {
     addStringToStatement(statement, cursor, 1, SmsDatabase.ADDRESS);
@@ -109,10 +104,8 @@ public class SmsMigrator {
     addTranslatedTypeToStatement(statement, cursor, 8, SmsDatabase.TYPE);
     addIntToStatement(statement, cursor, 9, SmsDatabase.REPLY_PATH_PRESENT);
     addStringToStatement(statement, cursor, 10, SmsDatabase.SUBJECT);
-    addEncryptedStringToStatement(context, statement, cursor, masterSecret, 11, SmsDatabase.BODY);
+    addEncryptedStringToStatement(importer, statement, cursor, 11, SmsDatabase.BODY);
     addStringToStatement(statement, cursor, 12, SmsDatabase.SERVICE_CENTER);
-
-    statement.bindLong(13, threadId);
   }
 
   private static String getTheirCanonicalAddress(Context context, String theirRecipientId) {
@@ -136,13 +129,22 @@ public class SmsMigrator {
     }
   }
 
-  private static Recipients getOurRecipients(Context context, String theirRecipients) {
+  private static String getOurAddresses(Context context, Map<String, String> canonicalAddresses,
+                                        String theirRecipients)
+  {
     StringTokenizer tokenizer = new StringTokenizer(theirRecipients.trim(), " ");
     StringBuilder sb          = new StringBuilder();
 
     while (tokenizer.hasMoreTokens()) {
       String theirRecipientId = tokenizer.nextToken();
-      String address          = getTheirCanonicalAddress(context, theirRecipientId);
+      String address;
+
+      if (canonicalAddresses.containsKey(theirRecipientId)) {
+        address = canonicalAddresses.get(theirRecipientId);
+      } else {
+        address = getTheirCanonicalAddress(context, theirRecipientId);
+        canonicalAddresses.put(theirRecipientId, address);
+      }
 
       if (address == null)
         continue;
@@ -154,22 +156,15 @@ public class SmsMigrator {
     }
 
     if (sb.length() == 0) return null;
-    else                  return RecipientFactory.getRecipientsFromString(context, sb.toString(), true);
+    else                  return sb.toString();
   }
 
-  private static String encrypt(MasterSecret masterSecret, String body)
-  {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
-  }
-
-  private static void migrateConversation(Context context, MasterSecret masterSecret,
+  private static void migrateConversation(Context context, BulkSmsImporter importer,
                                           SmsMigrationProgressListener listener,
                                           ProgressDescription progress,
                                           long theirThreadId, long ourThreadId)
   {
-    SmsDatabase ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
-    Cursor cursor              = null;
+    Cursor cursor = null;
 
     try {
       Uri uri = Uri.parse("content://sms/conversations/" + theirThreadId);
@@ -182,24 +177,16 @@ public class SmsMigrator {
         return;
       }
 
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
-
       while (cursor != null && cursor.moveToNext()) {
         int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
 
         if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
-          getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-          statement.execute();
+          getContentValuesForRow(importer, cursor, importer.prepare());
+          importer.insert(ourThreadId);
         }
 
         listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
       }
-
-      ourSmsDatabase.endTransaction(transaction);
-      DatabaseFactory.getThreadDatabase(context).update(ourThreadId, true);
-      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
-
     } finally {
       if (cursor != null)
         cursor.close();
@@ -213,8 +200,9 @@ public class SmsMigrator {
 //    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
 //      return;
 
-    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Cursor cursor                 = null;
+    BulkSmsImporter     importer           = new BulkSmsImporter(context, masterSecret, null);
+    Map<String, String> canonicalAddresses = new HashMap<>();
+    Cursor              cursor             = null;
 
     try {
       Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
@@ -223,12 +211,12 @@ public class SmsMigrator {
       while (cursor != null && cursor.moveToNext()) {
         long   theirThreadId         = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
         String theirRecipients       = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
-        Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
+        String ourAddresses          = getOurAddresses(context, canonicalAddresses, theirRecipients);
         ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
 
-        if (ourRecipients != null) {
-          long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
-          migrateConversation(context, masterSecret,
+        if (ourAddresses != null) {
+          long ourThreadId = importer.getThreadIdFor(ourAddresses);
+          migrateConversation(context, importer,
                               listener, progress,
                               theirThreadId, ourThreadId);
         }
@@ -239,6 +227,8 @@ public class SmsMigrator {
     } finally {
       if (cursor != null)
         cursor.close();
+
+      importer.close();
     }
 
     context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
@@ -0,0 +1,365 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
+import org.thoughtcrime.securesms.database.model.DisplayRecord;
+import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes every SMS and MMS to the plaintext XML backup format.
+ *
+ * Messages are read a page at a time by primary key, so each page costs the same however deep
+ * into the table it is.  Pages are decrypted on a small pool while the calling thread writes the
+ * pages that are already done, in order.  Only a few pages are in flight at once, so memory use
+ * doesn't grow with the size of the database.
+ */
+public class StreamingBackupExporter {
+
+  private static final String TAG = StreamingBackupExporter.class.getSimpleName();
+
+  private static final int PAGE_SIZE   = 500;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+  private final int          threads;
+
+  public StreamingBackupExporter(@NonNull Context context, @NonNull MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+    this.threads      = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * @param includeAttachments  inline the data of downloaded MMS parts
+   */
+  public @NonNull ExportStats export(@NonNull OutputStream out, boolean includeAttachments)
+      throws IOException
+  {
+    long            start    = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      OutputStream stream = new BufferedOutputStream(out, BUFFER_SIZE);
+
+      int count = DatabaseFactory.getSmsDatabase(context).getMessageCount() +
+                  DatabaseFactory.getMmsDatabase(context).getMediaMessageCount();
+
+      XmlBackup.Writer writer = new XmlBackup.Writer(new OutputStreamWriter(stream, "UTF-8"), count);
+
+      long sms = exportSms(writer, executor);
+      long mms = exportMms(writer, executor, includeAttachments);
+
+      writer.close();
+
+      ExportStats stats = new ExportStats(sms, mms, System.currentTimeMillis() - start);
+      Log.w(TAG, "Exported " + stats);
+
+      return stats;
+    } finally {
+      executor.shutdownNow();
+      out.close();
+    }
+  }
+
+  private long exportSms(XmlBackup.Writer writer, ExecutorService executor) throws IOException {
+    SmsDatabase                                       database = DatabaseFactory.getSmsDatabase(context);
+    LinkedList<Future<List<XmlBackup.XmlBackupItem>>> pending  = new LinkedList<>();
+    long                                              lastId   = 0;
+    long                                              written  = 0;
+
+    while (true) {
+      final List<SmsRow> page   = new LinkedList<>();
+      Cursor             cursor = database.getMessagesAfter(lastId, PAGE_SIZE);
+
+      try {
+        while (cursor != null && cursor.moveToNext()) {
+          page.add(new SmsRow(cursor));
+        }
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+
+      if (page.isEmpty()) break;
+
+      lastId = page.get(page.size() - 1).id;
+      pending.add(executor.submit(new Callable<List<XmlBackup.XmlBackupItem>>() {
+        @Override
+        public List<XmlBackup.XmlBackupItem> call() {
+          return decryptSms(page);
+        }
+      }));
+
+      if (pending.size() > threads) {
+        written += writeSms(writer, pending.removeFirst());
+      }
+    }
+
+    while (!pending.isEmpty()) {
+      written += writeSms(writer, pending.removeFirst());
+    }
+
+    return written;
+  }
+
+  private long exportMms(XmlBackup.Writer writer, ExecutorService executor, final boolean includeAttachments)
+      throws IOException
+  {
+    MmsDatabase                                          database = DatabaseFactory.getMmsDatabase(context);
+    LinkedList<Future<List<XmlBackup.XmlBackupMmsItem>>> pending  = new LinkedList<>();
+    long                                                 lastId   = 0;
+    long                                                 written  = 0;
+
+    while (true) {
+      final List<MmsRow> page   = new LinkedList<>();
+      Cursor             cursor = database.getMediaMessagesAfter(lastId, PAGE_SIZE);
+
+      try {
+        while (cursor != null && cursor.moveToNext()) {
+          page.add(new MmsRow(cursor));
+        }
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+
+      if (page.isEmpty()) break;
+
+      lastId = page.get(page.size() - 1).id;
+      pending.add(executor.submit(new Callable<List<XmlBackup.XmlBackupMmsItem>>() {
+        @Override
+        public List<XmlBackup.XmlBackupMmsItem> call() {
+          return decryptMms(page, includeAttachments);
+        }
+      }));
+
+      if (pending.size() > threads) {
+        written += writeMms(writer, pending.removeFirst());
+      }
+    }
+
+    while (!pending.isEmpty()) {
+      written += writeMms(writer, pending.removeFirst());
+    }
+
+    return written;
+  }
+
+  private int writeSms(XmlBackup.Writer writer, Future<List<XmlBackup.XmlBackupItem>> future)
+      throws IOException
+  {
+    List<XmlBackup.XmlBackupItem> items = getResult(future);
+
+    for (XmlBackup.XmlBackupItem item : items) {
+      writer.writeItem(item);
+    }
+
+    return items.size();
+  }
+
+  private int writeMms(XmlBackup.Writer writer, Future<List<XmlBackup.XmlBackupMmsItem>> future)
+      throws IOException
+  {
+    final AttachmentDatabase               attachments = DatabaseFactory.getAttachmentDatabase(context);
+    final List<XmlBackup.XmlBackupMmsItem> items       = getResult(future);
+
+    XmlBackup.PartSource partSource = new XmlBackup.PartSource() {
+      @Override
+      public @Nullable InputStream open(@NonNull XmlBackup.XmlBackupPart part) throws IOException {
+        try {
+          return attachments.getAttachmentStream(masterSecret, part.getAttachmentId());
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          return null;
+        }
+      }
+    };
+
+    for (XmlBackup.XmlBackupMmsItem item : items) {
+      writer.writeItem(item, partSource);
+    }
+
+    return items.size();
+  }
+
+  private List<XmlBackup.XmlBackupItem> decryptSms(List<SmsRow> rows) {
+    MasterCipher                  masterCipher = new MasterCipher(masterSecret);
+    List<XmlBackup.XmlBackupItem> items        = new LinkedList<>();
+
+    for (SmsRow row : rows) {
+      Recipients       recipients = getRecipientsFor(row.address);
+      SmsMessageRecord record     = new SmsMessageRecord(context, row.id, getBody(masterCipher, row.type, row.body),
+                                                         recipients, recipients.getPrimaryRecipient(), 1,
+                                                         row.dateSent, row.dateReceived, 0, row.type,
+                                                         row.threadId, row.status,
+                                                         new LinkedList<IdentityKeyMismatch>(), -1);
+
+      items.add(new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                            record.getDateReceived(),
+                                            MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                            null, record.getDisplayBody().toString(), null,
+                                            1, record.getDeliveryStatus()));
+    }
+
+    return items;
+  }
+
+  private List<XmlBackup.XmlBackupMmsItem> decryptMms(List<MmsRow> rows, boolean includeAttachments) {
+    MasterCipher                     masterCipher = new MasterCipher(masterSecret);
+    AttachmentDatabase               attachments  = DatabaseFactory.getAttachmentDatabase(context);
+    List<XmlBackup.XmlBackupMmsItem> items        = new LinkedList<>();
+
+    for (MmsRow row : rows) {
+      Recipients         recipients = getRecipientsFor(row.address);
+      DisplayRecord.Body body       = getBody(masterCipher, row.box, row.body);
+
+      XmlBackup.XmlBackupMmsItem item = new XmlBackup.XmlBackupMmsItem(recipients.getPrimaryRecipient().getNumber(),
+                                                                       row.dateReceived, row.dateSent,
+                                                                       MmsSmsColumns.Types.translateToSystemBaseType(row.box),
+                                                                       row.read,
+                                                                       body.isPlaintext() ? body.getBody() : null);
+
+      if (includeAttachments) {
+        for (DatabaseAttachment attachment : attachments.getAttachmentsForMessage(row.id)) {
+          if (attachment.getTransferState() == AttachmentDatabase.TRANSFER_PROGRESS_DONE &&
+              attachment.getDataUri() != null)
+          {
+            item.addPart(new XmlBackup.XmlBackupPart(attachment.getAttachmentId(), attachment.getContentType(), null));
+          }
+        }
+      }
+
+      items.add(item);
+    }
+
+    return items;
+  }
+
+  private DisplayRecord.Body getBody(MasterCipher masterCipher, long type, String body) {
+    if (body == null) {
+      return new DisplayRecord.Body("", true);
+    }
+
+    if (!MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+      return new DisplayRecord.Body(body, !MmsSmsColumns.Types.isAsymmetricEncryption(type));
+    }
+
+    try {
+      return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return new DisplayRecord.Body(context.getString(R.string.EncryptingSmsDatabase_error_decrypting_message), true);
+    }
+  }
+
+  private Recipients getRecipientsFor(String address) {
+    if (!TextUtils.isEmpty(address) && !address.equals("insert-address-token")) {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, true);
+
+      if (recipients != null && !recipients.isEmpty()) {
+        return recipients;
+      }
+    }
+
+    return RecipientFactory.getRecipientsFor(context, Recipient.getUnknownRecipient(), true);
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static class SmsRow {
+    private final long   id;
+    private final long   threadId;
+    private final String address;
+    private final long   type;
+    private final long   dateReceived;
+    private final long   dateSent;
+    private final int    status;
+    private final String body;
+
+    SmsRow(Cursor cursor) {
+      this.id           = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+      this.threadId     = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.THREAD_ID));
+      this.address      = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS));
+      this.type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+      this.dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_RECEIVED));
+      this.dateSent     = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_SENT));
+      this.status       = cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.STATUS));
+      this.body         = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
+    }
+  }
+
+  private static class MmsRow {
+    private final long   id;
+    private final String address;
+    private final long   box;
+    private final long   dateReceived;
+    private final long   dateSent;
+    private final int    read;
+    private final String body;
+
+    MmsRow(Cursor cursor) {
+      this.id           = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+      this.address      = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.ADDRESS));
+      this.box          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+      this.dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.DATE_RECEIVED));
+      this.dateSent     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.DATE_SENT));
+      this.read         = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.READ));
+      this.body         = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
+    }
+  }
+
+  public static class ExportStats {
+    public final long smsCount;
+    public final long mmsCount;
+    public final long millis;
+
+    ExportStats(long smsCount, long mmsCount, long millis) {
+      this.smsCount = smsCount;
+      this.mmsCount = mmsCount;
+      this.millis   = millis;
+    }
+
+    public long getRowsPerSecond() {
+      return millis > 0 ? (smsCount + mmsCount) * 1000 / millis : smsCount + mmsCount;
+    }
+
+    @Override
+    public String toString() {
+      return smsCount + " SMS and " + mmsCount + " MMS in " + millis + "ms (" + getRowsPerSecond() + " rows/s)";
+    }
+  }
+}
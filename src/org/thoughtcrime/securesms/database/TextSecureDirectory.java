@@ -5,28 +5,33 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.util.PhoneNumberCanonicalizer;
 import org.whispersystems.signalservice.api.push.ContactTokenDetails;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
-import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class TextSecureDirectory {
 
   private static final int INTRODUCED_CHANGE_FROM_TOKEN_TO_E164_NUMBER = 2;
   private static final int INTRODUCED_VOICE_COLUMN                     = 4;
+  private static final int INTRODUCED_CONTACT_NUMBER_CACHE             = 5;
 
   private static final String DATABASE_NAME    = "whisper_directory.db";
-  private static final int    DATABASE_VERSION = 4;
+  private static final int    DATABASE_VERSION = 5;
 
   private static final String TABLE_NAME   = "directory";
   private static final String ID           = "_id";
@@ -43,6 +48,17 @@ public class TextSecureDirectory {
                               TIMESTAMP    + " INTEGER, " +
                               VOICE        + " INTEGER);";
 
+  private static final String CACHE_TABLE_NAME = "contact_number_cache";
+  private static final String DATA_ID          = "data_id";
+  private static final String DATA_VERSION     = "data_version";
+  private static final String LOCAL_NUMBER     = "local_number";
+  private static final String E164_NUMBER      = "e164_number";
+
+  private static final String CREATE_CACHE_TABLE = "CREATE TABLE " + CACHE_TABLE_NAME + "(" + DATA_ID + " INTEGER PRIMARY KEY, " +
+                              DATA_VERSION + " INTEGER, " +
+                              LOCAL_NUMBER + " TEXT, " +
+                              E164_NUMBER  + " TEXT);";
+
   private static final Object instanceLock = new Object();
   private static volatile TextSecureDirectory instance;
 
@@ -144,14 +160,29 @@ public class TextSecureDirectory {
     db.replace(TABLE_NAME, null, values);
   }
 
+  /**
+   * Records the result of a full directory query.  Only numbers whose registration, relay, or
+   * voice support differ from what's already stored are written, so a refresh in which nothing
+   * changed on the server doesn't rewrite the table.
+   */
   public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
-    long timestamp    = System.currentTimeMillis();
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long                        timestamp = System.currentTimeMillis();
+    SQLiteDatabase              db        = databaseHelper.getWritableDatabase();
+    Map<String, DirectoryEntry> current   = getDirectoryEntries(db);
+    int                         changed   = 0;
+
     db.beginTransaction();
 
     try {
       for (ContactTokenDetails token : activeTokens) {
-        Log.w("Directory", "Adding active token: " + token.getNumber() + ", " + token.getToken());
+        DirectoryEntry entry = current.get(token.getNumber());
+
+        if (entry != null && entry.registered && entry.voice == token.isVoice() &&
+            TextUtils.equals(entry.relay, token.getRelay()))
+        {
+          continue;
+        }
+
         ContentValues values = new ContentValues();
         values.put(NUMBER, token.getNumber());
         values.put(REGISTERED, 1);
@@ -159,41 +190,68 @@ public class TextSecureDirectory {
         values.put(RELAY, token.getRelay());
         values.put(VOICE, token.isVoice());
         db.replace(TABLE_NAME, null, values);
+        changed++;
       }
 
       for (String token : inactiveTokens) {
+        DirectoryEntry entry = current.get(token);
+
+        if (entry != null && !entry.registered) {
+          continue;
+        }
+
         ContentValues values = new ContentValues();
         values.put(NUMBER, token);
         values.put(REGISTERED, 0);
         values.put(TIMESTAMP, timestamp);
         db.replace(TABLE_NAME, null, values);
+        changed++;
       }
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+
+    Log.w("Directory", "Updated " + changed + " of " + (activeTokens.size() + inactiveTokens.size()) + " directory entries");
   }
 
+  private Map<String, DirectoryEntry> getDirectoryEntries(SQLiteDatabase db) {
+    Map<String, DirectoryEntry> entries = new HashMap<>();
+    Cursor                      cursor  = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {NUMBER, REGISTERED, RELAY, VOICE}, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        entries.put(cursor.getString(0), new DirectoryEntry(cursor.getInt(1) == 1, cursor.getString(2), cursor.getInt(3) == 1));
+      }
+
+      return entries;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Collects the e164 form of every number in the system contacts, plus every number already in
+   * the directory.
+   *
+   * Formatting is the expensive part, so each phone row's e164 number is cached along with the
+   * contacts provider's version of that row.  Only rows that were added or edited since the last
+   * call, or every row if the local number changed, are formatted again.
+   */
   public Set<String> getPushEligibleContactNumbers(String localNumber) {
     final Uri         uri     = Phone.CONTENT_URI;
     final Set<String> results = new HashSet<>();
           Cursor      cursor  = null;
 
     try {
-      cursor = context.getContentResolver().query(uri, new String[] {Phone.NUMBER}, null, null, null);
+      cursor = context.getContentResolver().query(uri, new String[] {Phone._ID, Phone.DATA_VERSION, Phone.NUMBER},
+                                                  null, null, null);
 
-      while (cursor != null && cursor.moveToNext()) {
-        final String rawNumber = cursor.getString(0);
-        if (rawNumber != null) {
-          try {
-            final String e164Number = PhoneNumberFormatter.formatNumber(rawNumber, localNumber);
-            results.add(e164Number);
-          } catch (InvalidNumberException e) {
-            Log.w("Directory", "Invalid number: " + rawNumber);
-          }
-        }
-      }
+      results.addAll(getContactNumbers(cursor, localNumber));
 
       if (cursor != null)
         cursor.close();
@@ -215,6 +273,89 @@ public class TextSecureDirectory {
     }
   }
 
+  private Set<String> getContactNumbers(@Nullable Cursor contacts, String localNumber) {
+    SQLiteDatabase          db      = databaseHelper.getWritableDatabase();
+    Map<Long, CachedNumber> cached  = getCachedNumbers(db);
+    Set<String>             results = new HashSet<>();
+    SQLiteStatement         insert  = null;
+    int                     updated = 0;
+
+    db.beginTransaction();
+
+    try {
+      while (contacts != null && contacts.moveToNext()) {
+        long         dataId      = contacts.getLong(0);
+        long         dataVersion = contacts.getLong(1);
+        CachedNumber number      = cached.remove(dataId);
+
+        if (number == null || number.dataVersion != dataVersion || !TextUtils.equals(number.localNumber, localNumber)) {
+          String e164Number = formatNumber(contacts.getString(2), localNumber);
+
+          if (insert == null) {
+            insert = db.compileStatement("INSERT OR REPLACE INTO " + CACHE_TABLE_NAME + " (" + DATA_ID + ", " +
+                                         DATA_VERSION + ", " + LOCAL_NUMBER + ", " + E164_NUMBER + ") VALUES (?, ?, ?, ?)");
+          }
+
+          insert.clearBindings();
+          insert.bindLong(1, dataId);
+          insert.bindLong(2, dataVersion);
+          if (localNumber != null) insert.bindString(3, localNumber);
+          if (e164Number  != null) insert.bindString(4, e164Number);
+          insert.execute();
+
+          number = new CachedNumber(dataVersion, localNumber, e164Number);
+          updated++;
+        }
+
+        if (number.e164Number != null) {
+          results.add(number.e164Number);
+        }
+      }
+
+      for (long removed : cached.keySet()) {
+        db.delete(CACHE_TABLE_NAME, DATA_ID + " = ?", new String[] {String.valueOf(removed)});
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      if (insert != null) insert.close();
+    }
+
+    Log.w("Directory", "Formatted " + updated + " changed contact numbers, dropped " + cached.size());
+    return results;
+  }
+
+  private static @Nullable String formatNumber(@Nullable String rawNumber, String localNumber) {
+    if (rawNumber == null) return null;
+
+    try {
+      return PhoneNumberCanonicalizer.canonicalize(rawNumber, localNumber);
+    } catch (InvalidNumberException e) {
+      Log.w("Directory", "Invalid number: " + rawNumber);
+      return null;
+    }
+  }
+
+  private Map<Long, CachedNumber> getCachedNumbers(SQLiteDatabase db) {
+    Map<Long, CachedNumber> numbers = new HashMap<>();
+    Cursor                  cursor  = null;
+
+    try {
+      cursor = db.query(CACHE_TABLE_NAME, new String[] {DATA_ID, DATA_VERSION, LOCAL_NUMBER, E164_NUMBER},
+                        null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        numbers.put(cursor.getLong(0), new CachedNumber(cursor.getLong(1), cursor.getString(2), cursor.getString(3)));
+      }
+
+      return numbers;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public List<String> getActiveNumbers() {
     final List<String> results = new ArrayList<>();
     Cursor cursor = null;
@@ -244,6 +385,7 @@ public class TextSecureDirectory {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(CREATE_TABLE);
+      db.execSQL(CREATE_CACHE_TABLE);
     }
 
     @Override
@@ -261,6 +403,37 @@ public class TextSecureDirectory {
       if (oldVersion < INTRODUCED_VOICE_COLUMN) {
         db.execSQL("ALTER TABLE directory ADD COLUMN voice INTEGER;");
       }
+
+      if (oldVersion < INTRODUCED_CONTACT_NUMBER_CACHE) {
+        db.execSQL("CREATE TABLE contact_number_cache (data_id INTEGER PRIMARY KEY, " +
+                   "data_version INTEGER, " +
+                   "local_number TEXT, " +
+                   "e164_number TEXT);");
+      }
+    }
+  }
+
+  private static class DirectoryEntry {
+    private final boolean registered;
+    private final String  relay;
+    private final boolean voice;
+
+    DirectoryEntry(boolean registered, String relay, boolean voice) {
+      this.registered = registered;
+      this.relay      = relay;
+      this.voice      = voice;
+    }
+  }
+
+  private static class CachedNumber {
+    private final long   dataVersion;
+    private final String localNumber;
+    private final String e164Number;
+
+    CachedNumber(long dataVersion, String localNumber, String e164Number) {
+      this.dataVersion = dataVersion;
+      this.localNumber = localNumber;
+      this.e164Number  = e164Number;
     }
   }
 
@@ -19,10 +19,11 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -39,14 +40,18 @@ import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
-import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.BoundedConcurrentCache;
 import org.whispersystems.libsignal.InvalidMessageException;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThreadDatabase extends Database {
 
@@ -77,15 +82,51 @@ public class ThreadDatabase extends Database {
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
     RECEIPT_COUNT + " INTEGER DEFAULT 0);";
 
+          static final String RECIPIENTS_TABLE_NAME = "thread_recipients";
+  private static final String THREAD_ID             = "thread_id";
+  private static final String RECIPIENT_ID          = "recipient_id";
+
+  public static final String CREATE_RECIPIENTS_TABLE = "CREATE TABLE " + RECIPIENTS_TABLE_NAME + " (" +
+    THREAD_ID + " INTEGER NOT NULL, " + RECIPIENT_ID + " INTEGER NOT NULL, " +
+    "PRIMARY KEY (" + THREAD_ID + ", " + RECIPIENT_ID + ") ON CONFLICT IGNORE);";
+
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
     "CREATE INDEX IF NOT EXISTS archived_index ON " + TABLE_NAME + " (" + ARCHIVED + ");",
+    "CREATE INDEX IF NOT EXISTS thread_recipients_recipient_index ON " + RECIPIENTS_TABLE_NAME + " (" + RECIPIENT_ID + ");",
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS thread_recipients_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+    "DELETE FROM " + RECIPIENTS_TABLE_NAME + " WHERE " + THREAD_ID + " = old." + ID + "; END;"
   };
 
+  private static final int THREAD_ID_CACHE_SIZE = 500;
+  private static final int SUMMARY_BATCH_SIZE   = 500;
+
+  private final ThreadLocal<Map<Long, Boolean>> snippetBatch = new ThreadLocal<>();
+
+  /**
+   * Canonical recipient list (sorted, space-joined ids) to thread id, for threads known to be
+   * committed.  Threads created inside a transaction are held back in {@link #uncommittedThreads}
+   * until the creating thread is seen outside of a transaction, so a rollback can't leave a
+   * cached id pointing at a thread row that never existed.
+   */
+  private final BoundedConcurrentCache<String, Long> threadIdCache      = new BoundedConcurrentCache<>(THREAD_ID_CACHE_SIZE);
+  private final ThreadLocal<Set<String>>             uncommittedThreads = new ThreadLocal<>();
+
+  private final AtomicInteger threadIdCacheGeneration = new AtomicInteger();
+
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
+  @Override
+  public void reset(SQLiteOpenHelper databaseHelper) {
+    super.reset(databaseHelper);
+    invalidateThreadIdCache();
+  }
+
   private long[] getRecipientIds(Recipients recipients) {
     Set<Long>       recipientSet  = new HashSet<>();
     List<Recipient> recipientList = recipients.getRecipientsList();
@@ -116,28 +157,104 @@ public class ThreadDatabase extends Database {
     return sb.toString();
   }
 
-  private long createThreadForRecipients(String recipients, int recipientCount, int distributionType) {
+  private long createThreadForRecipients(String recipients, long[] recipientIds, int distributionType) {
     ContentValues contentValues = new ContentValues(4);
     long date                   = System.currentTimeMillis();
 
     contentValues.put(DATE, date - date % 1000);
     contentValues.put(RECIPIENT_IDS, recipients);
 
-    if (recipientCount > 1)
+    if (recipientIds.length > 1)
       contentValues.put(TYPE, distributionType);
 
     contentValues.put(MESSAGE_COUNT, 0);
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    return db.insert(TABLE_NAME, null, contentValues);
+    db.beginTransaction();
+
+    try {
+      long threadId = db.insert(TABLE_NAME, null, contentValues);
+
+      if (threadId != -1) {
+        insertThreadRecipients(db, threadId, recipientIds);
+      }
+
+      db.setTransactionSuccessful();
+      return threadId;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static void insertThreadRecipients(SQLiteDatabase db, long threadId, long[] recipientIds) {
+    SQLiteStatement statement = db.compileStatement("INSERT INTO " + RECIPIENTS_TABLE_NAME + " (" +
+                                                    THREAD_ID + ", " + RECIPIENT_ID + ") VALUES (?, ?)");
+
+    try {
+      for (long recipientId : recipientIds) {
+        statement.bindLong(1, threadId);
+        statement.bindLong(2, recipientId);
+        statement.executeInsert();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Populates {@link #RECIPIENTS_TABLE_NAME} from the recipient list of every existing thread.
+   */
+  static void backfillRecipients(SQLiteDatabase db) {
+    Cursor cursor = null;
+    int    total  = 0;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ID, RECIPIENT_IDS}, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long   threadId     = cursor.getLong(0);
+        String recipientIds = cursor.getString(1);
+
+        if (TextUtils.isEmpty(recipientIds)) continue;
+
+        String[] tokens = recipientIds.trim().split(" +");
+        long[]   ids    = new long[tokens.length];
+
+        try {
+          for (int i=0;i<tokens.length;i++) {
+            ids[i] = Long.parseLong(tokens[i]);
+          }
+        } catch (NumberFormatException e) {
+          Log.w(TAG, e);
+          continue;
+        }
+
+        insertThreadRecipients(db, threadId, ids);
+        total++;
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    Log.w(TAG, "Backfilled recipients for " + total + " threads");
   }
 
   private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
                             long date, int status, int receiptCount, long type, boolean unarchive)
   {
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(DATE, date - date % 1000);
+    ContentValues contentValues = getSnippetValues(body, attachment, date, status, receiptCount, type, unarchive);
     contentValues.put(MESSAGE_COUNT, count);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  private ContentValues getSnippetValues(String body, @Nullable Uri attachment, long date,
+                                         int status, int receiptCount, long type, boolean unarchive)
+  {
+    ContentValues contentValues = new ContentValues(8);
+    contentValues.put(DATE, date - date % 1000);
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
     contentValues.put(SNIPPET_TYPE, type);
@@ -148,9 +265,7 @@ public class ThreadDatabase extends Database {
       contentValues.put(ARCHIVED, 0);
     }
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    return contentValues;
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -173,6 +288,7 @@ public class ThreadDatabase extends Database {
   private void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId + ""});
+    invalidateThreadIdCache();
     notifyConversationListListeners();
   }
 
@@ -187,12 +303,14 @@ public class ThreadDatabase extends Database {
     where = where.substring(0, where.length() - 4);
 
     db.delete(TABLE_NAME, where, null);
+    invalidateThreadIdCache();
     notifyConversationListListeners();
   }
 
   private void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    invalidateThreadIdCache();
     notifyConversationListListeners();
   }
 
@@ -294,35 +412,23 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * @return every thread with at least one recipient whose address matches the filter.
+   */
   public Cursor getFilteredConversationList(List<String> filter) {
     if (filter == null || filter.size() == 0)
       return null;
 
-    List<Long> rawRecipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
+    List<Long> recipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
 
-    if (rawRecipientIds == null || rawRecipientIds.size() == 0)
+    if (recipientIds == null || recipientIds.size() == 0)
       return null;
 
-    SQLiteDatabase   db                      = databaseHelper.getReadableDatabase();
-    List<List<Long>> partitionedRecipientIds = Util.partition(rawRecipientIds, 900);
-    List<Cursor>     cursors                 = new LinkedList<>();
-
-    for (List<Long> recipientIds : partitionedRecipientIds) {
-      String   selection      = RECIPIENT_IDS + " = ?";
-      String[] selectionArgs  = new String[recipientIds.size()];
-
-      for (int i=0;i<recipientIds.size()-1;i++)
-        selection += (" OR " + RECIPIENT_IDS + " = ?");
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    String         selection = ID + " IN (SELECT " + THREAD_ID + " FROM " + RECIPIENTS_TABLE_NAME +
+                               " WHERE " + RECIPIENT_ID + " IN (" + TextUtils.join(",", recipientIds) + "))";
+    Cursor         cursor    = db.query(TABLE_NAME, null, selection, null, null, null, DATE + " DESC");
 
-      int i= 0;
-      for (long id : recipientIds) {
-        selectionArgs[i++] = String.valueOf(id);
-      }
-
-      cursors.add(db.query(TABLE_NAME, null, selection, selectionArgs, null, null, DATE + " DESC"));
-    }
-
-    Cursor cursor = cursors.size() > 1 ? new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) : cursors.get(0);
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
@@ -408,24 +514,10 @@ public class ThreadDatabase extends Database {
   }
 
   public long getThreadIdIfExistsFor(Recipients recipients) {
-    long[] recipientIds    = getRecipientIds(recipients);
-    String recipientsList  = getRecipientsAsString(recipientIds);
-    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
-    String where           = RECIPIENT_IDS + " = ?";
-    String[] recipientsArg = new String[] {recipientsList};
-    Cursor cursor          = null;
-
-    try {
-      cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
+    long[] recipientIds   = getRecipientIds(recipients);
+    String recipientsList = getRecipientsAsString(recipientIds);
 
-      if (cursor != null && cursor.moveToFirst())
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-      else
-        return -1L;
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    return getThreadIdForRecipientsList(recipientsList);
   }
 
   public long getThreadIdFor(Recipients recipients) {
@@ -433,26 +525,84 @@ public class ThreadDatabase extends Database {
   }
 
   public long getThreadIdFor(Recipients recipients, int distributionType) {
-    long[] recipientIds    = getRecipientIds(recipients);
-    String recipientsList  = getRecipientsAsString(recipientIds);
-    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
-    String where           = RECIPIENT_IDS + " = ?";
-    String[] recipientsArg = new String[] {recipientsList};
-    Cursor cursor          = null;
+    long[] recipientIds   = getRecipientIds(recipients);
+    String recipientsList = getRecipientsAsString(recipientIds);
+    long   threadId       = getThreadIdForRecipientsList(recipientsList);
+
+    if (threadId != -1) {
+      return threadId;
+    }
+
+    threadId = createThreadForRecipients(recipientsList, recipientIds, distributionType);
+
+    if (threadId != -1) {
+      cacheThreadId(recipientsList, threadId, threadIdCacheGeneration.get(), true);
+    }
+
+    return threadId;
+  }
+
+  private long getThreadIdForRecipientsList(String recipientsList) {
+    Long cached = threadIdCache.get(recipientsList);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    int            generation = threadIdCacheGeneration.get();
+    SQLiteDatabase db         = databaseHelper.getReadableDatabase();
+    Cursor         cursor     = null;
 
     try {
-      cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
+      cursor = db.query(TABLE_NAME, new String[]{ID}, RECIPIENT_IDS + " = ?", new String[] {recipientsList},
+                        null, null, null);
 
-      if (cursor != null && cursor.moveToFirst())
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-      else
-        return createThreadForRecipients(recipientsList, recipientIds.length, distributionType);
+      if (cursor != null && cursor.moveToFirst()) {
+        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        cacheThreadId(recipientsList, threadId, generation, false);
+        return threadId;
+      } else {
+        return -1L;
+      }
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
+  private void cacheThreadId(String recipientsList, long threadId, int generation, boolean created) {
+    Set<String> uncommitted = uncommittedThreads.get();
+
+    if (databaseHelper.getWritableDatabase().inTransaction()) {
+      if (created) {
+        if (uncommitted == null) {
+          uncommitted = new HashSet<>();
+          uncommittedThreads.set(uncommitted);
+        }
+
+        uncommitted.add(recipientsList);
+        return;
+      }
+
+      if (uncommitted != null && uncommitted.contains(recipientsList)) {
+        return;
+      }
+    } else if (uncommitted != null) {
+      uncommittedThreads.remove();
+    }
+
+    threadIdCache.put(recipientsList, threadId);
+
+    if (generation != threadIdCacheGeneration.get()) {
+      threadIdCache.remove(recipientsList);
+    }
+  }
+
+  private void invalidateThreadIdCache() {
+    threadIdCacheGeneration.incrementAndGet();
+    threadIdCache.clear();
+  }
+
   public @Nullable Recipients getRecipientsForThreadId(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -517,6 +667,230 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Applies a single inserted message to the thread summary: the message count is bumped in
+   * place and the snippet is re-read from the newest message only, rather than recounting the
+   * whole conversation the way {@link #update(long, boolean)} does.
+   */
+  public void onMessageInserted(long threadId, boolean unarchive) {
+    incrementMessageCount(threadId, 1);
+    refreshSnippet(threadId, unarchive);
+  }
+
+  /**
+   * Counts an inserted message without touching the snippet, for rows (like pending MMS
+   * notifications) that aren't displayed in the conversation list until later.
+   */
+  public void onMessageInsertedSilently(long threadId) {
+    incrementMessageCount(threadId, 1);
+  }
+
+  /**
+   * Refreshes the snippet after a message's type, status, body, or receipt count changed.
+   * Updates to anything other than the newest message in the thread leave the row alone.
+   */
+  public void onMessageUpdated(long threadId, @NonNull String transport, long messageId, boolean unarchive) {
+    if (DatabaseFactory.getMessageIndexDatabase(context).isNewestInThread(threadId, transport, messageId)) {
+      refreshSnippet(threadId, unarchive);
+    }
+  }
+
+  /**
+   * Starts collecting snippet refreshes on the calling thread instead of applying them, so that
+   * a run of inserts into the same conversation re-reads its newest message only once.  Message
+   * counts are still applied immediately.
+   */
+  public void beginSnippetBatch() {
+    snippetBatch.set(new LinkedHashMap<Long, Boolean>());
+  }
+
+  /**
+   * @param apply whether to refresh every thread touched since {@link #beginSnippetBatch()};
+   *              false simply discards the batch, e.g. after the enclosing transaction failed.
+   */
+  public void endSnippetBatch(boolean apply) {
+    Map<Long, Boolean> batch = snippetBatch.get();
+    snippetBatch.remove();
+
+    if (apply && batch != null) {
+      for (Map.Entry<Long, Boolean> entry : batch.entrySet()) {
+        updateSnippetFromNewest(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the summaries of many threads after a bulk insert.  Message counts are recomputed
+   * for all of them in a single UPDATE, and their newest messages are located with one grouped
+   * query over the message index, so that only threads whose newest message is an MMS need the
+   * per-thread snippet lookup that {@link #update(long, boolean)} does.
+   */
+  public void rebuildSummaries(@NonNull Set<Long> threadIds, boolean unarchive) {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    List<Long>     remaining = new LinkedList<>(threadIds);
+
+    db.beginTransaction();
+
+    try {
+      while (!remaining.isEmpty()) {
+        List<Long> batch = remaining.subList(0, Math.min(SUMMARY_BATCH_SIZE, remaining.size()));
+        rebuildSummariesBatch(db, batch, unarchive);
+        batch.clear();
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListListeners();
+  }
+
+  private void rebuildSummariesBatch(SQLiteDatabase db, List<Long> batch, boolean unarchive) {
+    String          threadIds = TextUtils.join(",", batch);
+    Set<Long>       empty     = new HashSet<>(batch);
+    Map<Long, Long> smsNewest = new HashMap<>();
+    Cursor          cursor    = null;
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " +
+               "(SELECT COUNT(*) FROM " + MessageIndexDatabase.TABLE_NAME +
+               " WHERE " + MessageIndexDatabase.TABLE_NAME + "." + MessageIndexDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID + ")" +
+               " WHERE " + ID + " IN (" + threadIds + ")");
+
+    try {
+      // A bare column next to MAX() only comes from the max row on SQLite 3.7.11 and up, and
+      // even there ties are arbitrary, so each thread's newest row is picked explicitly.
+      cursor = db.rawQuery("SELECT " + MessageIndexDatabase.THREAD_ID + ", " + MessageIndexDatabase.TRANSPORT + ", " +
+                           MessageIndexDatabase.MESSAGE_ID +
+                           " FROM " + MessageIndexDatabase.TABLE_NAME +
+                           " WHERE " + MessageIndexDatabase.ID + " IN (" +
+                           "SELECT (SELECT newest." + MessageIndexDatabase.ID +
+                           " FROM " + MessageIndexDatabase.TABLE_NAME + " AS newest" +
+                           " WHERE newest." + MessageIndexDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID +
+                           " ORDER BY " + MessageIndexDatabase.NEWEST_FIRST_ORDER + " LIMIT 1)" +
+                           " FROM " + TABLE_NAME + " WHERE " + ID + " IN (" + threadIds + "))", null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long threadId = cursor.getLong(0);
+        empty.remove(threadId);
+
+        if (MmsSmsDatabase.SMS_TRANSPORT.equals(cursor.getString(1))) {
+          smsNewest.put(cursor.getLong(2), threadId);
+        } else {
+          updateSnippetFromNewest(threadId, unarchive);
+        }
+      }
+
+      for (long threadId : empty) {
+        deleteThread(threadId);
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    if (smsNewest.isEmpty()) return;
+
+    SmsDatabase        smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    SmsDatabase.Reader reader      = null;
+
+    try {
+      reader = smsDatabase.readerFor(smsDatabase.getMessages(smsNewest.keySet()));
+      MessageRecord record;
+
+      while ((record = reader.getNext()) != null) {
+        ContentValues contentValues = getSnippetValues(record.getBody().getBody(), null,
+                                                       record.getTimestamp(), record.getDeliveryStatus(),
+                                                       record.getReceiptCount(), record.getType(), unarchive);
+
+        db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(smsNewest.get(record.getId()))});
+      }
+    } finally {
+      if (reader != null) reader.close();
+    }
+  }
+
+  private void refreshSnippet(long threadId, boolean unarchive) {
+    Map<Long, Boolean> batch = snippetBatch.get();
+
+    if (batch == null) {
+      updateSnippetFromNewest(threadId, unarchive);
+    } else {
+      Boolean pending = batch.get(threadId);
+      batch.put(threadId, unarchive || (pending != null && pending));
+    }
+  }
+
+  /**
+   * @param wasSnippet whether the deleted message was the newest in the thread, which must be
+   *                   determined before the row is removed.
+   * @return true if the thread was deleted because it no longer contains any messages.
+   */
+  public boolean onMessageDeleted(long threadId, boolean wasSnippet) {
+    incrementMessageCount(threadId, -1);
+
+    if (getMessageCount(threadId) <= 0) {
+      return update(threadId, false);
+    }
+
+    if (wasSnippet) {
+      return updateSnippetFromNewest(threadId, false);
+    }
+
+    notifyConversationListListeners();
+    return false;
+  }
+
+  private void incrementMessageCount(long threadId, int delta) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + ? WHERE " + ID + " = ?",
+               new Object[] {delta, threadId});
+  }
+
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE, new String[] {String.valueOf(threadId)},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+
+      return 0;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  private boolean updateSnippetFromNewest(long threadId, boolean unarchive) {
+    MmsSmsDatabase        mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader         = null;
+
+    try {
+      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
+      MessageRecord record;
+
+      if ((record = reader.getNext()) != null) {
+        ContentValues contentValues = getSnippetValues(record.getBody().getBody(), getAttachmentUriFor(record),
+                                                       record.getTimestamp(), record.getDeliveryStatus(),
+                                                       record.getReceiptCount(), record.getType(), unarchive);
+
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(threadId)});
+        notifyConversationListListeners();
+        return false;
+      } else {
+        deleteThread(threadId);
+        return true;
+      }
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+  }
+
   private @Nullable Uri getAttachmentUriFor(MessageRecord record) {
     if (!record.isMms() || record.isMmsNotification() || record.isGroupAction()) return null;
 
@@ -1,18 +1,27 @@
 package org.thoughtcrime.securesms.database;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.util.Base64;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 public class XmlBackup {
 
@@ -28,13 +37,42 @@ public class XmlBackup {
   private static final String TOA            = "toa";
   private static final String SC_TOA         = "sc_toa";
   private static final String LOCKED         = "locked";
+  private static final String MSG_BOX        = "msg_box";
+  private static final String DATE_SENT      = "date_sent";
+  private static final String M_TYPE         = "m_type";
+  private static final String CT_T           = "ct_t";
+  private static final String TEXT_ONLY      = "text_only";
+  private static final String SUB            = "sub";
+  private static final String SEQ            = "seq";
+  private static final String CT             = "ct";
+  private static final String NAME           = "name";
+  private static final String CHSET          = "chset";
+  private static final String CL             = "cl";
+  private static final String TEXT           = "text";
+  private static final String DATA           = "data";
+  private static final String CHARSET        = "charset";
+
+  private static final int GZIP_MAGIC = 0x8b1f;
 
   private final XmlPullParser parser;
 
-  public XmlBackup(String path) throws XmlPullParserException, FileNotFoundException {
+  public XmlBackup(String path) throws XmlPullParserException, IOException {
     this.parser = XmlPullParserFactory.newInstance().newPullParser();
     parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-    parser.setInput(new FileInputStream(path), null);
+    parser.setInput(openBackup(path), null);
+  }
+
+  /**
+   * Backups that were gzipped after export, e.g. to move them off the device, are read transparently.
+   */
+  private static InputStream openBackup(String path) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(path));
+
+    in.mark(2);
+    int magic = in.read() | (in.read() << 8);
+    in.reset();
+
+    return magic == GZIP_MAGIC ? new GZIPInputStream(in) : in;
   }
 
   public XmlBackupItem getNext() throws IOException, XmlPullParserException {
@@ -141,6 +179,92 @@ public class XmlBackup {
     }
   }
 
+  /**
+   * A retrieved or sent MMS, in the layout other SMS backup tools use for <code>mms</code>
+   * elements.
+   */
+  public static class XmlBackupMmsItem {
+    private final String              address;
+    private final long                date;
+    private final long                dateSent;
+    private final int                 messageBox;
+    private final int                 read;
+    private final String              body;
+    private final List<XmlBackupPart> parts = new LinkedList<>();
+
+    public XmlBackupMmsItem(String address, long date, long dateSent, int messageBox, int read, String body) {
+      this.address    = address;
+      this.date       = date;
+      this.dateSent   = dateSent;
+      this.messageBox = messageBox;
+      this.read       = read;
+      this.body       = body;
+    }
+
+    public void addPart(@NonNull XmlBackupPart part) {
+      parts.add(part);
+    }
+
+    public String getAddress() {
+      return address;
+    }
+
+    public long getDate() {
+      return date;
+    }
+
+    public long getDateSent() {
+      return dateSent;
+    }
+
+    public int getMessageBox() {
+      return messageBox;
+    }
+
+    public int getRead() {
+      return read;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    public List<XmlBackupPart> getParts() {
+      return parts;
+    }
+  }
+
+  public static class XmlBackupPart {
+    private final AttachmentId attachmentId;
+    private final String       contentType;
+    private final String       name;
+
+    public XmlBackupPart(@NonNull AttachmentId attachmentId, @NonNull String contentType, @Nullable String name) {
+      this.attachmentId = attachmentId;
+      this.contentType  = contentType;
+      this.name         = name;
+    }
+
+    public AttachmentId getAttachmentId() {
+      return attachmentId;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  public interface PartSource {
+    /**
+     * @return the part's plaintext, or null if it isn't available
+     */
+    @Nullable InputStream open(@NonNull XmlBackupPart part) throws IOException;
+  }
+
   public static class Writer {
 
     private static final String  XML_HEADER      = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\" ?>";
@@ -148,16 +272,37 @@ public class XmlBackup {
     private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\">";
     private static final String  CLOSE_TAG_SMSES = "</smses>";
     private static final String  OPEN_TAG_SMS    = " <sms ";
+    private static final String  OPEN_TAG_MMS    = " <mms ";
+    private static final String  CLOSE_TAG_MMS   = " </mms>";
+    private static final String  OPEN_TAG_PARTS  = "  <parts>";
+    private static final String  CLOSE_TAG_PARTS = "  </parts>";
+    private static final String  OPEN_TAG_PART   = "   <part ";
+    private static final String  OPEN_TAG_ADDRS  = "  <addrs>";
+    private static final String  CLOSE_TAG_ADDRS = "  </addrs>";
+    private static final String  OPEN_TAG_ADDR   = "   <addr ";
+    private static final String  CLOSE_TAG       = ">";
     private static final String  CLOSE_EMPTYTAG  = "/>";
     private static final String  OPEN_ATTRIBUTE  = "=\"";
     private static final String  CLOSE_ATTRIBUTE = "\" ";
 
     private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
 
+    private static final String  MULTIPART_RELATED    = "application/vnd.wap.multipart.related";
+    private static final int     M_TYPE_SEND_REQ      = 128;
+    private static final int     M_TYPE_RETRIEVE_CONF = 132;
+    private static final int     ADDRESS_TYPE_FROM    = 137;
+    private static final int     ADDRESS_TYPE_TO      = 151;
+    private static final int     UTF_8                = 106;
+    private static final int     BASE64_CHUNK         = 3 * 4096;
+
     private final BufferedWriter bufferedWriter;
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      this(new FileWriter(path, false), count);
+    }
+
+    public Writer(java.io.Writer writer, int count) throws IOException {
+      bufferedWriter = new BufferedWriter(writer);
 
       bufferedWriter.write(XML_HEADER);
       bufferedWriter.newLine();
@@ -188,6 +333,124 @@ public class XmlBackup {
       bufferedWriter.write(stringBuilder.toString());
     }
 
+    /**
+     * Writes an MMS and its parts.  Part data is base64 encoded a chunk at a time as it's read
+     * from <code>partSource</code>, so large attachments are never held in memory.
+     */
+    public void writeItem(XmlBackupMmsItem item, @NonNull PartSource partSource) throws IOException {
+      boolean       outgoing      = item.getMessageBox() != 1;
+      StringBuilder stringBuilder = new StringBuilder();
+
+      stringBuilder.append(OPEN_TAG_MMS);
+      appendAttribute(stringBuilder, DATE, item.getDate());
+      appendAttribute(stringBuilder, DATE_SENT, item.getDateSent());
+      appendAttribute(stringBuilder, MSG_BOX, item.getMessageBox());
+      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
+      appendAttribute(stringBuilder, READ, item.getRead());
+      appendAttribute(stringBuilder, M_TYPE, outgoing ? M_TYPE_SEND_REQ : M_TYPE_RETRIEVE_CONF);
+      appendAttribute(stringBuilder, CT_T, MULTIPART_RELATED);
+      appendAttribute(stringBuilder, TEXT_ONLY, item.getParts().isEmpty() ? 1 : 0);
+      appendAttribute(stringBuilder, SUB, "null");
+      appendAttribute(stringBuilder, LOCKED, 0);
+      stringBuilder.append(CLOSE_TAG);
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(stringBuilder.toString());
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_PARTS);
+
+      int sequence = 0;
+
+      if (!TextUtils.isEmpty(item.getBody())) {
+        stringBuilder.setLength(0);
+        stringBuilder.append(OPEN_TAG_PART);
+        appendAttribute(stringBuilder, SEQ, sequence++);
+        appendAttribute(stringBuilder, CT, "text/plain");
+        appendAttribute(stringBuilder, CHSET, UTF_8);
+        appendAttribute(stringBuilder, CL, "text.txt");
+        appendAttribute(stringBuilder, TEXT, escapeXML(item.getBody()));
+        stringBuilder.append(CLOSE_EMPTYTAG);
+
+        bufferedWriter.newLine();
+        bufferedWriter.write(stringBuilder.toString());
+      }
+
+      for (XmlBackupPart part : item.getParts()) {
+        String name = TextUtils.isEmpty(part.getName()) ? "null" : escapeXML(part.getName());
+
+        stringBuilder.setLength(0);
+        stringBuilder.append(OPEN_TAG_PART);
+        appendAttribute(stringBuilder, SEQ, sequence++);
+        appendAttribute(stringBuilder, CT, escapeXML(part.getContentType()));
+        appendAttribute(stringBuilder, NAME, name);
+        appendAttribute(stringBuilder, CL, name);
+
+        bufferedWriter.newLine();
+        bufferedWriter.write(stringBuilder.toString());
+
+        InputStream in = partSource.open(part);
+
+        if (in != null) {
+          try {
+            bufferedWriter.write(DATA);
+            bufferedWriter.write(OPEN_ATTRIBUTE);
+            writeBase64(in);
+            bufferedWriter.write(CLOSE_ATTRIBUTE);
+          } finally {
+            in.close();
+          }
+        }
+
+        bufferedWriter.write(CLOSE_EMPTYTAG);
+      }
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_PARTS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_ADDRS);
+
+      stringBuilder.setLength(0);
+      stringBuilder.append(OPEN_TAG_ADDR);
+      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
+      appendAttribute(stringBuilder, TYPE, outgoing ? ADDRESS_TYPE_TO : ADDRESS_TYPE_FROM);
+      appendAttribute(stringBuilder, CHARSET, UTF_8);
+      stringBuilder.append(CLOSE_EMPTYTAG);
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(stringBuilder.toString());
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_ADDRS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_MMS);
+    }
+
+    /**
+     * Encodes whole three byte groups at a time, so the chunks join up without padding in between.
+     */
+    private void writeBase64(InputStream in) throws IOException {
+      byte[] buffer = new byte[BASE64_CHUNK];
+      int    length;
+
+      while ((length = readFully(in, buffer)) > 0) {
+        bufferedWriter.write(Base64.encodeBytes(buffer, 0, length));
+      }
+    }
+
+    private int readFully(InputStream in, byte[] buffer) throws IOException {
+      int offset = 0;
+      int read;
+
+      while (offset < buffer.length && (read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+        offset += read;
+      }
+
+      return offset;
+    }
+
+    public void flush() throws IOException {
+      bufferedWriter.flush();
+    }
+
     private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
       stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
     }
@@ -2,26 +2,87 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.Anchor;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+/**
+ * Loads a conversation as a window that grows one page at a time.  The first load seeks the
+ * newest page, {@link #loadOlder()} seeks one more page behind the oldest loaded message, and
+ * content changes refresh only the range that is already loaded.  Each newly loaded page has
+ * its bodies queued for background decryption, so that binding rows doesn't decrypt them.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long threadId;
-  private       long limit;
+  private final MasterSecret masterSecret;
+  private final long         threadId;
+  private final int          pageSize;
 
-  public ConversationLoader(Context context, long threadId, long limit) {
+  private volatile @Nullable Anchor  oldest;
+  private volatile           boolean hasOlder;
+  private volatile           boolean loadOlderPending;
+
+  public ConversationLoader(Context context, @NonNull MasterSecret masterSecret, long threadId, int pageSize) {
     super(context);
-    this.threadId = threadId;
-    this.limit  = limit;
+    this.masterSecret = masterSecret;
+    this.threadId     = threadId;
+    this.pageSize     = pageSize;
+  }
+
+  public boolean hasOlder() {
+    return hasOlder;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public void loadOlder() {
+    if (!hasOlder || loadOlderPending) return;
+
+    loadOlderPending = true;
+    onContentChanged();
   }
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    Anchor         anchor   = oldest;
+
+    if (anchor == null) {
+      Cursor page = database.getConversationBefore(threadId, null, pageSize);
+      onPageLoaded(database, page, null);
+      return page;
+    }
+
+    Cursor window = database.getConversationWindow(threadId, anchor);
+
+    if (!loadOlderPending) {
+      return window;
+    }
+
+    Cursor page = database.getConversationBefore(threadId, anchor, pageSize);
+    onPageLoaded(database, page, anchor);
+    loadOlderPending = false;
+
+    return new MergeCursor(new Cursor[] {window, page});
+  }
+
+  private void onPageLoaded(MmsSmsDatabase database, Cursor page, @Nullable Anchor previous) {
+    int count = page != null ? page.getCount() : 0;
+
+    if (count > 0) {
+      database.prefetchBodies(masterSecret, page);
+    }
+
+    hasOlder = count >= pageSize;
+
+    if (count > 0 && page.moveToLast()) {
+      oldest = Anchor.fromCursor(page);
+      page.moveToPosition(-1);
+    } else {
+      oldest = previous;
+    }
   }
 }
@@ -5,7 +5,6 @@ import android.content.Context;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.DeviceListFragment;
 import org.thoughtcrime.securesms.crypto.storage.SignalProtocolStoreImpl;
-import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.CleanPreKeysJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.DeliveryReceiptJob;
@@ -38,7 +37,6 @@ import dagger.Provides;
                                      PushGroupSendJob.class,
                                      PushTextSendJob.class,
                                      PushMediaSendJob.class,
-                                     AttachmentDownloadJob.class,
                                      RefreshPreKeysJob.class,
                                      MessageRetrievalService.class,
                                      PushNotificationReceiveJob.class,
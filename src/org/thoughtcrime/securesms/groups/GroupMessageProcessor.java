@@ -9,7 +9,6 @@ import android.util.Pair;
 
 import com.google.protobuf.ByteString;
 
-import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.crypto.MasterSecretUnion;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptingSmsDatabase;
@@ -17,13 +16,13 @@ import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.jobs.AvatarDownloadJob;
 import org.thoughtcrime.securesms.mms.OutgoingGroupMediaMessage;
-import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.sms.IncomingGroupMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.whispersystems.jobqueue.Job;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
@@ -45,11 +44,19 @@ public class GroupMessageProcessor {
 
   private static final String TAG = GroupMessageProcessor.class.getSimpleName();
 
+  /**
+   * Stores a group message and applies the group change it carries.  Jobs the message calls
+   * for are added to {@code jobs} rather than started, and no notification is shown, so that a
+   * caller storing it inside a transaction can issue both once that transaction commits.
+   *
+   * @return the thread the message was stored in, or null if it was ignored.
+   */
   public static @Nullable Long process(@NonNull Context context,
                                        @NonNull MasterSecretUnion masterSecret,
                                        @NonNull SignalServiceEnvelope envelope,
                                        @NonNull SignalServiceDataMessage message,
-                                       boolean outgoing)
+                                       boolean outgoing,
+                                       @NonNull List<Job> jobs)
   {
     if (!message.getGroupInfo().isPresent() || message.getGroupInfo().get().getGroupId() == null) {
       Log.w(TAG, "Received group message with no id! Ignoring...");
@@ -62,11 +69,11 @@ public class GroupMessageProcessor {
     GroupRecord        record   = database.getGroup(id);
 
     if (record != null && group.getType() == SignalServiceGroup.Type.UPDATE) {
-      return handleGroupUpdate(context, masterSecret, envelope, group, record, outgoing);
+      return handleGroupUpdate(context, masterSecret, envelope, group, record, outgoing, jobs);
     } else if (record == null && group.getType() == SignalServiceGroup.Type.UPDATE) {
-      return handleGroupCreate(context, masterSecret, envelope, group, outgoing);
+      return handleGroupCreate(context, masterSecret, envelope, group, outgoing, jobs);
     } else if (record != null && group.getType() == SignalServiceGroup.Type.QUIT) {
-      return handleGroupLeave(context, masterSecret, envelope, group, record, outgoing);
+      return handleGroupLeave(context, masterSecret, envelope, group, record, outgoing, jobs);
     } else {
       Log.w(TAG, "Received unknown type, ignoring...");
       return null;
@@ -77,7 +84,8 @@ public class GroupMessageProcessor {
                                                   @NonNull MasterSecretUnion masterSecret,
                                                   @NonNull SignalServiceEnvelope envelope,
                                                   @NonNull SignalServiceGroup group,
-                                                  boolean outgoing)
+                                                  boolean outgoing,
+                                                  @NonNull List<Job> jobs)
   {
     GroupDatabase        database = DatabaseFactory.getGroupDatabase(context);
     byte[]               id       = group.getGroupId();
@@ -90,7 +98,7 @@ public class GroupMessageProcessor {
                     avatar != null && avatar.isPointer() ? avatar.asPointer() : null,
                     envelope.getRelay());
 
-    return storeMessage(context, masterSecret, envelope, group, builder.build(), outgoing);
+    return storeMessage(context, masterSecret, envelope, group, builder.build(), outgoing, jobs);
   }
 
   private static @Nullable Long handleGroupUpdate(@NonNull Context context,
@@ -98,7 +106,8 @@ public class GroupMessageProcessor {
                                                   @NonNull SignalServiceEnvelope envelope,
                                                   @NonNull SignalServiceGroup group,
                                                   @NonNull GroupRecord groupRecord,
-                                                  boolean outgoing)
+                                                  boolean outgoing,
+                                                  @NonNull List<Job> jobs)
   {
 
     GroupDatabase database = DatabaseFactory.getGroupDatabase(context);
@@ -141,7 +150,7 @@ public class GroupMessageProcessor {
 
     if (!groupRecord.isActive()) database.setActive(id, true);
 
-    return storeMessage(context, masterSecret, envelope, group, builder.build(), outgoing);
+    return storeMessage(context, masterSecret, envelope, group, builder.build(), outgoing, jobs);
   }
 
   private static Long handleGroupLeave(@NonNull Context               context,
@@ -149,7 +158,8 @@ public class GroupMessageProcessor {
                                        @NonNull SignalServiceEnvelope envelope,
                                        @NonNull SignalServiceGroup    group,
                                        @NonNull GroupRecord           record,
-                                       boolean  outgoing)
+                                       boolean  outgoing,
+                                       @NonNull List<Job>             jobs)
   {
     GroupDatabase database = DatabaseFactory.getGroupDatabase(context);
     byte[]        id       = group.getGroupId();
@@ -162,7 +172,7 @@ public class GroupMessageProcessor {
       database.remove(id, envelope.getSource());
       if (outgoing) database.setActive(id, false);
 
-      return storeMessage(context, masterSecret, envelope, group, builder.build(), outgoing);
+      return storeMessage(context, masterSecret, envelope, group, builder.build(), outgoing, jobs);
     }
 
     return null;
@@ -174,11 +184,11 @@ public class GroupMessageProcessor {
                                              @NonNull SignalServiceEnvelope envelope,
                                              @NonNull SignalServiceGroup group,
                                              @NonNull GroupContext storage,
-                                             boolean  outgoing)
+                                             boolean  outgoing,
+                                             @NonNull List<Job> jobs)
   {
     if (group.getAvatar().isPresent()) {
-      ApplicationContext.getInstance(context).getJobManager()
-                        .add(new AvatarDownloadJob(context, group.getGroupId()));
+      jobs.add(new AvatarDownloadJob(context, group.getGroupId()));
     }
 
     try {
@@ -199,7 +209,6 @@ public class GroupMessageProcessor {
         IncomingGroupMessage  groupMessage = new IncomingGroupMessage(incoming, storage, body);
 
         Pair<Long, Long> messageAndThreadId = smsDatabase.insertMessageInbox(masterSecret, groupMessage);
-        MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
 
         return messageAndThreadId.second;
       }
@@ -1,52 +1,52 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.MediaTransferScheduler;
 import org.thoughtcrime.securesms.crypto.AsymmetricMasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
 import org.thoughtcrime.securesms.crypto.MediaKey;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
-import org.thoughtcrime.securesms.dependencies.InjectableType;
-import org.thoughtcrime.securesms.events.PartProgressEvent;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirement;
-import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.libsignal.InvalidMessageException;
-import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
-import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
-import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
-import javax.inject.Inject;
-
-import de.greenrobot.event.EventBus;
 import ws.com.google.android.mms.MmsException;
 
-public class AttachmentDownloadJob extends MasterSecretJob implements InjectableType {
+/**
+ * Validates a pending attachment and hands it to the {@link MediaTransferScheduler}, which runs
+ * the transfer itself.  The scheduler adds a new one of these, with a higher resume count, when
+ * it gives up on a transfer that may still succeed later.
+ */
+public class AttachmentDownloadJob extends MasterSecretJob {
   private static final long   serialVersionUID = 1L;
   private static final String TAG              = AttachmentDownloadJob.class.getSimpleName();
 
-  @Inject transient SignalServiceMessageReceiver messageReceiver;
-
   private final long messageId;
   private final long partRowId;
   private final long partUniqueId;
+  private final int  resumeCount;
 
   public AttachmentDownloadJob(Context context, long messageId, AttachmentId attachmentId) {
+    this(context, messageId, attachmentId, 0);
+  }
+
+  public AttachmentDownloadJob(Context context, long messageId, AttachmentId attachmentId, int resumeCount) {
     super(context, JobParameters.newBuilder()
                                 .withGroupId(AttachmentDownloadJob.class.getCanonicalName())
                                 .withRequirement(new MasterSecretRequirement(context))
@@ -58,6 +58,12 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     this.messageId    = messageId;
     this.partRowId    = attachmentId.getRowId();
     this.partUniqueId = attachmentId.getUniqueId();
+    this.resumeCount  = resumeCount;
+  }
+
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MEDIA;
   }
 
   @Override
@@ -66,8 +72,8 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
 
   @Override
   public void onRun(MasterSecret masterSecret) throws IOException {
-    final AttachmentId attachmentId = new AttachmentId(partRowId, partUniqueId);
-    final Attachment   attachment   = DatabaseFactory.getAttachmentDatabase(context).getAttachment(attachmentId);
+    final AttachmentId       attachmentId = new AttachmentId(partRowId, partUniqueId);
+    final DatabaseAttachment attachment   = DatabaseFactory.getAttachmentDatabase(context).getAttachment(attachmentId);
 
     if (attachment == null) {
       Log.w(TAG, "attachment no longer exists.");
@@ -79,10 +85,15 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
       return;
     }
 
-    Log.w(TAG, "Downloading push part " + attachmentId);
+    Log.w(TAG, "Downloading push part " + attachmentId + " (resume " + resumeCount + ")");
 
-    retrieveAttachment(masterSecret, messageId, attachmentId, attachment);
-    MessageNotifier.updateNotification(context, masterSecret);
+    try {
+      SignalServiceAttachmentPointer pointer = createAttachmentPointer(masterSecret, attachment);
+      MediaTransferScheduler.getInstance(context).enqueue(masterSecret, messageId, attachment, pointer, resumeCount);
+    } catch (InvalidPartException e) {
+      Log.w(TAG, e);
+      markFailed(messageId, attachmentId);
+    }
   }
 
   @Override
@@ -96,37 +107,6 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     return (exception instanceof PushNetworkException);
   }
 
-  private void retrieveAttachment(MasterSecret masterSecret,
-                                  long messageId,
-                                  final AttachmentId attachmentId,
-                                  final Attachment attachment)
-      throws IOException
-  {
-
-    AttachmentDatabase database       = DatabaseFactory.getAttachmentDatabase(context);
-    File               attachmentFile = null;
-
-    try {
-      attachmentFile = createTempFile();
-
-      SignalServiceAttachmentPointer pointer = createAttachmentPointer(masterSecret, attachment);
-      InputStream                    stream  = messageReceiver.retrieveAttachment(pointer, attachmentFile, new ProgressListener() {
-        @Override
-        public void onAttachmentProgress(long total, long progress) {
-          EventBus.getDefault().postSticky(new PartProgressEvent(attachment, total, progress));
-        }
-      });
-
-      database.insertAttachmentsForPlaceholder(masterSecret, messageId, attachmentId, stream);
-    } catch (InvalidPartException | NonSuccessfulResponseCodeException | InvalidMessageException | MmsException e) {
-      Log.w(TAG, e);
-      markFailed(messageId, attachmentId);
-    } finally {
-      if (attachmentFile != null)
-        attachmentFile.delete();
-    }
-  }
-
   @VisibleForTesting
   SignalServiceAttachmentPointer createAttachmentPointer(MasterSecret masterSecret, Attachment attachment)
       throws InvalidPartException
@@ -156,17 +136,6 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     }
   }
 
-  private File createTempFile() throws InvalidPartException {
-    try {
-      File file = File.createTempFile("push-attachment", "tmp", context.getCacheDir());
-      file.deleteOnExit();
-
-      return file;
-    } catch (IOException e) {
-      throw new InvalidPartException(e);
-    }
-  }
-
   private void markFailed(long messageId, AttachmentId attachmentId) {
     try {
       AttachmentDatabase database = DatabaseFactory.getAttachmentDatabase(context);
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.BuildConfig;
@@ -26,6 +27,8 @@ import java.util.concurrent.ExecutionException;
 
 public class AvatarDownloadJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -9054551882210485308L;
+
   private static final String TAG = AvatarDownloadJob.class.getSimpleName();
 
   private final byte[] groupId;
@@ -40,6 +43,11 @@ public class AvatarDownloadJob extends MasterSecretJob {
     this.groupId = groupId;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MEDIA;
+  }
+
   @Override
   public void onAdded() {}
 
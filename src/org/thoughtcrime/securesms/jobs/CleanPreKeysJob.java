@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
@@ -43,6 +44,11 @@ public class CleanPreKeysJob extends MasterSecretJob implements InjectableType {
                                 .create());
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
   @Override
   public void onAdded() {
 
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 
 import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
@@ -8,8 +9,14 @@ import org.whispersystems.jobqueue.dependencies.ContextDependent;
 
 public abstract class ContextJob extends Job implements ContextDependent {
 
+  // Job classes without an explicit serialVersionUID are pinned to the value computed for
+  // them before they declared one, so that jobs already persisted keep deserializing.
+  private static final long serialVersionUID = 9116330013089607227L;
+
   protected transient Context context;
 
+  private transient long queuedAt;
+
   protected ContextJob(Context context, JobParameters parameters) {
     super(parameters);
     this.context = context;
@@ -22,4 +29,36 @@ public abstract class ContextJob extends Job implements ContextDependent {
   protected Context getContext() {
     return context;
   }
+
+  /**
+   * @return the lane this job runs in.  Jobs that share a group id must share a lane, or their
+   *         ordering is lost.
+   */
+  public @NonNull JobLane getLane() {
+    return JobLane.MESSAGING;
+  }
+
+  void onQueued() {
+    queuedAt = System.currentTimeMillis();
+    getLane().getMetrics().onQueued();
+  }
+
+  @Override
+  public final void onRun() throws Exception {
+    JobLane.Metrics metrics = getLane().getMetrics();
+    long            start   = System.currentTimeMillis();
+    boolean         success = false;
+
+    metrics.onStarted(queuedAt > 0 ? start - queuedAt : -1);
+    queuedAt = 0;
+
+    try {
+      onExecute();
+      success = true;
+    } finally {
+      metrics.onFinished(System.currentTimeMillis() - start, success);
+    }
+  }
+
+  public abstract void onExecute() throws Exception;
 }
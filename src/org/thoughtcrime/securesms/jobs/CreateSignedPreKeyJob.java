@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
@@ -37,6 +38,11 @@ public class CreateSignedPreKeyJob extends MasterSecretJob implements Injectable
                                 .create());
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
   @Override
   public void onAdded() {}
 
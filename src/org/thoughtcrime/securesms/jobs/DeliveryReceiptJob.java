@@ -21,6 +21,8 @@ import static org.thoughtcrime.securesms.dependencies.TextSecureCommunicationMod
 
 public class DeliveryReceiptJob extends ContextJob implements InjectableType {
 
+  private static final long serialVersionUID = -3188127397355542279L;
+
   private static final String TAG = DeliveryReceiptJob.class.getSimpleName();
 
   @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
@@ -45,7 +47,7 @@ public class DeliveryReceiptJob extends ContextJob implements InjectableType {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  public void onExecute() throws IOException {
     Log.w("DeliveryReceiptJob", "Sending delivery receipt...");
     SignalServiceMessageSender messageSender     = messageSenderFactory.create();
     SignalServiceAddress       textSecureAddress = new SignalServiceAddress(destination, Optional.fromNullable(relay));
@@ -40,12 +40,17 @@ public class DirectoryRefreshJob extends ContextJob {
     this.masterSecret = masterSecret;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
-    Log.w("DirectoryRefreshJob", "DirectoryRefreshJob.onRun()");
+  public void onExecute() throws IOException {
+    Log.w("DirectoryRefreshJob", "DirectoryRefreshJob.onExecute()");
     PowerManager          powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
     PowerManager.WakeLock wakeLock     = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Directory Refresh");
 
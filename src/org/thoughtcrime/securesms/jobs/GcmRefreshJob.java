@@ -21,6 +21,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -55,11 +56,16 @@ public class GcmRefreshJob extends ContextJob implements InjectableType {
     super(context, JobParameters.newBuilder().withRequirement(new NetworkRequirement(context)).create());
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() throws Exception {
+  public void onExecute() throws Exception {
     String registrationId = TextSecurePreferences.getGcmRegistrationId(context);
 
     if (registrationId == null) {
@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * The queues jobs are split across.  Each lane has its own consumer threads, so a long upload or
+ * a directory refresh can't hold up decrypting and acknowledging incoming messages.
+ */
+public enum JobLane {
+
+  /**
+   * Sending, receiving, decrypting and acknowledging messages.  It keeps the original job
+   * manager's name so that jobs persisted before lanes existed are still restored.
+   */
+  MESSAGING("TextSecureJobs", 3, Thread.NORM_PRIORITY),
+
+  /**
+   * Attachment and MMS transfers, which can each hold a thread for a long time.
+   */
+  MEDIA("TextSecureMediaJobs", 2, Thread.NORM_PRIORITY - 2),
+
+  /**
+   * Key rotation, directory refreshes, migrations and other work nobody is waiting on.
+   */
+  MAINTENANCE("TextSecureMaintenanceJobs", 1, Thread.MIN_PRIORITY);
+
+  private final String  name;
+  private final int     consumerThreads;
+  private final int     threadPriority;
+  private final Metrics metrics;
+
+  JobLane(String name, int consumerThreads, int threadPriority) {
+    this.name            = name;
+    this.consumerThreads = consumerThreads;
+    this.threadPriority  = threadPriority;
+    this.metrics         = new Metrics(this);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getConsumerThreads() {
+    return consumerThreads;
+  }
+
+  public int getThreadPriority() {
+    return threadPriority;
+  }
+
+  public @NonNull Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Queue depth and latency for a lane since the process started.  Only jobs added in this
+   * process are counted as waiting, since restored jobs have no meaningful enqueue time.
+   */
+  public static class Metrics {
+
+    private static final String TAG = Metrics.class.getSimpleName();
+
+    private static final long SLOW_WAIT_MILLIS = 1000;
+
+    private final JobLane lane;
+
+    private int  waiting;
+    private int  running;
+    private long started;
+    private long timed;
+    private long failed;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long totalRunMillis;
+
+    private Metrics(JobLane lane) {
+      this.lane = lane;
+    }
+
+    synchronized void onQueued() {
+      waiting++;
+    }
+
+    void onStarted(long waitMillis) {
+      synchronized (this) {
+        running++;
+        started++;
+
+        if (waitMillis >= 0) {
+          waiting--;
+          timed++;
+          totalWaitMillis += waitMillis;
+          maxWaitMillis    = Math.max(maxWaitMillis, waitMillis);
+        }
+      }
+
+      if (waitMillis > SLOW_WAIT_MILLIS) {
+        Log.w(TAG, lane + " job waited " + waitMillis + "ms to start (" + this + ")");
+      }
+    }
+
+    synchronized void onFinished(long runMillis, boolean success) {
+      running--;
+      totalRunMillis += runMillis;
+
+      if (!success) failed++;
+    }
+
+    public synchronized int getWaiting() {
+      return waiting;
+    }
+
+    public synchronized int getRunning() {
+      return running;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+      return timed > 0 ? totalWaitMillis / timed : 0;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    public synchronized long getAverageRunMillis() {
+      return started > 0 ? totalRunMillis / started : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "waiting: " + waiting + ", running: " + running + ", started: " + started +
+             ", failed: " + failed + ", avg wait: " + getAverageWaitMillis() + "ms" +
+             ", max wait: " + maxWaitMillis + "ms, avg run: " + getAverageRunMillis() + "ms";
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.jobqueue.dependencies.DependencyInjector;
+import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
+
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs one {@link JobManager} per {@link JobLane} and sends each job to the lane it declares.
+ * Jobs that don't extend {@link ContextJob} run in the messaging lane.
+ */
+public class LaneJobManager {
+
+  private final Map<JobLane, JobManager>              jobManagers                      = new EnumMap<>(JobLane.class);
+  private final List<MediaNetworkRequirementProvider> mediaNetworkRequirementProviders = new LinkedList<>();
+
+  public LaneJobManager(@NonNull Context context, @NonNull DependencyInjector dependencyInjector) {
+    for (JobLane lane : JobLane.values()) {
+      jobManagers.put(lane, createJobManager(context, dependencyInjector, lane));
+    }
+  }
+
+  public void add(@NonNull Job job) {
+    JobLane lane = JobLane.MESSAGING;
+
+    if (job instanceof ContextJob) {
+      lane = ((ContextJob)job).getLane();
+      ((ContextJob)job).onQueued();
+    }
+
+    jobManagers.get(lane).add(job);
+  }
+
+  public void notifyMediaControlEvent() {
+    for (MediaNetworkRequirementProvider provider : mediaNetworkRequirementProviders) {
+      provider.notifyMediaControlEvent();
+    }
+  }
+
+  /**
+   * Requirement providers hold a single listener, so every lane gets its own.  The consumer
+   * threads take their priority from the thread that creates them, which is the only way to set
+   * it through the job manager's builder.
+   */
+  private JobManager createJobManager(Context context, DependencyInjector dependencyInjector, JobLane lane) {
+    MediaNetworkRequirementProvider mediaNetworkRequirementProvider = new MediaNetworkRequirementProvider();
+    mediaNetworkRequirementProviders.add(mediaNetworkRequirementProvider);
+
+    Thread thread   = Thread.currentThread();
+    int    priority = thread.getPriority();
+
+    thread.setPriority(lane.getThreadPriority());
+
+    try {
+      return JobManager.newBuilder(context)
+                       .withName(lane.getName())
+                       .withDependencyInjector(dependencyInjector)
+                       .withJobSerializer(new EncryptingJobSerializer())
+                       .withRequirementProviders(new MasterSecretRequirementProvider(context),
+                                                 new ServiceRequirementProvider(context),
+                                                 new NetworkRequirementProvider(context),
+                                                 mediaNetworkRequirementProvider)
+                       .withConsumerThreads(lane.getConsumerThreads())
+                       .build();
+    } finally {
+      thread.setPriority(priority);
+    }
+  }
+}
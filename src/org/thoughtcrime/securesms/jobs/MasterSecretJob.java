@@ -8,12 +8,14 @@ import org.whispersystems.jobqueue.JobParameters;
 
 public abstract class MasterSecretJob extends ContextJob {
 
+  private static final long serialVersionUID = -188714949107805884L;
+
   public MasterSecretJob(Context context, JobParameters parameters) {
     super(context, parameters);
   }
 
   @Override
-  public void onRun() throws Exception {
+  public void onExecute() throws Exception {
     MasterSecret masterSecret = getMasterSecret();
     onRun(masterSecret);
   }
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
 
@@ -19,6 +20,7 @@ import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.MmsRadioException;
 import org.thoughtcrime.securesms.mms.PartParser;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
+import org.thoughtcrime.securesms.providers.PersistentBlobProvider;
 import org.thoughtcrime.securesms.providers.SingleUseBlobProvider;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.Util;
@@ -31,21 +33,29 @@ import org.whispersystems.libsignal.NoSessionException;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.NotificationInd;
 import ws.com.google.android.mms.pdu.PduBody;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public class MmsDownloadJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -8786129939101485720L;
+
   private static final String TAG = MmsDownloadJob.class.getSimpleName();
 
+  private static final int MAX_BATCH_SIZE = 5;
+
   private final long    messageId;
   private final long    threadId;
   private final boolean automatic;
@@ -64,6 +74,11 @@ public class MmsDownloadJob extends MasterSecretJob {
     this.automatic = automatic;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MEDIA;
+  }
+
   @Override
   public void onAdded() {
     if (automatic && KeyCachingService.getMasterSecret(context) == null) {
@@ -74,47 +89,86 @@ public class MmsDownloadJob extends MasterSecretJob {
 
   @Override
   public void onRun(MasterSecret masterSecret) {
-    MmsDatabase                              database     = DatabaseFactory.getMmsDatabase(context);
-    Optional<Pair<NotificationInd, Integer>> notification = database.getNotification(messageId);
+    Optional<Pair<NotificationInd, Integer>> notification = DatabaseFactory.getMmsDatabase(context).getNotification(messageId);
 
     if (!notification.isPresent()) {
       Log.w(TAG, "No notification for ID: " + messageId);
       return;
     }
 
+    if (download(masterSecret, messageId, threadId, notification.get(), false) && automatic) {
+      downloadPending(masterSecret, notification.get().second);
+    }
+  }
+
+  /**
+   * Downloads notifications that are queued behind this one while the MMS radio and the pooled
+   * connection to the MMSC are still up.  Their own jobs find the notification gone and do
+   * nothing.  If one fails it is left for its own job to retry and report.
+   */
+  private void downloadPending(MasterSecret masterSecret, int subscriptionId) {
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+
+    for (Pair<Long, Long> pending : database.getPendingNotifications(subscriptionId, MAX_BATCH_SIZE)) {
+      Optional<Pair<NotificationInd, Integer>> notification = database.getNotification(pending.first);
+
+      if (!notification.isPresent()) {
+        continue;
+      }
+
+      Log.w(TAG, "Downloading queued notification " + pending.first + " in the same batch");
+
+      if (!download(masterSecret, pending.first, pending.second, notification.get(), true)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return false if the download failed in a way that will likely fail the next one too.
+   */
+  private boolean download(MasterSecret masterSecret, long messageId, long threadId,
+                           Pair<NotificationInd, Integer> notification, boolean batched)
+  {
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+    PartSpool   spool    = new PartSpool(context, masterSecret);
+
     try {
-      if (notification.get().first.getContentLocation() == null) {
+      if (notification.first.getContentLocation() == null) {
         throw new MmsException("Notification content location was null.");
       }
 
       database.markDownloadState(messageId, MmsDatabase.Status.DOWNLOAD_CONNECTING);
 
-      String contentLocation = new String(notification.get().first.getContentLocation());
-      byte[] transactionId   = notification.get().first.getTransactionId();
+      String contentLocation = new String(notification.first.getContentLocation());
+      byte[] transactionId   = notification.first.getTransactionId();
 
       Log.w(TAG, "Downloading mms at " + Uri.parse(contentLocation).getHost());
 
-      RetrieveConf retrieveConf = new CompatMmsConnection(context).retrieve(contentLocation, transactionId, notification.get().second);
+      RetrieveConf retrieveConf = new CompatMmsConnection(context).retrieve(contentLocation, transactionId, notification.second, spool);
 
       if (retrieveConf == null) {
         throw new MmsException("RetrieveConf was null");
       }
 
-      storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf, notification.get().second);
+      storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf, notification.second, spool);
     } catch (ApnUnavailableException e) {
       Log.w(TAG, e);
       handleDownloadError(masterSecret, messageId, threadId, MmsDatabase.Status.DOWNLOAD_APN_UNAVAILABLE,
-                          automatic);
+                          automatic, batched);
+      return false;
     } catch (MmsException e) {
       Log.w(TAG, e);
       handleDownloadError(masterSecret, messageId, threadId,
                           MmsDatabase.Status.DOWNLOAD_HARD_FAILURE,
-                          automatic);
+                          automatic, batched);
+      return false;
     } catch (MmsRadioException | IOException e) {
       Log.w(TAG, e);
       handleDownloadError(masterSecret, messageId, threadId,
                           MmsDatabase.Status.DOWNLOAD_SOFT_FAILURE,
-                          automatic);
+                          automatic, batched);
+      return false;
     } catch (DuplicateMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptDuplicate(messageId, threadId);
@@ -127,7 +181,11 @@ public class MmsDownloadJob extends MasterSecretJob {
     } catch (InvalidMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptFailed(messageId, threadId);
+    } finally {
+      spool.delete();
     }
+
+    return true;
   }
 
   @Override
@@ -148,7 +206,7 @@ public class MmsDownloadJob extends MasterSecretJob {
 
   private void storeRetrievedMms(MasterSecret masterSecret, String contentLocation,
                                  long messageId, long threadId, RetrieveConf retrieved,
-                                 int subscriptionId)
+                                 int subscriptionId, PartSpool spool)
       throws MmsException, NoSessionException, DuplicateMessageException, InvalidMessageException,
              LegacyMessageException
   {
@@ -183,7 +241,11 @@ public class MmsDownloadJob extends MasterSecretJob {
       for (int i=0;i<media.getPartsNum();i++) {
         PduPart part = media.getPart(i);
 
-        if (part.getData() != null) {
+        if (part.getDataUri() != null && spool.contains(part)) {
+          attachments.add(new UriAttachment(part.getDataUri(), Util.toIsoString(part.getContentType()),
+                                            AttachmentDatabase.TRANSFER_PROGRESS_DONE,
+                                            spool.getLength(part)));
+        } else if (part.getData() != null) {
           Uri uri = provider.createUri(part.getData());
           attachments.add(new UriAttachment(uri, Util.toIsoString(part.getContentType()),
                                             AttachmentDatabase.TRANSFER_PROGRESS_DONE,
@@ -192,8 +254,6 @@ public class MmsDownloadJob extends MasterSecretJob {
       }
     }
 
-
-
     IncomingMediaMessage message  = new IncomingMediaMessage(from, to, cc, body, retrieved.getDate() * 1000L, attachments, subscriptionId);
 
     Pair<Long, Long> messageAndThreadId  = database.insertMessageInbox(new MasterSecretUnion(masterSecret),
@@ -203,10 +263,15 @@ public class MmsDownloadJob extends MasterSecretJob {
   }
 
   private void handleDownloadError(MasterSecret masterSecret, long messageId, long threadId,
-                                   int downloadStatus, boolean automatic)
+                                   int downloadStatus, boolean automatic, boolean batched)
   {
     MmsDatabase db = DatabaseFactory.getMmsDatabase(context);
 
+    if (batched) {
+      db.markDownloadState(messageId, MmsDatabase.Status.DOWNLOAD_INITIALIZED);
+      return;
+    }
+
     db.markDownloadState(messageId, downloadStatus);
 
     if (automatic) {
@@ -214,4 +279,52 @@ public class MmsDownloadJob extends MasterSecretJob {
       MessageNotifier.updateNotification(context, masterSecret, threadId);
     }
   }
+
+  /**
+   * Writes displayable media parts straight into encrypted blobs while the PDU is being parsed,
+   * rather than holding them in memory.  Text and presentation parts are small and are still
+   * kept in memory by the parser.
+   */
+  private static class PartSpool implements PartDataSink {
+
+    private final Context               context;
+    private final MasterSecret          masterSecret;
+    private final Map<PduPart, Integer> lengths = new IdentityHashMap<>();
+
+    private PartSpool(Context context, MasterSecret masterSecret) {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+    }
+
+    @Override
+    public OutputStream open(PduPart part, int length) throws IOException {
+      if (!PartParser.isDisplayableMedia(part)) {
+        return null;
+      }
+
+      Pair<Uri, OutputStream> blob = PersistentBlobProvider.getInstance(context)
+                                                           .createForWriting(masterSecret, Util.toIsoString(part.getContentType()));
+
+      part.setDataUri(blob.first);
+      lengths.put(part, length);
+
+      return blob.second;
+    }
+
+    public boolean contains(PduPart part) {
+      return lengths.containsKey(part);
+    }
+
+    public long getLength(PduPart part) {
+      return lengths.get(part);
+    }
+
+    public void delete() {
+      for (PduPart part : lengths.keySet()) {
+        PersistentBlobProvider.getInstance(context).delete(part.getDataUri());
+      }
+
+      lengths.clear();
+    }
+  }
 }
@@ -41,7 +41,7 @@ public class MmsReceiveJob extends ContextJob {
   }
 
   @Override
-  public void onRun() {
+  public void onExecute() {
     if (data == null) {
       Log.w(TAG, "Received NULL pdu, ignoring...");
       return;
@@ -1,11 +1,13 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.crypto.SeekableDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
@@ -29,12 +31,14 @@ import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.CharacterSets;
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.PduBody;
 import ws.com.google.android.mms.pdu.PduComposer;
@@ -62,6 +66,11 @@ public class MmsSendJob extends SendJob {
     this.messageId = messageId;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MEDIA;
+  }
+
   @Override
   public void onAdded() {
     MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
@@ -78,8 +87,8 @@ public class MmsSendJob extends SendJob {
 
       validateDestinations(message, pdu);
 
-      final byte[]        pduBytes = getPduBytes(pdu);
-      final SendConf      sendConf = new CompatMmsConnection(context).send(pduBytes, message.getSubscriptionId());
+      final ComposedPdu   composed = getComposedPdu(masterSecret, pdu);
+      final SendConf      sendConf = new CompatMmsConnection(context).send(composed, message.getSubscriptionId());
       final MmsSendResult result   = getSendResult(sendConf, pdu);
 
       database.markAsSent(messageId);
@@ -106,7 +115,7 @@ public class MmsSendJob extends SendJob {
     notifyMediaMessageDeliveryFailed(context, messageId);
   }
 
-  private byte[] getPduBytes(SendReq message)
+  private ComposedPdu getComposedPdu(MasterSecret masterSecret, SendReq message)
       throws IOException, UndeliverableMessageException, InsecureFallbackApprovalException
   {
     String number = TelephonyUtil.getManager(context).getLine1Number();
@@ -117,13 +126,13 @@ public class MmsSendJob extends SendJob {
       message.setFrom(new EncodedStringValue(number));
     }
 
-    byte[] pduBytes = new PduComposer(context, message).make();
+    ComposedPdu composed = new PduComposer(context, message).make(new AttachmentDataSource(context, masterSecret));
 
-    if (pduBytes == null) {
+    if (composed == null) {
       throw new UndeliverableMessageException("PDU composition failed, null payload");
     }
 
-    return pduBytes;
+    return composed;
   }
 
   private MmsSendResult getSendResult(SendConf conf, SendReq message)
@@ -206,7 +215,7 @@ public class MmsSendJob extends SendJob {
         if (attachment.getDataUri() == null) throw new IOException("Assertion failed, attachment for outgoing MMS has no data!");
 
         PduPart part = new PduPart();
-        part.setData(Util.readFully(PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri())));
+        part.setDataUri(attachment.getDataUri());
         part.setContentType(Util.toIsoBytes(attachment.getContentType()));
         part.setContentId((System.currentTimeMillis() + "").getBytes());
         part.setName((System.currentTimeMillis() + "").getBytes());
@@ -229,4 +238,47 @@ public class MmsSendJob extends SendJob {
       MessageNotifier.notifyMessageDeliveryFailed(context, recipients, threadId);
     }
   }
+
+  /**
+   * Reads attachment bodies from their encrypted storage while the PDU is being sent, so they
+   * never have to be held in memory.
+   */
+  private static class AttachmentDataSource implements PduComposer.PartDataSource {
+
+    private final Context      context;
+    private final MasterSecret masterSecret;
+
+    private AttachmentDataSource(Context context, MasterSecret masterSecret) {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+    }
+
+    @Override
+    public long getLength(PduPart part) throws IOException {
+      InputStream in = open(part);
+
+      try {
+        if (in instanceof SeekableDecryptingPartInputStream) {
+          return ((SeekableDecryptingPartInputStream) in).length();
+        }
+
+        byte[] buffer = new byte[8192];
+        long   length = 0;
+        int    read;
+
+        while ((read = in.read(buffer)) != -1) {
+          length += read;
+        }
+
+        return length;
+      } finally {
+        in.close();
+      }
+    }
+
+    @Override
+    public InputStream open(PduPart part) throws IOException {
+      return PartAuthority.getAttachmentStream(context, masterSecret, part.getDataUri());
+    }
+  }
 }
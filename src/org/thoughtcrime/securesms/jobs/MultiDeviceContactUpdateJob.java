@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
@@ -85,6 +86,11 @@ public class MultiDeviceContactUpdateJob extends MasterSecretJob implements Inje
     return false;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MEDIA;
+  }
+
   @Override
   public void onAdded() {
 
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
@@ -87,6 +88,11 @@ public class MultiDeviceGroupUpdateJob extends MasterSecretJob implements Inject
     return false;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MEDIA;
+  }
+
   @Override
   public void onAdded() {
 
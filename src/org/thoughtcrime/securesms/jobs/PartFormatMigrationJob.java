@@ -0,0 +1,53 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Rewrites attachments and thumbnails that are still stored in the legacy part format into the
+ * seekable chunked format, so that range reads on them no longer decrypt everything before the
+ * requested offset.  Files that are already migrated are skipped, so it's safe to run again.
+ */
+public class PartFormatMigrationJob extends MasterSecretJob {
+
+  private static final long   serialVersionUID = 1L;
+  private static final String TAG              = PartFormatMigrationJob.class.getSimpleName();
+
+  public PartFormatMigrationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(PartFormatMigrationJob.class.getSimpleName())
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withPersistence()
+                                .create());
+  }
+
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    long start    = System.currentTimeMillis();
+    int  migrated = DatabaseFactory.getAttachmentDatabase(context).migrateToSeekableFormat(masterSecret);
+
+    Log.w(TAG, "Migrated " + migrated + " parts in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {}
+}
@@ -18,6 +18,8 @@ import java.io.IOException;
 
 public class PushContentReceiveJob extends PushReceivedJob {
 
+  private static final long serialVersionUID = 5685475456901715638L;
+
   private static final String TAG = PushContentReceiveJob.class.getSimpleName();
 
   private final String data;
@@ -40,7 +42,7 @@ public class PushContentReceiveJob extends PushReceivedJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  public void onExecute() {
     try {
       String                sessionKey = TextSecurePreferences.getSignalingKey(context);
       SignalServiceEnvelope envelope   = new SignalServiceEnvelope(data, sessionKey);
@@ -1,7 +1,9 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.Pair;
 
@@ -38,6 +40,7 @@ import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.IdentityKey;
@@ -63,7 +66,11 @@ import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptM
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.MmsException;
@@ -74,9 +81,15 @@ public class PushDecryptJob extends ContextJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  private static final int BATCH_SIZE = 50;
+
   private final long messageId;
   private final long smsMessageId;
 
+  private transient SideEffects committedEffects;
+  private transient SideEffects pendingEffects;
+  private transient boolean     refreshPreKeys;
+
   public PushDecryptJob(Context context, long pushMessageId, String sender) {
     this(context, pushMessageId, -1, sender);
   }
@@ -95,7 +108,7 @@ public class PushDecryptJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws NoSuchMessageException {
+  public void onExecute() throws NoSuchMessageException {
 
     if (!IdentityKeyUtil.hasIdentityKey(context)) {
       Log.w(TAG, "Skipping job, waiting for migration...");
@@ -103,19 +116,42 @@ public class PushDecryptJob extends ContextJob {
       return;
     }
 
-    MasterSecret          masterSecret         = KeyCachingService.getMasterSecret(context);
-    PushDatabase          database             = DatabaseFactory.getPushDatabase(context);
-    SignalServiceEnvelope envelope             = database.get(messageId);
-    Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) :
-                                                                 Optional.<Long>absent();
+    MasterSecret masterSecret = KeyCachingService.getMasterSecret(context);
+    PushDatabase database     = DatabaseFactory.getPushDatabase(context);
 
     MasterSecretUnion masterSecretUnion;
 
     if (masterSecret == null) masterSecretUnion = new MasterSecretUnion(MasterSecretUtil.getAsymmetricMasterSecret(context, null));
     else                      masterSecretUnion = new MasterSecretUnion(masterSecret);
 
-    handleMessage(masterSecretUnion, envelope, optionalSmsMessageId);
-    database.delete(messageId);
+    committedEffects = new SideEffects();
+    pendingEffects   = new SideEffects();
+    refreshPreKeys   = false;
+
+    if (smsMessageId > 0) {
+      SignalServiceEnvelope envelope = database.get(messageId);
+      DecryptedEnvelope     decrypted;
+
+      TextSecureSessionStore.beginWriteBehind();
+
+      try {
+        decrypted = decrypt(getCipher(), messageId, envelope);
+      } finally {
+        TextSecureSessionStore.endWriteBehind();
+      }
+
+      handleMessage(masterSecretUnion, decrypted, Optional.of(smsMessageId));
+      database.delete(messageId);
+      commitSideEffects();
+    } else {
+      handleBatch(masterSecretUnion, database);
+    }
+
+    if (refreshPreKeys) {
+      committedEffects.jobs.add(new RefreshPreKeysJob(context));
+    }
+
+    issueSideEffects(masterSecret, committedEffects);
   }
 
   @Override
@@ -128,14 +164,172 @@ public class PushDecryptJob extends ContextJob {
 
   }
 
-  private void handleMessage(MasterSecretUnion masterSecret, SignalServiceEnvelope envelope, Optional<Long> smsMessageId) {
+  /**
+   * Claims up to {@link #BATCH_SIZE} pending envelopes, starting with this job's own, and
+   * decrypts all of them in arrival order before writing anything.  Decryption is serial:
+   * libsignal holds one process-wide lock around every decrypt, so more threads would only
+   * queue on it.  What the batch saves is the per-message cost around it, since the session
+   * state the batch advances is written once, when decryption is done.
+   *
+   * The results are then stored in arrival order in a single transaction, with thread
+   * snippets and the notification refreshed once per batch rather than once per message.
+   * Jobs, broadcasts and notifications the messages call for are only issued once the rows
+   * they refer to have been committed.  Later jobs whose envelope was already claimed here find
+   * nothing left to do.
+   */
+  private void handleBatch(MasterSecretUnion masterSecret, PushDatabase database) {
+    long                                    startTime = System.currentTimeMillis();
+    List<Pair<Long, SignalServiceEnvelope>> pending   = new LinkedList<>();
+    PushDatabase.Reader                     reader    = null;
+
+    try {
+      reader = database.readerFor(database.getPendingBatch(messageId, BATCH_SIZE));
+      SignalServiceEnvelope envelope;
+
+      while ((envelope = reader.getNext()) != null) {
+        pending.add(new Pair<>(reader.getCurrentId(), envelope));
+      }
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+
+    if (pending.isEmpty()) {
+      Log.w(TAG, "Envelope " + messageId + " was already processed in an earlier batch.");
+      return;
+    }
+
+    List<DecryptedEnvelope> batch  = new LinkedList<>();
+    SignalServiceCipher     cipher = getCipher();
+
+    TextSecureSessionStore.beginWriteBehind();
+
     try {
-      SignalProtocolStore  axolotlStore = new SignalProtocolStoreImpl(context);
-      SignalServiceAddress localAddress = new SignalServiceAddress(TextSecurePreferences.getLocalNumber(context));
-      SignalServiceCipher  cipher       = new SignalServiceCipher(localAddress, axolotlStore);
+      for (Pair<Long, SignalServiceEnvelope> envelope : pending) {
+        batch.add(decrypt(cipher, envelope.first, envelope.second));
+      }
+    } finally {
+      // Session state has to be durable before any of these envelopes are deleted.
+      TextSecureSessionStore.endWriteBehind();
+    }
+
+    long decryptTime = System.currentTimeMillis();
+
+    try {
+      writeBatch(masterSecret, database, batch);
+      commitSideEffects();
+    } catch (RuntimeException e) {
+      // Every envelope in the batch has already advanced its session, so none of them can be
+      // decrypted again.  Rather than lose the whole batch, store what we have one at a time.
+      // Nothing the rolled back batch asked for was issued, so it's safe to ask again.
+      Log.w(TAG, "Batch write failed, writing individually...", e);
+      discardSideEffects();
+
+      for (DecryptedEnvelope decrypted : batch) {
+        try {
+          handleMessage(masterSecret, decrypted, Optional.<Long>absent());
+          database.delete(decrypted.pushId);
+          commitSideEffects();
+        } catch (RuntimeException re) {
+          Log.w(TAG, re);
+          discardSideEffects();
+        }
+      }
+    }
+
+    long endTime = System.currentTimeMillis();
+
+    Log.w(TAG, String.format(Locale.US, "Processed %d envelopes in %d ms (decrypt: %d ms, write: %d ms), %.1f envelopes/sec",
+                             batch.size(), endTime - startTime, decryptTime - startTime, endTime - decryptTime,
+                             batch.size() * 1000.0 / Math.max(1, endTime - startTime)));
+  }
+
+  private void writeBatch(MasterSecretUnion masterSecret, PushDatabase database, List<DecryptedEnvelope> batch) {
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    SQLiteDatabase transaction    = database.beginTransaction();
+
+    threadDatabase.beginSnippetBatch();
+
+    try {
+      for (DecryptedEnvelope decrypted : batch) {
+        handleMessage(masterSecret, decrypted, Optional.<Long>absent());
+        database.delete(decrypted.pushId);
+      }
+
+      threadDatabase.endSnippetBatch(true);
+      transaction.setTransactionSuccessful();
+    } finally {
+      threadDatabase.endSnippetBatch(false);
+      transaction.endTransaction();
+    }
+  }
+
+  private void commitSideEffects() {
+    committedEffects.addAll(pendingEffects);
+    pendingEffects = new SideEffects();
+  }
+
+  private void discardSideEffects() {
+    pendingEffects = new SideEffects();
+  }
+
+  private void issueSideEffects(@Nullable MasterSecret masterSecret, SideEffects effects) {
+    for (Job job : effects.jobs) {
+      ApplicationContext.getInstance(context).getJobManager().add(job);
+    }
 
+    if (effects.securityUpdate) {
+      SecurityEvent.broadcastSecurityUpdateEvent(context);
+    }
+
+    if (!effects.threadIds.isEmpty()) {
+      MessageNotifier.updateNotification(context, masterSecret, effects.threadIds);
+    } else if (effects.refresh) {
+      MessageNotifier.updateNotification(context, masterSecret);
+    }
+  }
+
+  private SignalServiceCipher getCipher() {
+    SignalProtocolStore  axolotlStore = new SignalProtocolStoreImpl(context);
+    SignalServiceAddress localAddress = new SignalServiceAddress(TextSecurePreferences.getLocalNumber(context));
+
+    return new SignalServiceCipher(localAddress, axolotlStore);
+  }
+
+  private DecryptedEnvelope decrypt(SignalServiceCipher cipher, long pushId, SignalServiceEnvelope envelope) {
+    try {
       SignalServiceContent content = cipher.decrypt(envelope);
 
+      if (content.getDataMessage().isPresent() && content.getDataMessage().get().isEndSession()) {
+        // This has to happen before the sender's next envelope is decrypted, not when the
+        // message is stored, or a session that envelope establishes would be deleted too.
+        SessionStore sessionStore = new TextSecureSessionStore(context);
+        sessionStore.deleteAllSessions(envelope.getSource());
+      }
+
+      if (envelope.isPreKeySignalMessage()) {
+        refreshPreKeys = true;
+      }
+
+      return new DecryptedEnvelope(pushId, envelope, content, null);
+    } catch (InvalidVersionException | InvalidMessageException | InvalidKeyIdException | InvalidKeyException |
+             NoSessionException | LegacyMessageException | DuplicateMessageException | UntrustedIdentityException e)
+    {
+      Log.w(TAG, e);
+      return new DecryptedEnvelope(pushId, envelope, null, e);
+    }
+  }
+
+  private void handleMessage(MasterSecretUnion masterSecret, DecryptedEnvelope decrypted, Optional<Long> smsMessageId) {
+    SignalServiceEnvelope envelope = decrypted.envelope;
+    SignalServiceContent  content  = decrypted.content;
+
+    if (content == null) {
+      handleDecryptionError(masterSecret, envelope, decrypted.error, smsMessageId);
+      return;
+    }
+
+    try {
       if (content.getDataMessage().isPresent()) {
         SignalServiceDataMessage message = content.getDataMessage().get();
 
@@ -151,31 +345,25 @@ public class PushDecryptJob extends ContextJob {
         else if (syncMessage.getRead().isPresent())    handleSynchronizeReadMessage(masterSecret, syncMessage.getRead().get());
         else                                           Log.w(TAG, "Contains no known sync types...");
       }
-
-      if (envelope.isPreKeySignalMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
-      }
-    } catch (InvalidVersionException e) {
-      Log.w(TAG, e);
-      handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
-    } catch (InvalidMessageException | InvalidKeyIdException | InvalidKeyException | MmsException e) {
+    } catch (MmsException e) {
       Log.w(TAG, e);
       handleCorruptMessage(masterSecret, envelope, smsMessageId);
-    } catch (NoSessionException e) {
-      Log.w(TAG, e);
-      handleNoSessionMessage(masterSecret, envelope, smsMessageId);
-    } catch (LegacyMessageException e) {
-      Log.w(TAG, e);
-      handleLegacyMessage(masterSecret, envelope, smsMessageId);
-    } catch (DuplicateMessageException e) {
-      Log.w(TAG, e);
-      handleDuplicateMessage(masterSecret, envelope, smsMessageId);
-    } catch (UntrustedIdentityException e) {
-      Log.w(TAG, e);
-      handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
     }
   }
 
+  private void handleDecryptionError(@NonNull MasterSecretUnion     masterSecret,
+                                     @NonNull SignalServiceEnvelope envelope,
+                                     @NonNull Exception             error,
+                                     @NonNull Optional<Long>        smsMessageId)
+  {
+    if      (error instanceof InvalidVersionException)    handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
+    else if (error instanceof NoSessionException)         handleNoSessionMessage(masterSecret, envelope, smsMessageId);
+    else if (error instanceof LegacyMessageException)     handleLegacyMessage(masterSecret, envelope, smsMessageId);
+    else if (error instanceof DuplicateMessageException)  handleDuplicateMessage(masterSecret, envelope, smsMessageId);
+    else if (error instanceof UntrustedIdentityException) handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
+    else                                                  handleCorruptMessage(masterSecret, envelope, smsMessageId);
+  }
+
   private void handleEndSessionMessage(@NonNull MasterSecretUnion        masterSecret,
                                        @NonNull SignalServiceEnvelope    envelope,
                                        @NonNull SignalServiceDataMessage message,
@@ -199,11 +387,8 @@ public class PushDecryptJob extends ContextJob {
       threadId = smsDatabase.getThreadIdForMessage(smsMessageId.get());
     }
 
-    SessionStore sessionStore = new TextSecureSessionStore(context);
-    sessionStore.deleteAllSessions(envelope.getSource());
-
-    SecurityEvent.broadcastSecurityUpdateEvent(context);
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), threadId);
+    pendingEffects.securityUpdate = true;
+    notifyThread(threadId);
   }
 
   private void handleGroupMessage(@NonNull MasterSecretUnion masterSecret,
@@ -211,11 +396,15 @@ public class PushDecryptJob extends ContextJob {
                                   @NonNull SignalServiceDataMessage message,
                                   @NonNull Optional<Long> smsMessageId)
   {
-    GroupMessageProcessor.process(context, masterSecret, envelope, message, false);
+    Long threadId = GroupMessageProcessor.process(context, masterSecret, envelope, message, false, pendingEffects.jobs);
 
     if (smsMessageId.isPresent()) {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
     }
+
+    if (threadId != null) {
+      notifyThread(threadId);
+    }
   }
 
   private void handleSynchronizeSentMessage(@NonNull MasterSecretUnion masterSecret,
@@ -227,7 +416,7 @@ public class PushDecryptJob extends ContextJob {
     Long threadId;
 
     if (message.getMessage().isGroupUpdate()) {
-      threadId = GroupMessageProcessor.process(context, masterSecret, envelope, message.getMessage(), true);
+      threadId = GroupMessageProcessor.process(context, masterSecret, envelope, message.getMessage(), true, pendingEffects.jobs);
     } else if (message.getMessage().getAttachments().isPresent()) {
       threadId = handleSynchronizeSentMediaMessage(masterSecret, message, smsMessageId);
     } else {
@@ -236,7 +425,7 @@ public class PushDecryptJob extends ContextJob {
 
     if (threadId != null) {
       DatabaseFactory.getThreadDatabase(getContext()).setRead(threadId);
-      MessageNotifier.updateNotification(getContext(), masterSecret.getMasterSecret().orNull());
+      pendingEffects.refresh = true;
     }
   }
 
@@ -244,15 +433,11 @@ public class PushDecryptJob extends ContextJob {
                                                @NonNull RequestMessage message)
   {
     if (message.isContactsRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceContactUpdateJob(getContext()));
+      pendingEffects.jobs.add(new MultiDeviceContactUpdateJob(getContext()));
     }
 
     if (message.isGroupsRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceGroupUpdateJob(getContext()));
+      pendingEffects.jobs.add(new MultiDeviceGroupUpdateJob(getContext()));
     }
   }
 
@@ -264,7 +449,7 @@ public class PushDecryptJob extends ContextJob {
       DatabaseFactory.getMmsDatabase(context).setTimestampRead(new SyncMessageId(readMessage.getSender(), readMessage.getTimestamp()));
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull());
+    pendingEffects.refresh = true;
   }
 
   private void handleMediaMessage(@NonNull MasterSecretUnion masterSecret,
@@ -286,17 +471,15 @@ public class PushDecryptJob extends ContextJob {
     List<DatabaseAttachment> attachments        = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(messageAndThreadId.first);
 
     for (DatabaseAttachment attachment : attachments) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new AttachmentDownloadJob(context, messageAndThreadId.first,
-                                                       attachment.getAttachmentId()));
+      pendingEffects.jobs.add(new AttachmentDownloadJob(context, messageAndThreadId.first,
+                                                        attachment.getAttachmentId()));
     }
 
     if (smsMessageId.isPresent()) {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+    notifyThread(messageAndThreadId.second);
   }
 
   private long handleSynchronizeSentMediaMessage(@NonNull MasterSecretUnion masterSecret,
@@ -319,9 +502,7 @@ public class PushDecryptJob extends ContextJob {
     database.markAsPush(messageId);
 
     for (DatabaseAttachment attachment : DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(messageId)) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId()));
+      pendingEffects.jobs.add(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId()));
     }
 
     if (smsMessageId.isPresent()) {
@@ -355,7 +536,7 @@ public class PushDecryptJob extends ContextJob {
       if (smsMessageId.isPresent()) database.deleteMessage(smsMessageId.get());
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+    notifyThread(messageAndThreadId.second);
   }
 
   private long handleSynchronizeSentTextMessage(@NonNull MasterSecretUnion masterSecret,
@@ -390,7 +571,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsInvalidVersionKeyExchange(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      notifyThread(messageAndThreadId.second);
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId.get());
     }
@@ -405,7 +586,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsDecryptFailed(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      notifyThread(messageAndThreadId.second);
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId.get());
     }
@@ -420,7 +601,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsNoSession(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      notifyThread(messageAndThreadId.second);
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
     }
@@ -435,7 +616,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsLegacyVersion(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      notifyThread(messageAndThreadId.second);
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId.get());
     }
@@ -477,7 +658,7 @@ public class PushDecryptJob extends ContextJob {
         Pair<Long, Long>            messageAndThreadId = database.insertMessageInbox(masterSecret, bundleMessage);
 
         database.setMismatchedIdentity(messageAndThreadId.first, recipientId, identityKey);
-        MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+        notifyThread(messageAndThreadId.second);
       } else {
         database.updateMessageBody(masterSecret, smsMessageId.get(), encoded);
         database.markAsPreKeyBundle(smsMessageId.get());
@@ -488,6 +669,10 @@ public class PushDecryptJob extends ContextJob {
     }
   }
 
+  private void notifyThread(long threadId) {
+    pendingEffects.threadIds.add(threadId);
+  }
+
   private Pair<Long, Long> insertPlaceholder(@NonNull SignalServiceEnvelope envelope) {
     EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
     IncomingTextMessage   textMessage = new IncomingTextMessage(envelope.getSource(), envelope.getSourceDevice(),
@@ -505,4 +690,39 @@ public class PushDecryptJob extends ContextJob {
       return RecipientFactory.getRecipientsFromString(context, message.getDestination().get(), false);
     }
   }
+
+  /**
+   * What storing some messages calls for beyond the database, held back until those messages
+   * are committed so that a rolled back write never starts a job or shows a notification.
+   */
+  private static class SideEffects {
+    private final Set<Long> threadIds = new HashSet<>();
+    private final List<Job> jobs      = new LinkedList<>();
+
+    private boolean refresh;
+    private boolean securityUpdate;
+
+    private void addAll(SideEffects other) {
+      threadIds.addAll(other.threadIds);
+      jobs.addAll(other.jobs);
+      refresh        |= other.refresh;
+      securityUpdate |= other.securityUpdate;
+    }
+  }
+
+  private static class DecryptedEnvelope {
+    private final           long                  pushId;
+    private final @NonNull  SignalServiceEnvelope envelope;
+    private final @Nullable SignalServiceContent  content;
+    private final @Nullable Exception             error;
+
+    private DecryptedEnvelope(long pushId, @NonNull SignalServiceEnvelope envelope,
+                              @Nullable SignalServiceContent content, @Nullable Exception error)
+    {
+      this.pushId   = pushId;
+      this.envelope = envelope;
+      this.content  = content;
+      this.error    = error;
+    }
+  }
 }
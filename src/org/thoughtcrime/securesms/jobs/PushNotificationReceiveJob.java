@@ -32,7 +32,7 @@ public class PushNotificationReceiveJob extends PushReceivedJob implements Injec
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  public void onExecute() throws IOException {
     receiver.retrieveMessages(new SignalServiceMessageReceiver.MessageReceivedCallback() {
       @Override
       public void onMessage(SignalServiceEnvelope envelope) {
@@ -12,13 +12,14 @@ import org.thoughtcrime.securesms.database.TextSecureDirectory;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.KeyCachingService;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.push.ContactTokenDetails;
 
 public abstract class PushReceivedJob extends ContextJob {
 
+  private static final long serialVersionUID = 3162290118922463684L;
+
   private static final String TAG = PushReceivedJob.class.getSimpleName();
 
   protected PushReceivedJob(Context context, JobParameters parameters) {
@@ -48,7 +49,7 @@ public abstract class PushReceivedJob extends ContextJob {
 
   private void handleMessage(SignalServiceEnvelope envelope, boolean sendExplicitReceipt) {
     Recipients recipients = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
 
     if (!recipients.isBlocked()) {
       long messageId = DatabaseFactory.getPushDatabase(context).insert(envelope);
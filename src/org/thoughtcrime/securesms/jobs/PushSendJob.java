@@ -31,6 +31,8 @@ import ws.com.google.android.mms.ContentType;
 
 public abstract class PushSendJob extends SendJob {
 
+  private static final long serialVersionUID = -6580900915211037263L;
+
   private static final String TAG = PushSendJob.class.getSimpleName();
 
   protected PushSendJob(Context context, JobParameters parameters) {
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.redphone.signaling.RedPhoneAccountAttributes;
@@ -33,11 +34,16 @@ public class RefreshAttributesJob extends ContextJob implements InjectableType {
                                 .create());
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  public void onExecute() throws IOException {
     String signalingKey      = TextSecurePreferences.getSignalingKey(context);
     String gcmRegistrationId = TextSecurePreferences.getGcmRegistrationId(context);
     int    registrationId    = TextSecurePreferences.getLocalRegistrationId(context);
@@ -0,0 +1,69 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.MediaTransferScheduler;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Requeues downloads that were in progress when the process went away.  Transfers run outside
+ * of the job manager once they've started, so nothing else brings them back.  Their partial
+ * files are still in place, so they pick up where they left off.  Downloads that never got as
+ * far as the {@link MediaTransferScheduler} still have their own persisted job, and are left
+ * to it.
+ */
+public class ResumeAttachmentDownloadsJob extends MasterSecretJob {
+
+  private static final long   serialVersionUID = 1L;
+  private static final String TAG              = ResumeAttachmentDownloadsJob.class.getSimpleName();
+
+  public ResumeAttachmentDownloadsJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .create());
+  }
+
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    LaneJobManager         jobManager = ApplicationContext.getInstance(context).getJobManager();
+    MediaTransferScheduler scheduler  = MediaTransferScheduler.getInstance(context);
+
+    for (DatabaseAttachment attachment : DatabaseFactory.getAttachmentDatabase(context).getPendingAttachments()) {
+      if (TextUtils.isEmpty(attachment.getLocation()) || TextUtils.isEmpty(attachment.getKey())) {
+        continue;
+      }
+
+      if (!scheduler.isInterrupted(attachment.getAttachmentId())) {
+        continue;
+      }
+
+      Log.w(TAG, "Resuming download of " + attachment.getAttachmentId());
+      jobManager.add(new AttachmentDownloadJob(context, attachment.getMmsId(), attachment.getAttachmentId()));
+      scheduler.clearInterrupted(attachment.getAttachmentId());
+    }
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {}
+}
@@ -26,6 +26,8 @@ import ws.com.google.android.mms.MmsException;
 
 public abstract class SendJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -1459106759629783533L;
+
   private final static String TAG = SendJob.class.getSimpleName();
 
   public SendJob(Context context, JobParameters parameters) {
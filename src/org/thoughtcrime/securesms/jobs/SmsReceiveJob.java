@@ -44,7 +44,7 @@ public class SmsReceiveJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  public void onExecute() {
     Optional<IncomingTextMessage> message      = assembleMessageFragments(pdus, subscriptionId);
     MasterSecret                  masterSecret = KeyCachingService.getMasterSecret(context);
 
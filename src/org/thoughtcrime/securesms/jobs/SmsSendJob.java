@@ -30,6 +30,8 @@ import java.util.ArrayList;
 
 public class SmsSendJob extends SendJob {
 
+  private static final long serialVersionUID = -2551198744862074315L;
+
   private static final String TAG = SmsSendJob.class.getSimpleName();
 
   private final long messageId;
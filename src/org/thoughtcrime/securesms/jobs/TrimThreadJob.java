@@ -17,33 +17,36 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 
-public class TrimThreadJob extends Job {
+public class TrimThreadJob extends ContextJob {
 
   private static final String TAG = TrimThreadJob.class.getSimpleName();
 
-  private final Context context;
-  private final long    threadId;
+  private final long threadId;
 
   public TrimThreadJob(Context context, long threadId) {
-    super(JobParameters.newBuilder().withGroupId(TrimThreadJob.class.getSimpleName()).create());
-    this.context  = context;
+    super(context, JobParameters.newBuilder().withGroupId(TrimThreadJob.class.getSimpleName()).create());
     this.threadId = threadId;
   }
 
+  @Override
+  public @NonNull JobLane getLane() {
+    return JobLane.MAINTENANCE;
+  }
+
   @Override
   public void onAdded() {
 
   }
 
   @Override
-  public void onRun() {
+  public void onExecute() {
     boolean trimmingEnabled   = TextSecurePreferences.isThreadLengthTrimmingEnabled(context);
     int     threadLengthLimit = TextSecurePreferences.getThreadTrimLength(context);
 
@@ -41,25 +41,37 @@ public class MediaNetworkRequirement implements Requirement, ContextDependent {
     this.context = context;
   }
 
-  private NetworkInfo getNetworkInfo() {
+  private static NetworkInfo getNetworkInfo(Context context) {
     return ServiceUtil.getConnectivityManager(context).getActiveNetworkInfo();
   }
 
-  public boolean isConnectedWifi() {
-    final NetworkInfo info = getNetworkInfo();
+  public static boolean isConnectedWifi(Context context) {
+    final NetworkInfo info = getNetworkInfo(context);
     return info != null && info.isConnected() && info.getType() == ConnectivityManager.TYPE_WIFI;
   }
 
-  public boolean isConnectedMobile() {
-    final NetworkInfo info = getNetworkInfo();
+  public static boolean isConnectedMobile(Context context) {
+    final NetworkInfo info = getNetworkInfo(context);
     return info != null && info.isConnected() && info.getType() == ConnectivityManager.TYPE_MOBILE;
   }
 
-  public boolean isConnectedRoaming() {
-    final NetworkInfo info = getNetworkInfo();
+  public static boolean isConnectedRoaming(Context context) {
+    final NetworkInfo info = getNetworkInfo(context);
     return info != null && info.isConnected() && info.isRoaming() && info.getType() == ConnectivityManager.TYPE_MOBILE;
   }
 
+  public boolean isConnectedWifi() {
+    return isConnectedWifi(context);
+  }
+
+  public boolean isConnectedMobile() {
+    return isConnectedMobile(context);
+  }
+
+  public boolean isConnectedRoaming() {
+    return isConnectedRoaming(context);
+  }
+
   private @NonNull Set<String> getAllowedAutoDownloadTypes() {
     if (isConnectedWifi()) {
       return TextSecurePreferences.getWifiMediaDownloadAllowed(context);
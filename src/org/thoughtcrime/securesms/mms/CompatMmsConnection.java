@@ -13,7 +13,9 @@ import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
 import java.io.IOException;
 
 import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -28,13 +30,13 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
 
   @Nullable
   @Override
-  public SendConf send(@NonNull byte[] pduBytes, int subscriptionId)
+  public SendConf send(@NonNull ComposedPdu pdu, int subscriptionId)
       throws UndeliverableMessageException
   {
     if (subscriptionId == -1 || VERSION.SDK_INT < 22) {
       Log.w(TAG, "Sending via legacy connection");
       try {
-        SendConf result = new OutgoingLegacyMmsConnection(context).send(pduBytes, subscriptionId);
+        SendConf result = new OutgoingLegacyMmsConnection(context).send(pdu, subscriptionId);
 
         if (result != null && result.getResponseStatus() == PduHeaders.RESPONSE_STATUS_OK) {
           return result;
@@ -47,7 +49,7 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
     }
 
     if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
-      return new OutgoingLollipopMmsConnection(context).send(pduBytes, subscriptionId);
+      return new OutgoingLollipopMmsConnection(context).send(pdu, subscriptionId);
     } else {
       throw new UndeliverableMessageException("Lollipop API not available to try...");
     }
@@ -57,13 +59,14 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
   @Override
   public RetrieveConf retrieve(@NonNull String contentLocation,
                                byte[] transactionId,
-                               int subscriptionId)
+                               int subscriptionId,
+                               @Nullable PartDataSink partDataSink)
       throws MmsException, MmsRadioException, ApnUnavailableException, IOException
   {
     if (VERSION.SDK_INT < 22 || subscriptionId == -1) {
       Log.w(TAG, "Receiving via legacy connection");
       try {
-        return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
+        return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId, partDataSink);
       } catch (MmsRadioException | ApnUnavailableException | IOException e) {
         Log.w(TAG, e);
       }
@@ -71,7 +74,7 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
 
     if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
       Log.w(TAG, "Falling back to try receiving via Lollipop API");
-      return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
+      return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId, partDataSink);
     } else {
       throw new IOException("Not able to use Lollipop APIs, giving up...");
     }
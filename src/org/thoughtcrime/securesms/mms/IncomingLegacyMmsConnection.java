@@ -28,14 +28,17 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGetHC4;
 import org.apache.http.client.methods.HttpUriRequest;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
 
 import ws.com.google.android.mms.InvalidHeaderValueException;
+import ws.com.google.android.mms.pdu.GenericPdu;
 import ws.com.google.android.mms.pdu.NotifyRespInd;
 import ws.com.google.android.mms.pdu.PduComposer;
 import ws.com.google.android.mms.pdu.PduHeaders;
 import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 @SuppressWarnings("deprecation")
@@ -60,7 +63,8 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
 
   @Override
   public @Nullable RetrieveConf retrieve(@NonNull String contentLocation,
-                                         byte[] transactionId, int subscriptionId)
+                                         byte[] transactionId, int subscriptionId,
+                                         @Nullable PartDataSink partDataSink)
       throws MmsRadioException, ApnUnavailableException, IOException
   {
     MmsRadio radio = MmsRadio.getInstance(context);
@@ -69,7 +73,7 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
     if (isDirectConnect()) {
       Log.w(TAG, "Connecting directly...");
       try {
-        return retrieve(contentApn, transactionId, false, false);
+        return retrieve(contentApn, transactionId, false, false, partDataSink);
       } catch (IOException | ApnUnavailableException e) {
         Log.w(TAG, e);
       }
@@ -82,45 +86,51 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
       Log.w(TAG, "Downloading in MMS mode with proxy...");
 
       try {
-        return retrieve(contentApn, transactionId, true, true);
+        return retrieve(contentApn, transactionId, true, true, partDataSink);
       } catch (IOException | ApnUnavailableException e) {
         Log.w(TAG, e);
       }
 
       Log.w(TAG, "Downloading in MMS mode without proxy...");
 
-      return retrieve(contentApn, transactionId, true, false);
+      return retrieve(contentApn, transactionId, true, false, partDataSink);
 
     } finally {
       radio.disconnect();
     }
   }
 
-  public RetrieveConf retrieve(Apn contentApn, byte[] transactionId, boolean usingMmsRadio, boolean useProxyIfAvailable)
+  public RetrieveConf retrieve(Apn contentApn, byte[] transactionId, boolean usingMmsRadio, boolean useProxyIfAvailable,
+                               @Nullable final PartDataSink partDataSink)
       throws IOException, ApnUnavailableException
   {
-    byte[] pdu = null;
-
     final boolean useProxy   = useProxyIfAvailable && contentApn.hasProxy();
     final String  targetHost = useProxy
                              ? contentApn.getProxy()
                              : Uri.parse(contentApn.getMmsc()).getHost();
-    if (checkRouteToHost(context, targetHost, usingMmsRadio)) {
-      Log.w(TAG, "got successful route to host " + targetHost);
-      pdu = execute(constructRequest(contentApn, useProxy));
-    }
-
-    if (pdu == null) {
+    if (!checkRouteToHost(context, targetHost, usingMmsRadio)) {
       throw new IOException("Connection manager could not obtain route to host.");
     }
 
-    RetrieveConf retrieved = (RetrieveConf)new PduParser(pdu).parse();
+    Log.w(TAG, "got successful route to host " + targetHost);
+    RetrieveConf retrieved = execute(constructRequest(contentApn, useProxy), new ResponseProcessor<RetrieveConf>() {
+      @Override
+      public RetrieveConf process(InputStream in, long contentLength) throws IOException {
+        PduParser  parser = new PduParser(new BufferedInputStream(in), contentLength, partDataSink);
+        GenericPdu pdu    = parser.parse();
 
-    if (retrieved == null) {
-      Log.w(TAG, "Couldn't parse PDU, byte response: " + Arrays.toString(pdu));
-      Log.w(TAG, "Couldn't parse PDU, ASCII:         " + new String(pdu));
-      throw new IOException("Bad retrieved PDU");
-    }
+        if (parser.getStreamError() != null) {
+          throw parser.getStreamError();
+        }
+
+        if (!(pdu instanceof RetrieveConf)) {
+          Log.w(TAG, "Couldn't parse PDU, " + contentLength + "-byte response, got: " + pdu);
+          throw new IOException("Bad retrieved PDU");
+        }
+
+        return (RetrieveConf) pdu;
+      }
+    });
 
     sendRetrievedAcknowledgement(transactionId, usingMmsRadio, useProxy);
     return retrieved;
@@ -27,15 +27,16 @@ import android.telephony.SmsManager;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.providers.MmsBodyProvider;
-import org.thoughtcrime.securesms.util.Hex;
-import org.thoughtcrime.securesms.util.Util;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeoutException;
 
 import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.GenericPdu;
 import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public class IncomingLollipopMmsConnection extends LollipopMmsConnection implements IncomingMmsConnection {
@@ -60,7 +61,9 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
   @TargetApi(VERSION_CODES.LOLLIPOP)
   public synchronized @Nullable RetrieveConf retrieve(@NonNull String contentLocation,
                                                       byte[] transactionId,
-                                                      int subscriptionId) throws MmsException
+                                                      int subscriptionId,
+                                                      @Nullable PartDataSink partDataSink)
+      throws MmsException
   {
     beginTransaction();
 
@@ -85,13 +88,26 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
 
       waitForResult();
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      Util.copy(pointer.getInputStream(), baos);
-      pointer.close();
+      InputStream in = new BufferedInputStream(pointer.getInputStream());
 
-      Log.w(TAG, baos.size() + "-byte response: " + Hex.dump(baos.toByteArray()));
+      try {
+        PduParser  parser = new PduParser(in, -1, partDataSink);
+        GenericPdu pdu    = parser.parse();
 
-      return (RetrieveConf) new PduParser(baos.toByteArray()).parse();
+        if (parser.getStreamError() != null) {
+          throw parser.getStreamError();
+        }
+
+        if (pdu != null && !(pdu instanceof RetrieveConf)) {
+          Log.w(TAG, "Unexpected PDU type: " + pdu.getMessageType());
+          return null;
+        }
+
+        return (RetrieveConf) pdu;
+      } finally {
+        in.close();
+        pointer.close();
+      }
     } catch (IOException | TimeoutException e) {
       Log.w(TAG, e);
       throw new MmsException(e);
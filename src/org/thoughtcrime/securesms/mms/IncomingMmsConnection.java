@@ -6,8 +6,9 @@ import android.support.annotation.Nullable;
 import java.io.IOException;
 
 import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.PduParser.PartDataSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public interface IncomingMmsConnection {
-  @Nullable RetrieveConf retrieve(@NonNull String contentLocation, byte[] transactionId, int subscriptionId) throws MmsException, MmsRadioException, ApnUnavailableException, IOException;
+  @Nullable RetrieveConf retrieve(@NonNull String contentLocation, byte[] transactionId, int subscriptionId, @Nullable PartDataSink partDataSink) throws MmsException, MmsRadioException, ApnUnavailableException, IOException;
 }
@@ -23,19 +23,24 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.NoConnectionReuseStrategyHC4;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.LaxRedirectStrategy;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtilsHC4;
 import org.thoughtcrime.securesms.database.ApnDatabase;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.ServiceUtil;
@@ -52,10 +57,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("deprecation")
 public abstract class LegacyMmsConnection {
@@ -64,6 +72,10 @@ public abstract class LegacyMmsConnection {
 
   private static final String TAG = LegacyMmsConnection.class.getSimpleName();
 
+  private static final int IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+
+  private static final Map<Apn, TimedConnectionManager> connectionManagers = new HashMap<>();
+
   protected final Context context;
   protected final Apn     apn;
 
@@ -159,6 +171,31 @@ public abstract class LegacyMmsConnection {
     return baos.toByteArray();
   }
 
+  /**
+   * Connections to an APN's MMSC and proxy are kept alive and shared by every transaction on it,
+   * so that a burst of downloads and sends doesn't pay for a new TCP connection and proxy
+   * handshake each time.
+   */
+  private static synchronized TimedConnectionManager getConnectionManager(Apn apn) {
+    TimedConnectionManager connectionManager = connectionManagers.get(apn);
+
+    if (connectionManager == null) {
+      connectionManager = new TimedConnectionManager();
+      connectionManager.setMaxTotal(4);
+      connectionManager.setDefaultMaxPerRoute(2);
+      connectionManagers.put(apn, connectionManager);
+    }
+
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    return connectionManager;
+  }
+
+  /**
+   * The client shares its APN's connection manager, so it must not be closed: closing it would
+   * shut the pool down.  Connections go back to the pool once a response has been consumed.
+   */
   protected CloseableHttpClient constructHttpClient() throws IOException {
     RequestConfig config = RequestConfig.custom()
                                         .setConnectTimeout(20 * 1000)
@@ -176,28 +213,49 @@ public abstract class LegacyMmsConnection {
     }
 
     return HttpClients.custom()
-                      .setConnectionReuseStrategy(new NoConnectionReuseStrategyHC4())
                       .setRedirectStrategy(new LaxRedirectStrategy())
                       .setUserAgent(TextSecurePreferences.getMmsUserAgent(context, USER_AGENT))
-                      .setConnectionManager(new BasicHttpClientConnectionManager())
+                      .setConnectionManager(getConnectionManager(apn))
                       .setDefaultRequestConfig(config)
                       .setDefaultCredentialsProvider(credsProvider)
                       .build();
   }
 
   protected byte[] execute(HttpUriRequest request) throws IOException {
+    return execute(request, new ResponseProcessor<byte[]>() {
+      @Override
+      public byte[] process(InputStream in, long contentLength) throws IOException {
+        return parseResponse(in);
+      }
+    });
+  }
+
+  /**
+   * Executes the request and hands a successful response body to the processor while the
+   * connection is still open, so that it can be consumed without buffering it first.
+   */
+  protected <T> T execute(HttpUriRequest request, ResponseProcessor<T> processor) throws IOException {
     Log.w(TAG, "connecting to " + apn.getMmsc());
 
-    CloseableHttpClient   client   = null;
-    CloseableHttpResponse response = null;
+    HttpClientContext     httpContext = HttpClientContext.create();
+    CloseableHttpResponse response    = null;
     try {
-      client   = constructHttpClient();
-      response = client.execute(request);
+      long start = System.currentTimeMillis();
+
+      response = constructHttpClient().execute(request, httpContext);
+
+      long firstByte = System.currentTimeMillis();
 
       Log.w(TAG, "* response code: " + response.getStatusLine());
 
       if (response.getStatusLine().getStatusCode() == 200) {
-        return parseResponse(response.getEntity().getContent());
+        HttpEntity entity = response.getEntity();
+        T          result = processor.process(entity.getContent(), entity.getContentLength());
+
+        EntityUtilsHC4.consume(entity);
+        logTimings(request, httpContext, start, firstByte, System.currentTimeMillis(), entity.getContentLength());
+
+        return result;
       }
     } catch (NullPointerException npe) {
       // TODO determine root cause
@@ -205,12 +263,23 @@ public abstract class LegacyMmsConnection {
       throw new IOException(npe);
     } finally {
       if (response != null) response.close();
-      if (client != null)   client.close();
     }
 
     throw new IOException("unhandled response code");
   }
 
+  private static void logTimings(HttpUriRequest request, HttpContext httpContext,
+                                 long start, long firstByte, long end, long contentLength)
+  {
+    Long connect = (Long) httpContext.getAttribute(TimedConnectionManager.CONNECT_TIME);
+
+    Log.w(TAG, request.getMethod() + " timings: " +
+               "connect " + (connect == null ? "reused" : connect + "ms") + ", " +
+               "first byte " + (firstByte - start - (connect == null ? 0 : connect)) + "ms, " +
+               "transfer " + (end - firstByte) + "ms" +
+               (contentLength >= 0 ? " for " + contentLength + " bytes" : ""));
+  }
+
   protected List<Header> getBaseHeaders() {
     final String                number    = TelephonyUtil.getManager(context).getLine1Number(); ;
 
@@ -226,6 +295,13 @@ public abstract class LegacyMmsConnection {
     }};
   }
 
+  protected interface ResponseProcessor<T> {
+    /**
+     * @param contentLength the length of the body, or a negative number if it isn't known
+     */
+    T process(InputStream in, long contentLength) throws IOException;
+  }
+
   public static class Apn {
 
     public static Apn EMPTY = new Apn("", "", "", "", "");
@@ -258,6 +334,24 @@ public abstract class LegacyMmsConnection {
       this.password = useCustomPassword ? customApn.password : defaultApn.password;
     }
 
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Apn)) return false;
+
+      Apn that = (Apn) other;
+
+      return Util.equals(mmsc, that.mmsc)         &&
+             Util.equals(proxy, that.proxy)       &&
+             Util.equals(port, that.port)         &&
+             Util.equals(username, that.username) &&
+             Util.equals(password, that.password);
+    }
+
+    @Override
+    public int hashCode() {
+      return Util.hashCode(mmsc, proxy, port, username, password);
+    }
+
     public boolean hasProxy() {
       return !TextUtils.isEmpty(proxy);
     }
@@ -296,4 +390,26 @@ public abstract class LegacyMmsConnection {
           ", pass: " + (password == null ? "none" : '"' + password + '"') + " }";
     }
   }
+
+  /**
+   * Records how long establishing each new connection took in the request's context, so that
+   * connect time can be reported apart from the rest of the exchange.
+   */
+  private static class TimedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private static final String CONNECT_TIME = TimedConnectionManager.class.getName() + ".CONNECT_TIME";
+
+    @Override
+    public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout, HttpContext httpContext)
+        throws IOException
+    {
+      long start = System.currentTimeMillis();
+
+      try {
+        super.connect(connection, route, connectTimeout, httpContext);
+      } finally {
+        httpContext.setAttribute(CONNECT_TIME, System.currentTimeMillis() - start);
+      }
+    }
+  }
 }
@@ -28,12 +28,22 @@ public class MmsRadio {
   private static final int APN_ALREADY_ACTIVE    = 0;
   public  static final int TYPE_MOBILE_MMS       = 2;
 
+  private static final long LINGER_MILLIS = 15000;
+
   private final Context context;
 
   private ConnectivityManager   connectivityManager;
   private ConnectivityListener  connectivityListener;
   private PowerManager.WakeLock wakeLock;
-  private int connectedCounter = 0;
+  private int     connectedCounter = 0;
+  private boolean lingering        = false;
+
+  private final Runnable turnOff = new Runnable() {
+    @Override
+    public void run() {
+      turnOffIfUnused();
+    }
+  };
 
   private MmsRadio(Context context) {
     PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
@@ -45,12 +55,25 @@ public class MmsRadio {
 
   public synchronized void disconnect() {
     Log.w("MmsRadio", "MMS Radio Disconnect Called...");
-    wakeLock.release();
     connectedCounter--;
 
     Log.w("MmsRadio", "Reference count: " + connectedCounter);
 
     if (connectedCounter == 0) {
+      // Stay up for a little while, so that back to back transactions can reuse the route and
+      // any connections to the MMSC that are still open on it.  The last wakelock reference is
+      // kept until the radio is turned off, since the handler's clock stops in deep sleep and
+      // would otherwise leave the APN up indefinitely.
+      lingering = true;
+      Util.handler.removeCallbacks(turnOff);
+      Util.handler.postDelayed(turnOff, LINGER_MILLIS);
+    } else {
+      wakeLock.release();
+    }
+  }
+
+  private synchronized void turnOffIfUnused() {
+    if (connectedCounter == 0 && lingering) {
       Log.w("MmsRadio", "Turning off MMS radio...");
       connectivityManager.stopUsingNetworkFeature(ConnectivityManager.TYPE_MOBILE, FEATURE_ENABLE_MMS);
 
@@ -59,22 +82,25 @@ public class MmsRadio {
         context.unregisterReceiver(connectivityListener);
         connectivityListener = null;
       }
+
+      lingering = false;
+      wakeLock.release();
     }
   }
 
   public synchronized void connect() throws MmsRadioException {
+    Util.handler.removeCallbacks(turnOff);
+
     int status = connectivityManager.startUsingNetworkFeature(ConnectivityManager.TYPE_MOBILE,
                                                               FEATURE_ENABLE_MMS);
 
     Log.w("MmsRadio", "startUsingNetworkFeature status: " + status);
 
     if (status == APN_ALREADY_ACTIVE) {
-      wakeLock.acquire();
-      connectedCounter++;
+      addReference();
       return;
     } else {
-      wakeLock.acquire();
-      connectedCounter++;
+      addReference();
 
       if (connectivityListener == null) {
         IntentFilter filter  = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
@@ -92,6 +118,13 @@ public class MmsRadio {
     }
   }
 
+  private void addReference() {
+    if (lingering) lingering = false;
+    else           wakeLock.acquire();
+
+    connectedCounter++;
+  }
+
   private boolean isConnected() {
     NetworkInfo info = connectivityManager.getNetworkInfo(TYPE_MOBILE_MMS);
 
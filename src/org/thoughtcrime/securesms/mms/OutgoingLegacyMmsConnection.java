@@ -25,15 +25,20 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPostHC4;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntityHC4;
 import org.apache.http.entity.ByteArrayEntityHC4;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -45,7 +50,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
     super(context);
   }
 
-  private HttpUriRequest constructRequest(byte[] pduBytes, boolean useProxy)
+  private HttpUriRequest constructRequest(HttpEntity entity, boolean useProxy)
       throws IOException
   {
     try {
@@ -54,7 +59,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
         request.addHeader(header);
       }
 
-      request.setEntity(new ByteArrayEntityHC4(pduBytes));
+      request.setEntity(entity);
       if (useProxy) {
         HttpHost proxy = new HttpHost(apn.getProxy(), apn.getPort());
         request.setConfig(RequestConfig.custom().setProxy(proxy).build());
@@ -68,18 +73,20 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
   public void sendNotificationReceived(byte[] pduBytes, boolean usingMmsRadio, boolean useProxyIfAvailable)
       throws IOException
   {
-    sendBytes(pduBytes, usingMmsRadio, useProxyIfAvailable);
+    sendEntity(new ByteArrayEntityHC4(pduBytes), usingMmsRadio, useProxyIfAvailable);
   }
 
   @Override
-  public @Nullable SendConf send(@NonNull byte[] pduBytes, int subscriptionId) throws UndeliverableMessageException {
+  public @Nullable SendConf send(@NonNull ComposedPdu pdu, int subscriptionId) throws UndeliverableMessageException {
+    HttpEntity entity = new ComposedPduEntity(pdu);
+
     try {
       MmsRadio radio = MmsRadio.getInstance(context);
 
       if (isDirectConnect()) {
         Log.w(TAG, "Sending MMS directly without radio change...");
         try {
-          return send(pduBytes, false, false);
+          return send(entity, false, false);
         } catch (IOException e) {
           Log.w(TAG, e);
         }
@@ -90,7 +97,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
 
       try {
         try {
-          return send(pduBytes, true, true);
+          return send(entity, true, true);
         } catch (IOException e) {
           Log.w(TAG, e);
         }
@@ -98,7 +105,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
         Log.w(TAG, "Sending MMS with radio change and without proxy...");
 
         try {
-          return send(pduBytes, true, false);
+          return send(entity, true, false);
         } catch (IOException ioe) {
           Log.w(TAG, ioe);
           throw new UndeliverableMessageException(ioe);
@@ -114,25 +121,25 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
 
   }
 
-  private SendConf send(byte[] pduBytes, boolean useMmsRadio, boolean useProxyIfAvailable)  throws IOException {
-    byte[] response = sendBytes(pduBytes, useMmsRadio, useProxyIfAvailable);
+  private SendConf send(HttpEntity entity, boolean useMmsRadio, boolean useProxyIfAvailable)  throws IOException {
+    byte[] response = sendEntity(entity, useMmsRadio, useProxyIfAvailable);
     return (SendConf) new PduParser(response).parse();
   }
 
-  private byte[] sendBytes(byte[] pduBytes, boolean useMmsRadio, boolean useProxyIfAvailable) throws IOException {
+  private byte[] sendEntity(HttpEntity entity, boolean useMmsRadio, boolean useProxyIfAvailable) throws IOException {
     final boolean useProxy   = useProxyIfAvailable && apn.hasProxy();
     final String  targetHost = useProxy
                              ? apn.getProxy()
                              : Uri.parse(apn.getMmsc()).getHost();
 
-    Log.w(TAG, "Sending MMS of length: " + pduBytes.length
+    Log.w(TAG, "Sending MMS of length: " + entity.getContentLength()
                + (useMmsRadio ? ", using mms radio" : "")
                + (useProxy ? ", using proxy" : ""));
 
     try {
       if (checkRouteToHost(context, targetHost, useMmsRadio)) {
         Log.w(TAG, "got successful route to host " + targetHost);
-        byte[] response = execute(constructRequest(pduBytes, useProxy));
+        byte[] response = execute(constructRequest(entity, useProxy));
         if (response != null) return response;
       }
     } catch (IOException ioe) {
@@ -158,4 +165,43 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
       return false;
     }
   }
+
+  /**
+   * Writes a composed PDU straight to the connection, reading attachment bodies as it goes.
+   * It can be written, or read through {@link #getContent()}, again for each connection attempt.
+   */
+  private static class ComposedPduEntity extends AbstractHttpEntityHC4 {
+
+    private final ComposedPdu pdu;
+
+    private ComposedPduEntity(ComposedPdu pdu) {
+      this.pdu = pdu;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      return pdu.getLength();
+    }
+
+    @Override
+    public InputStream getContent() {
+      return pdu.openStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      pdu.writeTo(out);
+      out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
 }
@@ -28,12 +28,12 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.providers.MmsBodyProvider;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
-import org.thoughtcrime.securesms.util.Util;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.TimeoutException;
 
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -59,13 +59,19 @@ public class OutgoingLollipopMmsConnection extends LollipopMmsConnection impleme
 
   @Override
   @TargetApi(VERSION_CODES.LOLLIPOP)
-  public @Nullable synchronized SendConf send(@NonNull byte[] pduBytes, int subscriptionId)
+  public @Nullable synchronized SendConf send(@NonNull ComposedPdu pdu, int subscriptionId)
       throws UndeliverableMessageException
   {
     beginTransaction();
     try {
       MmsBodyProvider.Pointer pointer = MmsBodyProvider.makeTemporaryPointer(getContext());
-      Util.copy(new ByteArrayInputStream(pduBytes), pointer.getOutputStream());
+      OutputStream            out     = pointer.getOutputStream();
+
+      try {
+        pdu.writeTo(out);
+      } finally {
+        out.close();
+      }
 
       SmsManager smsManager;
 
@@ -41,14 +41,16 @@ public class MarkReadReceiver extends MasterSecretBroadcastReceiver {
         @Override
         protected Void doInBackground(Void... params) {
           List<SyncMessageId> messageIdsCollection = new LinkedList<>();
+          List<Long>          readThreadIds        = new LinkedList<>();
 
           for (long threadId : threadIds) {
             Log.w(TAG, "Marking as read: " + threadId);
             List<SyncMessageId> messageIds = DatabaseFactory.getThreadDatabase(context).setRead(threadId);
             messageIdsCollection.addAll(messageIds);
+            readThreadIds.add(threadId);
           }
 
-          MessageNotifier.updateNotification(context, masterSecret);
+          MessageNotifier.updateNotificationForRead(context, masterSecret, readThreadIds);
 
           if (!messageIdsCollection.isEmpty()) {
             ApplicationContext.getInstance(context)
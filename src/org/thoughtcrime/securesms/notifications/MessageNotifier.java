@@ -34,7 +34,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.TextUtils;
 import android.text.style.StyleSpan;
 import android.util.Log;
 
@@ -43,26 +42,25 @@ import org.thoughtcrime.securesms.ConversationActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
-import org.thoughtcrime.securesms.database.MessagingDatabase;
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
-import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
-import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
-import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.jobs.MultiDeviceReadUpdateJob;
-import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.KeyCachingService;
-import org.thoughtcrime.securesms.util.SpanUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
@@ -71,6 +69,10 @@ import me.leolin.shortcutbadger.ShortcutBadger;
 /**
  * Handles posting system notifications for new messages.
  *
+ * Updates are applied to an in-memory {@link NotificationModel} and coalesced: every update that
+ * arrives within {@link #UPDATE_DEBOUNCE_MILLIS} of the first one is merged into a single refresh,
+ * so a burst of incoming messages re-queries each affected thread once rather than re-reading
+ * every unread message once per arrival.
  *
  * @author Moxie Marlinspike
  */
@@ -81,6 +83,14 @@ public class MessageNotifier {
 
   public static final int NOTIFICATION_ID = 1338;
 
+  private static final long UPDATE_DEBOUNCE_MILLIS = 250;
+
+  private static final NotificationModel        MODEL           = new NotificationModel();
+  private static final ScheduledExecutorService UPDATE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+  private static final Object                   PENDING_LOCK    = new Object();
+
+  private static @Nullable PendingUpdate pendingUpdate;
+
   private volatile static long visibleThread = -1;
 
   public static final String EXTRA_VOICE_REPLY = "extra_voice_reply";
@@ -109,7 +119,31 @@ public class MessageNotifier {
       return;
     }
 
-    updateNotification(context, masterSecret, false, false, 0);
+    scheduleUpdate(context, masterSecret, null, false, false, 0);
+  }
+
+  /**
+   * Refreshes the notification after the given threads were marked read, without re-reading
+   * any other thread's unread messages.
+   */
+  public static void updateNotificationForRead(@NonNull  Context context,
+                                               @Nullable MasterSecret masterSecret,
+                                               @NonNull  Collection<Long> threadIds)
+  {
+    MODEL.removeThreads(threadIds);
+
+    if (!TextSecurePreferences.isNotificationsEnabled(context)) {
+      return;
+    }
+
+    scheduleUpdate(context, masterSecret, Collections.<Long>emptySet(), false, false, 0);
+  }
+
+  public static void updateNotificationForRead(@NonNull  Context context,
+                                               @Nullable MasterSecret masterSecret,
+                                               long threadId)
+  {
+    updateNotificationForRead(context, masterSecret, Collections.singleton(threadId));
   }
 
   public static void updateNotification(@NonNull  Context context,
@@ -140,13 +174,7 @@ public class MessageNotifier {
                                                .getRecipientsForThreadId(threadId);
 
     if (isVisible) {
-      List<SyncMessageId> messageIds = threads.setRead(threadId);
-
-      if (!messageIds.isEmpty()) {
-        ApplicationContext.getInstance(context)
-                          .getJobManager()
-                          .add(new MultiDeviceReadUpdateJob(context, messageIds));
-      }
+      markVisibleThreadRead(context, threads, threadId);
     }
 
     if (!TextSecurePreferences.isNotificationsEnabled(context) ||
@@ -158,53 +186,128 @@ public class MessageNotifier {
     if (isVisible) {
       sendInThreadNotification(context, threads.getRecipientsForThreadId(threadId));
     } else {
-      updateNotification(context, masterSecret, signal, includePushDatabase, 0);
+      scheduleUpdate(context, masterSecret, Collections.singleton(threadId), signal, includePushDatabase, 0);
     }
   }
 
-  private static void updateNotification(@NonNull  Context context,
-                                         @Nullable MasterSecret masterSecret,
-                                         boolean signal,
-                                         boolean includePushDatabase,
-                                         int     reminderCount)
+  /**
+   * Refreshes the notification once for a batch of messages that may span several threads,
+   * signalling if any unmuted thread other than the visible one received something.
+   */
+  public static void updateNotification(@NonNull  Context context,
+                                        @Nullable MasterSecret masterSecret,
+                                        @NonNull  Set<Long> threadIds)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    if (threadIds.size() == 1) {
+      updateNotification(context, masterSecret, threadIds.iterator().next());
+      return;
+    }
 
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+    ThreadDatabase threads = DatabaseFactory.getThreadDatabase(context);
+    boolean        enabled = TextSecurePreferences.isNotificationsEnabled(context);
+    boolean        signal  = false;
+    Set<Long>      changed = new HashSet<>();
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
-        ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
-          .cancel(NOTIFICATION_ID);
-        updateBadge(context, 0);
-        clearReminder(context);
-        return;
+    for (long threadId : threadIds) {
+      Recipients recipients = threads.getRecipientsForThreadId(threadId);
+      boolean    muted      = recipients != null && recipients.isMuted();
+
+      if (visibleThread == threadId) {
+        markVisibleThreadRead(context, threads, threadId);
+        if (enabled && !muted) sendInThreadNotification(context, recipients);
+      } else {
+        changed.add(threadId);
+        if (!muted) signal = true;
       }
+    }
+
+    if (enabled) {
+      scheduleUpdate(context, masterSecret, changed, signal, false, 0);
+    }
+  }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+  private static void markVisibleThreadRead(@NonNull Context context, @NonNull ThreadDatabase threads, long threadId) {
+    List<SyncMessageId> messageIds = threads.setRead(threadId);
+    MODEL.removeThreads(Collections.singleton(threadId));
 
-      if (includePushDatabase) {
-        appendPushNotificationState(context, notificationState, pushCursor);
-      }
+    if (!messageIds.isEmpty()) {
+      ApplicationContext.getInstance(context)
+                        .getJobManager()
+                        .add(new MultiDeviceReadUpdateJob(context, messageIds));
+    }
+  }
 
-      if (notificationState.hasMultipleThreads()) {
-        sendMultipleThreadNotification(context, notificationState, signal);
-      } else {
-        sendSingleThreadNotification(context, masterSecret, notificationState, signal);
+  /**
+   * Merges an update into the pending one, scheduling a refresh if none is pending yet.
+   *
+   * @param threadIds The threads that changed, or null to rebuild the notification from scratch.
+   */
+  private static void scheduleUpdate(@NonNull  Context context,
+                                     @Nullable MasterSecret masterSecret,
+                                     @Nullable Set<Long> threadIds,
+                                     boolean signal,
+                                     boolean includePushDatabase,
+                                     int     reminderCount)
+  {
+    synchronized (PENDING_LOCK) {
+      if (pendingUpdate == null) {
+        pendingUpdate = new PendingUpdate(context.getApplicationContext());
+
+        UPDATE_EXECUTOR.schedule(new Runnable() {
+          @Override
+          public void run() {
+            PendingUpdate update;
+
+            synchronized (PENDING_LOCK) {
+              update        = pendingUpdate;
+              pendingUpdate = null;
+            }
+
+            try {
+              updateNotification(update);
+            } catch (Throwable t) {
+              Log.w(TAG, t);
+              MODEL.invalidate();
+            }
+          }
+        }, UPDATE_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
       }
 
-      updateBadge(context, notificationState.getMessageCount());
+      pendingUpdate.merge(masterSecret, threadIds, signal, includePushDatabase, reminderCount);
+    }
+  }
+
+  private static void updateNotification(@NonNull PendingUpdate update) {
+    Context           context           = update.context;
+    MasterSecret      masterSecret      = update.masterSecret;
+    NotificationState notificationState = MODEL.update(context, masterSecret, update.threadIds);
+
+    if (update.includePushDatabase) {
+      Cursor pushCursor = DatabaseFactory.getPushDatabase(context).getPending();
 
-      if (signal) {
-        scheduleReminder(context, reminderCount);
+      if (pushCursor != null) {
+        appendPushNotificationState(context, notificationState, pushCursor);
       }
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+    }
+
+    if (notificationState.getNotifications().isEmpty()) {
+      ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
+        .cancel(NOTIFICATION_ID);
+      updateBadge(context, 0);
+      clearReminder(context);
+      return;
+    }
+
+    if (notificationState.hasMultipleThreads()) {
+      sendMultipleThreadNotification(context, notificationState, update.signal);
+    } else {
+      sendSingleThreadNotification(context, masterSecret, notificationState, update.signal);
+    }
+
+    updateBadge(context, notificationState.getMessageCount());
+
+    if (update.signal) {
+      scheduleReminder(context, update.reminderCount);
     }
   }
 
@@ -358,52 +461,6 @@ public class MessageNotifier {
     }
   }
 
-  private static NotificationState constructNotificationState(@NonNull  Context context,
-                                                              @Nullable MasterSecret masterSecret,
-                                                              @NonNull  Cursor cursor)
-  {
-    NotificationState notificationState = new NotificationState();
-    MessageRecord record;
-    MmsSmsDatabase.Reader reader;
-
-    if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-    else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
-
-    while ((record = reader.getNext()) != null) {
-      Recipient    recipient        = record.getIndividualRecipient();
-      Recipients   recipients       = record.getRecipients();
-      long         threadId         = record.getThreadId();
-      CharSequence body             = record.getDisplayBody();
-      Recipients   threadRecipients = null;
-      SlideDeck    slideDeck        = null;
-      long         timestamp        = record.getTimestamp();
-      
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
-      }
-
-      if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && TextUtils.isEmpty(body)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
-
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck));
-      }
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private static void updateBadge(Context context, int count) {
     try {
       ShortcutBadger.setBadge(context.getApplicationContext(), count);
@@ -447,7 +504,7 @@ public class MessageNotifier {
         protected Void doInBackground(Void... params) {
           MasterSecret masterSecret  = KeyCachingService.getMasterSecret(context);
           int          reminderCount = intent.getIntExtra("reminder_count", 0);
-          MessageNotifier.updateNotification(context, masterSecret, true, true, reminderCount + 1);
+          MessageNotifier.scheduleUpdate(context, masterSecret, Collections.<Long>emptySet(), true, true, reminderCount + 1);
 
           return null;
         }
@@ -455,6 +512,32 @@ public class MessageNotifier {
     }
   }
 
+  private static class PendingUpdate {
+    private final @NonNull Context context;
+
+    private @Nullable MasterSecret masterSecret;
+    private @Nullable Set<Long>    threadIds = new HashSet<>();
+    private boolean                signal;
+    private boolean                includePushDatabase;
+    private int                    reminderCount;
+
+    private PendingUpdate(@NonNull Context context) {
+      this.context = context;
+    }
+
+    private void merge(@Nullable MasterSecret masterSecret, @Nullable Set<Long> threadIds,
+                       boolean signal, boolean includePushDatabase, int reminderCount)
+    {
+      this.masterSecret         = masterSecret;
+      this.signal              |= signal;
+      this.includePushDatabase |= includePushDatabase;
+      this.reminderCount        = Math.max(this.reminderCount, reminderCount);
+
+      if      (threadIds == null)      this.threadIds = null;
+      else if (this.threadIds != null) this.threadIds.addAll(threadIds);
+    }
+  }
+
   public static class DeleteReceiver extends BroadcastReceiver {
 
     public static final String DELETE_REMINDER_ACTION = "org.thoughtcrime.securesms.MessageNotifier.DELETE_REMINDER_ACTION";
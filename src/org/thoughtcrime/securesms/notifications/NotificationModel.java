@@ -0,0 +1,224 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.util.SpanUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory copy of the unread messages behind the message notification, grouped by thread.
+ *
+ * A thread that receives messages is refreshed by querying only its own unread rows, and only
+ * rows that weren't already known (or that were previously locked) are turned into notification
+ * items.  A thread that is read is simply dropped.  The model falls back to the full unread query
+ * when it's first used, when it was built while locked and is now unlocked or the other way
+ * around, or after {@link #invalidate()}.  Callers hand in whichever copy of the master secret
+ * they hold, so only its presence is tracked, and the model never keeps a reference to it.
+ */
+class NotificationModel {
+
+  private static final Comparator<Entry> DATE_RECEIVED_COMPARATOR = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry lhs, Entry rhs) {
+      return lhs.dateReceived < rhs.dateReceived ? -1 : (lhs.dateReceived == rhs.dateReceived ? 0 : 1);
+    }
+  };
+
+  private final Map<Long, Map<String, Entry>> threads = new HashMap<>();
+
+  private boolean valid;
+  private boolean unlocked;
+
+  synchronized void invalidate() {
+    valid = false;
+  }
+
+  synchronized void removeThreads(@NonNull Collection<Long> threadIds) {
+    for (long threadId : threadIds) {
+      threads.remove(threadId);
+    }
+  }
+
+  /**
+   * Brings the model up to date and returns the resulting notification state.
+   *
+   * @param threadIds The threads that may have changed since the last update, or null if the
+   *                  changes can't be attributed to particular threads.
+   */
+  synchronized @NonNull NotificationState update(@NonNull  Context context,
+                                                 @Nullable MasterSecret masterSecret,
+                                                 @Nullable Set<Long> threadIds)
+  {
+    if (!valid || threadIds == null || unlocked != (masterSecret != null)) {
+      rebuild(context, masterSecret);
+    } else {
+      for (long threadId : threadIds) {
+        refreshThread(context, masterSecret, threadId);
+      }
+    }
+
+    return getNotificationState();
+  }
+
+  private void rebuild(@NonNull Context context, @Nullable MasterSecret masterSecret) {
+    threads.clear();
+
+    this.unlocked = masterSecret != null;
+    this.valid    = true;
+
+    Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
+    if (cursor == null) return;
+
+    MmsSmsDatabase.Reader reader = readerFor(context, masterSecret, cursor);
+
+    try {
+      while (cursor.moveToNext()) {
+        Entry              entry  = createEntry(context, cursor, reader.getCurrent());
+        Map<String, Entry> thread = threads.get(entry.threadId);
+
+        if (thread == null) {
+          thread = new LinkedHashMap<>();
+          threads.put(entry.threadId, thread);
+        }
+
+        thread.put(getKey(cursor), entry);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void refreshThread(@NonNull Context context, @Nullable MasterSecret masterSecret, long threadId) {
+    Map<String, Entry> previous = threads.remove(threadId);
+    Map<String, Entry> current  = new LinkedHashMap<>();
+
+    Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread(threadId);
+    if (cursor == null) return;
+
+    MmsSmsDatabase.Reader reader = readerFor(context, masterSecret, cursor);
+
+    try {
+      while (cursor.moveToNext()) {
+        String key   = getKey(cursor);
+        Entry  entry = previous != null ? previous.get(key) : null;
+
+        if (entry == null || entry.locked) {
+          entry = createEntry(context, cursor, reader.getCurrent());
+        }
+
+        current.put(key, entry);
+      }
+    } finally {
+      reader.close();
+    }
+
+    if (!current.isEmpty()) {
+      threads.put(threadId, current);
+    }
+  }
+
+  private @NonNull NotificationState getNotificationState() {
+    List<Entry> entries = new ArrayList<>();
+
+    for (Map<String, Entry> thread : threads.values()) {
+      entries.addAll(thread.values());
+    }
+
+    Collections.sort(entries, DATE_RECEIVED_COMPARATOR);
+
+    NotificationState notificationState = new NotificationState();
+
+    for (Entry entry : entries) {
+      if (entry.threadRecipients == null || !entry.threadRecipients.isMuted()) {
+        notificationState.addNotification(entry.item);
+      }
+    }
+
+    return notificationState;
+  }
+
+  private static @NonNull MmsSmsDatabase.Reader readerFor(@NonNull Context context,
+                                                          @Nullable MasterSecret masterSecret,
+                                                          @NonNull Cursor cursor)
+  {
+    if (masterSecret == null) return DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
+    else                      return DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
+  }
+
+  private static @NonNull String getKey(@NonNull Cursor cursor) {
+    return cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID));
+  }
+
+  private static @NonNull Entry createEntry(@NonNull Context context, @NonNull Cursor cursor, @NonNull MessageRecord record) {
+    long         threadId         = record.getThreadId();
+    CharSequence body             = record.getDisplayBody();
+    Recipients   threadRecipients = null;
+    SlideDeck    slideDeck        = null;
+    boolean      locked           = false;
+
+    if (threadId != -1) {
+      threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+    }
+
+    if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
+      body   = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+      locked = true;
+    } else if (record.isMms() && TextUtils.isEmpty(body)) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    NotificationItem item = new NotificationItem(record.getIndividualRecipient(), record.getRecipients(),
+                                                 threadRecipients, threadId, body, record.getTimestamp(), slideDeck);
+
+    return new Entry(item, threadRecipients, threadId,
+                     cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                     locked);
+  }
+
+  private static class Entry {
+    private final @NonNull  NotificationItem item;
+    private final @Nullable Recipients       threadRecipients;
+    private final long                       threadId;
+    private final long                       dateReceived;
+    private final boolean                    locked;
+
+    private Entry(@NonNull NotificationItem item, @Nullable Recipients threadRecipients,
+                  long threadId, long dateReceived, boolean locked)
+    {
+      this.item             = item;
+      this.threadRecipients = threadRecipients;
+      this.threadId         = threadId;
+      this.dateReceived     = dateReceived;
+      this.locked           = locked;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.util.Log;
@@ -37,6 +38,10 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class PartProvider extends ContentProvider {
   private static final String TAG = PartProvider.class.getSimpleName();
@@ -44,10 +49,23 @@ public class PartProvider extends ContentProvider {
   private static final String CONTENT_URI_STRING = "content://org.thoughtcrime.provider.securesms/part";
   private static final Uri    CONTENT_URI        = Uri.parse(CONTENT_URI_STRING);
   private static final int    SINGLE_ROW         = 1;
+  private static final String STREAMING          = "streaming";
+  private static final int    BUFFER_SIZE        = 64 * 1024;
+  private static final int    PIPE_THREADS       = 4;
+
+  /**
+   * A writer blocks until its reader drains the pipe or closes it, so a few readers that stall
+   * hold up the pipes queued behind them rather than each pinning a thread of their own.
+   */
+  private static final ThreadPoolExecutor pipeExecutor = new ThreadPoolExecutor(PIPE_THREADS, PIPE_THREADS,
+                                                                                30, TimeUnit.SECONDS,
+                                                                                new LinkedBlockingQueue<Runnable>());
 
   private static final UriMatcher uriMatcher;
 
   static {
+    pipeExecutor.allowCoreThreadTimeOut(true);
+
     uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     uriMatcher.addURI("org.thoughtcrime.provider.securesms", "part/*/#", SINGLE_ROW);
   }
@@ -63,25 +81,105 @@ public class PartProvider extends ContentProvider {
     return ContentUris.withAppendedId(uri, attachmentId.getRowId());
   }
 
-  @SuppressWarnings("ConstantConditions")
-  private File copyPartToTemporaryFile(MasterSecret masterSecret, AttachmentId attachmentId) throws IOException {
-    InputStream in        = DatabaseFactory.getAttachmentDatabase(getContext()).getAttachmentStream(masterSecret, attachmentId);
-    File tmpDir           = getContext().getDir("tmp", 0);
-    File tmpFile          = File.createTempFile("test", ".jpg", tmpDir);
-    FileOutputStream fout = new FileOutputStream(tmpFile);
+  /**
+   * A URI for consumers that read the part front to back.  It's served through a pipe that a
+   * worker fills as it decrypts, so no plaintext touches the disk and the first bytes are
+   * available before the whole part has been decrypted.  The descriptor isn't seekable, so
+   * anything that might seek (video players, for instance) should use {@link #getContentUri}.
+   */
+  public static Uri getStreamingContentUri(AttachmentId attachmentId) {
+    return getContentUri(attachmentId).buildUpon()
+                                      .appendQueryParameter(STREAMING, "true")
+                                      .build();
+  }
+
+  static ParcelFileDescriptor openTemporaryCopy(File tmpDir, InputStream in) throws IOException {
+    File tmpFile = File.createTempFile("part", ".tmp", tmpDir);
+
+    try {
+      OutputStream out = new FileOutputStream(tmpFile);
+
+      try {
+        copy(in, out);
+      } finally {
+        out.close();
+      }
+
+      return ParcelFileDescriptor.open(tmpFile, ParcelFileDescriptor.MODE_READ_ONLY);
+    } finally {
+      in.close();
+
+      if (!tmpFile.delete()) {
+        Log.w(TAG, "Failed to delete temp file.");
+      }
+    }
+  }
+
+  static ParcelFileDescriptor openPipe(final InputStream in) throws IOException {
+    final ParcelFileDescriptor[] pipe;
+
+    try {
+      pipe = createPipe();
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
 
-    byte[] buffer         = new byte[512];
-    int read;
+    pipeExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        OutputStream out = new FileOutputStream(pipe[1].getFileDescriptor());
+
+        try {
+          copy(in, out);
+          pipe[1].close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          closeWithError(pipe[1], e);
+        } finally {
+          try {
+            in.close();
+          } catch (IOException e) {
+            Log.w(TAG, e);
+          }
+        }
+      }
+    });
 
-    while ((read = in.read(buffer)) != -1)
-      fout.write(buffer, 0, read);
+    return pipe[0];
+  }
 
-    in.close();
+  private static ParcelFileDescriptor[] createPipe() throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      return ParcelFileDescriptor.createReliablePipe();
+    } else {
+      return ParcelFileDescriptor.createPipe();
+    }
+  }
 
-    return tmpFile;
+  private static void closeWithError(ParcelFileDescriptor descriptor, IOException e) {
+    try {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        descriptor.closeWithError(e.getMessage());
+      } else {
+        descriptor.close();
+      }
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
   }
 
   @Override
+  @SuppressWarnings("ConstantConditions")
   public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
     MasterSecret masterSecret = KeyCachingService.getMasterSecret(getContext());
     Log.w(TAG, "openFile() called!");
@@ -95,15 +193,11 @@ public class PartProvider extends ContentProvider {
     case SINGLE_ROW:
       Log.w(TAG, "Parting out a single row...");
       try {
-        PartUriParser        partUri = new PartUriParser(uri);
-        File                 tmpFile = copyPartToTemporaryFile(masterSecret, partUri.getPartId());
-        ParcelFileDescriptor pdf     = ParcelFileDescriptor.open(tmpFile, ParcelFileDescriptor.MODE_READ_ONLY);
-
-        if (!tmpFile.delete()) {
-          Log.w(TAG, "Failed to delete temp file.");
-        }
+        PartUriParser partUri = new PartUriParser(uri);
+        InputStream   in      = DatabaseFactory.getAttachmentDatabase(getContext()).getAttachmentStream(masterSecret, partUri.getPartId());
 
-        return pdf;
+        if ("true".equals(uri.getQueryParameter(STREAMING))) return openPipe(in);
+        else                                                 return openTemporaryCopy(getContext().getDir("tmp", 0), in);
       } catch (IOException ioe) {
         Log.w(TAG, ioe);
         throw new FileNotFoundException("Error opening file");
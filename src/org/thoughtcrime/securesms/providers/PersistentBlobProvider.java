@@ -8,6 +8,7 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Pair;
 import android.webkit.MimeTypeMap;
 
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
@@ -25,6 +26,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PersistentBlobProvider {
 
@@ -58,6 +60,7 @@ public class PersistentBlobProvider {
   @SuppressLint("UseSparseArrays")
   private final Map<Long, byte[]> cache    = Collections.synchronizedMap(new HashMap<Long, byte[]>());
   private final ExecutorService   executor = Executors.newCachedThreadPool();
+  private final AtomicLong        lastId   = new AtomicLong();
 
   private PersistentBlobProvider(Context context) {
     this.context = context.getApplicationContext();
@@ -67,7 +70,7 @@ public class PersistentBlobProvider {
                     @NonNull byte[] blobBytes,
                     @NonNull String mimeType)
   {
-    final long id = System.currentTimeMillis();
+    final long id = getUniqueId();
     cache.put(id, blobBytes);
     return create(masterSecret, new ByteArrayInputStream(blobBytes), id, mimeType);
   }
@@ -76,11 +79,27 @@ public class PersistentBlobProvider {
                     @NonNull InputStream input,
                     @NonNull String mimeType)
   {
-    return create(masterSecret, input, System.currentTimeMillis(), mimeType);
+    return create(masterSecret, input, getUniqueId(), mimeType);
+  }
+
+  /**
+   * Creates a blob that the caller writes on its own thread.  It can't be read until the
+   * returned stream is closed.
+   */
+  public Pair<Uri, OutputStream> createForWriting(@NonNull MasterSecret masterSecret,
+                                                  @NonNull String mimeType)
+      throws IOException
+  {
+    final long id = getUniqueId();
+    return new Pair<Uri, OutputStream>(getUri(id, mimeType), new EncryptingPartOutputStream(getFile(id), masterSecret));
   }
 
   private Uri create(MasterSecret masterSecret, InputStream input, long id, String mimeType) {
     persistToDisk(masterSecret, id, input);
+    return getUri(id, mimeType);
+  }
+
+  private Uri getUri(long id, String mimeType) {
     final Uri uniqueUri = CONTENT_URI.buildUpon()
                                      .appendPath(mimeType)
                                      .appendEncodedPath(String.valueOf(System.currentTimeMillis()))
@@ -88,6 +107,15 @@ public class PersistentBlobProvider {
     return ContentUris.withAppendedId(uniqueUri, id);
   }
 
+  private long getUniqueId() {
+    while (true) {
+      long last = lastId.get();
+      long next = Math.max(System.currentTimeMillis(), last + 1);
+
+      if (lastId.compareAndSet(last, next)) return next;
+    }
+  }
+
   private void persistToDisk(final MasterSecret masterSecret, final long id, final InputStream input) {
     executor.submit(new Runnable() {
       @Override
@@ -125,7 +153,7 @@ public class PersistentBlobProvider {
   public @NonNull InputStream getStream(MasterSecret masterSecret, long id) throws IOException {
     final byte[] cached = cache.get(id);
     return cached != null ? new ByteArrayInputStream(cached)
-                          : new DecryptingPartInputStream(getFile(id), masterSecret);
+                          : DecryptingPartInputStream.createFor(getFile(id), masterSecret);
   }
 
   private File getFile(long id) {
@@ -0,0 +1,111 @@
+package org.thoughtcrime.securesms.recipients;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.support.annotation.NonNull;
+import android.telephony.PhoneNumberUtils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches many numbers against the system contacts with a single query over the phone data
+ * rows, instead of one {@link android.provider.ContactsContract.PhoneLookup} query per number.
+ *
+ * Candidates are bucketed by their trailing digits, the same minimum match PhoneLookup uses,
+ * and then confirmed with {@link PhoneNumberUtils#compare(String, String)}.
+ */
+class ContactNumberMatcher {
+
+  private static final int MIN_MATCH = 7;
+
+  private static final String[] PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER,
+    Phone.PHOTO_ID
+  };
+
+  static @NonNull Map<String, Match> match(@NonNull Context context, @NonNull Collection<String> numbers) {
+    Map<String, List<String>> candidates = new HashMap<>();
+    Map<String, Match>        results    = new HashMap<>();
+
+    for (String number : numbers) {
+      String key = getMatchKey(number);
+      if (key == null) continue;
+
+      List<String> bucket = candidates.get(key);
+
+      if (bucket == null) {
+        bucket = new LinkedList<>();
+        candidates.put(key, bucket);
+      }
+
+      bucket.add(number);
+    }
+
+    if (candidates.isEmpty()) return results;
+
+    Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, PROJECTION, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String contactNumber = cursor.getString(3);
+        if (contactNumber == null) continue;
+
+        String key = getMatchKey(contactNumber);
+        if (key == null) continue;
+
+        List<String> bucket = candidates.get(key);
+        if (bucket == null) continue;
+
+        for (String number : bucket) {
+          if (!results.containsKey(number) && PhoneNumberUtils.compare(number, contactNumber)) {
+            results.put(number, new Match(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                                          contactNumber, cursor.getLong(4)));
+          }
+        }
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
+  private static String getMatchKey(String number) {
+    StringBuilder digits = new StringBuilder(MIN_MATCH);
+
+    for (int i = number.length() - 1; i >= 0 && digits.length() < MIN_MATCH; i--) {
+      char c = number.charAt(i);
+
+      if      (Character.isDigit(c))              digits.append(c);
+      else if (Character.isLetter(c) || c == '@') return null;
+    }
+
+    return digits.length() > 0 ? digits.reverse().toString() : null;
+  }
+
+  static class Match {
+    final String name;
+    final String lookupKey;
+    final long   contactId;
+    final String number;
+    final long   photoId;
+
+    private Match(String name, String lookupKey, long contactId, String number, long photoId) {
+      this.name      = name;
+      this.lookupKey = lookupKey;
+      this.contactId = contactId;
+      this.number    = number;
+      this.photoId   = photoId;
+    }
+  }
+}
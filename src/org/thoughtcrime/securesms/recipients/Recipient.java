@@ -45,7 +45,8 @@ public class Recipient {
 
   private @NonNull  String  number;
   private @Nullable String  name;
-  private boolean stale;
+  private volatile boolean stale;
+  private long photoId;
 
   private ContactPhoto contactPhoto;
   private Uri          contactUri;
@@ -67,21 +68,14 @@ public class Recipient {
       this.contactUri   = stale.contactUri;
       this.contactPhoto = stale.contactPhoto;
       this.color        = stale.color;
+      this.photoId      = stale.photoId;
     }
 
     future.addListener(new FutureTaskListener<RecipientDetails>() {
       @Override
       public void onSuccess(RecipientDetails result) {
         if (result != null) {
-          synchronized (Recipient.this) {
-            Recipient.this.name         = result.name;
-            Recipient.this.number       = result.number;
-            Recipient.this.contactUri   = result.contactUri;
-            Recipient.this.contactPhoto = result.avatar;
-            Recipient.this.color        = result.color;
-          }
-
-          notifyListeners();
+          updateDetails(result);
         }
       }
 
@@ -99,6 +93,7 @@ public class Recipient {
     this.name         = details.name;
     this.contactPhoto = details.avatar;
     this.color        = details.color;
+    this.photoId      = details.photoId;
   }
 
   public synchronized @Nullable Uri getContactUri() {
@@ -186,6 +181,34 @@ public class Recipient {
     public void onModified(Recipient recipient);
   }
 
+  void updateDetails(@NonNull RecipientDetails details) {
+    synchronized (this) {
+      this.name         = details.name;
+      this.number       = details.number;
+      this.contactUri   = details.contactUri;
+      this.contactPhoto = details.avatar;
+      this.color        = details.color;
+      this.photoId      = details.photoId;
+    }
+
+    notifyListeners();
+  }
+
+  /**
+   * @return true if <code>details</code> describe the same contact as this recipient already
+   * shows, so that re-resolving it would change nothing visible.
+   */
+  synchronized boolean hasDetails(@NonNull RecipientDetails details) {
+    return isEqual(name, details.name)             &&
+           isEqual(number, details.number)         &&
+           isEqual(contactUri, details.contactUri) &&
+           photoId == details.photoId;
+  }
+
+  private static boolean isEqual(@Nullable Object a, @Nullable Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
   boolean isStale() {
     return stale;
   }
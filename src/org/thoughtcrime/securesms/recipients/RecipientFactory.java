@@ -21,6 +21,7 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
+import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
@@ -137,4 +138,18 @@ public class RecipientFactory {
     provider.clearCache();
   }
 
+  public static void clearCache(Context context, @NonNull byte[] groupId) {
+    provider.clearCache(context, GroupUtil.getEncodedId(groupId));
+  }
+
+  /**
+   * Re-resolves the cached recipients against the system contacts, updating only those that
+   * changed.
+   *
+   * @return the number of recipients that changed.
+   */
+  public static int refreshContacts(Context context) {
+    return provider.refreshContacts(context);
+  }
+
 }
@@ -34,34 +34,53 @@ import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.RecipientPreferenceDatabase.RecipientsPreferences;
+import org.thoughtcrime.securesms.recipients.ContactNumberMatcher.Match;
 import org.thoughtcrime.securesms.util.GroupUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.BoundedConcurrentCache;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
 
+/**
+ * Resolves recipient ids to contact details, caching the results.  Cache reads never lock.
+ *
+ * Asynchronous lookups are queued and resolved together: the resolver thread drains whatever
+ * has piled up (newest first) and matches it against the contacts in one query, so opening a
+ * long conversation list costs a handful of queries rather than one per thread.  Small batches
+ * still use a single {@link PhoneLookup} each.
+ */
 public class RecipientProvider {
 
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final RecipientsCache recipientsCache        = new RecipientsCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final int CACHE_SIZE      = 1000;
+  private static final int MAX_BATCH_SIZE  = 200;
+  private static final int BULK_MATCH_SIZE = 8;
+
+  private static final BoundedConcurrentCache<Long, Recipient>          recipientCache         = new BoundedConcurrentCache<>(CACHE_SIZE);
+  private static final BoundedConcurrentCache<RecipientIds, Recipients> recipientsCache        = new BoundedConcurrentCache<>(CACHE_SIZE);
+  private static final BlockingDeque<PendingLookup>                     pendingLookups         = new LinkedBlockingDeque<>();
+  private static final ExecutorService                                  asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
     PhoneLookup.LOOKUP_KEY,
     PhoneLookup._ID,
-    PhoneLookup.NUMBER
+    PhoneLookup.NUMBER,
+    PhoneLookup.PHOTO_ID
   };
 
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
@@ -82,7 +101,7 @@ public class RecipientProvider {
       cachedRecipient = new Recipient(recipientId, getRecipientDetailsSync(context, recipientId, number));
     }
 
-    recipientCache.set(recipientId, cachedRecipient);
+    recipientCache.put(recipientId, cachedRecipient);
     return cachedRecipient;
   }
 
@@ -90,6 +109,10 @@ public class RecipientProvider {
     Recipients cachedRecipients = recipientsCache.get(new RecipientIds(recipientIds));
     if (cachedRecipients != null && !cachedRecipients.isStale()) return cachedRecipients;
 
+    if (!asynchronous && recipientIds.length > 1) {
+      resolveUncached(context, recipientIds);
+    }
+
     List<Recipient> recipientList = new LinkedList<>();
 
     for (long recipientId : recipientIds) {
@@ -99,29 +122,107 @@ public class RecipientProvider {
     if (asynchronous) cachedRecipients = new Recipients(recipientList, cachedRecipients, getRecipientsPreferencesAsync(context, recipientIds));
     else              cachedRecipients = new Recipients(recipientList, getRecipientsPreferencesSync(context, recipientIds));
 
-    recipientsCache.set(new RecipientIds(recipientIds), cachedRecipients);
+    recipientsCache.put(new RecipientIds(recipientIds), cachedRecipients);
     return cachedRecipients;
   }
 
   void clearCache() {
-    recipientCache.reset();
-    recipientsCache.reset();
+    for (Recipient recipient : recipientCache.values()) {
+      recipient.setStale();
+    }
+
+    for (Recipients recipients : recipientsCache.values()) {
+      recipients.setStale();
+    }
+  }
+
+  /**
+   * Invalidates the cached recipient for one group, and every cached recipient set containing it.
+   */
+  void clearCache(Context context, @NonNull String encodedGroupId) {
+    long      recipientId = CanonicalAddressDatabase.getInstance(context).getCanonicalAddressId(encodedGroupId);
+    Recipient recipient   = recipientCache.get(recipientId);
+
+    if (recipient != null) {
+      recipient.setStale();
+    }
+
+    for (Recipients recipients : recipientsCache.values()) {
+      for (Recipient member : recipients.getRecipientsList()) {
+        if (member.getRecipientId() == recipientId) {
+          recipients.setStale();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Re-resolves every cached individual recipient against the contacts in bulk and updates, in
+   * place, only the ones whose contact details actually changed.
+   *
+   * @return the number of recipients that changed.
+   */
+  int refreshContacts(Context context) {
+    CanonicalAddressDatabase canonicalAddressDatabase = CanonicalAddressDatabase.getInstance(context);
+    List<PendingLookup>      lookups                  = new LinkedList<>();
+    Map<Long, Recipient>     recipients               = new HashMap<>();
+
+    for (Recipient recipient : recipientCache.values()) {
+      if (recipient.isStale() || recipient.isGroupRecipient()) continue;
+
+      long   recipientId = recipient.getRecipientId();
+      String number      = canonicalAddressDatabase.getAddressFromId(recipientId);
+
+      recipients.put(recipientId, recipient);
+      lookups.add(new PendingLookup(context, recipientId, number));
+    }
+
+    Map<Long, RecipientDetails> resolved = resolveDetails(context, lookups, true);
+    int                         changed  = 0;
+
+    for (Map.Entry<Long, RecipientDetails> entry : resolved.entrySet()) {
+      Recipient recipient = recipients.get(entry.getKey());
+
+      if (!recipient.hasDetails(entry.getValue())) {
+        recipient.updateDetails(entry.getValue());
+        changed++;
+      }
+    }
+
+    Log.w(TAG, "Refreshed " + lookups.size() + " recipients, " + changed + " changed.");
+    return changed;
+  }
+
+  private void resolveUncached(Context context, long[] recipientIds) {
+    CanonicalAddressDatabase canonicalAddressDatabase = CanonicalAddressDatabase.getInstance(context);
+    List<PendingLookup>      lookups                  = new LinkedList<>();
+
+    for (long recipientId : recipientIds) {
+      Recipient cached = recipientCache.get(recipientId);
+
+      if (cached == null || cached.isStale()) {
+        lookups.add(new PendingLookup(context, recipientId, canonicalAddressDatabase.getAddressFromId(recipientId)));
+      }
+    }
+
+    if (lookups.size() < 2) return;
+
+    for (Map.Entry<Long, RecipientDetails> entry : resolveDetails(context, lookups, false).entrySet()) {
+      recipientCache.put(entry.getKey(), new Recipient(entry.getKey(), entry.getValue()));
+    }
   }
 
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context,
                                                                                    final long recipientId,
                                                                                    final @NonNull String number)
   {
-    Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
-      @Override
-      public RecipientDetails call() throws Exception {
-        return getRecipientDetailsSync(context, recipientId, number);
-      }
-    };
+    PendingLookup lookup = new PendingLookup(context, recipientId, number);
 
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
-    asyncRecipientResolver.submit(future);
-    return future;
+    pendingLookups.addFirst(lookup);
+    asyncRecipientResolver.execute(new BatchLookupTask(context));
+
+    return lookup.future;
   }
 
   private @NonNull RecipientDetails getRecipientDetailsSync(Context context, long recipientId, @NonNull String number) {
@@ -129,28 +230,73 @@ public class RecipientProvider {
     else                                  return getIndividualRecipientDetails(context, recipientId, number);
   }
 
+  /**
+   * Resolves a batch of lookups, matching the individual numbers against the contacts in a
+   * single query when there are enough of them (or when <code>forceBulk</code> is set).
+   */
+  private @NonNull Map<Long, RecipientDetails> resolveDetails(Context context, List<PendingLookup> lookups, boolean forceBulk) {
+    Map<Long, RecipientDetails> results     = new HashMap<>();
+    Set<String>                 individuals = new HashSet<>();
+
+    for (PendingLookup lookup : lookups) {
+      if (!GroupUtil.isEncodedGroup(lookup.number)) individuals.add(lookup.number);
+    }
+
+    if (individuals.size() < BULK_MATCH_SIZE && !forceBulk) {
+      for (PendingLookup lookup : lookups) {
+        results.put(lookup.recipientId, getRecipientDetailsSync(context, lookup.recipientId, lookup.number));
+      }
+
+      return results;
+    }
+
+    Map<String, Match> matches = ContactNumberMatcher.match(context, individuals);
+
+    for (PendingLookup lookup : lookups) {
+      if (GroupUtil.isEncodedGroup(lookup.number)) {
+        results.put(lookup.recipientId, getGroupRecipientDetails(context, lookup.number));
+      } else {
+        results.put(lookup.recipientId, getIndividualRecipientDetails(context, lookup.recipientId, lookup.number,
+                                                                      matches.get(lookup.number)));
+      }
+    }
+
+    return results;
+  }
+
   private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, long recipientId, @NonNull String number) {
-    Optional<RecipientsPreferences> preferences = DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(new long[]{recipientId});
-    MaterialColor                   color       = preferences.isPresent() ? preferences.get().getColor() : null;
-    Uri                             uri         = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
-    Cursor                          cursor      = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
-                                                                                     null, null, null);
+    Uri    uri    = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+    Cursor cursor = context.getContentResolver().query(uri, CALLER_ID_PROJECTION, null, null, null);
+    Match  match  = null;
 
     try {
       if (cursor != null && cursor.moveToFirst()) {
-        Uri          contactUri   = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
-        String       name         = cursor.getString(3).equals(cursor.getString(0)) ? null : cursor.getString(0);
-        ContactPhoto contactPhoto = ContactPhotoFactory.getContactPhoto(context,
-                                                                        Uri.withAppendedPath(Contacts.CONTENT_URI, cursor.getLong(2) + ""),
-                                                                        name);
-
-        return new RecipientDetails(cursor.getString(0), cursor.getString(3), contactUri, contactPhoto, color);
+        match = new Match(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getString(3), cursor.getLong(4));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
 
+    return getIndividualRecipientDetails(context, recipientId, number, match);
+  }
+
+  private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, long recipientId,
+                                                                  @NonNull String number, @Nullable Match match)
+  {
+    Optional<RecipientsPreferences> preferences = DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(new long[]{recipientId});
+    MaterialColor                   color       = preferences.isPresent() ? preferences.get().getColor() : null;
+
+    if (match != null) {
+      Uri          contactUri   = Contacts.getLookupUri(match.contactId, match.lookupKey);
+      String       name         = match.number.equals(match.name) ? null : match.name;
+      ContactPhoto contactPhoto = ContactPhotoFactory.getContactPhoto(context,
+                                                                      Uri.withAppendedPath(Contacts.CONTENT_URI, match.contactId + ""),
+                                                                      name);
+
+      return new RecipientDetails(match.name, match.number, contactUri, contactPhoto, color, match.photoId);
+    }
+
     if (STATIC_DETAILS.containsKey(number)) return STATIC_DETAILS.get(number);
     else                                    return new RecipientDetails(null, number, null, ContactPhotoFactory.getDefaultContactPhoto(null), color);
   }
@@ -197,16 +343,25 @@ public class RecipientProvider {
     @NonNull  public final ContactPhoto  avatar;
     @Nullable public final Uri           contactUri;
     @Nullable public final MaterialColor color;
+                     final long          photoId;
 
     public RecipientDetails(@Nullable String name, @NonNull String number,
                             @Nullable Uri contactUri, @NonNull ContactPhoto avatar,
                             @Nullable MaterialColor color)
+    {
+      this(name, number, contactUri, avatar, color, 0);
+    }
+
+    RecipientDetails(@Nullable String name, @NonNull String number,
+                     @Nullable Uri contactUri, @NonNull ContactPhoto avatar,
+                     @Nullable MaterialColor color, long photoId)
     {
       this.name       = name;
       this.number     = number;
       this.avatar     = avatar;
       this.contactUri = contactUri;
       this.color      = color;
+      this.photoId    = photoId;
     }
   }
 
@@ -227,46 +382,55 @@ public class RecipientProvider {
     }
   }
 
-  private static class RecipientCache {
+  private class PendingLookup implements Callable<RecipientDetails> {
+    private final Context                                context;
+    private final long                                   recipientId;
+    private final String                                 number;
+    private final ListenableFutureTask<RecipientDetails> future;
 
-    private final Map<Long,Recipient> cache = new LRUCache<>(1000);
+    private volatile RecipientDetails resolved;
 
-    public synchronized Recipient get(long recipientId) {
-      return cache.get(recipientId);
+    private PendingLookup(Context context, long recipientId, String number) {
+      this.context     = context;
+      this.recipientId = recipientId;
+      this.number      = number;
+      this.future      = new ListenableFutureTask<>(this);
     }
 
-    public synchronized void set(long recipientId, Recipient recipient) {
-      cache.put(recipientId, recipient);
+    @Override
+    public RecipientDetails call() throws Exception {
+      if (resolved != null) return resolved;
+      else                  return getRecipientDetailsSync(context, recipientId, number);
     }
+  }
 
-    public synchronized void reset() {
-      for (Recipient recipient : cache.values()) {
-        recipient.setStale();
-      }
-    }
+  private class BatchLookupTask implements Runnable {
+    private final Context context;
 
-  }
+    private BatchLookupTask(Context context) {
+      this.context = context;
+    }
 
-  private static class RecipientsCache {
+    @Override
+    public void run() {
+      List<PendingLookup> batch = new LinkedList<>();
+      pendingLookups.drainTo(batch, MAX_BATCH_SIZE);
 
-    private final Map<RecipientIds,Recipients> cache = new LRUCache<>(1000);
+      if (batch.isEmpty()) return;
 
-    public synchronized Recipients get(RecipientIds ids) {
-      return cache.get(ids);
-    }
+      try {
+        Map<Long, RecipientDetails> resolved = resolveDetails(context, batch, false);
 
-    public synchronized void set(RecipientIds ids, Recipients recipients) {
-      cache.put(ids, recipients);
-    }
+        for (PendingLookup lookup : batch) {
+          lookup.resolved = resolved.get(lookup.recipientId);
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      }
 
-    public synchronized void reset() {
-      for (Recipients recipients : cache.values()) {
-        recipients.setStale();
+      for (PendingLookup lookup : batch) {
+        lookup.future.run();
       }
     }
-
   }
-
-
-
-}
\ No newline at end of file
+}
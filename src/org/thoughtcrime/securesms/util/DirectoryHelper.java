@@ -87,9 +87,13 @@ public class DirectoryHelper {
                                                        @NonNull String localNumber)
       throws IOException
   {
+    long                      start                  = System.currentTimeMillis();
     TextSecureDirectory       directory              = TextSecureDirectory.getInstance(context);
     Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-    List<ContactTokenDetails> activeTokens           = accountManager.getContacts(eligibleContactNumbers);
+
+    Log.w(TAG, "Collected " + eligibleContactNumbers.size() + " eligible numbers in " + (System.currentTimeMillis() - start) + "ms");
+
+    List<ContactTokenDetails> activeTokens = accountManager.getContacts(eligibleContactNumbers);
 
     if (activeTokens != null) {
       for (ContactTokenDetails activeToken : activeTokens) {
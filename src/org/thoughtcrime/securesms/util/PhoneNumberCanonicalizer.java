@@ -0,0 +1,73 @@
+package org.thoughtcrime.securesms.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.util.concurrent.BoundedConcurrentCache;
+import org.whispersystems.signalservice.api.util.InvalidNumberException;
+import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
+
+/**
+ * Memoizes {@link PhoneNumberFormatter#formatNumber(String, String)}, which parses every number
+ * with libphonenumber and is called over and over for the same handful of addresses.
+ *
+ * The result only depends on the raw number and on the region of the local number, so mappings
+ * are kept in one bounded cache per local number, which is replaced if the local number changes.
+ * Numbers that fail to parse are remembered as well, and fail again without being re-parsed.
+ */
+public class PhoneNumberCanonicalizer {
+
+  private static final int    CACHE_SIZE = 5000;
+  private static final String INVALID    = "";
+
+  private static volatile RegionCache regionCache = new RegionCache(null);
+
+  public static @NonNull String canonicalize(@NonNull String number, @Nullable String localNumber)
+      throws InvalidNumberException
+  {
+    RegionCache cache  = getRegionCache(localNumber);
+    String      cached = cache.numbers.get(number);
+
+    if (cached != null) {
+      if (cached.isEmpty()) throw new InvalidNumberException("Invalid number: " + number);
+      else                  return cached;
+    }
+
+    try {
+      String e164number = PhoneNumberFormatter.formatNumber(number, localNumber);
+      cache.numbers.put(number, e164number);
+      return e164number;
+    } catch (InvalidNumberException e) {
+      cache.numbers.put(number, INVALID);
+      throw e;
+    }
+  }
+
+  public static void clear() {
+    regionCache = new RegionCache(null);
+  }
+
+  private static RegionCache getRegionCache(@Nullable String localNumber) {
+    RegionCache cache = regionCache;
+
+    if (!cache.isFor(localNumber)) {
+      cache       = new RegionCache(localNumber);
+      regionCache = cache;
+    }
+
+    return cache;
+  }
+
+  private static class RegionCache {
+    private final @Nullable String                                 localNumber;
+    private final           BoundedConcurrentCache<String, String> numbers = new BoundedConcurrentCache<>(CACHE_SIZE);
+
+    RegionCache(@Nullable String localNumber) {
+      this.localNumber = localNumber;
+    }
+
+    boolean isFor(@Nullable String localNumber) {
+      return this.localNumber == null ? localNumber == null : this.localNumber.equals(localNumber);
+    }
+  }
+}
@@ -154,6 +154,14 @@ public class Util {
     }
   }
 
+  public static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ie) {
+      throw new AssertionError(ie);
+    }
+  }
+
   public static void wait(Object lock, long timeout) {
     try {
       lock.wait(timeout);
@@ -174,7 +182,7 @@ public class Util {
       throws InvalidNumberException
   {
     String localNumber = TextSecurePreferences.getLocalNumber(context);
-    return PhoneNumberFormatter.formatNumber(number, localNumber);
+    return PhoneNumberCanonicalizer.canonicalize(number, localNumber);
   }
 
   public static String canonicalizeNumberOrGroup(@NonNull Context context, @NonNull String number)
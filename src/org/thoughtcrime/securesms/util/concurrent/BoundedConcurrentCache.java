@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.util.concurrent;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A size-bounded map that never locks on reads.  When it grows past its bound the oldest
+ * insertions are evicted first; unlike an access-ordered LRU a read doesn't reorder anything,
+ * which is what lets it go without a lock.
+ */
+public class BoundedConcurrentCache<K, V> {
+
+  private final int                     maxSize;
+  private final ConcurrentHashMap<K, V> cache          = new ConcurrentHashMap<>();
+  private final Queue<K>                insertionOrder = new ConcurrentLinkedQueue<>();
+
+  public BoundedConcurrentCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    return cache.get(key);
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    if (cache.put(key, value) == null) {
+      insertionOrder.add(key);
+    }
+
+    while (cache.size() > maxSize) {
+      K eldest = insertionOrder.poll();
+
+      if (eldest == null) break;
+      cache.remove(eldest);
+    }
+  }
+
+  public void remove(@NonNull K key) {
+    if (cache.remove(key) != null) {
+      insertionOrder.remove(key);
+    }
+  }
+
+  public void clear() {
+    cache.clear();
+    insertionOrder.clear();
+  }
+
+  /**
+   * @return a weakly consistent view of the cached values.
+   */
+  public @NonNull Collection<V> values() {
+    return cache.values();
+  }
+
+}
@@ -0,0 +1,25 @@
+package org.thoughtcrime.securesms.util.concurrent;
+
+/**
+ * A fixed set of monitors that keys are hashed onto, so that unrelated keys rarely contend
+ * without having to allocate (or ever clean up) a lock per key.
+ */
+public class StripedLock {
+
+  private final Object[] stripes;
+
+  public StripedLock(int stripeCount) {
+    this.stripes = new Object[stripeCount];
+
+    for (int i=0;i<stripeCount;i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  public Object get(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+}
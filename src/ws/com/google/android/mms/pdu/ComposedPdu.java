@@ -0,0 +1,174 @@
+package ws.com.google.android.mms.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PDU made by {@link PduComposer#make(PduComposer.PartDataSource)}.  The encoded headers are
+ * held in memory, but the bodies of parts backed by the {@link PduComposer.PartDataSource} are
+ * only referenced, and are read from the source each time the PDU is written.  Its length is
+ * known up front, so it can be sent with a fixed Content-Length.
+ */
+public class ComposedPdu {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PduComposer.PartDataSource mSource;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+
+    private long mLength = 0;
+
+    ComposedPdu(PduComposer.PartDataSource source) {
+        mSource = source;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Writes the whole PDU.  The source's streams are opened one part at a time, so only a small
+     * copy buffer is held regardless of how large the parts are.
+     *
+     * @throws IOException if a part no longer has the length it had when the PDU was composed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = null;
+
+        for (Segment segment : mSegments) {
+            if (segment.bytes != null) {
+                out.write(segment.bytes);
+                continue;
+            }
+
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+
+            InputStream in = mSource.open(segment.part);
+
+            try {
+                long remaining = segment.length;
+
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new IOException("Part ended " + remaining + " bytes early");
+                    }
+
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+
+                if (in.read() != -1) {
+                    throw new IOException("Part is longer than when it was composed");
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @return a new stream over the whole PDU, which opens each part's source only when the
+     *         stream reaches it.  It fails the same way {@link #writeTo(OutputStream)} does if a
+     *         part's length has changed.
+     */
+    public InputStream openStream() {
+        return new ComposedPduInputStream();
+    }
+
+    void addBytes(byte[] bytes) {
+        if (bytes.length == 0) return;
+
+        mSegments.add(new Segment(bytes, null, bytes.length));
+        mLength += bytes.length;
+    }
+
+    void addPart(PduPart part, long length) {
+        mSegments.add(new Segment(null, part, length));
+        mLength += length;
+    }
+
+    private class ComposedPduInputStream extends InputStream {
+
+        private int mSegmentIndex = 0;
+        private InputStream mSegmentStream = null;
+        private long mSegmentRemaining = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+
+            return read == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+
+            while (mSegmentRemaining == 0) {
+                if (mSegmentStream != null) {
+                    finishSegment();
+                }
+
+                if (mSegmentIndex == mSegments.size()) {
+                    return -1;
+                }
+
+                Segment segment = mSegments.get(mSegmentIndex++);
+
+                mSegmentStream = segment.bytes != null ? new ByteArrayInputStream(segment.bytes)
+                                                       : mSource.open(segment.part);
+                mSegmentRemaining = segment.length;
+            }
+
+            int read = mSegmentStream.read(buffer, offset, (int) Math.min(length, mSegmentRemaining));
+            if (read == -1) {
+                throw new IOException("Part ended " + mSegmentRemaining + " bytes early");
+            }
+
+            mSegmentRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSegmentIndex = mSegments.size();
+            mSegmentRemaining = 0;
+
+            if (mSegmentStream != null) {
+                mSegmentStream.close();
+                mSegmentStream = null;
+            }
+        }
+
+        private void finishSegment() throws IOException {
+            try {
+                if (mSegmentStream.read() != -1) {
+                    throw new IOException("Part is longer than when it was composed");
+                }
+            } finally {
+                mSegmentStream.close();
+                mSegmentStream = null;
+            }
+        }
+    }
+
+    private static class Segment {
+        final byte[] bytes;
+        final PduPart part;
+        final long length;
+
+        Segment(byte[] bytes, PduPart part, long length) {
+            this.bytes = bytes;
+            this.part = part;
+            this.length = length;
+        }
+    }
+}
@@ -112,6 +112,16 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * Where part bodies are read from when streaming, or null.
+     */
+    private PartDataSource mPartDataSource = null;
+
+    /**
+     * The streamed message, or null.
+     */
+    private ComposedPdu mComposedPdu = null;
+
     /**
      * Map of all content type
      */
@@ -149,6 +159,39 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        if (!compose()) {
+            return null;
+        }
+
+        Log.w("PduComposer", "Returning: " + mMessage.size() + " bytes...");
+
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message without holding the bodies of parts that have a data
+     * uri in memory. Their lengths are taken from <code>source</code> up
+     * front, and their contents are read from it again whenever the result
+     * is written.
+     *
+     * @return the composed message, or null if the PDU is invalid.
+     */
+    public ComposedPdu make(PartDataSource source) {
+        mPartDataSource = source;
+        mComposedPdu = new ComposedPdu(source);
+
+        if (!compose()) {
+            return null;
+        }
+
+        flushSegment();
+
+        Log.w("PduComposer", "Returning: " + mComposedPdu.getLength() + " streamed bytes...");
+
+        return mComposedPdu;
+    }
+
+    private boolean compose() {
         // Get Message-type.
         int type = mPdu.getMessageType();
 
@@ -156,31 +199,38 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
                 if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
                 if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
                 if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
                 if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             default:
-                return null;
+                return false;
         }
 
-        Log.w("PduComposer", "Returning: " + mMessage.size() + " bytes...");
+        return true;
+    }
 
-        return mMessage.toByteArray();
+    /**
+     * Move what has been appended to mMessage so far into mComposedPdu.
+     * Only valid at the top of the buffer stack.
+     */
+    private void flushSegment() {
+        mComposedPdu.addBytes(mMessage.toByteArray());
+        mMessage.reset();
     }
 
     /**
@@ -983,12 +1033,20 @@ public class PduComposer {
             // content
             int headerLength = attachment.getLength();
 
-            int dataLength = 0; // Just for safety...
+            long dataLength = 0; // Just for safety...
             byte[] partData = part.getData();
+            boolean streamed = false;
 
             if (partData != null) {
                 arraycopy(partData, 0, partData.length);
                 dataLength = partData.length;
+            } else if (mPartDataSource != null) {
+                try {
+                    dataLength = mPartDataSource.getLength(part);
+                    streamed = true;
+                } catch (IOException e) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
             } else {
                 InputStream cr;
                 try {
@@ -1009,7 +1067,7 @@ public class PduComposer {
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
+            if (!streamed && dataLength != (attachment.getLength() - headerLength)) {
                 throw new RuntimeException("BUG: Length sanity check failed");
             }
 
@@ -1017,6 +1075,13 @@ public class PduComposer {
             appendUintvarInteger(headerLength);
             appendUintvarInteger(dataLength);
             mStack.copy();
+
+            if (streamed) {
+                // The part's headers were copied up to the top level buffer,
+                // the body follows them when the message is written out.
+                flushSegment();
+                mComposedPdu.addPart(part, dataLength);
+            }
         }
 
         return PDU_COMPOSE_SUCCESS;
@@ -1181,4 +1246,21 @@ public class PduComposer {
             return PDU_UNKNOWN_ADDRESS_TYPE;
         }
     }
+
+    /**
+     * Supplies the bodies of parts that have a data uri, for
+     * {@link #make(PartDataSource)}.
+     */
+    public interface PartDataSource {
+        /**
+         * @return the exact number of bytes {@link #open(PduPart)} will return.
+         */
+        long getLength(PduPart part) throws IOException;
+
+        /**
+         * Opens the part's body. This can be called more than once, if the
+         * message is sent again.
+         */
+        InputStream open(PduPart part) throws IOException;
+    }
 }
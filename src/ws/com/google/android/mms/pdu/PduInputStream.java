@@ -0,0 +1,264 @@
+package ws.com.google.android.mms.pdu;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The stream {@link PduParser} reads from.  It offers the same non-throwing read, mark/reset and
+ * available() calls the parser used to make on a {@link ByteArrayInputStream}, but pulls from
+ * any InputStream, so a PDU no longer has to be in memory before it can be parsed.
+ *
+ * Only the bytes read since the last mark are kept around to support reset(), and only up to
+ * {@link #MAX_MARK_LENGTH}; the parser never looks further ahead than a few header bytes.  A read
+ * error is remembered and then reported as the end of the stream, so that the parser's usual
+ * checks unwind it; callers retrieve it from {@link #getError()}.
+ */
+public class PduInputStream {
+
+    private static final String TAG = "PduInputStream";
+
+    static final int MAX_MARK_LENGTH = 4096;
+
+    private final InputStream mInputStream;
+    private final long mLength;
+
+    private byte[] mMarkBuffer = new byte[64];
+    private int mMarkBufferLength = 0;
+    private int mMarkBufferPosition = 0;
+    private boolean mMarked = false;
+    private long mMarkPosition = 0;
+
+    private long mPosition = 0;
+    private boolean mEndOfStream = false;
+    private IOException mError = null;
+
+    public PduInputStream(byte[] data) {
+        this(new ByteArrayInputStream(data), data.length);
+    }
+
+    /**
+     * @param inputStream the PDU
+     * @param length the PDU's length in bytes, or -1 if it isn't known ahead of time
+     */
+    public PduInputStream(InputStream inputStream, long length) {
+        mInputStream = inputStream;
+        mLength = length;
+    }
+
+    public int read() {
+        if (mMarkBufferPosition < mMarkBufferLength) {
+            mPosition++;
+            return mMarkBuffer[mMarkBufferPosition++] & 0xFF;
+        }
+
+        int value = readUnderlying();
+
+        if (value != -1) {
+            mPosition++;
+            record(value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, like
+     * {@link ByteArrayInputStream#read(byte[], int, int)} does.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int read(byte[] buffer, int offset, int length) {
+        int total = 0;
+
+        while (total < length) {
+            int read = readChunk(buffer, offset + total, length - total);
+            if (read == -1) break;
+
+            total += read;
+        }
+
+        return (total == 0 && length > 0) ? -1 : total;
+    }
+
+    /**
+     * Copies the next <code>length</code> bytes to <code>out</code> without holding them all in
+     * memory.
+     *
+     * @return the number of bytes copied, which is short only if the stream ended first
+     */
+    public long copyTo(OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(length, 8192)];
+        long total = 0;
+
+        while (total < length) {
+            int read = readChunk(buffer, 0, (int) Math.min(buffer.length, length - total));
+            if (read == -1) break;
+
+            out.write(buffer, 0, read);
+            total += read;
+        }
+
+        return total;
+    }
+
+    public long skip(long count) {
+        byte[] buffer = new byte[(int) Math.min(Math.max(count, 0), 8192)];
+        long total = 0;
+
+        while (total < count) {
+            int read = readChunk(buffer, 0, (int) Math.min(buffer.length, count - total));
+            if (read == -1) break;
+
+            total += read;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return the bytes left when the length is known.  Otherwise a value that still shrinks by
+     *         one for each byte read, and is 0 once the stream has ended.
+     */
+    public int available() {
+        if (mLength >= 0) {
+            return (int) Math.max(0, mLength - mPosition);
+        }
+
+        return hasMore() ? (int) (Integer.MAX_VALUE - mPosition) : 0;
+    }
+
+    public void mark(int readLimit) {
+        int pending = mMarkBufferLength - mMarkBufferPosition;
+
+        if (pending > 0 && mMarkBufferPosition > 0) {
+            System.arraycopy(mMarkBuffer, mMarkBufferPosition, mMarkBuffer, 0, pending);
+        }
+
+        mMarkBufferLength = pending;
+        mMarkBufferPosition = 0;
+        mMarkPosition = mPosition;
+        mMarked = true;
+    }
+
+    public void reset() {
+        if (!mMarked) {
+            setError(new IOException("Reset past the end of the mark buffer!"));
+            mMarkBufferLength = mMarkBufferPosition = 0;
+            return;
+        }
+
+        mMarkBufferPosition = 0;
+        mPosition = mMarkPosition;
+    }
+
+    /**
+     * @return the error that ended the stream early, if any
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    void setError(IOException error) {
+        Log.w(TAG, error);
+
+        if (mError == null) {
+            mError = error;
+        }
+    }
+
+    private int readChunk(byte[] buffer, int offset, int length) {
+        if (length == 0) return 0;
+
+        if (mMarkBufferPosition < mMarkBufferLength) {
+            int count = Math.min(length, mMarkBufferLength - mMarkBufferPosition);
+            System.arraycopy(mMarkBuffer, mMarkBufferPosition, buffer, offset, count);
+
+            mMarkBufferPosition += count;
+            mPosition += count;
+            return count;
+        }
+
+        if (mEndOfStream || mError != null) return -1;
+
+        try {
+            int read = mInputStream.read(buffer, offset, length);
+
+            if (read == -1) {
+                mEndOfStream = true;
+                return -1;
+            }
+
+            for (int i = 0; i < read && mMarked; i++) {
+                record(buffer[offset + i]);
+            }
+
+            mPosition += read;
+            return read;
+        } catch (IOException e) {
+            setError(e);
+            return -1;
+        }
+    }
+
+    private int readUnderlying() {
+        if (mEndOfStream || mError != null) return -1;
+
+        try {
+            int value = mInputStream.read();
+            if (value == -1) mEndOfStream = true;
+
+            return value;
+        } catch (IOException e) {
+            setError(e);
+            return -1;
+        }
+    }
+
+    /**
+     * Looks one byte ahead without consuming it or disturbing the mark.
+     */
+    private boolean hasMore() {
+        if (mMarkBufferPosition < mMarkBufferLength) return true;
+
+        int value = readUnderlying();
+        if (value == -1) return false;
+
+        if (!mMarked || mMarkBufferLength == MAX_MARK_LENGTH) {
+            mMarked = false;
+            mMarkBufferLength = mMarkBufferPosition = 0;
+        }
+
+        append(value);
+        return true;
+    }
+
+    private void record(int value) {
+        if (!mMarked) {
+            mMarkBufferLength = mMarkBufferPosition = 0;
+            return;
+        }
+
+        if (mMarkBufferLength == MAX_MARK_LENGTH) {
+            mMarked = false;
+            mMarkBufferLength = mMarkBufferPosition = 0;
+            return;
+        }
+
+        append(value);
+        mMarkBufferPosition++;
+    }
+
+    private void append(int value) {
+        if (mMarkBufferLength == mMarkBuffer.length) {
+            byte[] grown = new byte[Math.min(mMarkBuffer.length * 2, MAX_MARK_LENGTH)];
+            System.arraycopy(mMarkBuffer, 0, grown, 0, mMarkBufferLength);
+            mMarkBuffer = grown;
+        }
+
+        mMarkBuffer[mMarkBufferLength++] = (byte) value;
+    }
+}
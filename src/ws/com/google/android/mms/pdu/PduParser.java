@@ -23,8 +23,10 @@ import android.util.Log;
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.InvalidHeaderValueException;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -57,7 +59,12 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduInputStream mPduDataStream = null;
+
+    /**
+     * Where part data is written as it is parsed, instead of into memory.
+     */
+    private PartDataSink mPartDataSink = null;
 
     /**
      * Store pdu headers
@@ -91,7 +98,28 @@ public class PduParser {
      * @param pduDataStream pdu data to be parsed
      */
     public PduParser(byte[] pduDataStream) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new PduInputStream(pduDataStream);
+    }
+
+    /**
+     * Constructor for parsing a pdu as it is read, without holding it in memory.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param length the length of the pdu, or -1 if it is not known
+     * @param partDataSink where to write part data to, or null to keep it in memory
+     */
+    public PduParser(InputStream pduDataStream, long length, PartDataSink partDataSink) {
+        mPduDataStream = new PduInputStream(pduDataStream, length);
+        mPartDataSink = partDataSink;
+    }
+
+    /**
+     * @return the error that cut the pdu data short, if any.  When there is one,
+     *         {@link #parse()} has returned null or an incomplete pdu and the result
+     *         should not be used.
+     */
+    public IOException getStreamError() {
+        return mPduDataStream.getError();
     }
 
     /**
@@ -127,7 +155,7 @@ public class PduParser {
                 (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType)) {
             /* need to parse the parts */
             Log.w("PduParser", "Parsing parts...");
-            mBody = parseParts(mPduDataStream);
+            mBody = parseParts(mPduDataStream, mPartDataSink);
             if (null == mBody) {
                 // Parse parts failed.
                 return null;
@@ -202,7 +230,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    protected PduHeaders parseHeaders(PduInputStream pduDataStream){
         if (pduDataStream == null) {
             return null;
         }
@@ -734,7 +762,18 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected static PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected static PduBody parseParts(PduInputStream pduDataStream) {
+        return parseParts(pduDataStream, null);
+    }
+
+    /**
+     * Parse pdu parts, handing the data of each part the sink accepts to it.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param partDataSink where to write part data to, or null to keep it in memory
+     * @return parts in PduBody structure
+     */
+    protected static PduBody parseParts(PduInputStream pduDataStream, PartDataSink partDataSink) {
         if (pduDataStream == null) {
             return null;
         }
@@ -799,34 +838,66 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
-                if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
-                    // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
-                    // take the first part of children.
-                    part = childBody.getPart(0);
-                } else {
-                    // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
-                        }
+                OutputStream partDataOut = null;
+
+                if ((null != partDataSink)
+                        && !partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)
+                        && (null == part.getContentTransferEncoding())) {
+                    try {
+                        partDataOut = partDataSink.open(part, dataLength);
+                    } catch (IOException e) {
+                        pduDataStream.setError(e);
+                        return null;
                     }
-                    if (null == partData) {
-                        log("Decode part data error!");
+                }
+
+                if (null != partDataOut) {
+                    // Spool the data straight to the sink.
+                    try {
+                        long copied;
+                        try {
+                            copied = pduDataStream.copyTo(partDataOut, dataLength);
+                        } finally {
+                            partDataOut.close();
+                        }
+                        if (copied != dataLength) {
+                            log("Part data was truncated!");
+                            return null;
+                        }
+                    } catch (IOException e) {
+                        pduDataStream.setError(e);
                         return null;
                     }
-                    part.setData(partData);
+                } else {
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
+                    if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
+                        // parse "multipart/vnd.wap.multipart.alternative".
+                        PduBody childBody = parseParts(new PduInputStream(partData));
+                        // take the first part of children.
+                        part = childBody.getPart(0);
+                    } else {
+                        // Check Content-Transfer-Encoding.
+                        byte[] partDataEncoding = part.getContentTransferEncoding();
+                        if (null != partDataEncoding) {
+                            String encoding = new String(partDataEncoding);
+                            if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
+                                // Decode "base64" into "binary".
+                                partData = Base64.decodeBase64(partData);
+                            } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                                // Decode "quoted-printable" into "binary".
+                                partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            } else {
+                                // "binary" is the default encoding.
+                            }
+                        }
+                        if (null == partData) {
+                            log("Decode part data error!");
+                            return null;
+                        }
+                        part.setData(partData);
+                    }
                 }
             }
 
@@ -860,7 +931,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -894,7 +965,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -923,7 +994,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    protected static EncodedStringValue parseEncodedStringValue(PduInputStream pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -968,7 +1039,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1090,7 +1161,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1125,7 +1196,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(PduInputStream pduDataStream) {
         assert(null != pduDataStream);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1138,7 +1209,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1158,7 +1229,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1196,7 +1267,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1220,7 +1291,7 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(PduInputStream pduDataStream, int length) {
         assert(null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1239,7 +1310,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(PduInputStream pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1422,7 +1493,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(PduInputStream pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1493,7 +1564,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected static boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected static boolean parsePartHeaders(PduInputStream pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -1916,4 +1987,19 @@ public class PduParser {
 
         return true;
     }
+
+    /**
+     * Receives part data while a pdu is streamed through the parser.
+     */
+    public interface PartDataSink {
+        /**
+         * Called once the headers of a part are parsed, before its data.  The parser writes
+         * the data to the returned stream and closes it.
+         *
+         * @param part the part, whose data uri may be set here
+         * @param length the length of the part data
+         * @return where to write the data, or null to keep it in memory as usual
+         */
+        OutputStream open(PduPart part, int length) throws IOException;
+    }
 }
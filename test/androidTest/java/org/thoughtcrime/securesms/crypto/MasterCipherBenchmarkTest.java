@@ -0,0 +1,144 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares a decrypt that builds its own Cipher and Mac for every call, as every MasterCipher
+ * used to, against the pooled byte[] and ByteBuffer paths.  Timings are logged rather than
+ * asserted.
+ */
+public class MasterCipherBenchmarkTest extends TextSecureTestCase {
+
+  private static final String TAG = MasterCipherBenchmarkTest.class.getSimpleName();
+
+  private static final int[] BODY_SIZES        = {16, 256, 4096, 65536};
+  private static final int   MEASUREMENT_BYTES = 4 * 1024 * 1024;
+  private static final int   MAX_ITERATIONS    = 10000;
+
+  private MasterSecret masterSecret;
+  private MasterCipher masterCipher;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[16], "HmacSHA1"));
+    masterCipher = new MasterCipher(masterSecret);
+  }
+
+  public void testDecrypt() throws Exception {
+    for (int size : BODY_SIZES) {
+      final byte[]     encrypted = masterCipher.encryptBytes(randomBytes(size));
+      final ByteBuffer input     = ByteBuffer.wrap(encrypted);
+      final ByteBuffer output    = ByteBuffer.allocate(MasterCipher.getMaxDecryptedLength(encrypted.length));
+
+      long legacy = measure(size, new Operation() {
+        @Override
+        public void run() throws Exception {
+          legacyDecrypt(encrypted);
+        }
+      });
+
+      long pooled = measure(size, new Operation() {
+        @Override
+        public void run() throws Exception {
+          new MasterCipher(masterSecret).decryptBytes(encrypted);
+        }
+      });
+
+      long buffers = measure(size, new Operation() {
+        @Override
+        public void run() throws Exception {
+          input.rewind();
+          output.clear();
+          masterCipher.decrypt(input, output);
+        }
+      });
+
+      Log.w(TAG, "decrypt " + size + " bytes: legacy " + legacy + "ns, pooled " + pooled + "ns, " +
+                 "buffers " + buffers + "ns per op");
+    }
+  }
+
+  public void testEncrypt() throws Exception {
+    for (int size : BODY_SIZES) {
+      final byte[]     plaintext = randomBytes(size);
+      final ByteBuffer input     = ByteBuffer.wrap(plaintext);
+      final ByteBuffer output    = ByteBuffer.allocate(MasterCipher.getEncryptedLength(size));
+
+      long pooled = measure(size, new Operation() {
+        @Override
+        public void run() throws Exception {
+          new MasterCipher(masterSecret).encryptBytes(plaintext);
+        }
+      });
+
+      long buffers = measure(size, new Operation() {
+        @Override
+        public void run() throws Exception {
+          input.rewind();
+          output.clear();
+          masterCipher.encrypt(input, output);
+        }
+      });
+
+      Log.w(TAG, "encrypt " + size + " bytes: pooled " + pooled + "ns, buffers " + buffers + "ns per op");
+    }
+  }
+
+  private long measure(int size, Operation operation) throws Exception {
+    int iterations = Math.min(MAX_ITERATIONS, Math.max(100, MEASUREMENT_BYTES / size));
+
+    for (int i = 0; i < iterations / 10; i++) {
+      operation.run();
+    }
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; i++) {
+      operation.run();
+    }
+
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  private byte[] legacyDecrypt(byte[] encryptedAndMac) throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    Mac    mac    = Mac.getInstance("HmacSHA1");
+
+    mac.init(masterSecret.getMacKey());
+
+    byte[] encrypted = new byte[encryptedAndMac.length - mac.getMacLength()];
+    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
+
+    byte[] remoteMac = new byte[mac.getMacLength()];
+    System.arraycopy(encryptedAndMac, encrypted.length, remoteMac, 0, remoteMac.length);
+
+    assertTrue(Arrays.equals(remoteMac, mac.doFinal(encrypted)));
+
+    cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(encrypted, 0, 16));
+    return cipher.doFinal(encrypted, 16, encrypted.length - 16);
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares seeking to the end of a large part stored in the legacy single-stream format, which
+ * has to decrypt everything before the seek position, against the chunked seekable format.
+ * Timings are logged rather than asserted.
+ */
+public class SeekablePartFileBenchmarkTest extends TextSecureTestCase {
+
+  private static final String TAG = SeekablePartFileBenchmarkTest.class.getSimpleName();
+
+  private static final int PART_SIZE  = 8 * 1024 * 1024;
+  private static final int ITERATIONS = 10;
+
+  private MasterSecret masterSecret;
+  private File         file;
+  private byte[]       plaintext;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[16], "HmacSHA1"));
+    file         = File.createTempFile("part", ".mms", getInstrumentation().getTargetContext().getCacheDir());
+    plaintext    = new byte[PART_SIZE];
+
+    new Random(1).nextBytes(plaintext);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testSeekToEnd() throws Exception {
+    writeLegacy();
+    long legacy = seekToEnd();
+
+    writeSeekable();
+    long seekable = seekToEnd();
+
+    Log.w(TAG, "seek to end of " + (PART_SIZE / (1024 * 1024)) + "MB part: legacy " + legacy + "ms, " +
+               "seekable " + seekable + "ms");
+  }
+
+  private long seekToEnd() throws IOException {
+    byte[] buffer = new byte[4096];
+    long   start  = System.currentTimeMillis();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      InputStream in        = DecryptingPartInputStream.createFor(file, masterSecret);
+      long        remaining = PART_SIZE - buffer.length;
+
+      while (remaining > 0) {
+        long skipped = in.skip(remaining);
+        assertThat(skipped).isGreaterThan(0);
+        remaining -= skipped;
+      }
+
+      assertThat(in.read(buffer)).isEqualTo(buffer.length);
+      in.close();
+    }
+
+    assertThat(buffer).isEqualTo(Arrays.copyOfRange(plaintext, PART_SIZE - buffer.length, PART_SIZE));
+
+    return (System.currentTimeMillis() - start) / ITERATIONS;
+  }
+
+  private void writeSeekable() throws IOException {
+    EncryptingPartOutputStream out = new EncryptingPartOutputStream(file, masterSecret);
+    out.write(plaintext);
+    out.close();
+  }
+
+  private void writeLegacy() throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    Mac    mac    = Mac.getInstance("HmacSHA1");
+
+    cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+    mac.init(masterSecret.getMacKey());
+
+    byte[] iv         = cipher.getIV();
+    byte[] ciphertext = cipher.doFinal(plaintext);
+
+    mac.update(iv);
+    mac.update(ciphertext);
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(iv);
+    out.write(ciphertext);
+    out.write(mac.doFinal());
+    out.close();
+  }
+}
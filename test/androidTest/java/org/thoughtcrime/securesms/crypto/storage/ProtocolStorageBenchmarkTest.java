@@ -0,0 +1,120 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares load, store and device-listing latency between the legacy file layout and the
+ * database tables.  Timings are logged rather than asserted.
+ */
+public class ProtocolStorageBenchmarkTest extends TextSecureTestCase {
+
+  private static final String TAG = ProtocolStorageBenchmarkTest.class.getSimpleName();
+
+  private static final int    RECIPIENTS = 200;
+  private static final int    DEVICES    = 3;
+  private static final String PREFIX     = "+1555010";
+
+  private File            filesDirectory;
+  private ProtocolStorage fileStorage;
+  private ProtocolStorage databaseStorage;
+  private byte[]          record;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    final Context context = getInstrumentation().getTargetContext();
+
+    filesDirectory  = new File(context.getCacheDir(), "protocol-storage-benchmark");
+    fileStorage     = new FileProtocolStorage(new ContextWrapper(context) {
+      @Override
+      public File getFilesDir() {
+        return filesDirectory;
+      }
+
+      @Override
+      public Context getApplicationContext() {
+        return this;
+      }
+    }, null);
+    databaseStorage = new DatabaseProtocolStorage(context);
+    record          = new byte[1024];
+
+    Arrays.fill(record, (byte)0x42);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (int i = 0; i < RECIPIENTS; i++) {
+      for (int device = 1; device <= DEVICES; device++) {
+        databaseStorage.deleteSession(getAddress(i, device));
+      }
+    }
+
+    deleteRecursively(filesDirectory);
+  }
+
+  public void testFileStorage() throws Exception {
+    runBenchmark("file", fileStorage);
+  }
+
+  public void testDatabaseStorage() throws Exception {
+    runBenchmark("database", databaseStorage);
+  }
+
+  private void runBenchmark(String name, ProtocolStorage storage) {
+    long start = System.nanoTime();
+
+    for (int i = 0; i < RECIPIENTS; i++) {
+      for (int device = 1; device <= DEVICES; device++) {
+        storage.storeSession(getAddress(i, device), record);
+      }
+    }
+
+    long stored = System.nanoTime();
+
+    for (int i = 0; i < RECIPIENTS; i++) {
+      for (int device = 1; device <= DEVICES; device++) {
+        assertThat(storage.loadSession(getAddress(i, device))).isEqualTo(record);
+      }
+    }
+
+    long loaded = System.nanoTime();
+
+    for (int i = 0; i < RECIPIENTS; i++) {
+      assertThat(storage.getSubDeviceSessions(PREFIX + String.format("%04d", i))).hasSize(DEVICES - 1);
+    }
+
+    long listed = System.nanoTime();
+    int  count  = RECIPIENTS * DEVICES;
+
+    Log.w(TAG, name + ": store " + ((stored - start) / count / 1000) + "us, " +
+               "load " + ((loaded - stored) / count / 1000) + "us, " +
+               "list " + ((listed - loaded) / RECIPIENTS / 1000) + "us");
+  }
+
+  private SignalProtocolAddress getAddress(int recipient, int device) {
+    return new SignalProtocolAddress(PREFIX + String.format("%04d", recipient), device);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+
+    if (children != null) {
+      for (File child : children) deleteRecursively(child);
+    }
+
+    file.delete();
+  }
+
+}
@@ -115,4 +115,12 @@ public class CanonicalAddressDatabaseTest extends TextSecureTestCase {
     assertThat(CanonicalAddressDatabase.isNumberAddress("__textsecure_group__!afafafafafaf")).isFalse();
     assertThat(CanonicalAddressDatabase.isNumberAddress("email@domain.com")).isFalse();
   }
+
+  public void testDigitsSuffix() throws Exception {
+    assertThat(CanonicalAddressDatabase.getDigitsSuffix("+1 (222) 333.4444")).isEqualTo("3334444");
+    assertThat(CanonicalAddressDatabase.getDigitsSuffix("222-333-4444")).isEqualTo("3334444");
+    assertThat(CanonicalAddressDatabase.getDigitsSuffix("+49 444 222 3333")).isEqualTo(CanonicalAddressDatabase.getDigitsSuffix(AMBIGUOUS_NUMBER));
+    assertThat(CanonicalAddressDatabase.getDigitsSuffix("12345")).isEqualTo("12345");
+    assertThat(CanonicalAddressDatabase.getDigitsSuffix("222-333-444")).isNotEqualTo(CanonicalAddressDatabase.getDigitsSuffix("222-333-4444"));
+  }
 }
\ No newline at end of file
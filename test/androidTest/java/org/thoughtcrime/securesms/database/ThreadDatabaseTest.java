@@ -0,0 +1,121 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadDatabaseTest extends TextSecureTestCase {
+
+  private ThreadDatabase threadDatabase;
+  private SQLiteDatabase db;
+  private long           threadId;
+  private long           emptyThreadId;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    Context context = getInstrumentation().getTargetContext();
+
+    threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    db             = threadDatabase.databaseHelper.getWritableDatabase();
+    threadId       = insertThread();
+    emptyThreadId  = insertThread();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    db.delete(SmsDatabase.TABLE_NAME, SmsDatabase.THREAD_ID + " = ?", new String[] {String.valueOf(threadId)});
+    db.delete(ThreadDatabase.TABLE_NAME, ThreadDatabase.ID + " IN (?, ?)",
+              new String[] {String.valueOf(threadId), String.valueOf(emptyThreadId)});
+    super.tearDown();
+  }
+
+  public void testRebuildSummariesPicksNewestMessage() throws Exception {
+    insertSms("newest", 3000);
+    insertSms("oldest", 1000);
+    insertSms("middle", 2000);
+
+    rebuildSummaries();
+
+    assertThat(getSnippet(threadId)).isEqualTo("newest");
+    assertThat(getMessageCount(threadId)).isEqualTo(3);
+  }
+
+  public void testRebuildSummariesBreaksTiesByInsertionOrder() throws Exception {
+    insertSms("older", 1000);
+    insertSms("first", 2000);
+    insertSms("second", 2000);
+
+    rebuildSummaries();
+
+    assertThat(getSnippet(threadId)).isEqualTo("second");
+  }
+
+  public void testRebuildSummariesDeletesEmptyThreads() throws Exception {
+    insertSms("message", 1000);
+
+    rebuildSummaries();
+
+    assertThat(threadExists(threadId)).isTrue();
+    assertThat(threadExists(emptyThreadId)).isFalse();
+  }
+
+  private void rebuildSummaries() {
+    Set<Long> threadIds = new HashSet<>();
+    threadIds.add(threadId);
+    threadIds.add(emptyThreadId);
+
+    threadDatabase.rebuildSummaries(threadIds, false);
+  }
+
+  private long insertThread() {
+    ContentValues values = new ContentValues();
+    values.put(ThreadDatabase.RECIPIENT_IDS, "-1");
+
+    return db.insert(ThreadDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertSms(String body, long dateReceived) {
+    ContentValues values = new ContentValues();
+    values.put(SmsDatabase.THREAD_ID, threadId);
+    values.put(SmsDatabase.ADDRESS, "+15555550100");
+    values.put(SmsDatabase.DATE_RECEIVED, dateReceived);
+    values.put(SmsDatabase.DATE_SENT, dateReceived);
+    values.put(SmsDatabase.TYPE, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+    values.put(SmsDatabase.BODY, body);
+
+    db.insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private String getSnippet(long threadId) {
+    return queryThread(threadId, ThreadDatabase.SNIPPET);
+  }
+
+  private int getMessageCount(long threadId) {
+    return Integer.parseInt(queryThread(threadId, ThreadDatabase.MESSAGE_COUNT));
+  }
+
+  private boolean threadExists(long threadId) {
+    return queryThread(threadId, ThreadDatabase.ID) != null;
+  }
+
+  private String queryThread(long threadId, String column) {
+    Cursor cursor = db.query(ThreadDatabase.TABLE_NAME, new String[] {column}, ThreadDatabase.ID + " = ?",
+                             new String[] {String.valueOf(threadId)}, null, null, null);
+
+    try {
+      return cursor.moveToFirst() ? cursor.getString(0) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.util.Base64;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class XmlBackupTest extends TextSecureTestCase {
+
+  private File backup;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    backup = File.createTempFile("backup", ".xml", getInstrumentation().getTargetContext().getCacheDir());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    backup.delete();
+    super.tearDown();
+  }
+
+  public void testPlainRoundTrip() throws Exception {
+    writeMessages(new FileOutputStream(backup));
+    assertMessages(new XmlBackup(backup.getAbsolutePath()));
+  }
+
+  public void testGzipRoundTrip() throws Exception {
+    writeMessages(new GZIPOutputStream(new FileOutputStream(backup)));
+    assertMessages(new XmlBackup(backup.getAbsolutePath()));
+  }
+
+  public void testLargePartRoundTrip() throws Exception {
+    final byte[] data = new byte[3 * 4096 * 3 + 7];
+    new Random(data.length).nextBytes(data);
+
+    XmlBackup.Writer           writer = new XmlBackup.Writer(new OutputStreamWriter(new FileOutputStream(backup), "UTF-8"), 1);
+    XmlBackup.XmlBackupMmsItem item   = new XmlBackup.XmlBackupMmsItem("+14155551212", 2000, 1000, 1, 1, "caption");
+
+    item.addPart(new XmlBackup.XmlBackupPart(new AttachmentId(1, 2), "image/jpeg", null));
+    writer.writeItem(item, new XmlBackup.PartSource() {
+      @Override
+      public InputStream open(@NonNull XmlBackup.XmlBackupPart part) {
+        return new ByteArrayInputStream(data);
+      }
+    });
+    writer.close();
+
+    assertThat(readPartData(backup)).isEqualTo(data);
+  }
+
+  private void writeMessages(OutputStream out) throws Exception {
+    XmlBackup.Writer writer = new XmlBackup.Writer(new OutputStreamWriter(out, "UTF-8"), 2);
+
+    writer.writeItem(new XmlBackup.XmlBackupItem(0, "+14155551212", 1000, 1, null, "hello & <goodbye>", null, 1, -1));
+    writer.writeItem(new XmlBackup.XmlBackupItem(0, "+14155551213", 2000, 2, null, "été", null, 0, 0));
+    writer.close();
+  }
+
+  private void assertMessages(XmlBackup backup) throws Exception {
+    XmlBackup.XmlBackupItem first = backup.getNext();
+    assertThat(first.getAddress()).isEqualTo("+14155551212");
+    assertThat(first.getDate()).isEqualTo(1000);
+    assertThat(first.getType()).isEqualTo(1);
+    assertThat(first.getBody()).isEqualTo("hello & <goodbye>");
+    assertThat(first.getRead()).isEqualTo(1);
+    assertThat(first.getStatus()).isEqualTo(-1);
+
+    XmlBackup.XmlBackupItem second = backup.getNext();
+    assertThat(second.getAddress()).isEqualTo("+14155551213");
+    assertThat(second.getBody()).isEqualTo("été");
+
+    assertThat(backup.getNext()).isNull();
+  }
+
+  private byte[] readPartData(File file) throws Exception {
+    XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+    InputStream   in     = new FileInputStream(file);
+
+    try {
+      parser.setInput(in, "UTF-8");
+
+      while (parser.next() != XmlPullParser.END_DOCUMENT) {
+        if (parser.getEventType() == XmlPullParser.START_TAG && parser.getName().equals("part")) {
+          String data = parser.getAttributeValue(null, "data");
+          if (data != null) return Base64.decode(data);
+        }
+      }
+
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.providers;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares time to first byte and throughput between serving a part from a temporary plaintext
+ * copy and streaming it through a pipe.  Timings are logged rather than asserted.
+ */
+public class PartProviderBenchmarkTest extends TextSecureTestCase {
+
+  private static final String TAG = PartProviderBenchmarkTest.class.getSimpleName();
+
+  private static final int PART_SIZE  = 16 * 1024 * 1024;
+  private static final int ITERATIONS = 5;
+
+  private MasterSecret masterSecret;
+  private File         directory;
+  private File         part;
+  private byte[]       plaintext;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    final Context context = getInstrumentation().getTargetContext();
+
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[16], "HmacSHA1"));
+    directory    = new File(context.getCacheDir(), "part-provider-benchmark");
+    part         = new File(directory, "part.mms");
+    plaintext    = new byte[PART_SIZE];
+
+    assertThat(directory.mkdirs() || directory.isDirectory()).isTrue();
+    new Random(1).nextBytes(plaintext);
+
+    EncryptingPartOutputStream out = new EncryptingPartOutputStream(part, masterSecret);
+    out.write(plaintext);
+    out.close();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    File[] children = directory.listFiles();
+
+    if (children != null) {
+      for (File child : children) child.delete();
+    }
+
+    directory.delete();
+  }
+
+  public void testTemporaryCopy() throws Exception {
+    runBenchmark("temporary copy", false);
+  }
+
+  public void testPipe() throws Exception {
+    runBenchmark("pipe", true);
+  }
+
+  private void runBenchmark(String name, boolean pipe) throws IOException {
+    long firstByte = 0;
+    long total     = 0;
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      long                 start      = System.nanoTime();
+      InputStream          in         = DecryptingPartInputStream.createFor(part, masterSecret);
+      ParcelFileDescriptor descriptor = pipe ? PartProvider.openPipe(in)
+                                             : PartProvider.openTemporaryCopy(directory, in);
+      InputStream          result     = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+
+      assertThat(result.read()).isEqualTo(plaintext[0] & 0xFF);
+      firstByte += System.nanoTime() - start;
+
+      byte[] buffer = new byte[64 * 1024];
+      long   length = 1;
+      int    read;
+
+      while ((read = result.read(buffer)) != -1) {
+        length += read;
+      }
+
+      result.close();
+      total += System.nanoTime() - start;
+
+      assertThat(length).isEqualTo(PART_SIZE);
+    }
+
+    Log.w(TAG, name + ": first byte " + (firstByte / ITERATIONS / 1000000) + "ms, " +
+               "throughput " + String.format("%.1f", (double)PART_SIZE * ITERATIONS / (total / 1e9) / (1024 * 1024)) + "MB/s");
+  }
+}
@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesms.util;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
+import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Canonicalizes 10k phone numbers, drawn from a smaller set of contacts written in several
+ * formats, with and without the memoizing canonicalizer.  Timings are logged rather than
+ * asserted.
+ */
+public class PhoneNumberCanonicalizerBenchmarkTest extends TextSecureTestCase {
+
+  private static final String TAG = PhoneNumberCanonicalizerBenchmarkTest.class.getSimpleName();
+
+  private static final String LOCAL_NUMBER = "+15555555555";
+  private static final int    LOOKUPS      = 10000;
+  private static final int    CONTACTS     = 1000;
+  private static final int    DB_LOOKUPS   = 500;
+
+  private List<String> numbers;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    Random random = new Random(42);
+
+    numbers = new ArrayList<>(LOOKUPS);
+
+    for (int i = 0; i < LOOKUPS; i++) {
+      numbers.add(format(random.nextInt(CONTACTS), random.nextInt(4)));
+    }
+
+    PhoneNumberCanonicalizer.clear();
+  }
+
+  public void testCanonicalize() throws Exception {
+    List<String> expected = new ArrayList<>(LOOKUPS);
+
+    long start = System.nanoTime();
+
+    for (String number : numbers) {
+      expected.add(PhoneNumberFormatter.formatNumber(number, LOCAL_NUMBER));
+    }
+
+    long uncached = System.nanoTime();
+
+    for (int i = 0; i < LOOKUPS; i++) {
+      assertThat(PhoneNumberCanonicalizer.canonicalize(numbers.get(i), LOCAL_NUMBER)).isEqualTo(expected.get(i));
+    }
+
+    long cold = System.nanoTime();
+
+    for (int i = 0; i < LOOKUPS; i++) {
+      assertThat(PhoneNumberCanonicalizer.canonicalize(numbers.get(i), LOCAL_NUMBER)).isEqualTo(expected.get(i));
+    }
+
+    long warm = System.nanoTime();
+
+    Log.w(TAG, "formatter " + ((uncached - start) / LOOKUPS) + "ns, " +
+               "canonicalizer cold " + ((cold - uncached) / LOOKUPS) + "ns, " +
+               "warm " + ((warm - cold) / LOOKUPS) + "ns per number");
+  }
+
+  public void testCanonicalAddressLookups() throws Exception {
+    CanonicalAddressDatabase database = CanonicalAddressDatabase.getInstance(getInstrumentation().getTargetContext());
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < DB_LOOKUPS; i++) {
+      long id = database.getCanonicalAddressId(String.format("+1555019%04d", i));
+      assertThat(database.getAddressFromId(id)).isEqualTo(String.format("+1555019%04d", i));
+    }
+
+    long elapsed = System.nanoTime() - start;
+
+    Log.w(TAG, "canonical address lookup " + (elapsed / DB_LOOKUPS / 1000) + "us per new number");
+  }
+
+  private static String format(int contact, int style) {
+    String exchange = String.format("%03d", 200 + contact / 100);
+    String line     = String.format("%04d", contact);
+
+    switch (style) {
+      case 0:  return "(555) " + exchange + "-" + line;
+      case 1:  return "+1 555 " + exchange + " " + line;
+      case 2:  return "1-555-" + exchange + "-" + line;
+      default: return "555." + exchange + "." + line;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package org.thoughtcrime.securesms.attachments;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AttachmentDownloaderTest extends BaseUnitTest {
+
+  private static final String LOCATION = "https://storage.example.com/attachment";
+
+  private OkHttpClient         storageClient;
+  private AttachmentDownloader downloader;
+  private File                 partialFile;
+  private byte[]               attachment;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    storageClient = mock(OkHttpClient.class);
+    downloader    = new AttachmentDownloader("https://service.example.com", "login", "password",
+                                             mock(OkHttpClient.class), storageClient);
+    partialFile   = File.createTempFile("attachment", ".partial");
+    attachment    = new byte[1000];
+
+    new Random(1).nextBytes(attachment);
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    partialFile.delete();
+  }
+
+  @Test
+  public void testFullDownload() throws Exception {
+    //noinspection ResultOfMethodCallIgnored
+    partialFile.delete();
+    respond(200, null, body(attachment, attachment.length));
+
+    assertEquals(0, downloader.download(LOCATION, partialFile, null));
+    assertNull(getRequest().header("Range"));
+    assertArrayEquals(attachment, read(partialFile));
+  }
+
+  @Test
+  public void testRangeHonored() throws Exception {
+    writePartial(400);
+    respond(206, "bytes 400-999/1000", body(Arrays.copyOfRange(attachment, 400, 1000), 600));
+
+    assertEquals(400, downloader.download(LOCATION, partialFile, null));
+    assertEquals("bytes=400-", getRequest().header("Range"));
+    assertArrayEquals(attachment, read(partialFile));
+  }
+
+  @Test
+  public void testRangeIgnored() throws Exception {
+    writePartial(400);
+    respond(200, null, body(attachment, attachment.length));
+
+    assertEquals(0, downloader.download(LOCATION, partialFile, null));
+    assertArrayEquals(attachment, read(partialFile));
+  }
+
+  @Test
+  public void testMismatchedContentRange() throws Exception {
+    writePartial(400);
+    respond(206, "bytes 0-999/1000", body(attachment, attachment.length));
+
+    assertEquals(0, downloader.download(LOCATION, partialFile, null));
+    assertArrayEquals(attachment, read(partialFile));
+  }
+
+  @Test
+  public void testNothingLeftToDownload() throws Exception {
+    writePartial(attachment.length);
+    respond(416, "bytes */1000", body(new byte[0], 0));
+
+    assertEquals(attachment.length, downloader.download(LOCATION, partialFile, null));
+    assertArrayEquals(attachment, read(partialFile));
+  }
+
+  @Test
+  public void testTruncatedBodyKeepsPartialFile() throws Exception {
+    writePartial(400);
+    respond(206, "bytes 400-999/1000", body(Arrays.copyOfRange(attachment, 400, 700), 600));
+
+    try {
+      downloader.download(LOCATION, partialFile, null);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertArrayEquals(Arrays.copyOf(attachment, 700), read(partialFile));
+  }
+
+  private void respond(int code, String contentRange, ResponseBody body) throws IOException {
+    Response.Builder response = new Response.Builder().request(new Request.Builder().url(LOCATION).build())
+                                                      .protocol(Protocol.HTTP_1_1)
+                                                      .code(code)
+                                                      .message("")
+                                                      .body(body);
+
+    if (contentRange != null) {
+      response.header("Content-Range", contentRange);
+    }
+
+    Call call = mock(Call.class);
+    when(call.execute()).thenReturn(response.build());
+    when(storageClient.newCall(any(Request.class))).thenReturn(call);
+  }
+
+  private Request getRequest() {
+    ArgumentCaptor<Request> captor = ArgumentCaptor.forClass(Request.class);
+    verify(storageClient).newCall(captor.capture());
+    return captor.getValue();
+  }
+
+  private void writePartial(int length) throws IOException {
+    FileOutputStream out = new FileOutputStream(partialFile);
+    out.write(attachment, 0, length);
+    out.close();
+  }
+
+  private static ResponseBody body(final byte[] data, final long contentLength) {
+    return new ResponseBody() {
+      @Override
+      public MediaType contentType() {
+        return MediaType.parse("application/octet-stream");
+      }
+
+      @Override
+      public long contentLength() {
+        return contentLength;
+      }
+
+      @Override
+      public BufferedSource source() {
+        return new Buffer().write(data);
+      }
+    };
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[]          data = new byte[(int)file.length()];
+    FileInputStream in   = new FileInputStream(file);
+
+    try {
+      int offset = 0;
+      int read;
+
+      while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+        offset += read;
+      }
+
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.attachments;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class MediaTransferSchedulerTest extends BaseUnitTest {
+
+  private static final long NOW = 1000000000L;
+
+  private final List<AttachmentId> pending = Arrays.asList(new AttachmentId(1, 1),
+                                                           new AttachmentId(2, 2),
+                                                           new AttachmentId(3, 3));
+
+  @Test
+  public void testQueueOrderWithoutVisibleAttachments() {
+    assertEquals(0, MediaTransferScheduler.indexOfNext(pending, new HashMap<AttachmentId, Long>(), NOW));
+  }
+
+  @Test
+  public void testVisibleAttachmentGoesFirst() {
+    Map<AttachmentId, Long> visible = new HashMap<>();
+    visible.put(new AttachmentId(3, 3), NOW - 1000);
+
+    assertEquals(2, MediaTransferScheduler.indexOfNext(pending, visible, NOW));
+  }
+
+  @Test
+  public void testMostRecentlyVisibleGoesFirst() {
+    Map<AttachmentId, Long> visible = new HashMap<>();
+    visible.put(new AttachmentId(2, 2), NOW - 500);
+    visible.put(new AttachmentId(3, 3), NOW - 1000);
+
+    assertEquals(1, MediaTransferScheduler.indexOfNext(pending, visible, NOW));
+  }
+
+  @Test
+  public void testStaleVisibilityIsIgnored() {
+    Map<AttachmentId, Long> visible = new HashMap<>();
+    visible.put(new AttachmentId(3, 3), NOW - TimeUnit.MINUTES.toMillis(5));
+
+    assertEquals(0, MediaTransferScheduler.indexOfNext(pending, visible, NOW));
+  }
+}
@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.audio;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.audio.AudioAttachmentServer.Range;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class AudioAttachmentServerTest extends BaseUnitTest {
+
+  @Test public void testBoundedRange() {
+    assertRange(AudioAttachmentServer.parseRange("bytes=10-19", 100), 10, 19);
+    assertRange(AudioAttachmentServer.parseRange("bytes=90-200", 100), 90, 99);
+  }
+
+  @Test public void testOpenRange() {
+    assertRange(AudioAttachmentServer.parseRange("bytes=0-", 100), 0, 99);
+    assertRange(AudioAttachmentServer.parseRange("bytes=50-", 100), 50, 99);
+  }
+
+  @Test public void testSuffixRange() {
+    assertRange(AudioAttachmentServer.parseRange("bytes=-10", 100), 90, 99);
+    assertRange(AudioAttachmentServer.parseRange("bytes=-500", 100), 0, 99);
+  }
+
+  @Test public void testUnsatisfiableRange() {
+    assertFalse(AudioAttachmentServer.parseRange("bytes=100-", 100).isSatisfiable());
+    assertFalse(AudioAttachmentServer.parseRange("bytes=200-300", 100).isSatisfiable());
+    assertFalse(AudioAttachmentServer.parseRange("bytes=-0", 100).isSatisfiable());
+    assertFalse(AudioAttachmentServer.parseRange("bytes=-10", 0).isSatisfiable());
+  }
+
+  @Test public void testIgnoredRange() {
+    assertNull(AudioAttachmentServer.parseRange(null, 100));
+    assertNull(AudioAttachmentServer.parseRange("items=0-10", 100));
+    assertNull(AudioAttachmentServer.parseRange("bytes=0-10,20-30", 100));
+    assertNull(AudioAttachmentServer.parseRange("bytes=20-10", 100));
+    assertNull(AudioAttachmentServer.parseRange("bytes=abc-", 100));
+  }
+
+  private static void assertRange(Range range, long start, long end) {
+    assertEquals(start, range.start);
+    assertEquals(end, range.end);
+  }
+}
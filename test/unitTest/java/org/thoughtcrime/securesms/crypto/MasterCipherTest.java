@@ -6,6 +6,18 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.thoughtcrime.securesms.BaseUnitTest;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 @PowerMockIgnore("javax.crypto.*")
 public class MasterCipherTest extends BaseUnitTest {
   private MasterCipher masterCipher;
@@ -21,4 +33,121 @@ public class MasterCipherTest extends BaseUnitTest {
   public void testEncryptBytesWithZeroBody() throws Exception {
     masterCipher.decryptBytes(new byte[]{});
   }
+
+  @Test(expected = InvalidMessageException.class)
+  public void testDecryptBytesWithBadMac() throws Exception {
+    byte[] encrypted = masterCipher.encryptBytes(new byte[100]);
+    encrypted[encrypted.length - 1] ^= 0x01;
+
+    masterCipher.decryptBytes(encrypted);
+  }
+
+  @Test
+  public void testRoundTrips() throws Exception {
+    for (int size : new int[] {0, 1, 15, 16, 17, 1000}) {
+      byte[] plaintext = randomBytes(size);
+      byte[] encrypted = masterCipher.encryptBytes(plaintext);
+
+      assertEquals(MasterCipher.getEncryptedLength(size), encrypted.length);
+      assertArrayEquals(plaintext, masterCipher.decryptBytes(encrypted));
+      assertArrayEquals(plaintext, new MasterCipher(masterSecret).decryptBytes(encrypted));
+
+      byte[] padded = new byte[encrypted.length + 8];
+      System.arraycopy(encrypted, 0, padded, 3, encrypted.length);
+      assertArrayEquals(plaintext, masterCipher.decryptBytes(padded, 3, encrypted.length));
+
+      ByteBuffer ciphertext = ByteBuffer.allocateDirect(MasterCipher.getEncryptedLength(size));
+      assertEquals(encrypted.length, masterCipher.encrypt(ByteBuffer.wrap(plaintext), ciphertext));
+      ciphertext.flip();
+
+      ByteBuffer decrypted = ByteBuffer.allocate(MasterCipher.getMaxDecryptedLength(ciphertext.remaining()));
+      int        written   = masterCipher.decrypt(ciphertext, decrypted);
+
+      assertEquals(size, written);
+      assertArrayEquals(plaintext, Arrays.copyOf(decrypted.array(), written));
+    }
+  }
+
+  @Test
+  public void testClearCachedKeys() throws Exception {
+    byte[] plaintext = randomBytes(100);
+    byte[] encrypted = masterCipher.encryptBytes(plaintext);
+
+    MasterCipher.clearCachedKeys();
+
+    assertArrayEquals(plaintext, masterCipher.decryptBytes(encrypted));
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void testPooledMacFollowsMasterSecret() throws Exception {
+    MasterSecret otherSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                                new SecretKeySpec(randomBytes(20), "HmacSHA1"));
+
+    byte[] encrypted = masterCipher.encryptBytes(randomBytes(100));
+
+    new MasterCipher(otherSecret).decryptBytes(encrypted);
+  }
+
+  /**
+   * The pooled cipher must stay interchangeable with the original one, which built its own Cipher
+   * and Mac for every call.
+   */
+  @Test
+  public void testInteroperatesWithLegacyFormat() throws Exception {
+    for (int size : new int[] {0, 1, 16, 4096, 65536}) {
+      byte[] plaintext = randomBytes(size);
+
+      assertArrayEquals(plaintext, legacyDecrypt(masterCipher.encryptBytes(plaintext)));
+      assertArrayEquals(plaintext, masterCipher.decryptBytes(legacyEncrypt(plaintext)));
+    }
+  }
+
+  private byte[] legacyEncrypt(byte[] plaintext) throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    Mac    mac    = Mac.getInstance("HmacSHA1");
+
+    cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+    mac.init(masterSecret.getMacKey());
+
+    byte[] iv         = cipher.getIV();
+    byte[] ciphertext = cipher.doFinal(plaintext);
+    byte[] encrypted  = new byte[iv.length + ciphertext.length];
+
+    System.arraycopy(iv, 0, encrypted, 0, iv.length);
+    System.arraycopy(ciphertext, 0, encrypted, iv.length, ciphertext.length);
+
+    byte[] digest = mac.doFinal(encrypted);
+    byte[] result = new byte[encrypted.length + digest.length];
+
+    System.arraycopy(encrypted, 0, result, 0, encrypted.length);
+    System.arraycopy(digest, 0, result, encrypted.length, digest.length);
+
+    return result;
+  }
+
+  private byte[] legacyDecrypt(byte[] encryptedAndMac) throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    Mac    mac    = Mac.getInstance("HmacSHA1");
+
+    mac.init(masterSecret.getMacKey());
+
+    byte[] encrypted = new byte[encryptedAndMac.length - mac.getMacLength()];
+    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
+
+    byte[] remoteMac = new byte[mac.getMacLength()];
+    System.arraycopy(encryptedAndMac, encrypted.length, remoteMac, 0, remoteMac.length);
+
+    if (!Arrays.equals(remoteMac, mac.doFinal(encrypted))) {
+      throw new InvalidMessageException("MAC doesen't match.");
+    }
+
+    cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(encrypted, 0, 16));
+    return cipher.doFinal(encrypted, 16, encrypted.length - 16);
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
 }
@@ -0,0 +1,184 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@PowerMockIgnore("javax.crypto.*")
+public class SeekablePartFileTest extends BaseUnitTest {
+  private static final int[] PART_SIZES = {0, 1, 15, 16, SeekablePartFile.CHUNK_SIZE - 1,
+                                           SeekablePartFile.CHUNK_SIZE, SeekablePartFile.CHUNK_SIZE + 1,
+                                           3 * SeekablePartFile.CHUNK_SIZE + 12345};
+
+  private File file;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("part", ".mms");
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  @Test
+  public void testRoundTrips() throws Exception {
+    for (int size : PART_SIZES) {
+      byte[] plaintext = randomBytes(size);
+      writeSeekable(plaintext);
+
+      assertTrue(SeekablePartFile.isSeekable(file, masterSecret));
+      assertArrayEquals("size " + size, plaintext, readFully(DecryptingPartInputStream.createFor(file, masterSecret)));
+
+      SeekablePartFile partFile = new SeekablePartFile(file, masterSecret);
+      assertEquals(size, partFile.length());
+      partFile.close();
+    }
+  }
+
+  @Test
+  public void testRandomReads() throws Exception {
+    byte[] plaintext = randomBytes(3 * SeekablePartFile.CHUNK_SIZE + 777);
+    writeSeekable(plaintext);
+
+    SeekablePartFile partFile = new SeekablePartFile(file, masterSecret);
+    Random           random   = new Random(1);
+
+    for (int i=0;i<200;i++) {
+      int    position = random.nextInt(plaintext.length);
+      int    length   = 1 + random.nextInt(2 * SeekablePartFile.CHUNK_SIZE);
+      byte[] buffer   = new byte[length];
+      int    read     = partFile.read(position, buffer, 0, length);
+
+      assertEquals(Math.min(length, plaintext.length - position), read);
+      assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + read), Arrays.copyOf(buffer, read));
+    }
+
+    assertEquals(-1, partFile.read(plaintext.length, new byte[1], 0, 1));
+    partFile.close();
+  }
+
+  @Test
+  public void testSkip() throws Exception {
+    byte[] plaintext = randomBytes(2 * SeekablePartFile.CHUNK_SIZE + 100);
+    writeSeekable(plaintext);
+
+    InputStream in = DecryptingPartInputStream.createFor(file, masterSecret);
+    assertEquals(SeekablePartFile.CHUNK_SIZE + 50, in.skip(SeekablePartFile.CHUNK_SIZE + 50));
+    assertEquals(plaintext[SeekablePartFile.CHUNK_SIZE + 50] & 0xFF, in.read());
+    assertEquals(plaintext.length - SeekablePartFile.CHUNK_SIZE - 51, in.skip(Long.MAX_VALUE));
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testTamperedChunk() throws Exception {
+    writeSeekable(randomBytes(2 * SeekablePartFile.CHUNK_SIZE));
+    flipByte(SeekablePartFile.HEADER_LENGTH + SeekablePartFile.getEncryptedChunkLength(SeekablePartFile.CHUNK_SIZE) + 40);
+
+    SeekablePartFile partFile = new SeekablePartFile(file, masterSecret);
+    partFile.read(SeekablePartFile.CHUNK_SIZE, new byte[16], 0, 16);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedToChunkBoundary() throws Exception {
+    writeSeekable(randomBytes(2 * SeekablePartFile.CHUNK_SIZE + 10));
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(SeekablePartFile.HEADER_LENGTH + 2 * SeekablePartFile.getEncryptedChunkLength(SeekablePartFile.CHUNK_SIZE));
+    raf.close();
+
+    new SeekablePartFile(file, masterSecret).length();
+  }
+
+  @Test
+  public void testLegacyParts() throws Exception {
+    for (int size : PART_SIZES) {
+      byte[] plaintext = randomBytes(size);
+      writeLegacy(plaintext);
+
+      assertFalse(SeekablePartFile.isSeekable(file, masterSecret));
+
+      InputStream in = DecryptingPartInputStream.createFor(file, masterSecret);
+      assertTrue(in instanceof DecryptingPartInputStream);
+      assertArrayEquals("size " + size, plaintext, readFully(in));
+    }
+  }
+
+  private void writeSeekable(byte[] plaintext) throws IOException {
+    EncryptingPartOutputStream out = new EncryptingPartOutputStream(file, masterSecret);
+    out.write(plaintext);
+    out.close();
+  }
+
+  private void writeLegacy(byte[] plaintext) throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    Mac    mac    = Mac.getInstance("HmacSHA1");
+
+    cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+    mac.init(masterSecret.getMacKey());
+
+    byte[] iv         = cipher.getIV();
+    byte[] ciphertext = cipher.doFinal(plaintext);
+
+    mac.update(iv);
+    mac.update(ciphertext);
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(iv);
+    out.write(ciphertext);
+    out.write(mac.doFinal());
+    out.close();
+  }
+
+  private void flipByte(long position) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(position);
+    int value = raf.read();
+    raf.seek(position);
+    raf.write(value ^ 0x01);
+    raf.close();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[5000];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,204 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@PowerMockIgnore("javax.crypto.*")
+public class IncrementalBackupTest extends BaseUnitTest {
+
+  private File source;
+  private File backup;
+  private File target;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    source = createTempDirectory("source");
+    backup = createTempDirectory("backup");
+    target = createTempDirectory("target");
+  }
+
+  @After
+  public void tearDown() {
+    delete(source);
+    delete(backup);
+    delete(target);
+  }
+
+  @Test
+  public void testUnchangedSnapshotCopiesNothing() throws Exception {
+    write("databases/messages.db", randomBytes(IncrementalBackup.SMALL_FILE_LIMIT * 4));
+    write("sessions/+14155551212", randomBytes(300));
+    write("prekeys/1", randomBytes(100));
+
+    IncrementalBackup.SnapshotStats first = newBackup().snapshot();
+    assertEquals(3, first.copied);
+
+    long manifestModified = new File(backup, "manifest.json").lastModified();
+
+    IncrementalBackup.SnapshotStats second = newBackup().snapshot();
+    assertEquals(3, second.unchanged);
+    assertEquals(0, second.copied);
+    assertEquals(0, second.bytesCopied);
+    assertEquals(manifestModified, new File(backup, "manifest.json").lastModified());
+  }
+
+  @Test
+  public void testSmallFilesArePacked() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      write("prekeys/" + i, randomBytes(200));
+    }
+
+    newBackup().snapshot();
+
+    assertEquals(1, new File(backup, "segments").listFiles().length);
+    assertFalse(new File(backup, "objects").exists());
+  }
+
+  @Test
+  public void testOnlyChangedFilesAreCopied() throws Exception {
+    write("sessions/a", randomBytes(300));
+    write("sessions/b", randomBytes(300));
+    newBackup().snapshot();
+
+    write("sessions/b", randomBytes(400));
+
+    IncrementalBackup.SnapshotStats stats = newBackup().snapshot();
+    assertEquals(1, stats.copied);
+    assertEquals(400, stats.bytesCopied);
+  }
+
+  @Test
+  public void testIdenticalLargeFilesAreStoredOnce() throws Exception {
+    byte[] part = randomBytes(IncrementalBackup.SMALL_FILE_LIMIT * 2);
+
+    write("app_parts/part1.mms", part);
+    write("app_parts/part2.mms", part);
+
+    IncrementalBackup.SnapshotStats stats = newBackup().snapshot();
+    assertEquals(1, stats.copied);
+    assertEquals(1, stats.deduplicated);
+    assertEquals(1, new File(backup, "objects").listFiles().length);
+  }
+
+  @Test
+  public void testRestore() throws Exception {
+    byte[] database = randomBytes(IncrementalBackup.SMALL_FILE_LIMIT + 1);
+    byte[] session  = randomBytes(300);
+
+    write("databases/messages.db", database);
+    write("sessions/a", session);
+    newBackup().snapshot();
+
+    writeTo(target, "databases/messages.db-journal", randomBytes(10));
+    writeTo(target, "shared_prefs/prefs.xml", randomBytes(10));
+
+    newBackup().restore(target);
+
+    assertArrayEquals(database, read(new File(target, "databases/messages.db")));
+    assertArrayEquals(session, read(new File(target, "sessions/a")));
+    assertFalse(new File(target, "databases/messages.db-journal").exists());
+    assertTrue(new File(target, "shared_prefs/prefs.xml").exists());
+    assertFalse(new File(target, ".restore-staging").exists());
+    assertFalse(new File(target, ".restore-retired").exists());
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptSnapshotLeavesTargetAlone() throws Exception {
+    write("databases/messages.db", randomBytes(IncrementalBackup.SMALL_FILE_LIMIT + 1));
+    newBackup().snapshot();
+
+    File object = new File(backup, "objects").listFiles()[0];
+    FileOutputStream out = new FileOutputStream(object, true);
+    out.write(1);
+    out.close();
+
+    byte[] live = randomBytes(10);
+    writeTo(target, "databases/messages.db", live);
+
+    try {
+      newBackup().restore(target);
+    } finally {
+      assertArrayEquals(live, read(new File(target, "databases/messages.db")));
+    }
+  }
+
+  private IncrementalBackup newBackup() {
+    return new IncrementalBackup(source, backup, Collections.singleton("cache"));
+  }
+
+  private void write(String path, byte[] data) throws IOException {
+    File file = writeTo(source, path, data);
+    file.setLastModified(System.currentTimeMillis() - 60 * 1000 - new Random().nextInt(1000) * 1000);
+  }
+
+  private static File writeTo(File root, String path, byte[] data) throws IOException {
+    File file = new File(root, path);
+    file.getParentFile().mkdirs();
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+
+    return file;
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[]          data = new byte[(int)file.length()];
+    FileInputStream in   = new FileInputStream(file);
+
+    try {
+      int offset = 0;
+      int read;
+
+      while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+        offset += read;
+      }
+
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random().nextBytes(bytes);
+    return bytes;
+  }
+
+  private static File createTempDirectory(String prefix) throws IOException {
+    File directory = File.createTempFile(prefix, "");
+    directory.delete();
+    directory.mkdirs();
+    return directory;
+  }
+
+  private static void delete(File file) {
+    File[] contents = file.listFiles();
+
+    if (contents != null) {
+      for (File child : contents) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+}
@@ -0,0 +1,74 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@PowerMockIgnore("javax.crypto.*")
+public class PlaintextCacheTest extends BaseUnitTest {
+
+  private PlaintextCache cache;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = PlaintextCache.getInstance();
+    cache.clear();
+  }
+
+  @Test
+  public void testEvictsByBytesNotEntries() {
+    StringBuilder large = new StringBuilder();
+    for (int i=0;i<64 * 1024;i++) large.append('x');
+
+    cache.put("small", "body");
+
+    for (int i=0;i<32;i++) {
+      cache.put("large" + i, large.toString());
+    }
+
+    assertNull(cache.get("small"));
+    assertNull(cache.get("large0"));
+    assertNotNull(cache.get("large31"));
+  }
+
+  @Test
+  public void testExplicitEviction() {
+    cache.put("ciphertext", "plaintext");
+    cache.evict("ciphertext");
+
+    assertNull(cache.get("ciphertext"));
+  }
+
+  @Test
+  public void testPrefetchDecryptsWindow() throws Exception {
+    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    List<String> ciphertexts  = new LinkedList<>();
+
+    for (int i=0;i<100;i++) {
+      ciphertexts.add(masterCipher.encryptBody("body " + i));
+    }
+
+    cache.prefetch(masterSecret, ciphertexts);
+
+    long deadline = System.currentTimeMillis() + 5000;
+
+    for (int i=0;i<100;i++) {
+      while (cache.get(ciphertexts.get(i)) == null && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertEquals("body " + i, cache.get(ciphertexts.get(i)));
+    }
+  }
+}
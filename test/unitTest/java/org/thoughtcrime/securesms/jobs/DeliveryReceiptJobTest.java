@@ -36,7 +36,7 @@ public class DeliveryReceiptJobTest extends BaseUnitTest {
     ObjectGraph objectGraph = ObjectGraph.create(new TestModule(textSecureMessageSender));
     objectGraph.inject(deliveryReceiptJob);
 
-    deliveryReceiptJob.onRun();
+    deliveryReceiptJob.onExecute();
 
     ArgumentCaptor<SignalServiceAddress> captor = ArgumentCaptor.forClass(SignalServiceAddress.class);
     verify(textSecureMessageSender).sendDeliveryReceipt(captor.capture(), eq(timestamp));
@@ -62,7 +62,7 @@ public class DeliveryReceiptJobTest extends BaseUnitTest {
     objectGraph.inject(deliveryReceiptJob);
 
     try {
-      deliveryReceiptJob.onRun();
+      deliveryReceiptJob.onExecute();
       throw new AssertionError();
     } catch (IOException e) {
       assertTrue(deliveryReceiptJob.onShouldRetry(e));
@@ -73,7 +73,7 @@ public class DeliveryReceiptJobTest extends BaseUnitTest {
            .sendDeliveryReceipt(any(SignalServiceAddress.class), eq(timestamp));
 
     try {
-      deliveryReceiptJob.onRun();
+      deliveryReceiptJob.onExecute();
       throw new AssertionError();
     } catch (IOException e) {
       assertFalse(deliveryReceiptJob.onShouldRetry(e));
@@ -0,0 +1,57 @@
+package org.thoughtcrime.securesms.util;
+
+import junit.framework.AssertionFailedError;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.whispersystems.signalservice.api.util.InvalidNumberException;
+import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PhoneNumberCanonicalizerTest extends BaseUnitTest {
+  private static final String LOCAL_NUMBER_US = "+15555555555";
+  private static final String LOCAL_NUMBER_DE = "+4930123456";
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    PhoneNumberCanonicalizer.clear();
+  }
+
+  @Test
+  public void testMatchesFormatter() throws Exception {
+    String[] numbers = {"(555) 555-5555", "555-5555", "+1 555 555 5555", "1-555-555-5555", "+41446681800"};
+
+    for (String number : numbers) {
+      String expected = PhoneNumberFormatter.formatNumber(number, LOCAL_NUMBER_US);
+
+      assertThat(PhoneNumberCanonicalizer.canonicalize(number, LOCAL_NUMBER_US)).isEqualTo(expected);
+      assertThat(PhoneNumberCanonicalizer.canonicalize(number, LOCAL_NUMBER_US)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void testInvalidNumbersKeepFailing() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      try {
+        PhoneNumberCanonicalizer.canonicalize("person@domain.com", LOCAL_NUMBER_US);
+        throw new AssertionFailedError("should have thrown on email");
+      } catch (InvalidNumberException ine) {
+        // success
+      }
+    }
+  }
+
+  @Test
+  public void testLocalNumberChange() throws Exception {
+    String number = "0171 123456";
+
+    assertThat(PhoneNumberCanonicalizer.canonicalize(number, LOCAL_NUMBER_US))
+        .isEqualTo(PhoneNumberFormatter.formatNumber(number, LOCAL_NUMBER_US));
+    assertThat(PhoneNumberCanonicalizer.canonicalize(number, LOCAL_NUMBER_DE))
+        .isEqualTo(PhoneNumberFormatter.formatNumber(number, LOCAL_NUMBER_DE));
+  }
+}
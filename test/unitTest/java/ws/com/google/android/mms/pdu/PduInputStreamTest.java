@@ -0,0 +1,256 @@
+package ws.com.google.android.mms.pdu;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PduInputStreamTest extends BaseUnitTest {
+
+    /**
+     * Runs the same random reads, skips, marks and resets against a ByteArrayInputStream, which
+     * the parser used to read from, and a PduInputStream fed a few bytes at a time.
+     */
+    @Test
+    public void testMatchesByteArrayInputStream() {
+        Random random = new Random(1);
+
+        for (int trial = 0; trial < 100; trial++) {
+            byte[] data = randomBytes(random, random.nextInt(3 * PduInputStream.MAX_MARK_LENGTH));
+            ByteArrayInputStream expected = new ByteArrayInputStream(data);
+            PduInputStream actual = new PduInputStream(new TrickleInputStream(data, 1 + random.nextInt(100)),
+                                                       data.length);
+
+            boolean marked = false;
+            int markPosition = 0;
+            int furthestPosition = 0;
+
+            for (int operation = 0; operation < 500; operation++) {
+                switch (random.nextInt(6)) {
+                    case 0:
+                        assertEquals(expected.read(), actual.read());
+                        break;
+                    case 1:
+                        int length = 1 + random.nextInt(600);
+                        byte[] expectedBuffer = new byte[length];
+                        byte[] actualBuffer = new byte[length];
+
+                        assertEquals(expected.read(expectedBuffer, 0, length), actual.read(actualBuffer, 0, length));
+                        assertArrayEquals(expectedBuffer, actualBuffer);
+                        break;
+                    case 2:
+                        long count = random.nextInt(300);
+                        assertEquals(expected.skip(count), actual.skip(count));
+                        break;
+                    case 3:
+                        expected.mark(0);
+                        actual.mark(0);
+                        marked = true;
+                        markPosition = furthestPosition = data.length - expected.available();
+                        break;
+                    case 4:
+                        if (marked && furthestPosition - markPosition <= PduInputStream.MAX_MARK_LENGTH) {
+                            expected.reset();
+                            actual.reset();
+                        }
+                        break;
+                    case 5:
+                        assertEquals(expected.available(), actual.available());
+                        break;
+                }
+
+                furthestPosition = Math.max(furthestPosition, data.length - expected.available());
+            }
+
+            assertNull(actual.getError());
+        }
+    }
+
+    @Test
+    public void testReadSpansMarkBufferAndStream() {
+        byte[] data = randomBytes(new Random(2), 1000);
+        PduInputStream in = new PduInputStream(new TrickleInputStream(data, 7), -1);
+
+        in.mark(0);
+        assertEquals(100, in.skip(100));
+        in.reset();
+
+        byte[] buffer = new byte[300];
+        assertEquals(300, in.read(buffer, 0, buffer.length));
+        assertArrayEquals(Arrays.copyOfRange(data, 0, 300), buffer);
+
+        assertEquals(data[300] & 0xFF, in.read());
+    }
+
+    @Test
+    public void testMarkAndResetAfterReplay() {
+        byte[] data = randomBytes(new Random(3), 1000);
+        PduInputStream in = new PduInputStream(new TrickleInputStream(data, 13), -1);
+
+        in.skip(10);
+        in.mark(0);
+        in.skip(100);
+        in.reset();
+        in.skip(50);
+
+        in.mark(0);
+        in.skip(100);
+        in.reset();
+
+        byte[] buffer = new byte[100];
+        assertEquals(100, in.read(buffer, 0, buffer.length));
+        assertArrayEquals(Arrays.copyOfRange(data, 60, 160), buffer);
+    }
+
+    @Test
+    public void testEndOfStreamInsideLookahead() {
+        byte[] data = randomBytes(new Random(4), 10);
+        PduInputStream in = new PduInputStream(new TrickleInputStream(data, 3), -1);
+
+        in.mark(0);
+        assertEquals(5, in.skip(5));
+        assertTrue(in.available() > 0);
+
+        byte[] buffer = new byte[20];
+        assertEquals(5, in.read(buffer, 0, buffer.length));
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+
+        in.reset();
+        assertEquals(10, in.read(buffer, 0, buffer.length));
+        assertArrayEquals(data, Arrays.copyOf(buffer, 10));
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+        assertNull(in.getError());
+    }
+
+    @Test
+    public void testLookaheadWithoutMark() {
+        byte[] data = randomBytes(new Random(5), 10);
+        PduInputStream in = new PduInputStream(new TrickleInputStream(data, 1), -1);
+
+        in.skip(3);
+        assertTrue(in.available() > 0);
+        assertEquals(data[3] & 0xFF, in.read());
+        assertEquals(data[4] & 0xFF, in.read());
+    }
+
+    @Test
+    public void testResetPastMarkLimitIsAnError() {
+        byte[] data = new byte[PduInputStream.MAX_MARK_LENGTH * 2];
+        PduInputStream in = new PduInputStream(data);
+
+        in.mark(0);
+        in.skip(PduInputStream.MAX_MARK_LENGTH + 1);
+        in.reset();
+
+        assertNotNull(in.getError());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testReadErrorEndsStream() {
+        PduInputStream in = new PduInputStream(new InputStream() {
+            private int remaining = 5;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining-- <= 0) throw new IOException("Connection reset");
+                return 0;
+            }
+        }, -1);
+
+        byte[] buffer = new byte[10];
+        assertEquals(5, in.read(buffer, 0, buffer.length));
+        assertEquals(-1, in.read());
+        assertNotNull(in.getError());
+    }
+
+    /**
+     * A small m-retrieve-conf.  The expected values are the ones the byte[] parser produced for it
+     * before it read through PduInputStream.
+     */
+    @Test
+    public void testParsesRetrieveConf() throws Exception {
+        byte[] pdu = getRetrieveConf();
+
+        assertRetrieveConf(new PduParser(pdu).parse());
+        assertRetrieveConf(new PduParser(new TrickleInputStream(pdu, 1), -1, null).parse());
+        assertRetrieveConf(new PduParser(new TrickleInputStream(pdu, 5), pdu.length, null).parse());
+    }
+
+    private static void assertRetrieveConf(GenericPdu pdu) {
+        assertTrue(pdu instanceof RetrieveConf);
+
+        RetrieveConf retrieveConf = (RetrieveConf) pdu;
+        assertArrayEquals("t1".getBytes(), retrieveConf.getTransactionId());
+        assertEquals(PduHeaders.MMS_VERSION_1_2, retrieveConf.getMmsVersion());
+        assertEquals("+15551234567", retrieveConf.getFrom().getString());
+        assertEquals(1600000000L, retrieveConf.getDate());
+        assertEquals("hi", retrieveConf.getSubject().getString());
+        assertEquals("application/vnd.wap.multipart.related", new String(retrieveConf.getContentType()));
+
+        PduBody body = retrieveConf.getBody();
+        assertEquals(1, body.getPartsNum());
+        assertEquals("text/plain", new String(body.getPart(0).getContentType()));
+        assertEquals(CharacterSets.UTF_8, body.getPart(0).getCharset());
+        assertEquals("text.txt", new String(body.getPart(0).getContentLocation()));
+        assertEquals("hello", new String(body.getPart(0).getData()));
+    }
+
+    private static byte[] getRetrieveConf() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] from = "+15551234567/TYPE=PLMN".getBytes("US-ASCII");
+
+        out.write(new byte[] {(byte) 0x8C, (byte) 0x84});              // m-retrieve-conf
+        out.write(new byte[] {(byte) 0x98, 't', '1', 0});              // transaction id
+        out.write(new byte[] {(byte) 0x8D, (byte) 0x92});              // version 1.2
+        out.write(new byte[] {(byte) 0x89, (byte) (from.length + 2), (byte) 0x80});
+        out.write(from);
+        out.write(0);
+        out.write(new byte[] {(byte) 0x85, 0x04, 0x5F, 0x5E, 0x10, 0x00}); // date
+        out.write(new byte[] {(byte) 0x96, 'h', 'i', 0});              // subject
+        out.write(new byte[] {(byte) 0x84, (byte) 0xB3});              // multipart/related
+        out.write(0x01);                                               // one part
+        out.write(new byte[] {0x0E, 0x05});                            // header and data lengths
+        out.write(new byte[] {0x03, (byte) 0x83, (byte) 0x81, (byte) 0xEA}); // text/plain; utf-8
+        out.write(new byte[] {(byte) 0x8E, 't', 'e', 'x', 't', '.', 't', 'x', 't', 0});
+        out.write(new byte[] {'h', 'e', 'l', 'l', 'o'});
+
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns at most <code>chunk</code> bytes per read, the way a network stream does.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        TrickleInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, chunk));
+        }
+    }
+}